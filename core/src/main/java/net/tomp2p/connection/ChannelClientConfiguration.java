@@ -16,6 +16,10 @@
 
 package net.tomp2p.connection;
 
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import net.tomp2p.storage.Data.Compression;
+
 /**
  * The class that stores the limits for the resource reservation.
  * 
@@ -31,6 +35,13 @@ public class ChannelClientConfiguration {
     private PipelineFilter pipelineFilter;
     private SignatureFactory signatureFactory;
     private Bindings externalBindings;
+    private boolean compactEncoding;
+    private ByteBufAllocator byteBufAllocator = PooledByteBufAllocator.DEFAULT;
+    private Compression compression = Compression.LZF;
+    private int compressionThreshold = ConnectionBean.DEFAULT_COMPRESSION_THRESHOLD;
+    private int udpChannelPoolSize = 0;
+    private int tcpChannelPoolMaxPerPeer = 0;
+    private int tcpChannelPoolIdleMillis = ConnectionBean.DEFAULT_TCP_POOL_IDLE_MILLIS;
 
     /**
      * @return The maximum number of permanent (long-lived) connections
@@ -125,4 +136,136 @@ public class ChannelClientConfiguration {
         this.externalBindings = externalBindings;
         return this;
     }
+
+    /**
+     * @return True if requests use the compact encoding for key collections and key maps
+     */
+    public boolean compactEncoding() {
+        return compactEncoding;
+    }
+
+    /**
+     * @param compactEncoding
+     *            True if requests use the compact encoding for key collections and key maps. The encoding is only
+     *            used towards peers that have sent the compact flag themselves, requests without key content carry
+     *            the flag to announce it. Replies use the encoding of the request, so a peer that does not know the
+     *            compact encoding is never sent one
+     * @return This class
+     */
+    public ChannelClientConfiguration compactEncoding(final boolean compactEncoding) {
+        this.compactEncoding = compactEncoding;
+        return this;
+    }
+
+    /**
+     * @return The allocator for the buffers of the encoder and decoder, and for the channels
+     */
+    public ByteBufAllocator byteBufAllocator() {
+        return byteBufAllocator;
+    }
+
+    /**
+     * @param byteBufAllocator
+     *            The allocator for the buffers of the encoder and decoder, and for the channels. The default is the
+     *            pooled allocator of Netty, whose buffers are tracked by its leak detector
+     * @return This class
+     */
+    public ChannelClientConfiguration byteBufAllocator(final ByteBufAllocator byteBufAllocator) {
+        this.byteBufAllocator = byteBufAllocator;
+        return this;
+    }
+
+    /**
+     * @return The compression of the data in data maps that are sent with the compact encoding
+     */
+    public Compression compression() {
+        return compression;
+    }
+
+    /**
+     * @param compression
+     *            The compression of the data in data maps that are sent with the compact encoding. The default is LZF,
+     *            which is faster than deflate. Data that was received compressed is sent on as it is
+     * @return This class
+     */
+    public ChannelClientConfiguration compression(final Compression compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * @return The minimal length of the data to compress
+     */
+    public int compressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * @param compressionThreshold
+     *            The minimal length of the data to compress, smaller data is not worth the CPU
+     * @return This class
+     */
+    public ChannelClientConfiguration compressionThreshold(final int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+        return this;
+    }
+
+    /**
+     * @return The number of shared UDP channels for requests, 0 if every UDP request gets its own channel
+     */
+    public int udpChannelPoolSize() {
+        return udpChannelPoolSize;
+    }
+
+    /**
+     * @param udpChannelPoolSize
+     *            The number of shared UDP channels for requests. If set, requests are sent over these long-lived
+     *            channels and the replies are matched by the message ID, so that a request does not need its own
+     *            socket. The UDP permits still limit the requests in flight. 0, the default, creates a channel for
+     *            every UDP request
+     * @return This class
+     */
+    public ChannelClientConfiguration udpChannelPoolSize(final int udpChannelPoolSize) {
+        this.udpChannelPoolSize = udpChannelPoolSize;
+        return this;
+    }
+
+    /**
+     * @return The maximum number of pooled TCP connections to a peer, 0 if every TCP request gets its own connection
+     */
+    public int tcpChannelPoolMaxPerPeer() {
+        return tcpChannelPoolMaxPerPeer;
+    }
+
+    /**
+     * @param tcpChannelPoolMaxPerPeer
+     *            The maximum number of pooled TCP connections to a peer. If set, requests to a peer reuse the open
+     *            connections, and if all of them are busy, further requests are pipelined on them. The TCP permits
+     *            still limit the requests in flight. 0, the default, opens and closes a connection for every TCP
+     *            request
+     * @return This class
+     */
+    public ChannelClientConfiguration tcpChannelPoolMaxPerPeer(final int tcpChannelPoolMaxPerPeer) {
+        this.tcpChannelPoolMaxPerPeer = tcpChannelPoolMaxPerPeer;
+        return this;
+    }
+
+    /**
+     * @return The time in milliseconds after which a pooled TCP connection without requests is closed
+     */
+    public int tcpChannelPoolIdleMillis() {
+        return tcpChannelPoolIdleMillis;
+    }
+
+    /**
+     * @param tcpChannelPoolIdleMillis
+     *            The time in milliseconds after which a pooled TCP connection without requests is closed. This should
+     *            be below the idle time of the other peer, which closes its side after
+     *            {@link ConnectionBean#DEFAULT_TCP_IDLE_SECONDS} by default
+     * @return This class
+     */
+    public ChannelClientConfiguration tcpChannelPoolIdleMillis(final int tcpChannelPoolIdleMillis) {
+        this.tcpChannelPoolIdleMillis = tcpChannelPoolIdleMillis;
+        return this;
+    }
 }
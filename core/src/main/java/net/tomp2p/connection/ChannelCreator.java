@@ -42,6 +42,7 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import net.tomp2p.futures.FutureDone;
 import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.peers.PeerStatusListener;
 import net.tomp2p.utils.Pair;
 
 import org.slf4j.Logger;
@@ -82,6 +83,11 @@ public class ChannelCreator {
 	private final ChannelClientConfiguration channelClientConfiguration;
 
 	private final Bindings externalBindings;
+
+	// the shared UDP channels, or null if every UDP request gets its own channel
+	private final UDPChannelPool udpChannelPool;
+	// the pooled TCP connections, or null if every TCP request gets its own connection
+	private final TCPChannelPool tcpChannelPool;
 	
 	private EventExecutorGroup handlerExecutor;
 
@@ -108,6 +114,39 @@ public class ChannelCreator {
 	ChannelCreator(final EventLoopGroup workerGroup, final FutureDone<Void> futureChannelCreationDone,
 	        final int maxPermitsUDP, final int maxPermitsTCP,
 	        final ChannelClientConfiguration channelClientConfiguration) {
+		this(workerGroup, futureChannelCreationDone, maxPermitsUDP, maxPermitsTCP, channelClientConfiguration, null,
+		        null);
+	}
+
+	/**
+	 * Package private constructor, since this is created by
+	 * {@link ConnectionReservation} and should never be called directly.
+	 * 
+	 * @param workerGroup
+	 *            The worker group for netty that is shared between TCP and UDP.
+	 *            This workergroup is not shutdown if this class is shutdown
+	 * @param futureChannelCreationDone
+	 *            We need to set this from the outside as we want to attach
+	 *            listeners to it
+	 * @param maxPermitsUDP
+	 *            The number of max. parallel UDP connections.
+	 * @param maxPermitsTCP
+	 *            The number of max. parallel TCP connections.
+	 * @param channelClientConfiguration
+	 *            The configuration that contains the pipeline filter
+	 * @param udpChannelPool
+	 *            The shared UDP channels for requests, or null to create a
+	 *            channel for every UDP request
+	 * @param tcpChannelPool
+	 *            The pooled TCP connections for requests, or null to create a
+	 *            connection for every TCP request
+	 */
+	ChannelCreator(final EventLoopGroup workerGroup, final FutureDone<Void> futureChannelCreationDone,
+	        final int maxPermitsUDP, final int maxPermitsTCP,
+	        final ChannelClientConfiguration channelClientConfiguration, final UDPChannelPool udpChannelPool,
+	        final TCPChannelPool tcpChannelPool) {
+		this.udpChannelPool = udpChannelPool;
+		this.tcpChannelPool = tcpChannelPool;
 		this.workerGroup = workerGroup;
 		this.futureChannelCreationDone = futureChannelCreationDone;
 		this.maxPermitsUDP = maxPermitsUDP;
@@ -146,6 +185,7 @@ public class ChannelCreator {
 			b.group(workerGroup);
 			b.channel(NioDatagramChannel.class);
 			b.option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(ConnectionBean.UDP_LIMIT));
+			b.option(ChannelOption.ALLOCATOR, channelClientConfiguration.byteBufAllocator());
 			if (broadcast) {
 				b.option(ChannelOption.SO_BROADCAST, true);
 			}
@@ -169,6 +209,95 @@ public class ChannelCreator {
 		}
 	}
 
+	/**
+	 * @return True if UDP requests are sent over the shared channels of a
+	 *         {@link UDPChannelPool} instead of a channel per request
+	 */
+	public boolean isUDPPooled() {
+		return udpChannelPool != null;
+	}
+
+	/**
+	 * Sends a UDP request over one of the shared channels. Like
+	 * {@link #createUDP(SocketAddress, boolean, Map, FutureResponse)}, this
+	 * takes a UDP permit, which is released once the reply arrived, or the
+	 * request failed or timed out.
+	 * 
+	 * @param handler
+	 *            The handler for the reply, or null for a fire and forget
+	 * @param futureResponse
+	 *            The future with the request
+	 * @param timeoutSeconds
+	 *            The time to wait for a reply
+	 * @param peerStatusListeners
+	 *            The listeners that get notified if the request timed out
+	 * @return False if we are shut down
+	 */
+	public boolean sendPooledUDP(final RequestHandler<?> handler, final FutureResponse futureResponse,
+	        final int timeoutSeconds, final PeerStatusListener[] peerStatusListeners) {
+		readUDP.lock();
+		try {
+			if (shutdownUDP) {
+				return false;
+			}
+			if (!semaphoreUPD.tryAcquire()) {
+				LOG.error("Tried to acquire more resources (UDP) than announced!");
+				throw new RuntimeException("Tried to acquire more resources (UDP) than announced!");
+			}
+			udpChannelPool.send(this, semaphoreUPD, handler, futureResponse, timeoutSeconds, peerStatusListeners);
+			return true;
+		} finally {
+			readUDP.unlock();
+		}
+	}
+
+	/**
+	 * @return True if TCP requests are sent over the connections of a
+	 *         {@link TCPChannelPool} instead of a connection per request
+	 */
+	public boolean isTCPPooled() {
+		return tcpChannelPool != null;
+	}
+
+	/**
+	 * Sends a TCP request over a pooled connection to the recipient. Like
+	 * {@link #createTCP(SocketAddress, int, Map, FutureResponse)}, this takes
+	 * a TCP permit, which is released once the reply arrived, or the request
+	 * failed or timed out.
+	 * 
+	 * @param handler
+	 *            The handler for the reply
+	 * @param futureResponse
+	 *            The future with the request
+	 * @param timeoutSeconds
+	 *            The time to wait for a reply
+	 * @param connectionTimeoutMillis
+	 *            The timeout for establishing a TCP connection, if a new one
+	 *            is needed
+	 * @param peerStatusListeners
+	 *            The listeners that get notified if the request timed out
+	 * @return False if we are shut down
+	 */
+	public boolean sendPooledTCP(final RequestHandler<?> handler, final FutureResponse futureResponse,
+	        final int timeoutSeconds, final int connectionTimeoutMillis,
+	        final PeerStatusListener[] peerStatusListeners) {
+		readTCP.lock();
+		try {
+			if (shutdownTCP) {
+				return false;
+			}
+			if (!semaphoreTCP.tryAcquire()) {
+				LOG.error("Tried to acquire more resources (TCP) than announced!");
+				throw new RuntimeException("Tried to acquire more resources (TCP) than announced!");
+			}
+			tcpChannelPool.send(this, semaphoreTCP, handler, futureResponse, timeoutSeconds,
+			        connectionTimeoutMillis, peerStatusListeners);
+			return true;
+		} finally {
+			readTCP.unlock();
+		}
+	}
+
 	/**
 	 * Creates a channel to the given address. This will setup the TCP
 	 * connection
@@ -200,6 +329,7 @@ public class ChannelCreator {
 			b.option(ChannelOption.TCP_NODELAY, true);
 			b.option(ChannelOption.SO_LINGER, 0);
 			b.option(ChannelOption.SO_REUSEADDR, true);
+			b.option(ChannelOption.ALLOCATOR, channelClientConfiguration.byteBufAllocator());
 			Map<String, Pair<EventExecutorGroup, ChannelHandler>> channelHandlers2 = channelClientConfiguration.pipelineFilter().filter(channelHandlers, true, true);
 			addHandlers(b, channelHandlers2);
 
@@ -316,6 +446,13 @@ public class ChannelCreator {
 			writeTCP.unlock();
 			writeUDP.unlock();
 		}
+		// the pooled channels stay open, but the requests of this creator release their permits
+		if (udpChannelPool != null) {
+			udpChannelPool.cancel(this);
+		}
+		if (tcpChannelPool != null) {
+			tcpChannelPool.cancel(this);
+		}
 
 		recipients.close().addListener(new GenericFutureListener<ChannelGroupFuture>() {
 			@Override
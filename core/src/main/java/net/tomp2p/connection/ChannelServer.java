@@ -39,6 +39,7 @@ import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.tomp2p.futures.FutureDone;
+import net.tomp2p.message.CompByteBufAllocator;
 import net.tomp2p.message.DropConnectionInboundHandler;
 import net.tomp2p.message.TomP2PCumulationTCP;
 import net.tomp2p.message.TomP2POutbound;
@@ -79,6 +80,7 @@ public final class ChannelServer {
 	private final DropConnectionInboundHandler tcpDropConnectionInboundHandler;
 	private final DropConnectionInboundHandler udpDropConnectionInboundHandler;
 	private final ChannelHandler udpDecoderHandler;
+	private final CompByteBufAllocator compByteBufAllocator;
 
 	/**
 	 * Sets parameters and starts network device discovery.
@@ -109,6 +111,7 @@ public final class ChannelServer {
 		this.tcpDropConnectionInboundHandler = new DropConnectionInboundHandler(channelServerConfiguration.maxTCPIncomingConnections());
 		this.udpDropConnectionInboundHandler = new DropConnectionInboundHandler(channelServerConfiguration.maxUDPIncomingConnections());
 		this.udpDecoderHandler = new TomP2PSinglePacketUDP(channelServerConfiguration.signatureFactory());
+		this.compByteBufAllocator = new CompByteBufAllocator(channelServerConfiguration.byteBufAllocator());
 	}
 
 	/**
@@ -178,6 +181,7 @@ public final class ChannelServer {
 		b.channel(NioDatagramChannel.class);
 		b.option(ChannelOption.SO_BROADCAST, true);
 		b.option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(ConnectionBean.UDP_LIMIT));
+		b.option(ChannelOption.ALLOCATOR, channelServerConfiguration.byteBufAllocator());
 
 		b.handler(new ChannelInitializer<Channel>() {
 			@Override
@@ -210,6 +214,8 @@ public final class ChannelServer {
 		ServerBootstrap b = new ServerBootstrap();
 		b.group(bossGroup, workerGroup);
 		b.channel(NioServerSocketChannel.class);
+		b.option(ChannelOption.ALLOCATOR, channelServerConfiguration.byteBufAllocator());
+		b.childOption(ChannelOption.ALLOCATOR, channelServerConfiguration.byteBufAllocator());
 		b.childHandler(new ChannelInitializer<Channel>() {
 			@Override
 			protected void initChannel(final Channel ch) throws Exception {
@@ -270,8 +276,9 @@ public final class ChannelServer {
 			handlers.put("dropconnection", new Pair<EventExecutorGroup, ChannelHandler>(null, udpDropConnectionInboundHandler));
 			handlers.put("decoder", new Pair<EventExecutorGroup, ChannelHandler>(null, udpDecoderHandler));
 		}
-		handlers.put("encoder", new Pair<EventExecutorGroup, ChannelHandler>(null, new TomP2POutbound(false,
-		        channelServerConfiguration.signatureFactory())));
+		handlers.put("encoder", new Pair<EventExecutorGroup, ChannelHandler>(null, new TomP2POutbound(true,
+		        channelServerConfiguration.signatureFactory(), compByteBufAllocator,
+		        channelServerConfiguration.compression(), channelServerConfiguration.compressionThreshold())));
 		handlers.put("dispatcher", new Pair<EventExecutorGroup, ChannelHandler>(null, dispatcher));
 		return channelServerConfiguration.pipelineFilter().filter(handlers, tcp, false);
 	}
@@ -16,6 +16,14 @@
 
 package net.tomp2p.connection;
 
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.tomp2p.connection.DispatchExecutor.Mode;
+import net.tomp2p.storage.Data.Compression;
 
 /**
  * The the configuration for the server.
@@ -48,6 +56,15 @@ public class ChannelServerConficuration implements ConnectionConfiguration {
     
     private int heartBeatMillis = PeerConnection.HEART_BEAT_MILLIS;
 
+    private ByteBufAllocator byteBufAllocator = PooledByteBufAllocator.DEFAULT;
+    private Compression compression = Compression.LZF;
+    private int compressionThreshold = ConnectionBean.DEFAULT_COMPRESSION_THRESHOLD;
+
+    private Mode dispatchMode = Mode.IO_THREAD;
+    private final Map<Integer, Mode> dispatchModes = new HashMap<Integer, Mode>();
+    private int dispatchThreads = Runtime.getRuntime().availableProcessors();
+    private int dispatchMaxPending = ConnectionBean.DEFAULT_DISPATCH_MAX_PENDING;
+
     /**
      * @return True if this peer is behind a firewall and cannot be accessed directly
      */
@@ -255,4 +272,131 @@ public class ChannelServerConficuration implements ConnectionConfiguration {
 	    this.heartBeatMillis = heartBeatMillis;
 	    return this;
     }
+
+    /**
+     * @return The allocator for the buffers of the encoder and decoder, and for the channels
+     */
+    public ByteBufAllocator byteBufAllocator() {
+        return byteBufAllocator;
+    }
+
+    /**
+     * @param byteBufAllocator
+     *            The allocator for the buffers of the encoder and decoder, and for the channels. The default is the
+     *            pooled allocator of Netty, whose buffers are tracked by its leak detector
+     * @return This class
+     */
+    public ChannelServerConficuration byteBufAllocator(final ByteBufAllocator byteBufAllocator) {
+        this.byteBufAllocator = byteBufAllocator;
+        return this;
+    }
+
+    /**
+     * @return The compression of the data in data maps that are sent with the compact encoding
+     */
+    public Compression compression() {
+        return compression;
+    }
+
+    /**
+     * @param compression
+     *            The compression of the data in data maps that are sent with the compact encoding. The default is LZF,
+     *            which is faster than deflate. Data that was received compressed is sent on as it is
+     * @return This class
+     */
+    public ChannelServerConficuration compression(final Compression compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * @return The minimal length of the data to compress
+     */
+    public int compressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * @param compressionThreshold
+     *            The minimal length of the data to compress, smaller data is not worth the CPU
+     * @return This class
+     */
+    public ChannelServerConficuration compressionThreshold(final int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+        return this;
+    }
+
+    /**
+     * @return Where the handlers of incoming requests run, if no mode is set for their command
+     */
+    public Mode dispatchMode() {
+        return dispatchMode;
+    }
+
+    /**
+     * @param dispatchMode
+     *            Where the handlers of incoming requests run, if no mode is set for their command. The default is the
+     *            I/O thread
+     * @return This class
+     */
+    public ChannelServerConficuration dispatchMode(final Mode dispatchMode) {
+        this.dispatchMode = dispatchMode;
+        return this;
+    }
+
+    /**
+     * @param dispatchMode
+     *            Where the handlers of these commands run, e.g. the worker pool for commands with slow handlers
+     * @param commands
+     *            The commands, e.g. {@link net.tomp2p.rpc.DirectDataRPC#DIRECT_DATA_COMMAND}
+     * @return This class
+     */
+    public ChannelServerConficuration dispatchMode(final Mode dispatchMode, final int... commands) {
+        for (int command : commands) {
+            dispatchModes.put(command, dispatchMode);
+        }
+        return this;
+    }
+
+    /**
+     * @return The modes that are set for single commands
+     */
+    public Map<Integer, Mode> dispatchModes() {
+        return dispatchModes;
+    }
+
+    /**
+     * @return The number of threads of the worker pool for the handlers
+     */
+    public int dispatchThreads() {
+        return dispatchThreads;
+    }
+
+    /**
+     * @param dispatchThreads
+     *            The number of threads of the worker pool for the handlers. The default is the number of processors
+     * @return This class
+     */
+    public ChannelServerConficuration dispatchThreads(final int dispatchThreads) {
+        this.dispatchThreads = dispatchThreads;
+        return this;
+    }
+
+    /**
+     * @return The maximum number of requests of a command that may wait or run in the worker pool
+     */
+    public int dispatchMaxPending() {
+        return dispatchMaxPending;
+    }
+
+    /**
+     * @param dispatchMaxPending
+     *            The maximum number of requests of a command that may wait or run in the worker pool. Further requests
+     *            are denied, so that the sender can back off instead of timing out
+     * @return This class
+     */
+    public ChannelServerConficuration dispatchMaxPending(final int dispatchMaxPending) {
+        this.dispatchMaxPending = dispatchMaxPending;
+        return this;
+    }
 }
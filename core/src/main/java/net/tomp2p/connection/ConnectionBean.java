@@ -32,6 +32,9 @@ public class ConnectionBean {
     public static final int DEFAULT_TCP_IDLE_SECONDS = 5;
     public static final int DEFAULT_UDP_IDLE_SECONDS = 5;
     public static final int DEFAULT_CONNECTION_TIMEOUT_TCP = 3000;
+    public static final int DEFAULT_TCP_POOL_IDLE_MILLIS = 2000;
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+    public static final int DEFAULT_DISPATCH_MAX_PENDING = 1000;
     public static final int UDP_LIMIT = 1400;
 
     private final int p2pId;
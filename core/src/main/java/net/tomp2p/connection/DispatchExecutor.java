@@ -0,0 +1,249 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides where the {@link Dispatcher} runs the handler of an incoming request. By default, the handler runs on the
+ * I/O thread, which is the fastest for short handlers. Commands with slow handlers, e.g. deserialization or user
+ * replies, can run in a worker pool, so that they do not block the other channels of the same event loop. Each of
+ * these commands has its own limit of pending requests, so a flood of one command cannot starve the others. If the
+ * limit is reached, the request is rejected and the dispatcher sends back a {@link net.tomp2p.message.Message.Type#DENIED}.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class DispatchExecutor {
+    private static final Logger LOG = LoggerFactory.getLogger(DispatchExecutor.class);
+
+    private static final int KEEP_ALIVE_SECONDS = 60;
+
+    /**
+     * Where the handler of a command runs.
+     */
+    public enum Mode {
+        /**
+         * The handler runs on the I/O thread that received the request.
+         */
+        IO_THREAD,
+        /**
+         * The handler runs in the worker pool of the dispatcher.
+         */
+        WORKER_POOL
+    }
+
+    private final Mode defaultMode;
+    private final Map<Integer, Mode> modes;
+    private final int maxPending;
+    private final ThreadPoolExecutor executor;
+
+    private final ConcurrentMap<Integer, Stats> stats = new ConcurrentHashMap<Integer, Stats>();
+
+    /**
+     * Creates an executor that runs all handlers on the I/O thread.
+     */
+    public DispatchExecutor() {
+        this(Mode.IO_THREAD, Collections.<Integer, Mode> emptyMap(), 0, 0);
+    }
+
+    /**
+     * @param defaultMode
+     *            The mode of the commands that are not in modes
+     * @param modes
+     *            The mode for each command
+     * @param threads
+     *            The number of threads of the worker pool
+     * @param maxPending
+     *            The maximum number of requests of a command that may wait or run in the worker pool
+     */
+    public DispatchExecutor(final Mode defaultMode, final Map<Integer, Mode> modes, final int threads,
+            final int maxPending) {
+        this.defaultMode = defaultMode;
+        this.modes = new HashMap<Integer, Mode>(modes);
+        this.maxPending = maxPending;
+        if (defaultMode == Mode.WORKER_POOL || modes.containsValue(Mode.WORKER_POOL)) {
+            if (threads <= 0 || maxPending <= 0) {
+                throw new IllegalArgumentException("the worker pool needs at least one thread and one pending request");
+            }
+            // the queue is bounded by the number of pending requests per command
+            executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new DefaultThreadFactory(ConnectionBean.THREAD_NAME
+                            + "dispatch - "));
+            executor.allowCoreThreadTimeOut(true);
+        } else {
+            executor = null;
+        }
+    }
+
+    /**
+     * @param command
+     *            The command of the request
+     * @return Where the handler of the command runs
+     */
+    public Mode mode(final int command) {
+        final Mode mode = modes.get(command);
+        return mode == null ? defaultMode : mode;
+    }
+
+    /**
+     * Runs the handler of a request, either right away or in the worker pool.
+     * 
+     * @param command
+     *            The command of the request
+     * @param task
+     *            The task that calls the handler
+     * @return False if the request was rejected, because too many requests of this command are pending or because
+     *         this executor was shut down. In that case, the task is not run
+     */
+    public boolean execute(final int command, final Runnable task) {
+        final Stats stat = stats(command);
+        if (executor == null || mode(command) == Mode.IO_THREAD) {
+            stat.executed.incrementAndGet();
+            task.run();
+            return true;
+        }
+        final int pending = stat.pending.incrementAndGet();
+        if (pending > maxPending) {
+            stat.pending.decrementAndGet();
+            stat.rejected.incrementAndGet();
+            LOG.debug("too many pending requests for command {}, reject", command);
+            return false;
+        }
+        stat.updateMaxPending(pending);
+        final long queued = System.nanoTime();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    stat.waitNanos.addAndGet(System.nanoTime() - queued);
+                    stat.pooled.incrementAndGet();
+                    try {
+                        task.run();
+                    } finally {
+                        stat.executed.incrementAndGet();
+                        stat.pending.decrementAndGet();
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            stat.pending.decrementAndGet();
+            stat.rejected.incrementAndGet();
+            LOG.debug("worker pool is shut down, reject command {}", command);
+            return false;
+        }
+    }
+
+    /**
+     * @param command
+     *            The command
+     * @return The statistics of this command since the start
+     */
+    public Stats stats(final int command) {
+        Stats stat = stats.get(command);
+        if (stat == null) {
+            stat = new Stats();
+            final Stats old = stats.putIfAbsent(command, stat);
+            if (old != null) {
+                stat = old;
+            }
+        }
+        return stat;
+    }
+
+    /**
+     * Shuts down the worker pool. The requests that are already in the pool are still handled, new requests are
+     * rejected.
+     */
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * The statistics of a command. The wait time and the pending requests only count the requests handled in the
+     * worker pool.
+     */
+    public static class Stats {
+        private final AtomicInteger pending = new AtomicInteger();
+        private final AtomicInteger maxPending = new AtomicInteger();
+        private final AtomicLong executed = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong pooled = new AtomicLong();
+        private final AtomicLong waitNanos = new AtomicLong();
+
+        private void updateMaxPending(final int current) {
+            int max = maxPending.get();
+            while (current > max && !maxPending.compareAndSet(max, current)) {
+                max = maxPending.get();
+            }
+        }
+
+        /**
+         * @return The number of requests that wait or run in the worker pool
+         */
+        public int pending() {
+            return pending.get();
+        }
+
+        /**
+         * @return The highest number of requests that waited or ran in the worker pool at the same time
+         */
+        public int maxPending() {
+            return maxPending.get();
+        }
+
+        /**
+         * @return The number of handled requests
+         */
+        public long executed() {
+            return executed.get();
+        }
+
+        /**
+         * @return The number of requests that were rejected with a denied reply
+         */
+        public long rejected() {
+            return rejected.get();
+        }
+
+        /**
+         * @return The average time a request waited in the worker pool before its handler ran
+         */
+        public long averageWaitMillis() {
+            final long pooled = this.pooled.get();
+            return pooled == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(waitNanos.get() / pooled);
+        }
+    }
+}
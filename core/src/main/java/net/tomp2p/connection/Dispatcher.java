@@ -54,6 +54,7 @@ public class Dispatcher extends SimpleChannelInboundHandler<Message> {
     private final int p2pID;
     private final PeerBean peerBean;
     private final int heartBeatMillis;
+    private final DispatchExecutor dispatchExecutor;
 
     //copy on write map
     private volatile Map<Number160, Map<Integer, DispatchHandler>> ioHandlers = new HashMap<Number160, Map<Integer, DispatchHandler>>();
@@ -67,9 +68,48 @@ public class Dispatcher extends SimpleChannelInboundHandler<Message> {
      *            .
      */
     public Dispatcher(final int p2pID, final PeerBean peerBean, final int heartBeatMillis) {
+        this(p2pID, peerBean, heartBeatMillis, new DispatchExecutor());
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param p2pID
+     *            the p2p ID the dispatcher is looking for in messages
+     * @param peerBean
+     *            .
+     * @param heartBeatMillis
+     *            The heart beat of the peer connections of incoming requests
+     * @param dispatchExecutor
+     *            Decides where the handlers of the requests run
+     */
+    public Dispatcher(final int p2pID, final PeerBean peerBean, final int heartBeatMillis,
+            final DispatchExecutor dispatchExecutor) {
         this.p2pID = p2pID;
         this.peerBean = peerBean;
         this.heartBeatMillis = heartBeatMillis;
+        this.dispatchExecutor = dispatchExecutor;
+    }
+
+    /**
+     * @return The bean of the peer this dispatcher belongs to
+     */
+    public PeerBean peerBean() {
+        return peerBean;
+    }
+
+    /**
+     * @return The executor that runs the handlers, with the statistics for each command
+     */
+    public DispatchExecutor dispatchExecutor() {
+        return dispatchExecutor;
+    }
+
+    /**
+     * Shuts down the worker pool of the handlers. Requests that arrive afterwards are denied.
+     */
+    public void shutdown() {
+        dispatchExecutor.shutdown();
     }
 
     /**
@@ -131,14 +171,36 @@ public class Dispatcher extends SimpleChannelInboundHandler<Message> {
             ctx.fireChannelRead(message);
             return;
         }
+        if (message.isCompact()) {
+            peerBean.compactPeer(message.getSender().getPeerId());
+        }
         //Message responseMessage = null;
-        Responder responder = new Responder(ctx, message);
+        final Responder responder = new Responder(ctx, message);
         final DispatchHandler myHandler = getAssociatedHandler(message);
         if (myHandler != null) {
-            boolean isUdp = ctx.channel() instanceof DatagramChannel;
+            final boolean isUdp = ctx.channel() instanceof DatagramChannel;
             LOG.debug("about to respond to {}", message);
-            PeerConnection peerConnection = new PeerConnection(message.getSender(), new DefaultChannelPromise(ctx.channel()).setSuccess(), heartBeatMillis);
-            myHandler.forwardMessage(message, isUdp ? null : peerConnection, responder);
+            final PeerConnection peerConnection = isUdp ? null : new PeerConnection(message.getSender(),
+                    new DefaultChannelPromise(ctx.channel()).setSuccess(), heartBeatMillis);
+            if (message.isStreaming()) {
+                // the handler reads the partial message as it arrives, this has to happen on the I/O thread
+                myHandler.forwardMessage(message, peerConnection, responder);
+                return;
+            }
+            final boolean accepted = dispatchExecutor.execute(message.getCommand(), new Runnable() {
+                @Override
+                public void run() {
+                    myHandler.forwardMessage(message, peerConnection, responder);
+                }
+            });
+            if (!accepted) {
+                LOG.warn("Overloaded, deny request {}", message);
+                if (isUdp && message.isFireAndForget()) {
+                    responder.responseFireAndForget();
+                } else {
+                    responder.failed(Type.DENIED, "overloaded");
+                }
+            }
         } else {
             LOG.debug("No handler found for {}. Probably we have shutdown this peer.", message);
             Message responseMessage = DispatchHandler.createResponseMessage(message, Type.UNKNOWN_ID, peerBean.serverPeerAddress());
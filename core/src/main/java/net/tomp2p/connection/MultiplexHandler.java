@@ -0,0 +1,119 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.Message;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Dispatches the replies on a {@link PeerConnection} to the requests in flight, by the message ID. This handler stays
+ * in the pipeline for the lifetime of the connection, so that many requests can be sent concurrently instead of
+ * replacing the handler for every request. The number of requests in flight is limited by
+ * {@link PeerConnection#acquire(FutureResponse)}. Requests from the other peer are passed on to the dispatcher.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class MultiplexHandler extends SimpleChannelInboundHandler<Message> {
+    private static final Logger LOG = LoggerFactory.getLogger(MultiplexHandler.class);
+
+    private final ConcurrentMap<Integer, RequestHandler<?>> inFlight = new ConcurrentHashMap<Integer, RequestHandler<?>>();
+
+    /**
+     * Adds a request that waits for its reply. The request is removed once its future completes.
+     *
+     * @param handler
+     *            The handler of the request
+     * @return False if a request with the same message ID is in flight on this connection
+     */
+    public boolean register(final RequestHandler<?> handler) {
+        final FutureResponse futureResponse = handler.futureResponse();
+        final Integer messageId = futureResponse.getRequest().getMessageId();
+        if (inFlight.putIfAbsent(messageId, handler) != null) {
+            return false;
+        }
+        futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+            @Override
+            public void operationComplete(final FutureResponse future) throws Exception {
+                inFlight.remove(messageId, handler);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * @return The number of requests that wait for a reply on this connection
+     */
+    public int inFlight() {
+        return inFlight.size();
+    }
+
+    @Override
+    protected void channelRead0(final ChannelHandlerContext ctx, final Message responseMessage) throws Exception {
+        if (responseMessage.isRequest()) {
+            ctx.fireChannelRead(responseMessage);
+            return;
+        }
+        final RequestHandler<?> handler = inFlight.get(responseMessage.getMessageId());
+        if (handler == null) {
+            LOG.debug("no request waits for {}, may have been canceled", responseMessage);
+            return;
+        }
+        boolean finished;
+        try {
+            finished = handler.response(responseMessage);
+        } catch (Exception e) {
+            handler.failed(e);
+            finished = true;
+        }
+        // a failed reply does not close the connection, as other requests are in flight
+        if (finished || handler.futureResponse().isCompleted()) {
+            inFlight.remove(responseMessage.getMessageId(), handler);
+            handler.futureResponse().setResponseNow();
+        }
+    }
+
+    @Override
+    public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) throws Exception {
+        // we cannot tell to which request the error belongs, so all of them fail
+        for (RequestHandler<?> handler : inFlight.values()) {
+            handler.failed(cause);
+            handler.futureResponse().setResponseNow();
+        }
+        inFlight.clear();
+        ctx.close();
+    }
+
+    @Override
+    public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+        for (RequestHandler<?> handler : inFlight.values()) {
+            handler.futureResponse().setFailed("channel closed before the reply arrived");
+        }
+        inFlight.clear();
+        ctx.fireChannelInactive();
+    }
+}
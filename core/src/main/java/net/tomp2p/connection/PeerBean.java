@@ -18,6 +18,7 @@ package net.tomp2p.connection;
 import java.security.KeyPair;
 
 import net.tomp2p.p2p.MaintenanceTask;
+import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.peers.PeerMap;
 import net.tomp2p.peers.PeerStatusListener;
@@ -25,7 +26,10 @@ import net.tomp2p.p2p.Replication;
 import net.tomp2p.p2p.ReplicationExecutor;
 import net.tomp2p.rpc.BloomfilterFactory;
 import net.tomp2p.storage.StorageLayer;
+import net.tomp2p.storage.StorageSnapshot;
 import net.tomp2p.storage.TrackerStorage;
+import net.tomp2p.utils.ConcurrentCacheMap;
+import net.tomp2p.utils.Serializer;
 
 /**
  * A bean that holds non-sharable (unique for each peer) configuration settings for the peer. The sharable
@@ -35,6 +39,9 @@ import net.tomp2p.storage.TrackerStorage;
  */
 public class PeerBean {
 
+    // how long we remember that a peer knows the compact encoding without hearing from it
+    public static final int COMPACT_PEERS_TIMEOUT_SECONDS = 600;
+
     private KeyPair keyPair;
     private PeerAddress serverPeerAddress;
     private PeerMap peerMap;
@@ -46,6 +53,11 @@ public class PeerBean {
     private BloomfilterFactory bloomfilterFactory;
     private MaintenanceTask maintenanceTask;
     private ReplicationExecutor replicationExecutor;
+    private StorageSnapshot storageSnapshot;
+    private Serializer serializer;
+    // the peers that sent us a message with the compact flag, see Sender
+    private final ConcurrentCacheMap<Number160, Boolean> compactPeers = new ConcurrentCacheMap<Number160, Boolean>(
+            COMPACT_PEERS_TIMEOUT_SECONDS, ConcurrentCacheMap.MAX_ENTRIES);
     /*
      * private Statistics statistics; private Peer peer;
      */
@@ -219,4 +231,52 @@ public class PeerBean {
         this.replicationExecutor = replicationExecutor;
         return this;
     }
+
+    public StorageSnapshot storageSnapshot() {
+        return storageSnapshot;
+    }
+
+    public PeerBean storageSnapshot(StorageSnapshot storageSnapshot) {
+        this.storageSnapshot = storageSnapshot;
+        return this;
+    }
+
+    /**
+     * @return The serializer for objects in data and direct messages
+     */
+    public Serializer serializer() {
+        return serializer;
+    }
+
+    /**
+     * @param serializer
+     *            The serializer for objects in data and direct messages
+     * @return This class
+     */
+    public PeerBean serializer(final Serializer serializer) {
+        this.serializer = serializer;
+        return this;
+    }
+
+    /**
+     * Remembers that a peer knows the compact encoding. Only peers that know it ever set the compact flag, so a
+     * message with the flag is the proof.
+     * 
+     * @param peerId
+     *            The peer that sent a message with the compact flag
+     * @return This class
+     */
+    public PeerBean compactPeer(final Number160 peerId) {
+        compactPeers.put(peerId, Boolean.TRUE);
+        return this;
+    }
+
+    /**
+     * @param peerId
+     *            The peer to check
+     * @return True if the peer has recently sent a message with the compact flag
+     */
+    public boolean isCompactPeer(final Number160 peerId) {
+        return compactPeers.containsKey(peerId);
+    }
 }
@@ -4,8 +4,10 @@ import io.netty.channel.ChannelFuture;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Semaphore;
 
@@ -17,7 +19,10 @@ import net.tomp2p.peers.PeerAddress;
 
 public class PeerConnection {
 	final public static int HEART_BEAT_MILLIS = 2000;
-    final private Semaphore oneConnection = new Semaphore(1);
+	final public static int MAX_IN_FLIGHT = 16;
+    // the flow control of this connection, one permit per request in flight
+    final private Semaphore inFlight;
+    final private int maxInFlight;
 
     final private PeerAddress remotePeer;
     final private ChannelCreator cc;
@@ -39,9 +44,25 @@ public class PeerConnection {
      *            The channel creator where we can open a TCP connection
      */
     public PeerConnection(PeerAddress remotePeer, ChannelCreator cc, int heartBeatMillis) {
+        this(remotePeer, cc, heartBeatMillis, MAX_IN_FLIGHT);
+    }
+
+    /**
+     * If we don't have an open TCP connection, we first need a channel creator to open a channel.
+     * 
+     * @param remotePeer
+     *            The remote peer to connect to
+     * @param cc
+     *            The channel creator where we can open a TCP connection
+     * @param maxInFlight
+     *            The number of requests that can be in flight on this connection, further requests wait
+     */
+    public PeerConnection(PeerAddress remotePeer, ChannelCreator cc, int heartBeatMillis, int maxInFlight) {
         this.remotePeer = remotePeer;
         this.cc = cc;
         this.heartBeatMillis = heartBeatMillis;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
     }
 
     /**
@@ -58,6 +79,8 @@ public class PeerConnection {
         addCloseListener(channelFuture);
         this.cc = null;
         this.heartBeatMillis = heartBeatMillis;
+        this.maxInFlight = MAX_IN_FLIGHT;
+        this.inFlight = new Semaphore(MAX_IN_FLIGHT);
     }
 
     public PeerConnection channelFuture(ChannelFuture channelFuture) {
@@ -106,6 +129,15 @@ public class PeerConnection {
         return closeFuture;
     }
 
+    /**
+     * Reserves this connection for a request. Many requests can be in flight on this connection, up to the maximum,
+     * and the replies are matched by the message ID. A request that opens the connection, or that is streamed, needs
+     * the connection for itself. If the connection is busy, the request waits in the order of arrival.
+     * 
+     * @param futureResponse
+     *            The future of the request, the reservation ends once it completes
+     * @return The future that is reserved once the request can be sent
+     */
     public FutureChannelCreator acquire(final FutureResponse futureResponse) {
         FutureChannelCreator futureChannelCreator = new FutureChannelCreator();
         return acquire(futureChannelCreator, futureResponse);
@@ -113,32 +145,68 @@ public class PeerConnection {
 
     private FutureChannelCreator acquire(final FutureChannelCreator futureChannelCreator,
             final FutureResponse futureResponse) {
-        if (oneConnection.tryAcquire()) {
-            futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
-                @Override
-                public void operationComplete(FutureResponse future) throws Exception {
-                    oneConnection.release();
-                    synchronized (map) {
-                        Iterator<Map.Entry<FutureChannelCreator, FutureResponse>> iterator = map.entrySet()
-                                .iterator();
-                        if (iterator.hasNext()) {
-                            Map.Entry<FutureChannelCreator, FutureResponse> entry = iterator.next();
-                            iterator.remove();
-                            acquire(entry.getKey(), entry.getValue());
+        final int permits;
+        synchronized (map) {
+            permits = permits(futureResponse);
+            // first come, first served, otherwise a waiting exclusive request may starve
+            if (!map.isEmpty() || !inFlight.tryAcquire(permits)) {
+                map.put(futureChannelCreator, futureResponse);
+                return futureChannelCreator;
+            }
+        }
+        return reserved(futureChannelCreator, futureResponse, permits);
+    }
+
+    private FutureChannelCreator reserved(final FutureChannelCreator futureChannelCreator,
+            final FutureResponse futureResponse, final int permits) {
+        futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+            @Override
+            public void operationComplete(FutureResponse future) throws Exception {
+                final List<Map.Entry<FutureChannelCreator, FutureResponse>> next = new ArrayList<Map.Entry<FutureChannelCreator, FutureResponse>>();
+                final List<Integer> nextPermits = new ArrayList<Integer>();
+                synchronized (map) {
+                    inFlight.release(permits);
+                    // take the permits for the waiting requests that fit now, in order
+                    Iterator<Map.Entry<FutureChannelCreator, FutureResponse>> iterator = map.entrySet().iterator();
+                    while (iterator.hasNext()) {
+                        Map.Entry<FutureChannelCreator, FutureResponse> entry = iterator.next();
+                        final int permits2 = permits(entry.getValue());
+                        if (!inFlight.tryAcquire(permits2)) {
+                            break;
                         }
+                        iterator.remove();
+                        next.add(entry);
+                        nextPermits.add(permits2);
                     }
                 }
-            });
-            futureChannelCreator.reserved(cc);
-            return futureChannelCreator;
-        } else {
-            synchronized (map) {
-                map.put(futureChannelCreator, futureResponse);
+                for (int i = 0; i < next.size(); i++) {
+                    reserved(next.get(i).getKey(), next.get(i).getValue(), nextPermits.get(i));
+                }
             }
-        }
+        });
+        futureChannelCreator.reserved(cc);
         return futureChannelCreator;
     }
 
+    /**
+     * A request that opens the connection, or that is streamed, needs the connection for itself. Otherwise, a second
+     * connection would be opened, or the streamed data would be interleaved with other requests.
+     */
+    private int permits(final FutureResponse futureResponse) {
+        final ChannelFuture current = channelFuture;
+        if (current == null || !current.channel().isActive() || futureResponse.getRequest().isStreaming()) {
+            return maxInFlight;
+        }
+        return 1;
+    }
+
+    /**
+     * @return The number of requests that can be in flight on this connection
+     */
+    public int maxInFlight() {
+        return maxInFlight;
+    }
+
     public ChannelCreator channelCreator() {
         return cc;
     }
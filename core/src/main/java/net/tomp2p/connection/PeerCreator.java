@@ -99,7 +99,11 @@ public class PeerCreator {
 		workerGroup = new NioEventLoopGroup(0, new DefaultThreadFactory(ConnectionBean.THREAD_NAME
 		        + "worker-client/server - "));
 		bossGroup = new NioEventLoopGroup(2, new DefaultThreadFactory(ConnectionBean.THREAD_NAME + "boss - "));
-		Dispatcher dispatcher = new Dispatcher(p2pId, peerBean, channelServerConficuration.heartBeatMillis());
+		DispatchExecutor dispatchExecutor = new DispatchExecutor(channelServerConficuration.dispatchMode(),
+		        channelServerConficuration.dispatchModes(), channelServerConficuration.dispatchThreads(),
+		        channelServerConficuration.dispatchMaxPending());
+		Dispatcher dispatcher = new Dispatcher(p2pId, peerBean, channelServerConficuration.heartBeatMillis(),
+		        dispatchExecutor);
 		final ChannelServer channelServer = new ChannelServer(bossGroup, workerGroup, channelServerConficuration,
 		        dispatcher, peerStatusListeners);
 		if(!channelServer.startup()) {
@@ -156,6 +160,13 @@ public class PeerCreator {
 		if (peerBean.replicationExecutor() != null) {
 			peerBean.replicationExecutor().shutdown();
 		}
+		if (peerBean.storageSnapshot() != null) {
+			try {
+				peerBean.storageSnapshot().close();
+			} catch (IOException e) {
+				LOG.error("cannot write the final snapshot", e);
+			}
+		}
 		// shutdown all children
 		if (!master) {
 			for (PeerCreator peerCreator : childConnections) {
@@ -173,6 +184,7 @@ public class PeerCreator {
 				connectionBean.channelServer().shutdown().addListener(new BaseFutureAdapter<FutureDone<Void>>() {		
                     @Override
 					public void operationComplete(final FutureDone<Void> future) throws Exception {
+						connectionBean.dispatcher().shutdown();
 						shutdownNetty();
 					}
 				});
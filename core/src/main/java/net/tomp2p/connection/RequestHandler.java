@@ -189,6 +189,18 @@ public class RequestHandler<K extends FutureResponse> extends SimpleChannelInbou
 
     @Override
     public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) throws Exception {
+        failed(cause);
+        ctx.close();
+    }
+
+    /**
+     * Marks the peer as failed if needed and sets the future to failed. The listeners of the future are notified once
+     * the channel is closed, or once a pooled request is released.
+     * 
+     * @param cause
+     *            The reason of the failure
+     */
+    void failed(final Throwable cause) {
         LOG.debug("Error originating from: {}, cause {}", futureResponse.getRequest(), cause);
         if (futureResponse.isCompleted()) {
             LOG.warn("Got exception, but ignored (future response completed): {}",
@@ -221,31 +233,46 @@ public class RequestHandler<K extends FutureResponse> extends SimpleChannelInbou
         
         LOG.debug("report failure", cause);
         futureResponse.setFailedLater(cause);
-        ctx.close();
     }
 
     @Override
     protected void channelRead0(final ChannelHandlerContext ctx, final Message responseMessage)
             throws Exception {
+        if (responseMessage.isRequest()) {
+            ctx.fireChannelRead(responseMessage);
+            return;
+        }
+        if (response(responseMessage)) {
+            //the channel creater adds a listener that sets futureResponse.setResponseNow, when the channel is closed
+            ctx.close();
+        }
+    }
+
+    /**
+     * Handles the reply to the request.
+     * 
+     * @param responseMessage
+     *            The reply, which is not a request
+     * @return True if the request is finished and its channel can be closed. The listeners of the future are notified
+     *         once the channel is closed, or once a pooled request is released
+     */
+    protected boolean response(final Message responseMessage) throws Exception {
         MessageID recvMessageID = new MessageID(responseMessage);
         // Error handling
         if (responseMessage.getType() == Message.Type.UNKNOWN_ID) {
             String msg = "Message was not delivered successfully, unknow id (peer may be offline): " + this.message;
-            exceptionCaught(ctx, new PeerException(PeerException.AbortCause.PEER_ABORT, msg));
-            return;
+            failed(new PeerException(PeerException.AbortCause.PEER_ABORT, msg));
+            return true;
         } else if (responseMessage.getType() == Message.Type.EXCEPTION) {
             String msg = "Message caused an exception on the other side, handle as peer_abort: "
                     + this.message;
-            exceptionCaught(ctx, new PeerException(PeerException.AbortCause.PEER_ABORT, msg));
-            return;
-        } else if (responseMessage.isRequest()) {
-            ctx.fireChannelRead(responseMessage);
-            return;
+            failed(new PeerException(PeerException.AbortCause.PEER_ABORT, msg));
+            return true;
         } else if (!sendMessageID.equals(recvMessageID)) {
             String msg = "Message [" + responseMessage
                     + "] sent to the node is not the same as we expect. We sent [" + this.message + "]";
-            exceptionCaught(ctx, new PeerException(PeerException.AbortCause.PEER_ABORT, msg));
-            return;
+            failed(new PeerException(PeerException.AbortCause.PEER_ABORT, msg));
+            return true;
         }
 
         
@@ -254,12 +281,15 @@ public class RequestHandler<K extends FutureResponse> extends SimpleChannelInbou
         if (responseMessage.isOk() || responseMessage.isNotOk()) {
             peerBean.peerMap().peerFound(responseMessage.getSender(), null);
         }
+        if (responseMessage.isCompact()) {
+            peerBean.compactPeer(responseMessage.getSender().getPeerId());
+        }
         
         // call this for streaming support
         futureResponse.progress(responseMessage);
         if (!responseMessage.isDone()) {
             LOG.debug("message is streaming {}", responseMessage);
-            return;
+            return false;
         }
         
         // Now we now we have the right message
@@ -268,10 +298,10 @@ public class RequestHandler<K extends FutureResponse> extends SimpleChannelInbou
         if (!message.isKeepAlive()) {
             //set the success now, but trigger the notify when we closed the channel.
             futureResponse.setResponseLater(responseMessage); 
-            //the channel creater adds a listener that sets futureResponse.setResponseNow, when the channel is closed
-            ctx.close();
+            return true;
         } else {
             futureResponse.setResponse(responseMessage);
+            return false;
         }
     }
 }
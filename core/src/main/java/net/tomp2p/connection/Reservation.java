@@ -18,14 +18,13 @@ package net.tomp2p.connection;
 
 import io.netty.channel.EventLoopGroup;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.Semaphore;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
@@ -40,13 +39,37 @@ import net.tomp2p.p2p.RoutingConfiguration;
 import net.tomp2p.p2p.builder.DHTBuilder;
 
 /**
- * Reserves a block of connections.
+ * Reserves a block of connections. A reservation never blocks a thread: if the
+ * permits are not available, the reservation waits in a queue and is served
+ * once permits are released, in the order of arrival. User traffic is served
+ * before maintenance traffic, but maintenance gets every
+ * {@link #USER_RESERVATIONS_PER_MAINTENANCE}th turn, so that it cannot starve.
  * 
  * @author Thomas Bocek
  * 
  */
 public class Reservation {
 
+	/**
+	 * The number of user reservations that are served in a row if maintenance
+	 * reservations wait as well.
+	 */
+	public static final int USER_RESERVATIONS_PER_MAINTENANCE = 4;
+
+	/**
+	 * The priority of a reservation for short-lived connections.
+	 */
+	public enum Priority {
+		/**
+		 * Requests of the user, e.g., a put or a get.
+		 */
+		USER,
+		/**
+		 * Requests that the peer sends on its own, e.g., the replication.
+		 */
+		MAINTENANCE
+	}
+
 	private final int maxPermitsUDP;
 	private final int maxPermitsTCP;
 	private final int maxPermitsPermanentTCP;
@@ -57,9 +80,17 @@ public class Reservation {
 
 	private final ChannelClientConfiguration channelClientConfiguration;
 
-	private final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>();
-	// single thread
-	private final ExecutorService executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, queue);
+	// the reservations that wait for permits, guarded by queueLock
+	private final Object queueLock = new Object();
+	private final Queue<WaitReservation> queueUser = new ArrayDeque<WaitReservation>();
+	private final Queue<WaitReservation> queueMaintenance = new ArrayDeque<WaitReservation>();
+	private final Queue<WaitReservation> queuePermanent = new ArrayDeque<WaitReservation>();
+	private int userInRow = 0;
+	// the statistics of the time in the queue, by priority, guarded by queueLock
+	private final long[] reservations = new long[Priority.values().length];
+	private final long[] waitNanos = new long[Priority.values().length];
+	private final long[] maxWaitNanos = new long[Priority.values().length];
+
 	private final EventLoopGroup workerGroup;
 
 	// we should be fair, otherwise we see connection timeouts due to unfairness
@@ -73,6 +104,11 @@ public class Reservation {
 
 	private final FutureDone<Void> futureReservationDone = new FutureDone<Void>();
 
+	// the shared UDP channels, or null if every UDP request gets its own channel
+	private final UDPChannelPool udpChannelPool;
+	// the pooled TCP connections, or null if every TCP request gets its own connection
+	private final TCPChannelPool tcpChannelPool;
+
 	/**
 	 * Creates a new reservation class with the 3 permits.
 	 * 
@@ -95,6 +131,18 @@ public class Reservation {
 		this.semaphoreTCP = new Semaphore(maxPermitsTCP);
 		this.semaphorePermanentTCP = new Semaphore(maxPermitsPermanentTCP);
 		this.channelClientConfiguration = channelClientConfiguration;
+		this.udpChannelPool = channelClientConfiguration.udpChannelPoolSize() > 0 ? new UDPChannelPool(workerGroup,
+		        channelClientConfiguration) : null;
+		this.tcpChannelPool = channelClientConfiguration.tcpChannelPoolMaxPerPeer() > 0 ? new TCPChannelPool(
+		        workerGroup, channelClientConfiguration) : null;
+	}
+
+	/**
+	 * @return The pooled TCP connections, or null if every TCP request gets
+	 *         its own connection
+	 */
+	public TCPChannelPool tcpChannelPool() {
+		return tcpChannelPool;
 	}
 
 	/**
@@ -102,7 +150,59 @@ public class Reservation {
 	 *         executed yet.
 	 */
 	public int pendingRequests() {
-		return queue.size();
+		synchronized (queueLock) {
+			return queueUser.size() + queueMaintenance.size() + queuePermanent.size();
+		}
+	}
+
+	/**
+	 * @param priority
+	 *            The priority of the short-lived reservations
+	 * @return The pending number of short-lived reservations with this
+	 *         priority that wait for permits
+	 */
+	public int pendingRequests(final Priority priority) {
+		synchronized (queueLock) {
+			return queue(priority).size();
+		}
+	}
+
+	/**
+	 * @param priority
+	 *            The priority of the short-lived reservations
+	 * @return The number of short-lived reservations with this priority that
+	 *         got their permits so far
+	 */
+	public long reservations(final Priority priority) {
+		synchronized (queueLock) {
+			return reservations[priority.ordinal()];
+		}
+	}
+
+	/**
+	 * @param priority
+	 *            The priority of the short-lived reservations
+	 * @return The average time in milliseconds a reservation with this
+	 *         priority waited for its permits
+	 */
+	public double averageWaitMillis(final Priority priority) {
+		synchronized (queueLock) {
+			final long count = reservations[priority.ordinal()];
+			return count == 0 ? 0 : waitNanos[priority.ordinal()] / (double) count
+			        / TimeUnit.MILLISECONDS.toNanos(1);
+		}
+	}
+
+	/**
+	 * @param priority
+	 *            The priority of the short-lived reservations
+	 * @return The longest time in milliseconds a reservation with this
+	 *         priority waited for its permits
+	 */
+	public long maxWaitMillis(final Priority priority) {
+		synchronized (queueLock) {
+			return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos[priority.ordinal()]);
+		}
 	}
 
 	/**
@@ -153,6 +253,22 @@ public class Reservation {
 	 * @return The future channel creator
 	 */
 	public FutureChannelCreator create(final int permitsUDP, final int permitsTCP) {
+		return create(permitsUDP, permitsTCP, Priority.USER);
+	}
+
+	/**
+	 * Create a connection creator for short-lived connections.
+	 * 
+	 * @param permitsUDP
+	 *            The number of short-lived UDP connections
+	 * @param permitsTCP
+	 *            The number of short-lived TCP connections
+	 * @param priority
+	 *            The priority if the reservation needs to wait for permits
+	 * @return The future channel creator, which may be notified in the
+	 *         thread that releases the permits
+	 */
+	public FutureChannelCreator create(final int permitsUDP, final int permitsTCP, final Priority priority) {
 		if (permitsUDP > maxPermitsUDP) {
 			throw new IllegalArgumentException("cannot aquire more UDP connections (" + permitsUDP + ") than maximum "
 			        + maxPermitsUDP);
@@ -176,15 +292,18 @@ public class Reservation {
 					// inconsitencies
 					semaphoreUPD.release(permitsUDP);
 					semaphoreTCP.release(permitsTCP);
+					schedule();
 				}
 			}, false); // false is important, to be always the first listener
-			executor.execute(new WaitReservation(futureChannelCreator, futureChannelCreationDone, permitsUDP,
-			        permitsTCP));
-			return futureChannelCreator;
-
+			synchronized (queueLock) {
+				queue(priority).add(new WaitReservation(futureChannelCreator, futureChannelCreationDone, permitsUDP,
+				        permitsTCP, 0, priority));
+			}
 		} finally {
 			read.unlock();
 		}
+		schedule();
+		return futureChannelCreator;
 	}
 
 	/**
@@ -212,14 +331,18 @@ public class Reservation {
 					// release the permits in all cases, otherwise we may see
 					// inconsitencies
 					semaphorePermanentTCP.release(permitsPermanentTCP);
+					schedule();
 				}
 			}, false); // false is important, to be always the first listener
-			executor.execute(new WaitReservationPermanent(futureChannelCreator, futureChannelCreationDone,
-			        permitsPermanentTCP));
-			return futureChannelCreator;
+			synchronized (queueLock) {
+				queuePermanent.add(new WaitReservation(futureChannelCreator, futureChannelCreationDone, 0, 0,
+				        permitsPermanentTCP, Priority.USER));
+			}
 		} finally {
 			read.unlock();
 		}
+		schedule();
+		return futureChannelCreator;
 	}
 
 	/**
@@ -239,19 +362,27 @@ public class Reservation {
 			write.unlock();
 		}
 
-		// fast shutdown for those that are in the queue is not required. We
-		// could let the executor finish since the
-		// shutdown flag is set and the future will be set as well to
-		// "shutting down":
+		// fast shutdown for those that are in the queue, they did not get
+		// any permits yet
+		final List<WaitReservation> waiting = new ArrayList<WaitReservation>();
+		synchronized (queueLock) {
+			waiting.addAll(queuePermanent);
+			waiting.addAll(queueUser);
+			waiting.addAll(queueMaintenance);
+			queuePermanent.clear();
+			queueUser.clear();
+			queueMaintenance.clear();
+		}
+		for (WaitReservation wr : waiting) {
+			wr.futureChannelCreator().setFailed("shutting down");
+		}
 
-		for (Runnable r : executor.shutdownNow()) {
-			if (r instanceof WaitReservation) {
-				WaitReservation wr = (WaitReservation) r;
-				wr.futureChannelCreator().setFailed("shutting down");
-			} else {
-				WaitReservationPermanent wr = (WaitReservationPermanent) r;
-				wr.futureChannelCreator().setFailed("shutting down");
-			}
+		// fails the pooled requests, so that the channel creators get their permits back
+		if (udpChannelPool != null) {
+			udpChannelPool.shutdown();
+		}
+		if (tcpChannelPool != null) {
+			tcpChannelPool.shutdown();
 		}
 
 		// the channelCreator does not change anymore from here on
@@ -293,6 +424,61 @@ public class Reservation {
 		return futureReservationDone;
 	}
 
+	private Queue<WaitReservation> queue(final Priority priority) {
+		return priority == Priority.MAINTENANCE ? queueMaintenance : queueUser;
+	}
+
+	/**
+	 * Hands out the permits to the waiting reservations. This is called when
+	 * a reservation is added and when permits are released. The reservations
+	 * are notified outside of the lock.
+	 */
+	private void schedule() {
+		final List<WaitReservation> reserved = new ArrayList<WaitReservation>();
+		synchronized (queueLock) {
+			// the permanent connections have their own permits
+			WaitReservation wr;
+			while ((wr = queuePermanent.peek()) != null && wr.tryAcquire()) {
+				queuePermanent.poll();
+				reserved.add(wr);
+			}
+			// the first in line waits until it gets its permits, so that a
+			// reservation with many permits does not starve
+			while ((wr = next()) != null && wr.tryAcquire()) {
+				if (wr.priority == Priority.MAINTENANCE) {
+					queueMaintenance.poll();
+					userInRow = 0;
+				} else {
+					queueUser.poll();
+					userInRow++;
+				}
+				final int index = wr.priority.ordinal();
+				final long wait = System.nanoTime() - wr.created;
+				reservations[index]++;
+				waitNanos[index] += wait;
+				maxWaitNanos[index] = Math.max(maxWaitNanos[index], wait);
+				reserved.add(wr);
+			}
+		}
+		for (WaitReservation wr : reserved) {
+			wr.reserve();
+		}
+	}
+
+	/**
+	 * @return The short-lived reservation that is next in line, needs to be
+	 *         called with the lock held
+	 */
+	private WaitReservation next() {
+		if (queueMaintenance.isEmpty()) {
+			return queueUser.peek();
+		}
+		if (queueUser.isEmpty() || userInRow >= USER_RESERVATIONS_PER_MAINTENANCE) {
+			return queueMaintenance.peek();
+		}
+		return queueUser.peek();
+	}
+
 	/**
 	 * Adds a channel creator to the set and also adds it the the
 	 * shutdownlistener.
@@ -319,22 +505,24 @@ public class Reservation {
 	}
 
 	/**
-	 * Tries to reserve a channel creator. If too many channel already created,
-	 * wait until channels are closed. This waiter is for the short-lived
-	 * connections.
+	 * A reservation that waits for its permits. Once it got them, it returns
+	 * a {@link ChannelCreator} in a future. Nobody blocks while waiting.
 	 * 
 	 * @author Thomas Bocek
 	 * 
 	 */
-	private class WaitReservation implements Runnable {
+	private final class WaitReservation {
 		private final FutureChannelCreator futureChannelCreator;
 		private final FutureDone<Void> futureChannelCreationShutdown;
 		private final int permitsUDP;
 		private final int permitsTCP;
+		private final int permitsPermanentTCP;
+		private final Priority priority;
+		private final long created = System.nanoTime();
 
 		/**
 		 * Creates a reservation that returns a {@link ChannelCreator} in a
-		 * future once we have the semaphore.
+		 * future once we have the permits.
 		 * 
 		 * @param futureChannelCreator
 		 *            The status of the creating
@@ -346,106 +534,61 @@ public class Reservation {
 		 *            The number of permits for UDP
 		 * @param permitsTCP
 		 *            The number of permits for TCP
+		 * @param permitsPermanentTCP
+		 *            The number of permits for permanent TCP, if set, the
+		 *            others are 0
+		 * @param priority
+		 *            The priority in the queue
 		 */
-		public WaitReservation(final FutureChannelCreator futureChannelCreator,
-		        final FutureDone<Void> futureChannelCreationShutdown, final int permitsUDP, final int permitsTCP) {
+		private WaitReservation(final FutureChannelCreator futureChannelCreator,
+		        final FutureDone<Void> futureChannelCreationShutdown, final int permitsUDP, final int permitsTCP,
+		        final int permitsPermanentTCP, final Priority priority) {
 			this.futureChannelCreator = futureChannelCreator;
 			this.futureChannelCreationShutdown = futureChannelCreationShutdown;
 			this.permitsUDP = permitsUDP;
 			this.permitsTCP = permitsTCP;
+			this.permitsPermanentTCP = permitsPermanentTCP;
+			this.priority = priority;
 		}
 
-		@Override
-		public void run() {
-			final ChannelCreator channelCreator;
-			read.lock();
-			try {
-				if (shutdown) {
-					futureChannelCreator.setFailed("shutting down");
-					return;
-				}
-
-				try {
-					semaphoreUPD.acquire(permitsUDP);
-				} catch (InterruptedException e) {
-					futureChannelCreator.setFailed(e);
-					return;
-				}
-				try {
-					semaphoreTCP.acquire(permitsTCP);
-				} catch (InterruptedException e) {
-					semaphoreUPD.release(permitsUDP);
-					futureChannelCreator.setFailed(e);
-					return;
-				}
-
-				channelCreator = new ChannelCreator(workerGroup, futureChannelCreationShutdown, permitsUDP, permitsTCP,
-				        channelClientConfiguration);
-				addToSet(channelCreator);
-			} finally {
-				read.unlock();
+		/**
+		 * @return True if all the permits were acquired, otherwise none is
+		 *         acquired
+		 */
+		private boolean tryAcquire() {
+			if (permitsPermanentTCP > 0) {
+				return semaphorePermanentTCP.tryAcquire(permitsPermanentTCP);
 			}
-			futureChannelCreator.reserved(channelCreator);
-		}
-
-		private FutureChannelCreator futureChannelCreator() {
-			return futureChannelCreator;
+			if (!semaphoreUPD.tryAcquire(permitsUDP)) {
+				return false;
+			}
+			if (!semaphoreTCP.tryAcquire(permitsTCP)) {
+				semaphoreUPD.release(permitsUDP);
+				return false;
+			}
+			return true;
 		}
 
-	}
-
-	/**
-	 * Tries to reserve a channel creator. If too many channel already created,
-	 * wait until channels are closed. This waiter is for the long-lived
-	 * connections.
-	 * 
-	 * @author Thomas Bocek
-	 * 
-	 */
-	private final class WaitReservationPermanent implements Runnable {
-		private final FutureChannelCreator futureChannelCreator;
-		private final FutureDone<Void> futureChannelCreationShutdown;
-		private final int permitsPermanentTCP;
-
 		/**
-		 * Creates a reservation that returns a {@link ChannelCreator} in a
-		 * future once we have the semaphore.
-		 * 
-		 * @param futureChannelCreator
-		 *            The status of the creating
-		 * @param futureChannelCreationShutdown
-		 *            The {@link ChannelCreator} shutdown feature needs to be
-		 *            passed since we need it for {@link Reservation#shutdown()}
-		 *            .
-		 * @param permitsPermanentTCP
-		 *            The number of permits
+		 * Creates the channel creator with the acquired permits.
 		 */
-		private WaitReservationPermanent(final FutureChannelCreator futureChannelCreator,
-		        final FutureDone<Void> futureChannelCreationShutdown, final int permitsPermanentTCP) {
-			this.futureChannelCreator = futureChannelCreator;
-			this.futureChannelCreationShutdown = futureChannelCreationShutdown;
-			this.permitsPermanentTCP = permitsPermanentTCP;
-		}
-
-		@Override
-		public void run() {
-			ChannelCreator channelCreator;
+		private void reserve() {
+			final ChannelCreator channelCreator;
 			read.lock();
 			try {
 				if (shutdown) {
+					// give the permits back, the shutdown waits for them
+					futureChannelCreationShutdown.setDone();
 					futureChannelCreator.setFailed("shutting down");
 					return;
 				}
-
-				try {
-					semaphorePermanentTCP.acquire(permitsPermanentTCP);
-				} catch (InterruptedException e) {
-					futureChannelCreator.setFailed(e);
-					return;
+				if (permitsPermanentTCP > 0) {
+					channelCreator = new ChannelCreator(workerGroup, futureChannelCreationShutdown, 0,
+					        permitsPermanentTCP, channelClientConfiguration);
+				} else {
+					channelCreator = new ChannelCreator(workerGroup, futureChannelCreationShutdown, permitsUDP,
+					        permitsTCP, channelClientConfiguration, udpChannelPool, tcpChannelPool);
 				}
-
-				channelCreator = new ChannelCreator(workerGroup, futureChannelCreationShutdown, 0, permitsPermanentTCP,
-				        channelClientConfiguration);
 				addToSet(channelCreator);
 			} finally {
 				read.unlock();
@@ -33,6 +33,7 @@ import java.util.concurrent.TimeUnit;
 
 import net.tomp2p.futures.Cancel;
 import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.CompByteBufAllocator;
 import net.tomp2p.message.Message;
 import net.tomp2p.message.TomP2PCumulationTCP;
 import net.tomp2p.message.TomP2POutbound;
@@ -56,6 +57,9 @@ public class Sender {
 	private final PeerStatusListener[] peerStatusListeners;
 	private final ChannelClientConfiguration channelClientConfiguration;
 	private final Dispatcher dispatcher;
+	private final CompByteBufAllocator compByteBufAllocator;
+	// sharable, reuses its decoders for all UDP requests
+	private final TomP2PSinglePacketUDP udpDecoderHandler;
 
 	private PingBuilder pingBuilder;
 
@@ -73,6 +77,8 @@ public class Sender {
 		this.peerStatusListeners = peerStatusListeners;
 		this.channelClientConfiguration = channelClientConfiguration;
 		this.dispatcher = dispatcher;
+		this.compByteBufAllocator = new CompByteBufAllocator(channelClientConfiguration.byteBufAllocator());
+		this.udpDecoderHandler = new TomP2PSinglePacketUDP(channelClientConfiguration.signatureFactory());
 	}
 
 	public ChannelClientConfiguration channelClientConfiguration() {
@@ -111,6 +117,17 @@ public class Sender {
 		if (futureResponse.isCompleted()) {
 			return;
 		}
+		compact(message);
+
+		// a streamed request needs the connection for itself, so it cannot be pipelined on a pooled connection
+		if (peerConnection == null && channelCreator != null && channelCreator.isTCPPooled()
+		        && handler instanceof RequestHandler && !message.isStreaming()) {
+			if (!channelCreator.sendPooledTCP((RequestHandler<?>) handler, futureResponse, idleTCPSeconds,
+			        connectTimeoutMillis, peerStatusListeners)) {
+				futureResponse.setFailed("could not send over a pooled TCP channel");
+			}
+			return;
+		}
 
 		final ChannelFuture channelFuture;
 		if (peerConnection != null && peerConnection.channelFuture() != null
@@ -151,8 +168,9 @@ public class Sender {
 
 		handlers.put("decoder", new Pair<EventExecutorGroup, ChannelHandler>(null, new TomP2PCumulationTCP(
 		        channelClientConfiguration.signatureFactory())));
-		handlers.put("encoder", new Pair<EventExecutorGroup, ChannelHandler>(null, new TomP2POutbound(false,
-		        channelClientConfiguration.signatureFactory())));
+		handlers.put("encoder", new Pair<EventExecutorGroup, ChannelHandler>(null, new TomP2POutbound(true,
+		        channelClientConfiguration.signatureFactory(), compByteBufAllocator,
+		        channelClientConfiguration.compression(), channelClientConfiguration.compressionThreshold())));
 
 		if (peerConnection != null) {
 			// we expect replies on this connection
@@ -160,7 +178,14 @@ public class Sender {
 		}
 
 		if (timeoutHandler != null) {
-			handlers.put("handler", new Pair<EventExecutorGroup, ChannelHandler>(null, handler));
+			if (peerConnection != null && handler instanceof RequestHandler) {
+				// the handler stays for the lifetime of the connection, further requests are multiplexed
+				final MultiplexHandler multiplexHandler = new MultiplexHandler();
+				multiplexHandler.register((RequestHandler<?>) handler);
+				handlers.put("handler", new Pair<EventExecutorGroup, ChannelHandler>(null, multiplexHandler));
+			} else {
+				handlers.put("handler", new Pair<EventExecutorGroup, ChannelHandler>(null, handler));
+			}
 		}
 
 		HeartBeat heartBeat = null;
@@ -180,11 +205,22 @@ public class Sender {
 
 	private ChannelFuture sendTCPPeerConnection(PeerConnection peerConnection, ChannelHandler handler, 
 			final ChannelCreator channelCreator, final FutureResponse futureResponse) {
-		//if the channel gets closed, the future should get notified
 		ChannelFuture channelFuture = peerConnection.channelFuture();
-		channelCreator.setupCloseListener(channelFuture, futureResponse);
 		ChannelPipeline pipeline = channelFuture.channel().pipeline();
 
+		if (handler instanceof RequestHandler) {
+			// the replies are matched by the message ID, so many requests can
+			// be in flight on this connection. If the channel gets closed, the
+			// multiplex handler fails the futures
+			if (!multiplexHandler(pipeline).register((RequestHandler<?>) handler)) {
+				futureResponse.setFailed("a request with the same message ID is in flight");
+				return null;
+			}
+			return channelFuture;
+		}
+
+		//if the channel gets closed, the future should get notified
+		channelCreator.setupCloseListener(channelFuture, futureResponse);
 		// we need to replace the handler if this comes from the peer that
 		// create a peerconnection, otherwise we
 		// need to add a handler
@@ -195,6 +231,26 @@ public class Sender {
 		return channelFuture;
 	}
 
+	/**
+	 * Finds the multiplex handler of a connection, or adds it if this is the
+	 * first request we send over a connection that the other peer opened.
+	 * 
+	 * @param pipeline
+	 *            The pipeline of the connection
+	 * @return The multiplex handler of the connection
+	 */
+	private MultiplexHandler multiplexHandler(final ChannelPipeline pipeline) {
+		synchronized (pipeline) {
+			final ChannelHandler current = pipeline.get("handler");
+			if (current instanceof MultiplexHandler) {
+				return (MultiplexHandler) current;
+			}
+			final MultiplexHandler multiplexHandler = new MultiplexHandler();
+			addOrReplace(pipeline, "dispatcher", "handler", multiplexHandler);
+			return multiplexHandler;
+		}
+	}
+
 	// private boolean addIfAbsent(ChannelPipeline pipeline, String before,
 	// String name,
 	// ChannelHandler channelHandler) {
@@ -249,8 +305,18 @@ public class Sender {
 		if (futureResponse.isCompleted()) {
 			return;
 		}
+		compact(message);
 		boolean isFireAndForget = handler == null;
 
+		// a broadcast needs its own channel, the pooled channels are not bound for broadcasts
+		if (!broadcast && channelCreator.isUDPPooled() && (isFireAndForget || handler instanceof RequestHandler)) {
+			if (!channelCreator.sendPooledUDP((RequestHandler<?>) handler, futureResponse, idleUDPSeconds,
+			        peerStatusListeners)) {
+				futureResponse.setFailed("could not send over a pooled UDP channel");
+			}
+			return;
+		}
+
 		final Map<String, Pair<EventExecutorGroup, ChannelHandler>> handlers;
 		if (isFireAndForget) {
 			final int nrTCPHandlers = 3; // 2 / 0.75
@@ -264,10 +330,10 @@ public class Sender {
 			handlers.put("timeout1", new Pair<EventExecutorGroup, ChannelHandler>(null, timeoutHandler.timeHandler()));
 		}
 
-		handlers.put("decoder", new Pair<EventExecutorGroup, ChannelHandler>(null, new TomP2PSinglePacketUDP(
-		        channelClientConfiguration.signatureFactory())));
-		handlers.put("encoder", new Pair<EventExecutorGroup, ChannelHandler>(null, new TomP2POutbound(false,
-		        channelClientConfiguration.signatureFactory())));
+		handlers.put("decoder", new Pair<EventExecutorGroup, ChannelHandler>(null, udpDecoderHandler));
+		handlers.put("encoder", new Pair<EventExecutorGroup, ChannelHandler>(null, new TomP2POutbound(true,
+		        channelClientConfiguration.signatureFactory(), compByteBufAllocator,
+		        channelClientConfiguration.compression(), channelClientConfiguration.compressionThreshold())));
 		if (!isFireAndForget) {
 			handlers.put("handler", new Pair<EventExecutorGroup, ChannelHandler>(null, handler));
 		}
@@ -281,6 +347,23 @@ public class Sender {
 		}
 	}
 
+	/**
+	 * Sets the compact flag of a request if the compact encoding is enabled. A peer that does not know the encoding
+	 * would decode garbage, so key collections and key maps are only sent compact to peers that have sent us the flag
+	 * before. A request without such content always carries the flag, which tells the recipient that we know the
+	 * encoding, while a peer that does not know it ignores the flag.
+	 * 
+	 * @param message
+	 *            The message to send
+	 */
+	private void compact(final Message message) {
+		if (message.isRequest()) {
+			message.compact(channelClientConfiguration.compactEncoding()
+			        && (!message.hasKeyContent() || dispatcher.peerBean().isCompactPeer(
+			                message.getRecipient().getPeerId())));
+		}
+	}
+
 	/**
 	 * Create a timeout handler or null if its a fire and forget. In this case
 	 * we don't expect a reply and we don't need a timeout.
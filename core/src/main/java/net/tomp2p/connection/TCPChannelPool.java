@@ -0,0 +1,490 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.CompByteBufAllocator;
+import net.tomp2p.message.Message;
+import net.tomp2p.message.TomP2PCumulationTCP;
+import net.tomp2p.message.TomP2POutbound;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerStatusListener;
+import net.tomp2p.peers.PeerStatusListener.FailReason;
+import net.tomp2p.utils.Pair;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of TCP connections for outgoing requests, by the address of the remote peer. Instead of connecting for every
+ * request and closing the connection after the reply, a request is sent over an open connection to the same peer. If
+ * all connections to a peer are busy and {@link ChannelClientConfiguration#tcpChannelPoolMaxPerPeer()} connections are
+ * open, the request is pipelined on the connection with the fewest requests in flight, and the replies are matched by
+ * the message ID. A connection without requests is closed after
+ * {@link ChannelClientConfiguration#tcpChannelPoolIdleMillis()}. The permits of the {@link ChannelCreator} still limit
+ * the number of requests in flight. This pool is created by the {@link Reservation} if the maximum per peer is set.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class TCPChannelPool {
+    private static final Logger LOG = LoggerFactory.getLogger(TCPChannelPool.class);
+
+    private final EventLoopGroup workerGroup;
+    private final ChannelClientConfiguration channelClientConfiguration;
+    private final CompByteBufAllocator compByteBufAllocator;
+    private final int maxPerPeer;
+    private final int idleMillis;
+    private final ChannelGroup channels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+
+    // the open connections by remote address, guarded by itself
+    private final Map<InetSocketAddress, List<PooledChannel>> peers = new HashMap<InetSocketAddress, List<PooledChannel>>();
+    private boolean shutdown = false;
+
+    /**
+     * Creates an empty pool, the connections are opened on demand.
+     *
+     * @param workerGroup
+     *            The worker group for netty, which is not shutdown by this class
+     * @param channelClientConfiguration
+     *            The configuration with the limits of the pool, the pipeline filter and the encoding
+     */
+    public TCPChannelPool(final EventLoopGroup workerGroup,
+            final ChannelClientConfiguration channelClientConfiguration) {
+        this.workerGroup = workerGroup;
+        this.channelClientConfiguration = channelClientConfiguration;
+        this.compByteBufAllocator = new CompByteBufAllocator(channelClientConfiguration.byteBufAllocator());
+        this.maxPerPeer = channelClientConfiguration.tcpChannelPoolMaxPerPeer();
+        this.idleMillis = channelClientConfiguration.tcpChannelPoolIdleMillis();
+    }
+
+    /**
+     * Sends a request over a connection to the recipient, which is opened if needed. The permit is released once the
+     * reply arrived, the request failed, or timed out, and then the listeners of the future are notified.
+     *
+     * @param owner
+     *            The channel creator that took the permit
+     * @param semaphore
+     *            The semaphore of the permit
+     * @param handler
+     *            The handler for the reply
+     * @param futureResponse
+     *            The future with the request
+     * @param timeoutSeconds
+     *            The time to wait for a reply
+     * @param connectTimeoutMillis
+     *            The timeout for establishing a TCP connection, if a new one is needed
+     * @param peerStatusListeners
+     *            The listeners that get notified if the request timed out
+     */
+    void send(final ChannelCreator owner, final Semaphore semaphore, final RequestHandler<?> handler,
+            final FutureResponse futureResponse, final int timeoutSeconds, final int connectTimeoutMillis,
+            final PeerStatusListener[] peerStatusListeners) {
+        final Message message = futureResponse.getRequest();
+        final Pending pending = new Pending(owner, semaphore, handler, futureResponse, peerStatusListeners);
+        final PooledChannel pooledChannel;
+        String failure = null;
+        synchronized (peers) {
+            if (shutdown) {
+                pooledChannel = null;
+                failure = "TCP channel pool is shut down";
+            } else {
+                pooledChannel = select(message.getRecipient().createSocketTCP(), connectTimeoutMillis);
+                if (!pooledChannel.add(pending)) {
+                    failure = "a request with the same message ID is in flight";
+                }
+            }
+        }
+        if (failure != null) {
+            if (pending.release()) {
+                futureResponse.setFailed(failure);
+            }
+            return;
+        }
+        pooledChannel.channelFuture.addListener(new GenericFutureListener<ChannelFuture>() {
+            @Override
+            public void operationComplete(final ChannelFuture future) throws Exception {
+                if (!future.isSuccess()) {
+                    if (pending.release()) {
+                        futureResponse.setFailed("Channel creation failed " + future.cause());
+                    }
+                    return;
+                }
+                pending.timeout = future.channel().eventLoop().schedule(pending, timeoutSeconds, TimeUnit.SECONDS);
+                future.channel().writeAndFlush(message).addListener(new GenericFutureListener<ChannelFuture>() {
+                    @Override
+                    public void operationComplete(final ChannelFuture writeFuture) throws Exception {
+                        if (!writeFuture.isSuccess()) {
+                            LOG.warn("Failed to write channel the request {}", message, writeFuture.cause());
+                            if (pending.release()) {
+                                futureResponse.setFailed(writeFuture.cause());
+                            }
+                            // the stream may be corrupt, so the other requests on this channel fail as well
+                            writeFuture.channel().close();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Selects a connection to the recipient. An idle connection is preferred, then a new connection if the maximum is
+     * not reached, then the connection with the fewest requests in flight. Needs to be called with the lock held.
+     *
+     * @param recipient
+     *            The address of the remote peer
+     * @param connectTimeoutMillis
+     *            The timeout for establishing a TCP connection
+     * @return The connection for the request
+     */
+    private PooledChannel select(final InetSocketAddress recipient, final int connectTimeoutMillis) {
+        List<PooledChannel> pooledChannels = peers.get(recipient);
+        if (pooledChannels == null) {
+            pooledChannels = new ArrayList<PooledChannel>(maxPerPeer);
+            peers.put(recipient, pooledChannels);
+        }
+        PooledChannel least = null;
+        for (PooledChannel pooledChannel : pooledChannels) {
+            if (least == null || pooledChannel.pendings.size() < least.pendings.size()) {
+                least = pooledChannel;
+            }
+        }
+        if (least == null || (!least.pendings.isEmpty() && pooledChannels.size() < maxPerPeer)) {
+            least = new PooledChannel(recipient, connectTimeoutMillis);
+            pooledChannels.add(least);
+            channels.add(least.channelFuture.channel());
+        }
+        return least;
+    }
+
+    /**
+     * Fails all requests of a channel creator that is shut down, so that its permits are released.
+     *
+     * @param owner
+     *            The channel creator
+     */
+    void cancel(final ChannelCreator owner) {
+        for (Pending pending : pendings()) {
+            if (pending.owner == owner && pending.release()) {
+                pending.futureResponse.setFailed("shutting down");
+            }
+        }
+    }
+
+    /**
+     * Closes the connections and fails all requests that wait for a reply.
+     */
+    public void shutdown() {
+        synchronized (peers) {
+            shutdown = true;
+        }
+        channels.close();
+        for (Pending pending : pendings()) {
+            if (pending.release()) {
+                pending.futureResponse.setFailed("shutting down");
+            }
+        }
+    }
+
+    /**
+     * @return The number of requests that wait for a reply
+     */
+    public int pendingRequests() {
+        return pendings().size();
+    }
+
+    /**
+     * @return The number of open connections, including the ones that are being established
+     */
+    public int openChannels() {
+        int open = 0;
+        synchronized (peers) {
+            for (List<PooledChannel> pooledChannels : peers.values()) {
+                open += pooledChannels.size();
+            }
+        }
+        return open;
+    }
+
+    private List<Pending> pendings() {
+        final List<Pending> all = new ArrayList<Pending>();
+        synchronized (peers) {
+            for (List<PooledChannel> pooledChannels : peers.values()) {
+                for (PooledChannel pooledChannel : pooledChannels) {
+                    all.addAll(pooledChannel.pendings.values());
+                }
+            }
+        }
+        return all;
+    }
+
+    /**
+     * A connection of the pool with its requests in flight. It is also the task that closes the connection once it is
+     * idle.
+     */
+    private final class PooledChannel implements Runnable {
+        private final InetSocketAddress recipient;
+        private final ChannelFuture channelFuture;
+        // the requests that wait for a reply, by message ID. Only modified with the lock held
+        private final ConcurrentMap<Integer, Pending> pendings = new ConcurrentHashMap<Integer, Pending>();
+        private ScheduledFuture<?> idle;
+
+        private PooledChannel(final InetSocketAddress recipient, final int connectTimeoutMillis) {
+            this.recipient = recipient;
+            final int nrTCPHandlers = 4; // 3 / 0.75
+            final Map<String, Pair<EventExecutorGroup, ChannelHandler>> handlers = new LinkedHashMap<String, Pair<EventExecutorGroup, ChannelHandler>>(
+                    nrTCPHandlers);
+            handlers.put("decoder", new Pair<EventExecutorGroup, ChannelHandler>(null, new TomP2PCumulationTCP(
+                    channelClientConfiguration.signatureFactory())));
+            handlers.put("encoder", new Pair<EventExecutorGroup, ChannelHandler>(null, new TomP2POutbound(true,
+                    channelClientConfiguration.signatureFactory(), compByteBufAllocator,
+                    channelClientConfiguration.compression(), channelClientConfiguration.compressionThreshold())));
+            handlers.put("handler", new Pair<EventExecutorGroup, ChannelHandler>(null, new ReplyHandler(this)));
+            final Map<String, Pair<EventExecutorGroup, ChannelHandler>> handlers2 = channelClientConfiguration
+                    .pipelineFilter().filter(handlers, true, true);
+
+            final Bootstrap b = new Bootstrap();
+            b.group(workerGroup);
+            b.channel(NioSocketChannel.class);
+            b.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeoutMillis);
+            b.option(ChannelOption.TCP_NODELAY, true);
+            b.option(ChannelOption.SO_LINGER, 0);
+            b.option(ChannelOption.SO_REUSEADDR, true);
+            b.option(ChannelOption.ALLOCATOR, channelClientConfiguration.byteBufAllocator());
+            b.handler(new ChannelInitializer<Channel>() {
+                @Override
+                protected void initChannel(final Channel ch) throws Exception {
+                    for (Map.Entry<String, Pair<EventExecutorGroup, ChannelHandler>> entry : handlers2.entrySet()) {
+                        if (entry.getValue().element0() != null) {
+                            ch.pipeline().addLast(entry.getValue().element0(), entry.getKey(),
+                                    entry.getValue().element1());
+                        } else {
+                            ch.pipeline().addLast(entry.getKey(), entry.getValue().element1());
+                        }
+                    }
+                }
+            });
+            this.channelFuture = b.connect(recipient, channelClientConfiguration.externalBindings().wildCardSocket());
+            channelFuture.channel().closeFuture().addListener(new GenericFutureListener<ChannelFuture>() {
+                @Override
+                public void operationComplete(final ChannelFuture future) throws Exception {
+                    closed();
+                }
+            });
+        }
+
+        /**
+         * Adds a request, needs to be called with the lock held.
+         *
+         * @return False if a request with the same message ID is in flight on this connection
+         */
+        private boolean add(final Pending pending) {
+            if (pendings.putIfAbsent(pending.futureResponse.getRequest().getMessageId(), pending) != null) {
+                return false;
+            }
+            pending.pooledChannel = this;
+            if (idle != null) {
+                idle.cancel(false);
+                idle = null;
+            }
+            return true;
+        }
+
+        /**
+         * Removes a finished request. The connection is closed if no other request is added in time.
+         */
+        private void remove(final Pending pending) {
+            synchronized (peers) {
+                pendings.remove(pending.futureResponse.getRequest().getMessageId(), pending);
+                if (pendings.isEmpty() && idle == null) {
+                    idle = channelFuture.channel().eventLoop().schedule(this, idleMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            synchronized (peers) {
+                if (!pendings.isEmpty()) {
+                    return;
+                }
+                // no new request can select this connection anymore
+                detach();
+            }
+            LOG.debug("close idle pooled TCP channel to {}", recipient);
+            channelFuture.channel().close();
+        }
+
+        private void closed() {
+            synchronized (peers) {
+                detach();
+            }
+            for (Pending pending : pendings.values()) {
+                if (pending.release()) {
+                    pending.futureResponse.setFailed("channel closed before the reply arrived");
+                }
+            }
+        }
+
+        private void detach() {
+            final List<PooledChannel> pooledChannels = peers.get(recipient);
+            if (pooledChannels != null && pooledChannels.remove(this) && pooledChannels.isEmpty()) {
+                peers.remove(recipient);
+            }
+        }
+    }
+
+    /**
+     * A request that was sent over the pool. It is also the timeout task of the request.
+     */
+    private final class Pending implements Runnable {
+        private final ChannelCreator owner;
+        private final Semaphore semaphore;
+        private final RequestHandler<?> handler;
+        private final FutureResponse futureResponse;
+        private final PeerStatusListener[] peerStatusListeners;
+        private final AtomicBoolean released = new AtomicBoolean();
+        private volatile PooledChannel pooledChannel;
+        private volatile ScheduledFuture<?> timeout;
+
+        private Pending(final ChannelCreator owner, final Semaphore semaphore, final RequestHandler<?> handler,
+                final FutureResponse futureResponse, final PeerStatusListener[] peerStatusListeners) {
+            this.owner = owner;
+            this.semaphore = semaphore;
+            this.handler = handler;
+            this.futureResponse = futureResponse;
+            this.peerStatusListeners = peerStatusListeners;
+        }
+
+        /**
+         * @return True if this call released the permit, false if it was already released
+         */
+        private boolean release() {
+            if (!released.compareAndSet(false, true)) {
+                return false;
+            }
+            final PooledChannel channel = pooledChannel;
+            if (channel != null) {
+                channel.remove(this);
+            }
+            final ScheduledFuture<?> scheduledFuture = timeout;
+            if (scheduledFuture != null) {
+                scheduledFuture.cancel(false);
+            }
+            semaphore.release();
+            return true;
+        }
+
+        @Override
+        public void run() {
+            if (!release()) {
+                return;
+            }
+            final PeerAddress recipient = futureResponse.getRequest().getRecipient();
+            LOG.warn("request timeout for pooled TCP channel {}", futureResponse.getRequest());
+            futureResponse.setFailed("channel is idle");
+            // a connection that does not answer in time is not reused
+            pooledChannel.channelFuture.channel().close();
+            if (peerStatusListeners != null) {
+                for (PeerStatusListener peerStatusListener : peerStatusListeners) {
+                    peerStatusListener.peerFailed(recipient, FailReason.Timeout);
+                }
+            }
+        }
+    }
+
+    /**
+     * Matches the replies to the requests in flight on a connection. The connection is not closed after a reply.
+     */
+    private final class ReplyHandler extends SimpleChannelInboundHandler<Message> {
+        private final PooledChannel pooledChannel;
+
+        private ReplyHandler(final PooledChannel pooledChannel) {
+            this.pooledChannel = pooledChannel;
+        }
+
+        @Override
+        protected void channelRead0(final ChannelHandlerContext ctx, final Message responseMessage) throws Exception {
+            if (responseMessage.isRequest()) {
+                LOG.debug("ignore a request on a pooled TCP channel {}", responseMessage);
+                return;
+            }
+            final Pending pending = pooledChannel.pendings.get(responseMessage.getMessageId());
+            if (pending == null) {
+                LOG.debug("no request waits for {}, may have timed out", responseMessage);
+                return;
+            }
+            final Number160 recipientId = pending.futureResponse.getRequest().getRecipient().getPeerId();
+            if (!recipientId.isZero() && !recipientId.equals(responseMessage.getSender().getPeerId())) {
+                LOG.warn("reply {} is not from the peer we sent the request {}", responseMessage,
+                        pending.futureResponse.getRequest());
+                return;
+            }
+            boolean finished;
+            try {
+                finished = pending.handler.response(responseMessage);
+            } catch (Exception e) {
+                pending.handler.failed(e);
+                finished = true;
+            }
+            if (finished || pending.futureResponse.isCompleted()) {
+                // notify even if a cancel released the permit first, as its setFailed is ignored once a result is
+                // set for later
+                pending.release();
+                pending.futureResponse.setResponseNow();
+            }
+        }
+
+        @Override
+        public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) throws Exception {
+            // we cannot tell where the next message starts, so all requests on this connection fail
+            LOG.warn("error on a pooled TCP channel", cause);
+            ctx.close();
+        }
+    }
+}
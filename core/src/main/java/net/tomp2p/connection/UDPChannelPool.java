@@ -0,0 +1,333 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package net.tomp2p.connection;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.CompByteBufAllocator;
+import net.tomp2p.message.Message;
+import net.tomp2p.message.TomP2POutbound;
+import net.tomp2p.message.TomP2PSinglePacketUDP;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerStatusListener;
+import net.tomp2p.peers.PeerStatusListener.FailReason;
+import net.tomp2p.utils.Pair;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A small pool of long-lived UDP channels for outgoing requests. Instead of binding a new socket for every request, a
+ * request is sent over one of these channels and its reply is matched by the message ID and the sender. The permits of
+ * the {@link ChannelCreator} still limit the number of requests in flight. This pool is created by the
+ * {@link Reservation} if {@link ChannelClientConfiguration#udpChannelPoolSize()} is set.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class UDPChannelPool {
+    private static final Logger LOG = LoggerFactory.getLogger(UDPChannelPool.class);
+
+    private final ChannelFuture[] channelFutures;
+    private final ChannelGroup channels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+    private final AtomicInteger next = new AtomicInteger();
+    // the requests that wait for a reply, by message ID
+    private final ConcurrentMap<Integer, Pending> pendings = new ConcurrentHashMap<Integer, Pending>();
+
+    private volatile boolean shutdown = false;
+
+    /**
+     * Binds the channels of the pool.
+     * 
+     * @param workerGroup
+     *            The worker group for netty, which is not shutdown by this class
+     * @param channelClientConfiguration
+     *            The configuration with the size of the pool, the pipeline filter and the encoding
+     */
+    public UDPChannelPool(final EventLoopGroup workerGroup,
+            final ChannelClientConfiguration channelClientConfiguration) {
+        final TomP2PSinglePacketUDP decoder = new TomP2PSinglePacketUDP(
+                channelClientConfiguration.signatureFactory());
+        final CompByteBufAllocator compByteBufAllocator = new CompByteBufAllocator(
+                channelClientConfiguration.byteBufAllocator());
+        final ReplyHandler replyHandler = new ReplyHandler();
+        this.channelFutures = new ChannelFuture[channelClientConfiguration.udpChannelPoolSize()];
+        for (int i = 0; i < channelFutures.length; i++) {
+            final Bootstrap b = new Bootstrap();
+            b.group(workerGroup);
+            b.channel(NioDatagramChannel.class);
+            b.option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(ConnectionBean.UDP_LIMIT));
+            b.option(ChannelOption.ALLOCATOR, channelClientConfiguration.byteBufAllocator());
+            b.handler(new ChannelInitializer<Channel>() {
+                @Override
+                protected void initChannel(final Channel ch) throws Exception {
+                    final int nrUDPHandlers = 4; // 3 / 0.75
+                    Map<String, Pair<EventExecutorGroup, ChannelHandler>> handlers = new LinkedHashMap<String, Pair<EventExecutorGroup, ChannelHandler>>(
+                            nrUDPHandlers);
+                    handlers.put("decoder", new Pair<EventExecutorGroup, ChannelHandler>(null, decoder));
+                    handlers.put("encoder", new Pair<EventExecutorGroup, ChannelHandler>(null, new TomP2POutbound(
+                            true, channelClientConfiguration.signatureFactory(), compByteBufAllocator,
+                            channelClientConfiguration.compression(), channelClientConfiguration
+                                    .compressionThreshold())));
+                    handlers.put("handler", new Pair<EventExecutorGroup, ChannelHandler>(null, replyHandler));
+                    handlers = channelClientConfiguration.pipelineFilter().filter(handlers, false, true);
+                    for (Map.Entry<String, Pair<EventExecutorGroup, ChannelHandler>> entry : handlers.entrySet()) {
+                        if (entry.getValue().element0() != null) {
+                            ch.pipeline().addLast(entry.getValue().element0(), entry.getKey(),
+                                    entry.getValue().element1());
+                        } else {
+                            ch.pipeline().addLast(entry.getKey(), entry.getValue().element1());
+                        }
+                    }
+                }
+            });
+            // not connected, so that a channel can send to any peer
+            channelFutures[i] = b.bind(channelClientConfiguration.externalBindings().wildCardSocket());
+            channels.add(channelFutures[i].channel());
+        }
+    }
+
+    /**
+     * Sends a request over one of the channels. The permit is released once the reply arrived, the request failed, or
+     * timed out, and then the listeners of the future are notified.
+     * 
+     * @param owner
+     *            The channel creator that took the permit
+     * @param semaphore
+     *            The semaphore of the permit
+     * @param handler
+     *            The handler for the reply, or null for a fire and forget
+     * @param futureResponse
+     *            The future with the request
+     * @param timeoutSeconds
+     *            The time to wait for a reply
+     * @param peerStatusListeners
+     *            The listeners that get notified if the request timed out
+     */
+    void send(final ChannelCreator owner, final Semaphore semaphore, final RequestHandler<?> handler,
+            final FutureResponse futureResponse, final int timeoutSeconds,
+            final PeerStatusListener[] peerStatusListeners) {
+        final Message message = futureResponse.getRequest();
+        final Pending pending = new Pending(owner, semaphore, handler, futureResponse, peerStatusListeners);
+        if (shutdown) {
+            if (pending.release()) {
+                futureResponse.setFailed("UDP channel pool is shut down");
+            }
+            return;
+        }
+        if (handler != null && pendings.putIfAbsent(message.getMessageId(), pending) != null) {
+            semaphore.release();
+            futureResponse.setFailed("a request with the same message ID is in flight");
+            return;
+        }
+        final ChannelFuture channelFuture = channelFutures[(next.getAndIncrement() & Integer.MAX_VALUE)
+                % channelFutures.length];
+        channelFuture.addListener(new GenericFutureListener<ChannelFuture>() {
+            @Override
+            public void operationComplete(final ChannelFuture future) throws Exception {
+                if (!future.isSuccess()) {
+                    if (pending.release()) {
+                        futureResponse.setFailed("Channel creation failed " + future.cause());
+                    }
+                    return;
+                }
+                if (handler != null) {
+                    pending.timeout = future.channel().eventLoop()
+                            .schedule(pending, timeoutSeconds, TimeUnit.SECONDS);
+                }
+                future.channel().writeAndFlush(message).addListener(new GenericFutureListener<ChannelFuture>() {
+                    @Override
+                    public void operationComplete(final ChannelFuture writeFuture) throws Exception {
+                        if (!writeFuture.isSuccess()) {
+                            LOG.warn("Failed to write channel the request {}", message, writeFuture.cause());
+                            futureResponse.setFailedLater(writeFuture.cause());
+                        } else if (handler == null) {
+                            futureResponse.setResponseLater(null);
+                        } else {
+                            return;
+                        }
+                        // notify even if a cancel released the permit first, as its setFailed is ignored once a
+                        // result is set for later
+                        pending.release();
+                        futureResponse.setResponseNow();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Fails all requests of a channel creator that is shut down, so that its permits are released.
+     * 
+     * @param owner
+     *            The channel creator
+     */
+    void cancel(final ChannelCreator owner) {
+        for (Pending pending : pendings.values()) {
+            if (pending.owner == owner && pending.release()) {
+                pending.futureResponse.setFailed("shutting down");
+            }
+        }
+    }
+
+    /**
+     * Closes the channels and fails all requests that wait for a reply.
+     */
+    public void shutdown() {
+        shutdown = true;
+        channels.close();
+        for (Pending pending : pendings.values()) {
+            if (pending.release()) {
+                pending.futureResponse.setFailed("shutting down");
+            }
+        }
+    }
+
+    /**
+     * @return The number of requests that wait for a reply
+     */
+    public int pendingRequests() {
+        return pendings.size();
+    }
+
+    /**
+     * A request that was sent over the pool. It is also the timeout task of the request.
+     */
+    private final class Pending implements Runnable {
+        private final ChannelCreator owner;
+        private final Semaphore semaphore;
+        private final RequestHandler<?> handler;
+        private final FutureResponse futureResponse;
+        private final PeerStatusListener[] peerStatusListeners;
+        private final AtomicBoolean released = new AtomicBoolean();
+        private volatile ScheduledFuture<?> timeout;
+
+        private Pending(final ChannelCreator owner, final Semaphore semaphore, final RequestHandler<?> handler,
+                final FutureResponse futureResponse, final PeerStatusListener[] peerStatusListeners) {
+            this.owner = owner;
+            this.semaphore = semaphore;
+            this.handler = handler;
+            this.futureResponse = futureResponse;
+            this.peerStatusListeners = peerStatusListeners;
+        }
+
+        /**
+         * @return True if this call released the permit, false if it was already released
+         */
+        private boolean release() {
+            if (!released.compareAndSet(false, true)) {
+                return false;
+            }
+            if (handler != null) {
+                pendings.remove(futureResponse.getRequest().getMessageId(), this);
+            }
+            final ScheduledFuture<?> scheduledFuture = timeout;
+            if (scheduledFuture != null) {
+                scheduledFuture.cancel(false);
+            }
+            semaphore.release();
+            return true;
+        }
+
+        @Override
+        public void run() {
+            if (!release()) {
+                return;
+            }
+            final PeerAddress recipient = futureResponse.getRequest().getRecipient();
+            LOG.warn("request timeout for pooled UDP channel {}", futureResponse.getRequest());
+            futureResponse.setFailed("channel is idle");
+            if (peerStatusListeners != null) {
+                for (PeerStatusListener peerStatusListener : peerStatusListeners) {
+                    peerStatusListener.peerFailed(recipient, FailReason.Timeout);
+                }
+            }
+        }
+    }
+
+    /**
+     * Matches the replies to the requests that wait for them. The channels are shared, so they are never closed here.
+     */
+    @Sharable
+    private final class ReplyHandler extends SimpleChannelInboundHandler<Message> {
+
+        @Override
+        protected void channelRead0(final ChannelHandlerContext ctx, final Message responseMessage) throws Exception {
+            if (responseMessage.isRequest()) {
+                LOG.debug("ignore a request on a pooled UDP channel {}", responseMessage);
+                return;
+            }
+            final Pending pending = pendings.get(responseMessage.getMessageId());
+            if (pending == null) {
+                LOG.debug("no request waits for {}, may have timed out", responseMessage);
+                return;
+            }
+            final Number160 recipientId = pending.futureResponse.getRequest().getRecipient().getPeerId();
+            if (!recipientId.isZero() && !recipientId.equals(responseMessage.getSender().getPeerId())) {
+                LOG.warn("reply {} is not from the peer we sent the request {}", responseMessage,
+                        pending.futureResponse.getRequest());
+                return;
+            }
+            boolean finished;
+            try {
+                finished = pending.handler.response(responseMessage);
+            } catch (Exception e) {
+                pending.handler.failed(e);
+                finished = true;
+            }
+            if (finished || pending.futureResponse.isCompleted()) {
+                pending.release();
+                pending.futureResponse.setResponseNow();
+            }
+        }
+
+        @Override
+        public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) throws Exception {
+            // never close a shared channel because of a single message
+            LOG.warn("error on a pooled UDP channel", cause);
+        }
+    }
+}
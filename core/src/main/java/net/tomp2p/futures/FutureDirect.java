@@ -3,14 +3,31 @@ package net.tomp2p.futures;
 import java.io.IOException;
 
 import net.tomp2p.message.Buffer;
+import net.tomp2p.utils.JavaSerializer;
+import net.tomp2p.utils.Serializer;
 
 
 //TODO: make two generics
 public class FutureDirect extends FutureWrapper<FutureResponse> {
     
+    private static final Serializer DEFAULT_SERIALIZER = new JavaSerializer();
+
     private final FutureResponse futureResponse;
+    private final Serializer serializer;
+
     public FutureDirect(FutureResponse futureResponse) {
+        this(futureResponse, DEFAULT_SERIALIZER);
+    }
+
+    /**
+     * @param futureResponse
+     *            The future of the direct message
+     * @param serializer
+     *            The serializer for the reply object
+     */
+    public FutureDirect(FutureResponse futureResponse, Serializer serializer) {
         this.futureResponse = futureResponse;
+        this.serializer = serializer;
         if(futureResponse!=null) {
             waitFor(futureResponse);
         }
@@ -34,7 +51,7 @@ public class FutureDirect extends FutureWrapper<FutureResponse> {
     
     public Object object() throws ClassNotFoundException, IOException {
         synchronized (lock) {
-            return getBuffer().object();
+            return getBuffer().object(serializer);
         }
     }
 
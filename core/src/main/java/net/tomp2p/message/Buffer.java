@@ -5,7 +5,8 @@ import io.netty.buffer.CompositeByteBuf;
 
 import java.io.IOException;
 
-import net.tomp2p.utils.Utils;
+import net.tomp2p.utils.JavaSerializer;
+import net.tomp2p.utils.Serializer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,6 +14,7 @@ import org.slf4j.LoggerFactory;
 public class Buffer {
     
     private static final Logger LOG = LoggerFactory.getLogger(Buffer.class);
+    private static final Serializer DEFAULT_SERIALIZER = new JavaSerializer();
     
     private final ByteBuf buffer;
     private final int length;
@@ -74,7 +76,16 @@ public class Buffer {
     }
     
     public Object object() throws ClassNotFoundException, IOException {
-        return Utils.decodeJavaObject(buffer.duplicate().readerIndex(0));
+        return object(DEFAULT_SERIALIZER);
+    }
+
+    /**
+     * @param serializer
+     *            The serializer the object was encoded with
+     * @return The decoded object
+     */
+    public Object object(final Serializer serializer) throws ClassNotFoundException, IOException {
+        return serializer.decode(buffer.duplicate().readerIndex(0));
     }
     
     @Override
@@ -1,15 +1,41 @@
 package net.tomp2p.message;
 
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
 import net.tomp2p.storage.AlternativeCompositeByteBuf;
 
 public class CompByteBufAllocator {
-	
+
+	private final ByteBufAllocator alloc;
+
+	/**
+	 * Creates composite buffers whose components are unpooled.
+	 */
+	public CompByteBufAllocator() {
+		this(UnpooledByteBufAllocator.DEFAULT);
+	}
+
+	/**
+	 * @param alloc
+	 *            The allocator for the components of the composite buffers, e.g., a pooled allocator, so that the
+	 *            encoder does not produce garbage for every message
+	 */
+	public CompByteBufAllocator(final ByteBufAllocator alloc) {
+		this.alloc = alloc;
+	}
+
 	public AlternativeCompositeByteBuf compDirectBuffer() {
-		return AlternativeCompositeByteBuf.compDirectBuffer();
+		return AlternativeCompositeByteBuf.compBuffer(alloc, true);
 	}
 
 	public AlternativeCompositeByteBuf compBuffer() {
-		return AlternativeCompositeByteBuf.compBuffer();
+		return AlternativeCompositeByteBuf.compBuffer(alloc, false);
 	}
 
+	/**
+	 * @return The allocator for the components of the composite buffers
+	 */
+	public ByteBufAllocator alloc() {
+		return alloc;
+	}
 }
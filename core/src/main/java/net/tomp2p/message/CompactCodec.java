@@ -0,0 +1,210 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package net.tomp2p.message;
+
+import io.netty.buffer.ByteBuf;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data.Compression;
+
+/**
+ * The compact encoding of the keys in key collections and key maps. Sizes are written as varints, and each key starts
+ * with a flag byte that tells which parts are the same as in the previous key, so the location and domain key of a
+ * range are sent only once. A version key of zero is not sent either. The compact encoding is used if the message
+ * has {@link Message#isCompact()} set. In a data map, the flag byte also tells if the payload of the entry is
+ * compressed, see {@link Compression}.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+final class CompactCodec {
+
+    private static final int SAME_LOCATION = 0x01;
+    private static final int SAME_DOMAIN = 0x02;
+    private static final int SAME_CONTENT = 0x04;
+    private static final int ZERO_VERSION = 0x08;
+    // the compression of the data of a data map entry
+    private static final int DEFLATE = 0x10;
+    private static final int LZF = 0x20;
+
+    private static final int VARINT_MASK = 0x7f;
+    private static final int VARINT_MORE = 0x80;
+    private static final int VARINT_MAX_BYTES = 5;
+
+    private CompactCodec() {
+    }
+
+    /**
+     * Writes a non-negative int with 7 bits per byte, small sizes need one byte.
+     * 
+     * @param buf
+     *            The buffer to write to
+     * @param value
+     *            The value to write
+     */
+    static void writeVarInt(final ByteBuf buf, int value) {
+        while ((value & ~VARINT_MASK) != 0) {
+            buf.writeByte((value & VARINT_MASK) | VARINT_MORE);
+            value >>>= 7;
+        }
+        buf.writeByte(value);
+    }
+
+    /**
+     * @param buf
+     *            The buffer to read from
+     * @return The value, or -1 if the buffer does not contain the whole varint yet. In that case, nothing is read
+     */
+    static int readVarInt(final ByteBuf buf) {
+        final int readable = Math.min(buf.readableBytes(), VARINT_MAX_BYTES);
+        final int index = buf.readerIndex();
+        int value = 0;
+        for (int i = 0; i < readable; i++) {
+            final int b = buf.getUnsignedByte(index + i);
+            value |= (b & VARINT_MASK) << (7 * i);
+            if ((b & VARINT_MORE) == 0) {
+                buf.readerIndex(index + i + 1);
+                return value;
+            }
+        }
+        if (readable == VARINT_MAX_BYTES) {
+            throw new IllegalArgumentException("varint too long");
+        }
+        return -1;
+    }
+
+    /**
+     * Writes the parts of the key that differ from the previous key.
+     * 
+     * @param buf
+     *            The buffer to write to
+     * @param key
+     *            The key to write
+     * @param previous
+     *            The previous key of the same collection, or null for the first key
+     */
+    static void writeKey(final ByteBuf buf, final Number640 key, final Number640 previous) {
+        writeKey(buf, key, previous, Compression.NONE);
+    }
+
+    /**
+     * Writes the parts of the key that differ from the previous key and the compression of the data of the entry.
+     * 
+     * @param buf
+     *            The buffer to write to
+     * @param key
+     *            The key to write
+     * @param previous
+     *            The previous key of the same collection, or null for the first key
+     * @param compression
+     *            The compression of the data that follows the key
+     */
+    static void writeKey(final ByteBuf buf, final Number640 key, final Number640 previous,
+            final Compression compression) {
+        int flags = flags(key, previous);
+        if (compression == Compression.DEFLATE) {
+            flags |= DEFLATE;
+        } else if (compression == Compression.LZF) {
+            flags |= LZF;
+        }
+        buf.writeByte(flags);
+        if ((flags & SAME_LOCATION) == 0) {
+            key.getLocationKey().toByteBuf(buf);
+        }
+        if ((flags & SAME_DOMAIN) == 0) {
+            key.getDomainKey().toByteBuf(buf);
+        }
+        if ((flags & SAME_CONTENT) == 0) {
+            key.getContentKey().toByteBuf(buf);
+        }
+        if ((flags & ZERO_VERSION) == 0) {
+            key.getVersionKey().toByteBuf(buf);
+        }
+    }
+
+    /**
+     * Reads a key if the buffer contains the whole key.
+     * 
+     * @param buf
+     *            The buffer to read from
+     * @param previous
+     *            The previous key of the same collection, or null for the first key
+     * @return The key, or null if the buffer does not contain the whole key yet. In that case, nothing is read
+     */
+    static Number640 readKey(final ByteBuf buf, final Number640 previous) {
+        if (buf.readableBytes() < 1) {
+            return null;
+        }
+        final int flags = buf.getUnsignedByte(buf.readerIndex());
+        if (previous == null && (flags & (SAME_LOCATION | SAME_DOMAIN | SAME_CONTENT)) != 0) {
+            throw new IllegalArgumentException("the first key cannot refer to a previous key");
+        }
+        // each flag elides one of the four parts
+        final int parts = 4 - Integer.bitCount(flags & (SAME_LOCATION | SAME_DOMAIN | SAME_CONTENT | ZERO_VERSION));
+        final int size = 1 + parts * Number160.BYTE_ARRAY_SIZE;
+        if (buf.readableBytes() < size) {
+            return null;
+        }
+        buf.skipBytes(1);
+        final Number160 locationKey = (flags & SAME_LOCATION) == 0 ? readNumber160(buf) : previous
+                .getLocationKey();
+        final Number160 domainKey = (flags & SAME_DOMAIN) == 0 ? readNumber160(buf) : previous.getDomainKey();
+        final Number160 contentKey = (flags & SAME_CONTENT) == 0 ? readNumber160(buf) : previous.getContentKey();
+        final Number160 versionKey = (flags & ZERO_VERSION) == 0 ? readNumber160(buf) : Number160.ZERO;
+        return new Number640(locationKey, domainKey, contentKey, versionKey);
+    }
+
+    /**
+     * @param buf
+     *            The buffer to read from, positioned at the next key. Nothing is read
+     * @return The compression of the data that follows the next key
+     */
+    static Compression compression(final ByteBuf buf) {
+        if (buf.readableBytes() < 1) {
+            return Compression.NONE;
+        }
+        final int flags = buf.getUnsignedByte(buf.readerIndex());
+        if ((flags & DEFLATE) != 0) {
+            return Compression.DEFLATE;
+        } else if ((flags & LZF) != 0) {
+            return Compression.LZF;
+        }
+        return Compression.NONE;
+    }
+
+    private static int flags(final Number640 key, final Number640 previous) {
+        int flags = key.getVersionKey().isZero() ? ZERO_VERSION : 0;
+        if (previous == null) {
+            return flags;
+        }
+        if (key.getLocationKey().equals(previous.getLocationKey())) {
+            flags |= SAME_LOCATION;
+        }
+        if (key.getDomainKey().equals(previous.getDomainKey())) {
+            flags |= SAME_DOMAIN;
+        }
+        if (key.getContentKey().equals(previous.getContentKey())) {
+            flags |= SAME_CONTENT;
+        }
+        return flags;
+    }
+
+    private static Number160 readNumber160(final ByteBuf buf) {
+        return new Number160(buf.readInt(), buf.readInt(), buf.readInt(), buf.readInt(), buf.readInt());
+    }
+}
@@ -61,6 +61,10 @@ public class Decoder {
 	private DataMap dataMap = null;
 	private Data data = null;
 	private Number640 key = null;
+	// the previous key of the current collection, for the compact encoding
+	private Number640 previousKey = null;
+	// the compression of the data of the current key, for the compact encoding
+	private Data.Compression compression = Data.Compression.NONE;
 
 	private int keyMap480Size = -1;
 	private KeyMap640 keyMap480 = null;
@@ -77,6 +81,9 @@ public class Decoder {
 
 	private Content lastContent = null;
 
+	// the recipient is almost always the same, keep it across messages
+	private PeerAddress recipientAddress = null;
+
 	private final SignatureFactory signatureFactory;
 
 	public Decoder(SignatureFactory signatureFactory) {
@@ -160,7 +167,8 @@ public class Decoder {
 				// wait for more data
 				return false;
 			}
-			message = MessageHeaderCodec.decodeHeader(buf, recipient, sender);
+			message = MessageHeaderCodec.decodeHeader(buf, recipient, sender, recipientAddress);
+			recipientAddress = message.getRecipient();
 			// we have set the content types already
 			message.presetContentTypes(true);
 
@@ -250,42 +258,34 @@ public class Decoder {
 				neighborSet = null;
 				break;
 			case SET_KEY640:
-				if (keyCollectionSize == -1 && buf.readableBytes() < Utils.INTEGER_BYTE_SIZE) {
-					return false;
-				}
 				if (keyCollectionSize == -1) {
-					keyCollectionSize = buf.readInt();
+					keyCollectionSize = readSize(buf);
+					if (keyCollectionSize == -1) {
+						return false;
+					}
 				}
 				if (keyCollection == null) {
 					keyCollection = new KeyCollection(new ArrayList<Number640>(keyCollectionSize));
 				}
 				for (int i = keyCollection.size(); i < keyCollectionSize; i++) {
-					if (buf.readableBytes() < Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE
-							+ Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE) {
+					Number640 key640 = readKey(buf);
+					if (key640 == null) {
 						return false;
 					}
-					byte[] me2 = new byte[Number160.BYTE_ARRAY_SIZE];
-					buf.readBytes(me2);
-					Number160 locationKey = new Number160(me2);
-					buf.readBytes(me2);
-					Number160 domainKey = new Number160(me2);
-					buf.readBytes(me2);
-					Number160 contentKey = new Number160(me2);
-					buf.readBytes(me2);
-					Number160 versionKey = new Number160(me2);
-					keyCollection.add(new Number640(locationKey, domainKey, contentKey, versionKey));
+					keyCollection.add(key640);
 				}
 				message.setKeyCollection(keyCollection);
 				lastContent = contentTypes.poll();
 				keyCollectionSize = -1;
 				keyCollection = null;
+				previousKey = null;
 				break;
 			case MAP_KEY640_DATA:
-				if (mapsSize == -1 && buf.readableBytes() < Utils.INTEGER_BYTE_SIZE) {
-					return false;
-				}
 				if (mapsSize == -1) {
-					mapsSize = buf.readInt();
+					mapsSize = readSize(buf);
+					if (mapsSize == -1) {
+						return false;
+					}
 				}
 				if (dataMap == null) {
 					dataMap = new DataMap(new HashMap<Number640, Data>(2 * mapsSize));
@@ -302,25 +302,17 @@ public class Decoder {
 				}
 				for (int i = dataMap.size(); i < mapsSize; i++) {
 					if (key == null) {
-						if (buf.readableBytes() < Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE
-								+ Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE) {
+						key = readKey(buf);
+						if (key == null) {
 							return false;
 						}
-						byte[] me3 = new byte[Number160.BYTE_ARRAY_SIZE];
-						buf.readBytes(me3);
-						Number160 locationKey = new Number160(me3);
-						buf.readBytes(me3);
-						Number160 domainKey = new Number160(me3);
-						buf.readBytes(me3);
-						Number160 contentKey = new Number160(me3);
-						buf.readBytes(me3);
-						Number160 versionKey = new Number160(me3);
-						key = new Number640(locationKey, domainKey, contentKey, versionKey);
 					}
 					data = Data.decodeHeader(buf, signatureFactory);
 					if (data == null) {
 						return false;
 					}
+					// uncompressed only when the payload is accessed
+					data.compression(compression);
 					dataMap.dataMap().put(key, data);
 
 					if (!data.decodeBuffer(buf)) {
@@ -342,75 +334,71 @@ public class Decoder {
 				lastContent = contentTypes.poll();
 				mapsSize = -1;
 				dataMap = null;
+				previousKey = null;
 				break;
 			case MAP_KEY640_KEY:
-				if (keyMap480Size == -1 && buf.readableBytes() < Utils.INTEGER_BYTE_SIZE) {
-					return false;
-				}
 				if (keyMap480Size == -1) {
-					keyMap480Size = buf.readInt();
+					keyMap480Size = readSize(buf);
+					if (keyMap480Size == -1) {
+						return false;
+					}
 				}
 				if (keyMap480 == null) {
 					keyMap480 = new KeyMap640(new TreeMap<Number640, Number160>());
 				}
 
 				for (int i = keyMap480.size(); i < keyMap480Size; i++) {
-					if (buf.readableBytes() < Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE
-							+ Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE) {
+					// the key is kept if the value is not here yet
+					if (key == null) {
+						key = readKey(buf);
+						if (key == null) {
+							return false;
+						}
+					}
+					if (buf.readableBytes() < Number160.BYTE_ARRAY_SIZE) {
 						return false;
 					}
-					byte[] me3 = new byte[Number160.BYTE_ARRAY_SIZE];
-					buf.readBytes(me3);
-					Number160 locationKey = new Number160(me3);
-					buf.readBytes(me3);
-					Number160 domainKey = new Number160(me3);
-					buf.readBytes(me3);
-					Number160 contentKey = new Number160(me3);
-					buf.readBytes(me3);
-					Number160 versionKey = new Number160(me3);
-					buf.readBytes(me3);
-					Number160 valueKey = new Number160(me3);
-					keyMap480.put(new Number640(locationKey, domainKey, contentKey, versionKey), valueKey);
+					keyMap480.put(key, readNumber160(buf));
+					key = null;
 				}
 
 				message.setKeyMap640(keyMap480);
 				lastContent = contentTypes.poll();
 				keyMap480Size = -1;
 				keyMap480 = null;
+				previousKey = null;
 				break;
 			case MAP_KEY640_BYTE:
-				if (keyMapByteSize == -1 && buf.readableBytes() < Utils.INTEGER_BYTE_SIZE) {
-					return false;
-				}
 				if (keyMapByteSize == -1) {
-					keyMapByteSize = buf.readInt();
+					keyMapByteSize = readSize(buf);
+					if (keyMapByteSize == -1) {
+						return false;
+					}
 				}
 				if (keyMapByte == null) {
 					keyMapByte = new KeyMapByte(new HashMap<Number640, Byte>(2 * keyMapByteSize));
 				}
 
 				for (int i = keyMapByte.size(); i < keyMapByteSize; i++) {
-					if (buf.readableBytes() < Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE
-							+ Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE + 1) {
+					// the key is kept if the value is not here yet
+					if (key == null) {
+						key = readKey(buf);
+						if (key == null) {
+							return false;
+						}
+					}
+					if (buf.readableBytes() < Utils.BYTE_SIZE) {
 						return false;
 					}
-					byte[] me3 = new byte[Number160.BYTE_ARRAY_SIZE];
-					buf.readBytes(me3);
-					Number160 locationKey = new Number160(me3);
-					buf.readBytes(me3);
-					Number160 domainKey = new Number160(me3);
-					buf.readBytes(me3);
-					Number160 contentKey = new Number160(me3);
-					buf.readBytes(me3);
-					Number160 versionKey = new Number160(me3);
-					byte value = buf.readByte();
-					keyMapByte.put(new Number640(locationKey, domainKey, contentKey, versionKey), value);
+					keyMapByte.put(key, buf.readByte());
+					key = null;
 				}
 
 				message.setKeyMapByte(keyMapByte);
 				lastContent = contentTypes.poll();
 				keyMapByteSize = -1;
 				keyMapByte = null;
+				previousKey = null;
 				break;
 			case BYTE_BUFFER:
 				if (bufferSize == -1 && buf.readableBytes() < Utils.INTEGER_BYTE_SIZE) {
@@ -539,6 +527,15 @@ public class Decoder {
 	public Message prepareFinish() {
 		Message ret = message;
 		message.setDone();
+		reset();
+		return ret;
+	}
+
+	/**
+	 * Drops the message that is currently decoded, so that this decoder can be reused for the next message, also if
+	 * decoding failed.
+	 */
+	public void reset() {
 		contentTypes.clear();
 		//
 		message = null;
@@ -549,11 +546,55 @@ public class Decoder {
 		mapsSize = -1;
 		dataMap = null;
 		data = null;
+		key = null;
+		previousKey = null;
+		compression = Data.Compression.NONE;
 		keyMap480Size = -1;
 		keyMap480 = null;
+		keyMapByteSize = -1;
+		keyMapByte = null;
 		bufferSize = -1;
 		buffer = null;
-		return ret;
+		trackerDataSize = -1;
+		trackerData = null;
+		currentTrackerData = null;
+	}
+
+	/**
+	 * @return The size of a key collection or map, or -1 if the buffer does not contain the whole size yet
+	 */
+	private int readSize(final ByteBuf buf) {
+		if (message.isCompact()) {
+			return CompactCodec.readVarInt(buf);
+		}
+		if (buf.readableBytes() < Utils.INTEGER_BYTE_SIZE) {
+			return -1;
+		}
+		return buf.readInt();
+	}
+
+	/**
+	 * @return The next key of a key collection or map, or null if the buffer does not contain the whole key yet
+	 */
+	private Number640 readKey(final ByteBuf buf) {
+		if (message.isCompact()) {
+			final Data.Compression nextCompression = CompactCodec.compression(buf);
+			final Number640 key640 = CompactCodec.readKey(buf, previousKey);
+			if (key640 != null) {
+				previousKey = key640;
+				compression = nextCompression;
+			}
+			return key640;
+		}
+		if (buf.readableBytes() < Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE
+				+ Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE) {
+			return null;
+		}
+		return new Number640(readNumber160(buf), readNumber160(buf), readNumber160(buf), readNumber160(buf));
+	}
+
+	private static Number160 readNumber160(final ByteBuf buf) {
+		return new Number160(buf.readInt(), buf.readInt(), buf.readInt(), buf.readInt(), buf.readInt());
 	}
 
 	public Message message() {
@@ -27,8 +27,26 @@ public class Encoder {
 
     private SignatureFactory signatureFactory;
 
+    private final Data.Compression compression;
+    private final int compressionThreshold;
+
     public Encoder(SignatureFactory signatureFactory) {
+        this(signatureFactory, Data.Compression.NONE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param signatureFactory
+     *            The factory for the signatures
+     * @param compression
+     *            The compression of the data in data maps with the compact encoding, the other encodings are never
+     *            compressed
+     * @param compressionThreshold
+     *            The minimal length of the data to compress
+     */
+    public Encoder(SignatureFactory signatureFactory, Data.Compression compression, int compressionThreshold) {
         this.signatureFactory = signatureFactory;
+        this.compression = compression;
+        this.compressionThreshold = compressionThreshold;
     }
 
     public boolean write(final AlternativeCompositeByteBuf buf, final Message message) throws InvalidKeyException,
@@ -55,8 +73,8 @@ public class Encoder {
             // check if we need to sign the message
             if (message.isSign()) {
             	SHA1Signature decodedSignature = signatureFactory.sign(message.getPrivateKey(), buf);
-            	buf.writeBytes(decodedSignature.getNumber1().toByteArray());
-                buf.writeBytes(decodedSignature.getNumber2().toByteArray());
+                decodedSignature.getNumber1().toByteBuf(buf);
+                decodedSignature.getNumber2().toByteBuf(buf);
             }
         }
         return done;
@@ -67,7 +85,7 @@ public class Encoder {
         while ((next = message.contentRefencencs().peek()) != null) {
             switch (next.content()) {
             case KEY:
-                buf.writeBytes(message.getKey(next.number()).toByteArray());
+                message.getKey(next.number()).toByteBuf(buf);
                 message.contentRefencencs().poll();
                 break;
             case INTEGER:
@@ -95,72 +113,84 @@ public class Encoder {
             case SET_KEY640:
                 // length
                 KeyCollection keys = message.getKeyCollection(next.number());
-                buf.writeInt(keys.size());
-                if (keys.isConvert()) {
-                    for (Number160 key : keys.keysConvert()) {
-                        buf.writeBytes(keys.locationKey().toByteArray());
-                        buf.writeBytes(keys.domainKey().toByteArray());
-                        buf.writeBytes(key.toByteArray());
-                        buf.writeBytes(keys.versionKey().toByteArray());
-                    }
+                if (message.isCompact()) {
+                    encodeCompact(buf, keys);
                 } else {
-                    for (Number640 key : keys.keys()) {
-                        buf.writeBytes(key.getLocationKey().toByteArray());
-                        buf.writeBytes(key.getDomainKey().toByteArray());
-                        buf.writeBytes(key.getContentKey().toByteArray());
-                        buf.writeBytes(key.getVersionKey().toByteArray());
+                    buf.writeInt(keys.size());
+                    if (keys.isConvert()) {
+                        for (Number160 key : keys.keysConvert()) {
+                            keys.locationKey().toByteBuf(buf);
+                            keys.domainKey().toByteBuf(buf);
+                            key.toByteBuf(buf);
+                            keys.versionKey().toByteBuf(buf);
+                        }
+                    } else {
+                        for (Number640 key : keys.keys()) {
+                            key.toByteBuf(buf);
+                        }
                     }
                 }
                 message.contentRefencencs().poll();
                 break;
             case MAP_KEY640_DATA:
                 DataMap dataMap = message.getDataMap(next.number());
-                
-                buf.writeInt(dataMap.size());
-                if (dataMap.isConvert()) {
-                    for (Entry<Number160, Data> entry : dataMap.dataMapConvert().entrySet()) {
-                    	buf.writeBytes(dataMap.locationKey().toByteArray());
-                        buf.writeBytes(dataMap.domainKey().toByteArray());
-                        buf.writeBytes(entry.getKey().toByteArray());
-                        buf.writeBytes(dataMap.versionKey().toByteArray());
-                        Data data = entry.getValue().duplicate();
-                        data.encodeHeader(buf);
-                        data.encodeDone(buf);
-                    }
+                if (message.isCompact()) {
+                    encodeCompact(buf, dataMap);
                 } else {
-                    for (Entry<Number640, Data> entry : dataMap.dataMap().entrySet()) {
-                        buf.writeBytes(entry.getKey().getLocationKey().toByteArray());
-                        buf.writeBytes(entry.getKey().getDomainKey().toByteArray());
-                        buf.writeBytes(entry.getKey().getContentKey().toByteArray());
-                        buf.writeBytes(entry.getKey().getVersionKey().toByteArray());
-                        Data data = entry.getValue().duplicate();
-                        data.encodeHeader(buf);
-                        data.encodeDone(buf);
+                    buf.writeInt(dataMap.size());
+                    if (dataMap.isConvert()) {
+                        for (Entry<Number160, Data> entry : dataMap.dataMapConvert().entrySet()) {
+                            dataMap.locationKey().toByteBuf(buf);
+                            dataMap.domainKey().toByteBuf(buf);
+                            entry.getKey().toByteBuf(buf);
+                            dataMap.versionKey().toByteBuf(buf);
+                            // no duplicate, encode does not modify the data
+                            entry.getValue().encode(buf);
+                        }
+                    } else {
+                        for (Entry<Number640, Data> entry : dataMap.dataMap().entrySet()) {
+                            entry.getKey().toByteBuf(buf);
+                            entry.getValue().encode(buf);
+                        }
                     }
                 }
                 message.contentRefencencs().poll();
                 break;
             case MAP_KEY640_KEY:
                 KeyMap640 keyMap640 = message.getKeyMap640(next.number());
-                buf.writeInt(keyMap640.size());
-                for (Entry<Number640, Number160> entry : keyMap640.keysMap().entrySet()) {
-                    buf.writeBytes(entry.getKey().getLocationKey().toByteArray());
-                    buf.writeBytes(entry.getKey().getDomainKey().toByteArray());
-                    buf.writeBytes(entry.getKey().getContentKey().toByteArray());
-                    buf.writeBytes(entry.getKey().getVersionKey().toByteArray());
-                    buf.writeBytes(entry.getValue().toByteArray());
+                if (message.isCompact()) {
+                    CompactCodec.writeVarInt(buf, keyMap640.size());
+                    Number640 previous = null;
+                    for (Entry<Number640, Number160> entry : keyMap640.keysMap().entrySet()) {
+                        CompactCodec.writeKey(buf, entry.getKey(), previous);
+                        entry.getValue().toByteBuf(buf);
+                        previous = entry.getKey();
+                    }
+                } else {
+                    buf.writeInt(keyMap640.size());
+                    for (Entry<Number640, Number160> entry : keyMap640.keysMap().entrySet()) {
+                        entry.getKey().toByteBuf(buf);
+                        entry.getValue().toByteBuf(buf);
+                    }
                 }
                 message.contentRefencencs().poll();
                 break;
             case MAP_KEY640_BYTE:
                 KeyMapByte keysMap = message.getKeyMapByte(next.number());
-                buf.writeInt(keysMap.size());
-                for (Entry<Number640, Byte> entry : keysMap.keysMap().entrySet()) {
-                    buf.writeBytes(entry.getKey().getLocationKey().toByteArray());
-                    buf.writeBytes(entry.getKey().getDomainKey().toByteArray());
-                    buf.writeBytes(entry.getKey().getContentKey().toByteArray());
-                    buf.writeBytes(entry.getKey().getVersionKey().toByteArray());
-                    buf.writeByte(entry.getValue());
+                if (message.isCompact()) {
+                    CompactCodec.writeVarInt(buf, keysMap.size());
+                    Number640 previous = null;
+                    for (Entry<Number640, Byte> entry : keysMap.keysMap().entrySet()) {
+                        CompactCodec.writeKey(buf, entry.getKey(), previous);
+                        buf.writeByte(entry.getValue());
+                        previous = entry.getKey();
+                    }
+                } else {
+                    buf.writeInt(keysMap.size());
+                    for (Entry<Number640, Byte> entry : keysMap.keysMap().entrySet()) {
+                        entry.getKey().toByteBuf(buf);
+                        buf.writeByte(entry.getValue());
+                    }
                 }
                 message.contentRefencencs().poll();
                 break;
@@ -187,9 +217,7 @@ public class Encoder {
                 buf.writeByte(trackerData.getPeerAddresses().size()); // 1 bytes - length, max. 255
                 for (Map.Entry<PeerAddress, Data> entry : trackerData.getPeerAddresses().entrySet()) {
                     buf.writeBytes(entry.getKey().toByteArray());
-                    Data data = entry.getValue().duplicate();
-                    data.encodeHeader(buf);
-                    data.encodeDone(buf);
+                    entry.getValue().encode(buf);
                 }
                 message.contentRefencencs().poll();
                 break;
@@ -210,6 +238,49 @@ public class Encoder {
         return true;
     }
 
+    private static void encodeCompact(final AlternativeCompositeByteBuf buf, final KeyCollection keys) {
+        CompactCodec.writeVarInt(buf, keys.size());
+        Number640 previous = null;
+        if (keys.isConvert()) {
+            for (Number160 key : keys.keysConvert()) {
+                Number640 key640 = new Number640(keys.locationKey(), keys.domainKey(), key, keys.versionKey());
+                CompactCodec.writeKey(buf, key640, previous);
+                previous = key640;
+            }
+        } else {
+            for (Number640 key : keys.keys()) {
+                CompactCodec.writeKey(buf, key, previous);
+                previous = key;
+            }
+        }
+    }
+
+    private void encodeCompact(final AlternativeCompositeByteBuf buf, final DataMap dataMap) {
+        CompactCodec.writeVarInt(buf, dataMap.size());
+        Number640 previous = null;
+        if (dataMap.isConvert()) {
+            for (Entry<Number160, Data> entry : dataMap.dataMapConvert().entrySet()) {
+                Number640 key640 = new Number640(dataMap.locationKey(), dataMap.domainKey(), entry.getKey(),
+                        dataMap.versionKey());
+                encodeCompact(buf, key640, previous, entry.getValue());
+                previous = key640;
+            }
+        } else {
+            for (Entry<Number640, Data> entry : dataMap.dataMap().entrySet()) {
+                encodeCompact(buf, entry.getKey(), previous, entry.getValue());
+                previous = entry.getKey();
+            }
+        }
+    }
+
+    private void encodeCompact(final AlternativeCompositeByteBuf buf, final Number640 key, final Number640 previous,
+            final Data data) {
+        // data that was received compressed is sent on as it is
+        final Data compressed = data.compress(compression, compressionThreshold);
+        CompactCodec.writeKey(buf, key, previous, compressed.compression());
+        compressed.encodeCompressed(buf);
+    }
+
     public Message message() {
         return message;
     }
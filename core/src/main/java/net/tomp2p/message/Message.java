@@ -489,6 +489,64 @@ public class Message {
         return (options & 2) > 0;
     }
 
+    /**
+     * @param latestOnly
+     *            True if a get or digest should only consider the latest versions, which are the versions no other
+     *            version is based on
+     * @return This class
+     */
+    public Message latestOnly(final boolean latestOnly) {
+        if (latestOnly) {
+            options |= 4;
+        } else {
+            options &= ~4;
+        }
+        return this;
+    }
+
+    /**
+     * @return True if a get or digest should only consider the latest versions
+     */
+    public boolean isLatestOnly() {
+        return (options & 4) > 0;
+    }
+
+    /**
+     * @param compact
+     *            True if the key collections and key maps of this message are sent with the compact encoding, which
+     *            sends common key prefixes only once and uses varint sizes
+     * @return This class
+     */
+    public Message compact(final boolean compact) {
+        if (compact) {
+            options |= 8;
+        } else {
+            options &= ~8;
+        }
+        return this;
+    }
+
+    /**
+     * @return True if the key collections and key maps of this message use the compact encoding
+     */
+    public boolean isCompact() {
+        return (options & 8) > 0;
+    }
+
+    /**
+     * @return True if this message has key collections or key maps, which are the only content the compact encoding
+     *         changes. A peer that does not know the compact encoding ignores the flag of a message without them
+     */
+    public boolean hasKeyContent() {
+        for (Content content : contentTypes) {
+            if (content == Content.SET_KEY640 || content == Content.MAP_KEY640_DATA
+                    || content == Content.MAP_KEY640_KEY || content == Content.MAP_KEY640_BYTE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     // Header data ends here *********************************** static payload starts now
 
     public Message setKey(final Number160 key) {
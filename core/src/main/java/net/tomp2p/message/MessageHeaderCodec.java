@@ -46,6 +46,10 @@ public final class MessageHeaderCodec {
 
     public static final int HEADER_SIZE = 58;
 
+    // values() clones the array on every call
+    private static final Type[] TYPES = Type.values();
+    private static final Content[] CONTENTS = Content.values();
+
     /**
      * Encodes the message object.
      * 
@@ -94,12 +98,31 @@ public final class MessageHeaderCodec {
      */
     public static Message decodeHeader(final ByteBuf buffer, final InetSocketAddress recipient,
             final InetSocketAddress sender) {
+        return decodeHeader(buffer, recipient, sender, null);
+    }
+
+    /**
+     * Decodes a message object and reuses the recipient address of the previous message if it is the same, which is
+     * the case for almost all messages a peer receives.
+     * 
+     * @param buffer
+     *            The buffer to decode from
+     * @param recipient
+     *            The recipient of the packet, which has been set in the socket class
+     * @param sender
+     *            The sender of the packet, which has been set in the socket class
+     * @param previousRecipient
+     *            The recipient of the previous message, or null
+     * @return The partial message, only the header fields are filled
+     */
+    public static Message decodeHeader(final ByteBuf buffer, final InetSocketAddress recipient,
+            final InetSocketAddress sender, final PeerAddress previousRecipient) {
         LOG.debug("Decode message, recipient={}, sender={}", recipient, sender);
         final Message message = new Message();
         final int versionAndType = buffer.readInt();
         // CHECKSTYLE:OFF
         message.setVersion(versionAndType >>> 4);
-        message.setType(Type.values()[(versionAndType & 0xf)]);
+        message.setType(TYPES[(versionAndType & 0xf)]);
         // CHECKSTYLE:ON
         message.setMessageId(buffer.readInt());
         final int command = buffer.readUnsignedByte();
@@ -108,10 +131,15 @@ public final class MessageHeaderCodec {
         final int portTCP = buffer.readUnsignedShort();
         final int portUDP = buffer.readUnsignedShort();
         final Number160 recipientID = readID(buffer);
-        message.setRecipient(new PeerAddress(recipientID, recipient));
+        if (isSame(previousRecipient, recipientID, recipient)) {
+            message.setRecipient(previousRecipient);
+        } else {
+            message.setRecipient(new PeerAddress(recipientID, recipient));
+        }
         final int contentTypes = buffer.readInt();
         message.hasContent(contentTypes != 0);
-        message.setContentTypes(decodeContentTypes(contentTypes, message));
+        // decode into the array of the new message
+        decodeContentTypes(contentTypes, message, message.getContentTypes());
         // set the address as we see it, important for port forwarding
         // identification
         final int options = buffer.readUnsignedByte();
@@ -135,9 +163,15 @@ public final class MessageHeaderCodec {
      * @return A 160bit number from the Netty buffer (deserialized)
      */
     private static Number160 readID(final ByteBuf buffer) {
-        byte[] me = new byte[Number160.BYTE_ARRAY_SIZE];
-        buffer.readBytes(me);
-        return new Number160(me);
+        return new Number160(buffer.readInt(), buffer.readInt(), buffer.readInt(), buffer.readInt(),
+                buffer.readInt());
+    }
+
+    private static boolean isSame(final PeerAddress peerAddress, final Number160 peerId,
+            final InetSocketAddress socket) {
+        return peerAddress != null && peerAddress.tcpPort() == socket.getPort()
+                && peerAddress.udpPort() == socket.getPort() && peerAddress.getPeerId().equals(peerId)
+                && peerAddress.getInetAddress().equals(socket.getAddress());
     }
 
     /**
@@ -174,9 +208,12 @@ public final class MessageHeaderCodec {
      */
     // CHECKSTYLE:OFF
     public static Content[] decodeContentTypes(int contentTypes, Message message) {
-        Content[] result = new Content[Message.CONTENT_TYPE_LENGTH];
+        return decodeContentTypes(contentTypes, message, new Content[Message.CONTENT_TYPE_LENGTH]);
+    }
+
+    private static Content[] decodeContentTypes(int contentTypes, final Message message, final Content[] result) {
         for (int i = 0; i < Message.CONTENT_TYPE_LENGTH; i++) {
-            Content type = Content.values()[contentTypes & Utils.MASK_0F];
+            Content type = CONTENTS[contentTypes & Utils.MASK_0F];
             result[i] = type;
             if(type == Content.PUBLIC_KEY_SIGNATURE) {
                 message.setHintSign();
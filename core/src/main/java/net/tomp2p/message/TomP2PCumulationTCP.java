@@ -40,7 +40,8 @@ public class TomP2PCumulationTCP extends ChannelInboundHandlerAdapter {
 
 		try {
 			if (cumulation == null) {
-				cumulation = AlternativeCompositeByteBuf.compBuffer(buf);
+				// the composite uses the allocator of the channel, which is pooled by default
+				cumulation = AlternativeCompositeByteBuf.compBuffer(ctx.alloc(), buf.isDirect(), buf);
 			} else {
 				cumulation.addComponent(buf);
 			}
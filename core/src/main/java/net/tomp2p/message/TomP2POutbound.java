@@ -8,6 +8,7 @@ import io.netty.channel.socket.DatagramChannel;
 import io.netty.channel.socket.DatagramPacket;
 import net.tomp2p.connection.SignatureFactory;
 import net.tomp2p.storage.AlternativeCompositeByteBuf;
+import net.tomp2p.storage.Data;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,8 +25,13 @@ public class TomP2POutbound extends ChannelOutboundHandlerAdapter {
     }
 
     public TomP2POutbound(boolean preferDirect, SignatureFactory signatureFactory, CompByteBufAllocator alloc) {
+        this(preferDirect, signatureFactory, alloc, Data.Compression.NONE, Integer.MAX_VALUE);
+    }
+
+    public TomP2POutbound(boolean preferDirect, SignatureFactory signatureFactory, CompByteBufAllocator alloc,
+            Data.Compression compression, int compressionThreshold) {
         this.preferDirect = preferDirect;
-        this.encoder = new Encoder(signatureFactory);
+        this.encoder = new Encoder(signatureFactory, compression, compressionThreshold);
         this.alloc = alloc;
     }
 
@@ -19,7 +19,15 @@ public class TomP2PSinglePacketUDP extends ChannelInboundHandlerAdapter {
     private static final Logger LOG = LoggerFactory.getLogger(TomP2PSinglePacketUDP.class);
 
     private final SignatureFactory signatureFactory;
-    
+
+    // this handler is shared, a datagram is decoded at once, so one decoder per thread can be reused
+    private final ThreadLocal<Decoder> decoders = new ThreadLocal<Decoder>() {
+        @Override
+        protected Decoder initialValue() {
+            return new Decoder(signatureFactory);
+        }
+    };
+
     public TomP2PSinglePacketUDP(final SignatureFactory signatureFactory) {
         this.signatureFactory = signatureFactory;
     }
@@ -37,8 +45,8 @@ public class TomP2PSinglePacketUDP extends ChannelInboundHandlerAdapter {
         final InetSocketAddress sender = d.sender();
         final InetSocketAddress recipient = d.recipient();
 
+        final Decoder decoder = decoders.get();
         try {
-            Decoder decoder = new Decoder(signatureFactory);
             boolean finished = decoder.decode(ctx, buf, recipient, sender);
             if (finished) {
                 ctx.fireChannelRead(decoder.prepareFinish());
@@ -49,6 +57,8 @@ public class TomP2PSinglePacketUDP extends ChannelInboundHandlerAdapter {
         	LOG.error("Error in UDP decoding", t);
             throw t;
         } finally {
+            // a datagram is never continued, drop what is left of an incomplete or failed message
+            decoder.reset();
             buf.release();
         }
     }
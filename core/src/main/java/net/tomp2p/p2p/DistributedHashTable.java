@@ -206,7 +206,8 @@ public class DistributedHashTable {
                                                             rawObjects.put(
                                                                     future.getRequest().getRecipient(),
                                                                     future.getResponse().getBuffer(0)
-                                                                            .object());
+                                                                            .object(directDataRPC.peerBean()
+                                                                                    .serializer()));
                                                         } catch (ClassNotFoundException e) {
                                                             rawObjects.put(
                                                                     future.getRequest().getRecipient(), e);
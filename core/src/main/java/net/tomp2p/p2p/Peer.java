@@ -384,6 +384,23 @@ public class Peer {
      *         connection could not be reserved, maybe due to a shutdown, null is returned.
      */
     public FuturePeerConnection createPeerConnection(final PeerAddress destination, final int heartBeatMillis) {
+        return createPeerConnection(destination, heartBeatMillis, PeerConnection.MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Opens a TCP connection and keeps it open, see {@link #createPeerConnection(PeerAddress, int)}. Many requests
+     * can be sent concurrently over this connection.
+     * 
+     * @param destination
+     *            The end-point to connect to
+     * @param heartBeatMillis
+     *            The interval of the heart beat that keeps the connection open
+     * @param maxInFlight
+     *            The number of requests that can be in flight on this connection, further requests wait
+     * @return A class that needs to be passed to those methods that should use the already open connection
+     */
+    public FuturePeerConnection createPeerConnection(final PeerAddress destination, final int heartBeatMillis,
+            final int maxInFlight) {
         final FuturePeerConnection futureDone = new FuturePeerConnection(destination);
         final FutureChannelCreator fcc = getConnectionBean().reservation().createPermanent(1);
         fcc.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
@@ -391,7 +408,7 @@ public class Peer {
             public void operationComplete(final FutureChannelCreator future) throws Exception {
                 if (future.isSuccess()) {
                     final ChannelCreator cc = fcc.getChannelCreator();
-                    final PeerConnection peerConnection = new PeerConnection(destination, cc, heartBeatMillis);
+                    final PeerConnection peerConnection = new PeerConnection(destination, cc, heartBeatMillis, maxInFlight);
                     futureDone.setDone(peerConnection);
                 } else {
                     futureDone.setFailed(future);
@@ -19,6 +19,7 @@ package net.tomp2p.p2p;
 import io.netty.channel.ChannelHandler;
 import io.netty.util.concurrent.EventExecutorGroup;
 
+import java.io.File;
 import java.io.IOException;
 import java.security.KeyPair;
 import java.security.PublicKey;
@@ -53,11 +54,22 @@ import net.tomp2p.rpc.QuitRPC;
 import net.tomp2p.rpc.StorageRPC;
 //import net.tomp2p.rpc.TaskRPC;
 import net.tomp2p.rpc.TrackerRPC;
+import net.tomp2p.storage.DataDeduplication;
+import net.tomp2p.storage.EvictionPolicy;
 import net.tomp2p.storage.IdentityManagement;
+import net.tomp2p.storage.LRUEvictionPolicy;
+import net.tomp2p.storage.RollingDigest;
+import net.tomp2p.storage.Storage;
 import net.tomp2p.storage.StorageLayer;
 import net.tomp2p.storage.StorageMemory;
+import net.tomp2p.storage.StorageSnapshot;
+import net.tomp2p.storage.StorageTiered;
 import net.tomp2p.storage.TrackerStorage;
+import net.tomp2p.storage.VersionIndex;
+import net.tomp2p.utils.FastSerializer;
+import net.tomp2p.utils.JavaSerializer;
 import net.tomp2p.utils.Pair;
+import net.tomp2p.utils.Serializer;
 import net.tomp2p.utils.Utils;
 
 /**
@@ -120,7 +132,7 @@ public class PeerMaker {
 
 	private PeerStatusListener[] peerStatusListeners = null;
 
-	private StorageMemory storage = null;
+	private Storage storage = null;
 
 	private TrackerStorage trackerStorage = null;
 
@@ -138,6 +150,7 @@ public class PeerMaker {
 	private BroadcastHandler broadcastHandler;
 
 	private BloomfilterFactory bloomfilterFactory;
+	private Serializer serializer;
 
 	private ScheduledExecutorService scheduledExecutorService = null;
 
@@ -152,6 +165,17 @@ public class PeerMaker {
 	private int intervalMillis = -1;
 	private int storageIntervalMillis = -1;
 
+	// persistence of the storage, disabled if no directory is set
+	private File snapshotDirectory = null;
+	private int snapshotIntervalMillis = -1;
+	private int snapshotLoaderThreads = -1;
+	private int tieredFlushIntervalMillis = -1;
+
+	// capacity of the storage, unlimited if not set
+	private int storageMaxEntries = -1;
+	private long storageMaxBytes = -1;
+	private EvictionPolicy evictionPolicy = null;
+
 	private ReplicationFactor replicationFactor = null;
 
 	private ReplicationSender replicationSender = null;
@@ -194,6 +218,9 @@ public class PeerMaker {
 	private boolean enableMaintenance = true;
 	private boolean enableIndirectReplication = false;
 	private boolean enableBroadcast = true;
+	private boolean enableDeduplication = false;
+	private boolean enableVersionIndex = false;
+	private boolean enableRollingDigest = false;
 
 	// private Random rnd;
 
@@ -270,6 +297,23 @@ public class PeerMaker {
 			storageIntervalMillis = 60 * 1000;
 		}
 
+		StorageSnapshot storageSnapshot = null;
+		if (snapshotDirectory != null) {
+			if (!(storage instanceof StorageMemory)) {
+				throw new IllegalArgumentException("snapshots are only supported for StorageMemory");
+			}
+			if (snapshotIntervalMillis == -1) {
+				snapshotIntervalMillis = 10 * 60 * 1000;
+			}
+			if (snapshotLoaderThreads == -1) {
+				snapshotLoaderThreads = Runtime.getRuntime().availableProcessors();
+			}
+			storageSnapshot = new StorageSnapshot(snapshotDirectory, (StorageMemory) storage,
+			        channelServerConfiguration.signatureFactory());
+			// restore before the peer starts to accept requests
+			storageSnapshot.restore(snapshotLoaderThreads);
+		}
+
 		if (peerStatusListeners == null) {
 			peerStatusListeners = new PeerStatusListener[] { peerMap };
 		}
@@ -296,6 +340,12 @@ public class PeerMaker {
 		StorageLayer sl = new StorageLayer(storage);
 		peerBean.storage(sl);
 		sl.init(connectionBean.timer(), storageIntervalMillis);
+		if (storage instanceof StorageTiered) {
+			if (tieredFlushIntervalMillis == -1) {
+				tieredFlushIntervalMillis = StorageTiered.DEFAULT_FLUSH_INTERVAL_MILLIS;
+			}
+			((StorageTiered) storage).init(tieredFlushIntervalMillis);
+		}
 
 		if (trackerStorage == null) {
 			trackerStorage = new TrackerStorage(new IdentityManagement(peerBean.serverPeerAddress()), 300,
@@ -304,10 +354,21 @@ public class PeerMaker {
 
 		peerBean.trackerStorage(trackerStorage);
 
+		if (storageSnapshot != null) {
+			storageSnapshot.restoreTracker(trackerStorage);
+			storageSnapshot.init(snapshotIntervalMillis);
+			peerBean.storageSnapshot(storageSnapshot);
+		}
+
 		if (bloomfilterFactory == null) {
 			peerBean.bloomfilterFactory(new DefaultBloomfilterFactory());
 		}
 
+		if (serializer == null) {
+			serializer = new JavaSerializer();
+		}
+		peerBean.serializer(serializer);
+
 		if (broadcastHandler == null) {
 			broadcastHandler = new DefaultBroadcastHandler(peer, new Random());
 		}
@@ -316,6 +377,23 @@ public class PeerMaker {
 		Replication replicationStorage = new Replication(storage, peerBean.serverPeerAddress(), peerMap, 5);
 		peerBean.replicationStorage(replicationStorage);
 
+		if (evictionPolicy != null || storageMaxEntries != -1 || storageMaxBytes != -1) {
+			if (evictionPolicy == null) {
+				evictionPolicy = new LRUEvictionPolicy();
+			}
+			sl.setCapacity(storageMaxEntries, storageMaxBytes, evictionPolicy);
+			sl.addEvictionListener(replicationStorage);
+		}
+		if (isEnableDeduplication()) {
+			sl.setDeduplication(new DataDeduplication());
+		}
+		if (isEnableVersionIndex()) {
+			sl.setVersionIndex(new VersionIndex());
+		}
+		if (isEnableRollingDigest()) {
+			sl.setRollingDigest(new RollingDigest());
+		}
+
 		// TrackerStorage storageTracker = new
 		// TrackerStorage(identityManagement,
 		// configuration.getTrackerTimoutSeconds(), peerBean, maintenance);
@@ -591,6 +669,20 @@ public class PeerMaker {
 		return this;
 	}
 
+	public Storage storage() {
+		return storage;
+	}
+
+	/**
+	 * @param storage
+	 *            The storage backend, default is {@link StorageMemory}
+	 * @return This class
+	 */
+	public PeerMaker storage(Storage storage) {
+		this.storage = storage;
+		return this;
+	}
+
 	public Peer masterPeer() {
 		return masterPeer;
 	}
@@ -645,6 +737,22 @@ public class PeerMaker {
 		return this;
 	}
 
+	public Serializer serializer() {
+		return serializer;
+	}
+
+	/**
+	 * @param serializer
+	 *            The serializer for objects in data and direct messages. The default is a {@link JavaSerializer},
+	 *            which every peer can read. A {@link FastSerializer} is smaller and faster, but peers that do not use
+	 *            it cannot decode its objects, so enable it only once the whole network has been upgraded
+	 * @return This class
+	 */
+	public PeerMaker serializer(Serializer serializer) {
+		this.serializer = serializer;
+		return this;
+	}
+
 	public MaintenanceTask maintenanceTask() {
 		return maintenanceTask;
 	}
@@ -699,6 +807,99 @@ public class PeerMaker {
 		return this;
 	}
 
+	public File snapshotDirectory() {
+		return snapshotDirectory;
+	}
+
+	/**
+	 * @param snapshotDirectory
+	 *            The directory where the storage is persisted. If set, the
+	 *            storage is restored from this directory before the peer
+	 *            starts to listen. Requires a {@link StorageMemory}
+	 * @return This class
+	 */
+	public PeerMaker snapshotDirectory(File snapshotDirectory) {
+		this.snapshotDirectory = snapshotDirectory;
+		return this;
+	}
+
+	public int snapshotIntervalMillis() {
+		return snapshotIntervalMillis;
+	}
+
+	public PeerMaker snapshotIntervalMillis(int snapshotIntervalMillis) {
+		this.snapshotIntervalMillis = snapshotIntervalMillis;
+		return this;
+	}
+
+	public int tieredFlushIntervalMillis() {
+		return tieredFlushIntervalMillis;
+	}
+
+	/**
+	 * @param tieredFlushIntervalMillis
+	 *            The time between two write-behind flushes of a
+	 *            {@link StorageTiered}, default is one second
+	 * @return This class
+	 */
+	public PeerMaker tieredFlushIntervalMillis(int tieredFlushIntervalMillis) {
+		this.tieredFlushIntervalMillis = tieredFlushIntervalMillis;
+		return this;
+	}
+
+	public int snapshotLoaderThreads() {
+		return snapshotLoaderThreads;
+	}
+
+	public PeerMaker snapshotLoaderThreads(int snapshotLoaderThreads) {
+		this.snapshotLoaderThreads = snapshotLoaderThreads;
+		return this;
+	}
+
+	public int storageMaxEntries() {
+		return storageMaxEntries;
+	}
+
+	/**
+	 * @param storageMaxEntries
+	 *            The maximum number of entries in the storage, -1 for no
+	 *            limit
+	 * @return This class
+	 */
+	public PeerMaker storageMaxEntries(int storageMaxEntries) {
+		this.storageMaxEntries = storageMaxEntries;
+		return this;
+	}
+
+	public long storageMaxBytes() {
+		return storageMaxBytes;
+	}
+
+	/**
+	 * @param storageMaxBytes
+	 *            The maximum size of all data in the storage, -1 for no limit
+	 * @return This class
+	 */
+	public PeerMaker storageMaxBytes(long storageMaxBytes) {
+		this.storageMaxBytes = storageMaxBytes;
+		return this;
+	}
+
+	public EvictionPolicy evictionPolicy() {
+		return evictionPolicy;
+	}
+
+	/**
+	 * @param evictionPolicy
+	 *            The policy that selects the entries to evict if the storage
+	 *            is full, default is {@link LRUEvictionPolicy}
+	 * @return This class
+	 */
+	public PeerMaker evictionPolicy(EvictionPolicy evictionPolicy) {
+		this.evictionPolicy = evictionPolicy;
+		return this;
+	}
+
 	public ReplicationFactor replicationFactor() {
 		return replicationFactor;
 	}
@@ -875,6 +1076,54 @@ public class PeerMaker {
 		return this;
 	}
 
+	public boolean isEnableDeduplication() {
+		return enableDeduplication;
+	}
+
+	/**
+	 * @param enableDeduplication
+	 *            True to share the payloads of data objects with the same
+	 *            content in the storage, see {@link DataDeduplication}
+	 * @return This class
+	 */
+	public PeerMaker setEnableDeduplication(boolean enableDeduplication) {
+		this.enableDeduplication = enableDeduplication;
+		return this;
+	}
+
+	public boolean isEnableVersionIndex() {
+		return enableVersionIndex;
+	}
+
+	/**
+	 * @param enableVersionIndex
+	 *            True to index the version chains in the storage, so that
+	 *            the latest versions are found fast, see {@link VersionIndex}
+	 * @return This class
+	 */
+	public PeerMaker setEnableVersionIndex(boolean enableVersionIndex) {
+		this.enableVersionIndex = enableVersionIndex;
+		return this;
+	}
+
+	public boolean isEnableRollingDigest() {
+		return enableRollingDigest;
+	}
+
+	/**
+	 * @param enableRollingDigest
+	 *            True to keep the digests per location and domain up to
+	 *            date, so that routing requests with a digest are answered
+	 *            without reading the entries, see {@link RollingDigest}.
+	 *            Costs a read of the old entry on every overwrite. Default
+	 *            is false
+	 * @return This class
+	 */
+	public PeerMaker setEnableRollingDigest(boolean enableRollingDigest) {
+		this.enableRollingDigest = enableRollingDigest;
+		return this;
+	}
+
 	public boolean isEnableBroadcast() {
 		return enableBroadcast;
 	}
@@ -22,10 +22,13 @@ import java.util.List;
 import java.util.SortedSet;
 
 import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.peers.PeerMap;
 import net.tomp2p.peers.PeerMapChangeListener;
 import net.tomp2p.peers.PeerStatatistic;
+import net.tomp2p.storage.Data;
+import net.tomp2p.storage.EvictionListener;
 import net.tomp2p.storage.ReplicationStorage;
 
 import org.slf4j.Logger;
@@ -34,11 +37,13 @@ import org.slf4j.LoggerFactory;
 /**
  * This class has 3 methods that are called from outside eventes: check, peerInsert, peerRemoved.
  */
-public class Replication implements PeerMapChangeListener {
+public class Replication implements PeerMapChangeListener, EvictionListener {
     private static final Logger LOG = LoggerFactory.getLogger(Replication.class);
 
     private final List<ResponsibilityListener> listeners = new ArrayList<ResponsibilityListener>();
 
+    private final List<EvictionListener> evictionListeners = new ArrayList<EvictionListener>();
+
     private final PeerMap peerMap;
 
     private final PeerAddress selfAddress;
@@ -115,6 +120,45 @@ public class Replication implements PeerMapChangeListener {
         listeners.remove(responsibilityListener);
     }
 
+    /**
+     * Add a listener that gets notified if an evicted entry needs a replica on an other peer.
+     * 
+     * @param evictionListener
+     *            The eviction listener.
+     */
+    public void addEvictionListener(final EvictionListener evictionListener) {
+        evictionListeners.add(evictionListener);
+    }
+
+    public void removeEvictionListener(final EvictionListener evictionListener) {
+        evictionListeners.remove(evictionListener);
+    }
+
+    /**
+     * Called if the storage evicted an entry. If an other peer is responsible for the location key, this peer keeps
+     * the replicas and nothing needs to be done. If I'm responsible, the entry is handed to the eviction listeners, so
+     * that they can store it on an other peer.
+     * 
+     * @param key
+     *            The key of the evicted entry
+     * @param data
+     *            The evicted data
+     */
+    @Override
+    public void evicted(final Number640 key, final Data data) {
+        if (!isReplicationEnabled() || evictionListeners.isEmpty()) {
+            return;
+        }
+        PeerAddress closest = closest(key.getLocationKey());
+        if (!closest.getPeerId().equals(selfAddress.getPeerId())) {
+            LOG.debug("evicted {}, peer {} is responsible", key, closest);
+            return;
+        }
+        for (EvictionListener evictionListener : evictionListeners) {
+            evictionListener.evicted(key, data);
+        }
+    }
+
     /**
      * Notify if I'm responsible and something needs to change, i.e., to make sure that there are enough replicas.
      * 
@@ -18,8 +18,10 @@ package net.tomp2p.p2p;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Random;
 import java.util.SortedSet;
 import java.util.TimerTask;
@@ -27,6 +29,7 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
+import net.tomp2p.connection.Reservation;
 import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureChannelCreator;
 import net.tomp2p.futures.FutureResponse;
@@ -36,6 +39,7 @@ import net.tomp2p.peers.Number640;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.rpc.StorageRPC;
 import net.tomp2p.storage.Data;
+import net.tomp2p.storage.EvictionListener;
 import net.tomp2p.storage.StorageLayer;
 import net.tomp2p.utils.Utils;
 
@@ -49,7 +53,7 @@ import org.slf4j.LoggerFactory;
  * @author Maxat Pernebayev
  * 
  */
-public class ReplicationExecutor implements ResponsibilityListener, Runnable {
+public class ReplicationExecutor implements ResponsibilityListener, EvictionListener, Runnable {
     private static final Logger LOG = LoggerFactory.getLogger(ReplicationExecutor.class);
 
     private final StorageLayer storage;
@@ -87,6 +91,7 @@ public class ReplicationExecutor implements ResponsibilityListener, Runnable {
         this.storageRPC = peer.getStoreRPC();
         this.replicationStorage = peer.getPeerBean().replicationStorage();
         replicationStorage.addResponsibilityListener(this);
+        replicationStorage.addEvictionListener(this);
         replicationStorage.setReplicationFactor(REPLICATION);
         this.random = random;
         this.timer = timer;
@@ -107,8 +112,11 @@ public class ReplicationExecutor implements ResponsibilityListener, Runnable {
             Number640 min = new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO);
             Number640 max = new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE,
                     Number160.MAX_VALUE);
-            final Map<Number640, Data> dataMap = storage.get(min, max, -1, true);
-            replicationSender.sendDirect(other, locationKey, dataMap);
+            // send page by page, so that a large location key is not copied at once
+            NavigableMap<Number640, Data> dataMap = null;
+            while ((dataMap = next(min, max, dataMap)) != null) {
+                replicationSender.sendDirect(other, locationKey, dataMap);
+            }
             LOG.debug("transfer from {} to {} for key {}", storageRPC.peerBean().serverPeerAddress(), other,
                     locationKey);
         } else {
@@ -127,6 +135,19 @@ public class ReplicationExecutor implements ResponsibilityListener, Runnable {
         synchronizeData(locationKey);
     }
 
+    @Override
+    public void evicted(final Number640 key, final Data data) {
+        // I was responsible, hand the entry to the next closest peer, which becomes responsible
+        SortedSet<PeerAddress> closePeers = peer.getPeerBean().peerMap().closePeers(key.getLocationKey(), 1);
+        if (closePeers.isEmpty()) {
+            LOG.warn("evicted {} and no other peer is known", key);
+            return;
+        }
+        PeerAddress other = closePeers.first();
+        LOG.debug("evicted {}, transfer to {}", key, other);
+        replicationSender.sendDirect(other, key.getLocationKey(), Collections.singletonMap(key, data));
+    }
+
     @Override
     public void run() {
         // we get called every x seconds for content we are responsible for. So
@@ -152,10 +173,27 @@ public class ReplicationExecutor implements ResponsibilityListener, Runnable {
         Number640 min = new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO);
         Number640 max = new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE,
                 Number160.MAX_VALUE);
-        final Map<Number640, Data> dataMap = storage.get(min, max, -1, true);
-        List<PeerAddress> closePeers = send(locationKey, dataMap);
-        LOG.debug("[storage refresh] I ({}) restore {} to {}", storageRPC.peerBean().serverPeerAddress(),
-                locationKey, closePeers);
+        NavigableMap<Number640, Data> dataMap = null;
+        while ((dataMap = next(min, max, dataMap)) != null) {
+            List<PeerAddress> closePeers = send(locationKey, dataMap);
+            LOG.debug("[storage refresh] I ({}) restore {} to {}", storageRPC.peerBean().serverPeerAddress(),
+                    locationKey, closePeers);
+        }
+    }
+
+    /**
+     * @param previous
+     *            The previous page, or null for the first page
+     * @return The next page of at most {@link StorageLayer#SCAN_PAGE} entries, or null if there are no more entries
+     */
+    private NavigableMap<Number640, Data> next(final Number640 min, final Number640 max,
+            final NavigableMap<Number640, Data> previous) {
+        if (previous != null && previous.size() < StorageLayer.SCAN_PAGE) {
+            return null;
+        }
+        final Number640 resumeKey = previous == null ? null : previous.lastKey();
+        final NavigableMap<Number640, Data> page = storage.scan(min, max, resumeKey, StorageLayer.SCAN_PAGE, true);
+        return page.isEmpty() ? null : page;
     }
 
     /**
@@ -210,7 +248,8 @@ public class ReplicationExecutor implements ResponsibilityListener, Runnable {
          */
         public void sendDirect(final PeerAddress other, final Number160 locationKey,
                 final Map<Number640, Data> dataMap) {
-            FutureChannelCreator futureChannelCreator = peer.getConnectionBean().reservation().create(0, 1);
+            FutureChannelCreator futureChannelCreator = peer.getConnectionBean().reservation()
+                    .create(0, 1, Reservation.Priority.MAINTENANCE);
             futureChannelCreator.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
                 @Override
                 public void operationComplete(final FutureChannelCreator future) throws Exception {
@@ -58,6 +58,8 @@ public class GetBuilder extends DHTBuilder<GetBuilder> implements SearchableBuil
 
     private boolean ascending = true;
 
+    private boolean latestOnly = false;
+
     private int returnNr = -1;
 
     static {
@@ -183,6 +185,26 @@ public class GetBuilder extends DHTBuilder<GetBuilder> implements SearchableBuil
         return this;
     }
 
+    public boolean isLatestOnly() {
+        return latestOnly;
+    }
+
+    /**
+     * @param latestOnly
+     *            True to only return the latest versions of a range, which are the versions no other stored version
+     *            is based on. Content keys and Bloom filters are not supported
+     * @return This class
+     */
+    public GetBuilder latestOnly(boolean latestOnly) {
+        this.latestOnly = latestOnly;
+        return this;
+    }
+
+    public GetBuilder latestOnly() {
+        this.latestOnly = true;
+        return this;
+    }
+
     public GetBuilder returnNr(int returnNr) {
         this.returnNr = returnNr;
         return this;
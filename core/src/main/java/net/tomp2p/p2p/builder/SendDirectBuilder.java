@@ -150,7 +150,8 @@ public class SendDirectBuilder implements ConnectionConfiguration, SendDirectBui
             throw new IllegalArgumentException("either remotePeer or connection has to be set");
         }
         
-        if (futureChannelCreator == null) {
+        // a request over an open connection is limited by the connection, it does not need a reservation
+        if (futureChannelCreator == null && !keepAlive) {
             futureChannelCreator = peer.getConnectionBean().reservation().create(isForceUDP()?1:0, isForceUDP()?0:1);
         }
         
@@ -195,7 +196,7 @@ public class SendDirectBuilder implements ConnectionConfiguration, SendDirectBui
             });
         }
        
-        return new FutureDirect(request.futureResponse());
+        return new FutureDirect(request.futureResponse(), peer.getPeerBean().serializer());
     }
 
     public boolean isForceUDP() {
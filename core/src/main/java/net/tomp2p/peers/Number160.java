@@ -15,6 +15,8 @@
  */
 package net.tomp2p.peers;
 
+import io.netty.buffer.ByteBuf;
+
 import java.util.Random;
 
 import net.tomp2p.utils.Utils;
@@ -290,6 +292,18 @@ public final class Number160 extends Number implements Comparable<Number160> {
         return retVal;
     }
 
+    /**
+     * Writes this number to a buffer without allocating a byte array.
+     * 
+     * @param buf
+     *            The buffer to write to
+     */
+    public void toByteBuf(final ByteBuf buf) {
+        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
+            buf.writeInt(val[i]);
+        }
+    }
+
     /**
      * Shows the content in a human readable manner.
      * 
@@ -382,6 +396,15 @@ public final class Number160 extends Number implements Comparable<Number160> {
                 + (this.val[INT_ARRAY_SIZE - 2] & LONG_MASK);
     }
 
+    /**
+     * @param index
+     *            The index of the integer, 0 is the most significant
+     * @return The integer at this index, without copying the array as {@link #toIntArray()} does
+     */
+    int intAt(final int index) {
+        return val[index];
+    }
+
     @Override
     public int compareTo(final Number160 o) {
         for (int i = 0; i < INT_ARRAY_SIZE; i++) {
@@ -16,6 +16,8 @@
 
 package net.tomp2p.peers;
 
+import io.netty.buffer.ByteBuf;
+
 import java.util.Random;
 
 /**
@@ -206,4 +208,17 @@ public final class Number640 extends Number implements Comparable<Number640> {
     public Number480 locationDomainAndContentKey() {
         return new Number480(locationKey, domainKey, contentKey);
     }
+
+    /**
+     * Writes the location, domain, content, and version key to a buffer without allocating byte arrays.
+     * 
+     * @param buf
+     *            The buffer to write to
+     */
+    public void toByteBuf(final ByteBuf buf) {
+        locationKey.toByteBuf(buf);
+        domainKey.toByteBuf(buf);
+        contentKey.toByteBuf(buf);
+        versionKey.toByteBuf(buf);
+    }
 }
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.peers;
+
+/**
+ * A compact representation of a {@link Number640} for keys that are kept in memory for a long time. A
+ * {@link Number640} consists of five objects, the four {@link Number160} and their int arrays, while this class packs
+ * the 640 bits into ten longs of a single object. The order is the same as of {@link Number640}, and comparing and
+ * hashing does not allocate.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public final class PackedNumber640 implements Comparable<PackedNumber640> {
+
+    private static final long LONG_MASK = 0xffffffffL;
+
+    // the location key is in l0, l1, and the upper half of l2, the domain key in the lower half of l2, l3, l4, etc.
+    private final long l0, l1, l2, l3, l4, l5, l6, l7, l8, l9;
+
+    /**
+     * @param key
+     *            The key to pack
+     */
+    public PackedNumber640(final Number640 key) {
+        final Number160 k0 = key.getLocationKey();
+        final Number160 k1 = key.getDomainKey();
+        final Number160 k2 = key.getContentKey();
+        final Number160 k3 = key.getVersionKey();
+        this.l0 = pack(k0.intAt(0), k0.intAt(1));
+        this.l1 = pack(k0.intAt(2), k0.intAt(3));
+        this.l2 = pack(k0.intAt(4), k1.intAt(0));
+        this.l3 = pack(k1.intAt(1), k1.intAt(2));
+        this.l4 = pack(k1.intAt(3), k1.intAt(4));
+        this.l5 = pack(k2.intAt(0), k2.intAt(1));
+        this.l6 = pack(k2.intAt(2), k2.intAt(3));
+        this.l7 = pack(k2.intAt(4), k3.intAt(0));
+        this.l8 = pack(k3.intAt(1), k3.intAt(2));
+        this.l9 = pack(k3.intAt(3), k3.intAt(4));
+    }
+
+    /**
+     * @return The unpacked key, which is a new object
+     */
+    public Number640 toNumber640() {
+        return new Number640(new Number160(high(l0), low(l0), high(l1), low(l1), high(l2)), new Number160(low(l2),
+                high(l3), low(l3), high(l4), low(l4)), new Number160(high(l5), low(l5), high(l6), low(l6), high(l7)),
+                new Number160(low(l7), high(l8), low(l8), high(l9), low(l9)));
+    }
+
+    /**
+     * @return The location key, which is a new object
+     */
+    public Number160 locationKey() {
+        return new Number160(high(l0), low(l0), high(l1), low(l1), high(l2));
+    }
+
+    @Override
+    public int compareTo(final PackedNumber640 o) {
+        int diff = compareUnsigned(l0, o.l0);
+        if (diff != 0) {
+            return diff;
+        }
+        diff = compareUnsigned(l1, o.l1);
+        if (diff != 0) {
+            return diff;
+        }
+        diff = compareUnsigned(l2, o.l2);
+        if (diff != 0) {
+            return diff;
+        }
+        diff = compareUnsigned(l3, o.l3);
+        if (diff != 0) {
+            return diff;
+        }
+        diff = compareUnsigned(l4, o.l4);
+        if (diff != 0) {
+            return diff;
+        }
+        diff = compareUnsigned(l5, o.l5);
+        if (diff != 0) {
+            return diff;
+        }
+        diff = compareUnsigned(l6, o.l6);
+        if (diff != 0) {
+            return diff;
+        }
+        diff = compareUnsigned(l7, o.l7);
+        if (diff != 0) {
+            return diff;
+        }
+        diff = compareUnsigned(l8, o.l8);
+        if (diff != 0) {
+            return diff;
+        }
+        return compareUnsigned(l9, o.l9);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (!(obj instanceof PackedNumber640)) {
+            return false;
+        }
+        if (obj == this) {
+            return true;
+        }
+        final PackedNumber640 o = (PackedNumber640) obj;
+        return l0 == o.l0 && l1 == o.l1 && l2 == o.l2 && l3 == o.l3 && l4 == o.l4 && l5 == o.l5 && l6 == o.l6
+                && l7 == o.l7 && l8 == o.l8 && l9 == o.l9;
+    }
+
+    @Override
+    public int hashCode() {
+        long hash = l0;
+        hash = 31 * hash + l1;
+        hash = 31 * hash + l2;
+        hash = 31 * hash + l3;
+        hash = 31 * hash + l4;
+        hash = 31 * hash + l5;
+        hash = 31 * hash + l6;
+        hash = 31 * hash + l7;
+        hash = 31 * hash + l8;
+        hash = 31 * hash + l9;
+        return (int) (hash ^ (hash >>> Integer.SIZE));
+    }
+
+    @Override
+    public String toString() {
+        return toNumber640().toString();
+    }
+
+    private static long pack(final int high, final int low) {
+        return ((long) high << Integer.SIZE) | (low & LONG_MASK);
+    }
+
+    private static int high(final long value) {
+        return (int) (value >>> Integer.SIZE);
+    }
+
+    private static int low(final long value) {
+        return (int) value;
+    }
+
+    private static int compareUnsigned(final long a, final long b) {
+        // flipping the sign bit maps the unsigned order to the signed order
+        final long x = a ^ Long.MIN_VALUE;
+        final long y = b ^ Long.MIN_VALUE;
+        return x < y ? -1 : (x == y ? 0 : 1);
+    }
+}
@@ -30,7 +30,6 @@ import net.tomp2p.message.Buffer;
 import net.tomp2p.message.Message;
 import net.tomp2p.message.Message.Type;
 import net.tomp2p.peers.PeerAddress;
-import net.tomp2p.utils.Utils;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -83,7 +82,7 @@ public class DirectDataRPC extends DispatchHandler {
         } else {
             byte[] me;
             try {
-                me = Utils.encodeJavaObject(sendDirectBuilder.getObject());
+                me = peerBean().serializer().encode(sendDirectBuilder.getObject());
                 message.setBuffer(new Buffer(Unpooled.wrappedBuffer(me)));
             } catch (IOException e) {
                 futureResponse.setFailed("cannot convert object", e);
@@ -156,7 +155,7 @@ public class DirectDataRPC extends DispatchHandler {
                     responseMessage.setBuffer(replyBuffer);
                 }
             } else { // no streaming here when we deal with objects
-                Object obj = Utils.decodeJavaObject(requestBuffer.buffer());
+                Object obj = peerBean().serializer().decode(requestBuffer.buffer());
                 LOG.debug("handling {}", obj);
 
                 Object reply = objectDataReply2.reply(message.getSender(), obj);
@@ -165,7 +164,7 @@ public class DirectDataRPC extends DispatchHandler {
                 } else if (reply == obj) {
                     responseMessage.setType(Type.OK);
                 } else {
-                    byte[] me = Utils.encodeJavaObject(reply);
+                    byte[] me = peerBean().serializer().encode(reply);
                     responseMessage.setBuffer(new Buffer(Unpooled.wrappedBuffer(me)));
                 }
             }
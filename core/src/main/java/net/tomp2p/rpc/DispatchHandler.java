@@ -121,6 +121,8 @@ public abstract class DispatchHandler {
         replyMessage.setVersion(requestMessage.getVersion());
         replyMessage.setMessageId(requestMessage.getMessageId());
         replyMessage.udp(requestMessage.isUdp());
+        // the requester understands the encoding it used
+        replyMessage.compact(requestMessage.isCompact());
         return replyMessage;
     }
 
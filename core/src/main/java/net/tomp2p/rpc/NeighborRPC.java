@@ -164,9 +164,8 @@ public class NeighborRPC extends DispatchHandler {
                     digestInfo = peerBean().storage().digest(locationAndDomainKey, keyBloomFilter,
                             contentBloomFilter, -1, true);
                 } else {
-                    Number640 from = new Number640(locationAndDomainKey, Number160.ZERO, Number160.ZERO);
-                    Number640 to = new Number640(locationAndDomainKey, Number160.MAX_VALUE, Number160.MAX_VALUE);
-                    digestInfo = peerBean().storage().digest(from, to, -1, true);
+                    // constant time if the storage keeps rolling digests
+                    digestInfo = peerBean().storage().digest(locationAndDomainKey);
                 }
                 responseMessage.setInteger(digestInfo.getSize());
                 responseMessage.setKey(digestInfo.getKeyDigest());
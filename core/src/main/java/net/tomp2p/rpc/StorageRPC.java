@@ -21,9 +21,11 @@ import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 
 import net.tomp2p.connection.ChannelCreator;
 import net.tomp2p.connection.ConnectionBean;
@@ -317,6 +319,7 @@ public class StorageRPC extends DispatchHandler {
             type = Type.REQUEST_4;
         }
         final Message message = createMessage(remotePeer, DIGEST_COMMAND, type);
+        message.latestOnly(getBuilder.isLatestOnly());
 
         if (getBuilder.isSign()) {
             message.setPublicKeyAndSign(getBuilder.keyPair());
@@ -377,6 +380,7 @@ public class StorageRPC extends DispatchHandler {
             type = Type.REQUEST_4;
         }
         final Message message = createMessage(remotePeer, GET_COMMAND, type);
+        message.latestOnly(getBuilder.isLatestOnly());
 
         if (getBuilder.isSign()) {
             message.setPublicKeyAndSign(getBuilder.keyPair());
@@ -555,16 +559,9 @@ public class StorageRPC extends DispatchHandler {
         final DataMap toStore = message.getDataMap(0);
         final int dataSize = toStore.size();
         final Map<Number640, Byte> result = new HashMap<Number640, Byte>(dataSize);
-        for (Map.Entry<Number640, Data> entry : toStore.dataMap().entrySet()) {
-            Enum<?> putStatus = doPut(putIfAbsent, protectDomain, publicKey, entry.getKey(), entry.getValue());
-            result.put(entry.getKey(), (byte) putStatus.ordinal());
-            // check the responsibility of the newly added data, do something
-            // (notify) if we are responsible
-            if (putStatus == PutStatus.OK && peerBean().replicationStorage() != null) {
-                peerBean().replicationStorage().updateAndNotifyResponsibilities(
-                        entry.getKey().getLocationKey());
-            }
-        }
+        LOG.debug("put {} entries on {}", dataSize, peerBean().serverPeerAddress());
+        // one lock per location key and one write to the backend, e.g., for the data map of a replication
+        stored(peerBean().storage().putAll(toStore.dataMap(), publicKey, putIfAbsent, protectDomain), result);
 
         responseMessage.setType(result.size() == dataSize ? Type.OK : Type.PARTIALLY_OK);
         responseMessage.setKeyMapByte(new KeyMapByte(result));
@@ -585,8 +582,14 @@ public class StorageRPC extends DispatchHandler {
         // the data and we don't need to transfer data to the closest (sender)
         // peer.
 
+        if (!list) {
+            stored(peerBean().storage().putAll(dataMap.dataMap(), publicKey, false, protectDomain), result);
+            responseMessage.setKeyMapByte(new KeyMapByte(result));
+            return responseMessage;
+        }
+
         for (Map.Entry<Number640, Data> entry : dataMap.dataMap().entrySet()) {
-            Enum<?> status = doAdd(protectDomain, entry, publicKey, list, peerBean());
+            Enum<?> status = doAdd(protectDomain, entry, publicKey, peerBean());
             result.put(entry.getKey(), (byte) status.ordinal());
 
             // check the responsibility of the newly added data, do something
@@ -601,28 +604,37 @@ public class StorageRPC extends DispatchHandler {
         return responseMessage;
     }
 
-    private Enum<?> doPut(final boolean putIfAbsent, final boolean protectDomain, final PublicKey publicKey,
-            final Number640 key, final Data value) {
-        LOG.debug("put data with key {} on {} with data {}", key, peerBean().serverPeerAddress(), value);
-        return peerBean().storage().put(key, value, publicKey, putIfAbsent, protectDomain);
+    /**
+     * Converts the status of each stored entry and checks the responsibility once per location key of the newly added
+     * data, so that we can do something (notify) if we are responsible.
+     */
+    private void stored(final Map<Number640, Enum<?>> statuses, final Map<Number640, Byte> result) {
+        final Set<Number160> locationKeys = new HashSet<Number160>();
+        for (Map.Entry<Number640, Enum<?>> entry : statuses.entrySet()) {
+            result.put(entry.getKey(), (byte) entry.getValue().ordinal());
+            if (entry.getValue() == PutStatus.OK) {
+                locationKeys.add(entry.getKey().getLocationKey());
+            }
+        }
+        if (peerBean().replicationStorage() != null) {
+            for (Number160 locationKey : locationKeys) {
+                peerBean().replicationStorage().updateAndNotifyResponsibilities(locationKey);
+            }
+        }
     }
 
     private static Enum<?> doAdd(final boolean protectDomain, final Map.Entry<Number640, Data> entry,
-            final PublicKey publicKey, final boolean list, final PeerBean peerBean) {
+            final PublicKey publicKey, final PeerBean peerBean) {
 
         LOG.debug("add list data with key {} on {}", entry.getKey(), peerBean.serverPeerAddress());
-        if (list) {
-            Number160 contentKey2 = new Number160(RND);
-            Enum<?> status;
-            Number640 key = new Number640(entry.getKey().getLocationKey(), entry.getKey().getDomainKey(),
-                    contentKey2, entry.getKey().getVersionKey());
-            while ((status = peerBean.storage().put(key, entry.getValue(), publicKey, true, protectDomain)) == PutStatus.FAILED_NOT_ABSENT) {
-                contentKey2 = new Number160(RND);
-            }
-            return status;
-        } else {
-            return peerBean.storage().put(entry.getKey(), entry.getValue(), publicKey, false, protectDomain);
-        }
+        Number160 contentKey2 = new Number160(RND);
+        Enum<?> status;
+        Number640 key = new Number640(entry.getKey().getLocationKey(), entry.getKey().getDomainKey(),
+                contentKey2, entry.getKey().getVersionKey());
+        while ((status = peerBean.storage().put(key, entry.getValue(), publicKey, true, protectDomain)) == PutStatus.FAILED_NOT_ABSENT) {
+            contentKey2 = new Number160(RND);
+        }
+        return status;
     }
 
     private Message handleGet(final Message message, final Message responseMessage) {
@@ -637,6 +649,7 @@ public class StorageRPC extends DispatchHandler {
         final boolean ascending = isAscending(message);
         final boolean isRange = contentKeys != null && returnNr != null;
         final boolean isCollection = contentKeys != null && returnNr == null;
+        final boolean isLatestOnly = message.isLatestOnly();
 
         final Map<Number640, Data> result;
         if (isCollection) {
@@ -652,7 +665,11 @@ public class StorageRPC extends DispatchHandler {
             Iterator<Number640> iterator = contentKeys.keys().iterator();
             Number640 min = iterator.next();
             Number640 max = iterator.next();
-            result = peerBean().storage().get(min, max, limit, ascending);
+            if (isLatestOnly) {
+                result = peerBean().storage().getLatest(min, max, limit, ascending);
+            } else {
+                result = peerBean().storage().get(min, max, limit, ascending);
+            }
 
         } else if (keyBloomFilter != null || contentBloomFilter != null) {
             Number640 min = new Number640(locationKey, domainKey, Number160.ZERO, Number160.ZERO);
@@ -662,7 +679,11 @@ public class StorageRPC extends DispatchHandler {
             // get all
             Number640 min = new Number640(locationKey, domainKey, Number160.ZERO, Number160.ZERO);
             Number640 max = new Number640(locationKey, domainKey, Number160.MAX_VALUE, Number160.MAX_VALUE);
-            result = peerBean().storage().get(min, max, limit, ascending);
+            if (isLatestOnly) {
+                result = peerBean().storage().getLatest(min, max, limit, ascending);
+            } else {
+                result = peerBean().storage().get(min, max, limit, ascending);
+            }
         }
         responseMessage.setDataMap(new DataMap(result));
         return responseMessage;
@@ -682,7 +703,8 @@ public class StorageRPC extends DispatchHandler {
         final boolean isRange = contentKeys != null && returnNr != null;
         final boolean isCollection = contentKeys != null && returnNr == null;
         final boolean isReturnBloomfilter = isReturnBloomfilter(message);
-        
+        final boolean isLatestOnly = message.isLatestOnly();
+
 
         final DigestInfo digestInfo;
         if (isCollection) {
@@ -692,7 +714,11 @@ public class StorageRPC extends DispatchHandler {
             Iterator<Number640> iterator = contentKeys.keys().iterator();
             Number640 min = iterator.next();
             Number640 max = iterator.next();
-            digestInfo = peerBean().storage().digest(min, max, limit, ascending);
+            if (isLatestOnly) {
+                digestInfo = peerBean().storage().digestLatest(min, max, limit, ascending);
+            } else {
+                digestInfo = peerBean().storage().digest(min, max, limit, ascending);
+            }
         } else if (keyBloomFilter != null || contentBloomFilter != null) {
             final Number320 locationAndDomainKey = new Number320(locationKey, domainKey);
             digestInfo = peerBean().storage().digest(locationAndDomainKey, keyBloomFilter,
@@ -701,7 +727,11 @@ public class StorageRPC extends DispatchHandler {
             // get all
             Number640 min = new Number640(locationKey, domainKey, Number160.ZERO, Number160.ZERO);
             Number640 max = new Number640(locationKey, domainKey, Number160.MAX_VALUE, Number160.MAX_VALUE);
-            digestInfo = peerBean().storage().digest(min, max, limit, ascending);
+            if (isLatestOnly) {
+                digestInfo = peerBean().storage().digestLatest(min, max, limit, ascending);
+            } else {
+                digestInfo = peerBean().storage().digest(min, max, limit, ascending);
+            }
         }
 
         if (isReturnBloomfilter) {
@@ -732,13 +762,7 @@ public class StorageRPC extends DispatchHandler {
         final boolean isCollection = keys != null && returnNr == null;
                
         if (isCollection) {
-            result = new HashMap<Number640, Data>(keys.size());
-            for (Number640 key : keys.keys()) {
-                Data data = peerBean().storage().remove(key, publicKey);
-                if (data != null) {
-                    result.put(key, data);
-                }
-            }
+            result = peerBean().storage().removeAll(keys.keys(), publicKey);
         } else if(isRange) {
             Iterator<Number640> iterator = keys.keys().iterator();
             Number640 min = iterator.next();
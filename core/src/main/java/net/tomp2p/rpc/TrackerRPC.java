@@ -15,8 +15,6 @@
  */
 package net.tomp2p.rpc;
 
-import io.netty.channel.ChannelHandlerContext;
-
 import java.io.IOException;
 import java.security.PublicKey;
 import java.util.HashMap;
@@ -211,11 +209,11 @@ public class TrackerRPC extends DispatchHandler {
             this.domainKey = domainKey;
         }
 
-        protected void channelRead0(final ChannelHandlerContext ctx, final Message responseMessage)
-                throws Exception {
+        @Override
+        protected boolean response(final Message responseMessage) throws Exception {
             preHandleMessage(responseMessage, peerBean().trackerStorage(), this.message.getRecipient(),
                     locationKey, domainKey);
-            super.channelRead0(ctx, responseMessage);
+            return super.response(responseMessage);
         }
     }
 
@@ -16,6 +16,7 @@
 package net.tomp2p.storage;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -31,6 +32,9 @@ import net.tomp2p.connection.SignatureFactory;
 import net.tomp2p.message.SHA1Signature;
 import net.tomp2p.p2p.PeerMaker;
 import net.tomp2p.peers.Number160;
+import net.tomp2p.utils.LZF;
+import net.tomp2p.utils.JavaSerializer;
+import net.tomp2p.utils.Serializer;
 import net.tomp2p.utils.Timings;
 import net.tomp2p.utils.Utils;
 
@@ -45,6 +49,11 @@ import net.tomp2p.utils.Utils;
 public class Data {
 
 	private static final int MAX_BYTE_SIZE = 256;
+	// for objects that are encoded or decoded without a peer
+	private static final Serializer DEFAULT_SERIALIZER = new JavaSerializer();
+
+	// header, length, TTL, and based on key, the public key is added if present
+	private static final int MAX_HEADER_SIZE = 1 + 4 + 4 + Number160.BYTE_ARRAY_SIZE;
 
 	/**
 	 * Tiny means 8 bit, small means 16bit, medium is 32bit.
@@ -56,6 +65,17 @@ public class Data {
 		SMALL, MEDIUM, LARGE
 	}
 
+	/**
+	 * The compression of the payload. A compressed payload is sent only with
+	 * the compact encoding, which flags the compression per entry.
+	 * 
+	 * @author Thomas Bocek
+	 * 
+	 */
+	public enum Compression {
+		NONE, DEFLATE, LZF
+	}
+
 	private final Type type;
 	private final int length;
 	// the buffer contains data without the header
@@ -79,6 +99,13 @@ public class Data {
 	private final long validFromMillis;
 	private SignatureFactory signatureFactory;
 	private Number160 hash;
+	// the encoded header, reused until a field of the header changes
+	private volatile byte[] encodedHeader;
+	// the compression of the buffer, the length is the compressed length
+	private volatile Compression compression = Compression.NONE;
+	// the uncompressed payload, created on first access. Only a received object is compressed, which is short lived as
+	// the storage keeps the uncompressed copy
+	private volatile byte[] uncompressed;
 
 	/**
 	 * Create a data object that does have the complete data.
@@ -139,8 +166,29 @@ public class Data {
 		this.validFromMillis = Timings.currentTimeMillis();
 	}
 
+	/**
+	 * Creates a data object with the default serializer, which is a {@link JavaSerializer}, so that peers of every
+	 * version can read it.
+	 * 
+	 * @param object
+	 *            The object to encode
+	 * @throws IOException
+	 *             If the object cannot be encoded
+	 */
 	public Data(final Object object) throws IOException {
-		this(Utils.encodeJavaObject(object));
+		this(object, DEFAULT_SERIALIZER);
+	}
+
+	/**
+	 * @param object
+	 *            The object to encode
+	 * @param serializer
+	 *            The serializer of the peer, see {@link PeerMaker#serializer(Serializer)}
+	 * @throws IOException
+	 *             If the object cannot be encoded
+	 */
+	public Data(final Object object, final Serializer serializer) throws IOException {
+		this(serializer.encode(object));
 	}
 
 	public Data(final byte[] buffer) {
@@ -278,10 +326,8 @@ public class Data {
 		if (remaining == 0) {
 			return true;
 		}
-		// make sure it gets not garbage collected. But we need to keep track of
-		// it and when this object gets collected,
-		// we need to release the buffer
-		final int transfered = buffer.transferFrom(buf, remaining);
+		// copied, as a slice would keep the pooled receive buffer alive for as long as the data is stored
+		final int transfered = buffer.copyFrom(buf, remaining);
 		return transfered == remaining;
 	}
 
@@ -289,6 +335,7 @@ public class Data {
 		if (signed) {
 			if(publicKey == PeerMaker.EMPTY_PUBLICKEY) {
 				this.publicKey = publicKey;	
+				encodedHeader = null;
 			}
 			if(buf.readableBytes() < (Number160.BYTE_ARRAY_SIZE * 2)) {
 				return false;
@@ -308,10 +355,56 @@ public class Data {
 	}
 
 	public boolean verify(PublicKey publicKey) throws InvalidKeyException, SignatureException, IOException {
-		return signatureFactory().verify(publicKey, buffer.toByteBuf(), signature);
+		return signatureFactory().verify(publicKey, payload().toByteBuf(), signature);
 	}
 
 	public void encodeHeader(final AlternativeCompositeByteBuf buf) {
+		buf.writeBytes(encodedHeader());
+		buffer.transferTo(buf);
+	}
+
+	/**
+	 * Encodes the header, the payload, and the signature without modifying this object, so that a stored object can
+	 * be encoded many times, also concurrently, without a duplicate. The payload is not copied. A compressed payload is
+	 * encoded uncompressed, use {@link #encodeCompressed(AlternativeCompositeByteBuf)} to send it as it is.
+	 * 
+	 * @param buf
+	 *            The buffer to encode to
+	 */
+	public void encode(final AlternativeCompositeByteBuf buf) {
+		if (compression != Compression.NONE) {
+			uncompressed().encode(buf);
+			return;
+		}
+		encodeCompressed(buf);
+	}
+
+	/**
+	 * Encodes the payload as it is, compressed with {@link #compression()}. The receiver needs to learn the compression
+	 * from somewhere else, which the compact encoding does.
+	 * 
+	 * @param buf
+	 *            The buffer to encode to
+	 */
+	public void encodeCompressed(final AlternativeCompositeByteBuf buf) {
+		buf.writeBytes(encodedHeader());
+		buffer.encodeTo(buf);
+		encodeDone(buf);
+	}
+
+	private byte[] encodedHeader() {
+		byte[] header = encodedHeader;
+		if (header == null) {
+			final ByteBuf buf = Unpooled.buffer(MAX_HEADER_SIZE);
+			writeHeader(buf);
+			header = new byte[buf.readableBytes()];
+			buf.readBytes(header);
+			encodedHeader = header;
+		}
+		return header;
+	}
+
+	private void writeHeader(final ByteBuf buf) {
 		int header = type.ordinal();
 		if (flag1) {
 			header |= 0x04;
@@ -352,7 +445,7 @@ public class Data {
 			buf.writeInt(ttlSeconds);
 		}
 		if (basedOnFlag) {
-			buf.writeBytes(basedOn.toByteArray());
+			basedOn.toByteBuf(buf);
 		}
 		if (signed) {
 			if (publicKey == null) {
@@ -361,7 +454,6 @@ public class Data {
 				signatureFactory().encodePublicKey(publicKey, buf);
 			}
 		}
-		buffer.transferTo(buf);
 	}
 	
 	public boolean encodeBuffer(final AlternativeCompositeByteBuf buf) {
@@ -381,17 +473,35 @@ public class Data {
 			if (signature == null) {
 				throw new IllegalArgumentException("you need to sign the data object first and add a public key!");
 			}
-			buf.writeBytes(signature.getNumber1().toByteArray());
-			buf.writeBytes(signature.getNumber2().toByteArray());
+			signature.getNumber1().toByteBuf(buf);
+			signature.getNumber2().toByteBuf(buf);
 		}
 	}
 
 	public ByteBuf buffer() {
-		return buffer.toByteBuf();
+		return payload().toByteBuf();
 	}
 
+	/**
+	 * @return The object decoded with the default serializer, which is a {@link JavaSerializer}
+	 */
 	public Object object() throws ClassNotFoundException, IOException {
-		return Utils.decodeJavaObject(buffer);
+		return object(DEFAULT_SERIALIZER);
+	}
+
+	/**
+	 * @param serializer
+	 *            The serializer the object was encoded with
+	 * @return The decoded object
+	 */
+	public Object object(final Serializer serializer) throws ClassNotFoundException, IOException {
+		final ByteBuf buf = payload().toByteBuf();
+		try {
+			return serializer.decode(buf);
+		} finally {
+			// releases the shallow copy, not this data
+			buf.release();
+		}
 	}
 
 	public long validFromMillis() {
@@ -401,24 +511,118 @@ public class Data {
 	public Data sign(KeyPair keyPair) throws InvalidKeyException, SignatureException, IOException {
 		if (this.signature == null) {
 			this.signed = true;
-			this.signature = signatureFactory().sign(keyPair.getPrivate(), buffer.toByteBuf());
+			this.signature = signatureFactory().sign(keyPair.getPrivate(), payload().toByteBuf());
 			this.publicKey = keyPair.getPublic();
 		}
+		encodedHeader = null;
 		return this;
 	}
 
 	public Data sign(PrivateKey privateKey) throws InvalidKeyException, SignatureException, IOException {
 		if (this.signature == null) {
 			this.signed = true;
-			this.signature = signatureFactory().sign(privateKey, buffer.toByteBuf());
+			this.signature = signatureFactory().sign(privateKey, payload().toByteBuf());
 		}
+		encodedHeader = null;
 		return this;
 	}
 
+	/**
+	 * @return The length of the payload as it is stored and sent, which is the compressed length if the payload is
+	 *         compressed
+	 */
 	public int length() {
 		return length;
 	}
 
+	/**
+	 * @return The compression of the stored payload
+	 */
+	public Compression compression() {
+		return compression;
+	}
+
+	/**
+	 * Marks the payload as compressed. This is used by the decoder, which learns the compression from the compact
+	 * encoding. The payload is uncompressed on first access.
+	 * 
+	 * @param compression
+	 *            The compression of the payload
+	 * @return This class
+	 */
+	public Data compression(final Compression compression) {
+		this.compression = compression;
+		this.uncompressed = null;
+		return this;
+	}
+
+	/**
+	 * Compresses the payload if it is at least threshold bytes long and gets smaller. The compressed payload is not
+	 * kept in this object, so that a stored object that is sent does not keep a second copy of its payload.
+	 * 
+	 * @param compression
+	 *            The compression to use
+	 * @param threshold
+	 *            The minimal length of a payload to compress
+	 * @return A copy with the compressed payload, or this object if the payload is not compressed
+	 */
+	public Data compress(final Compression compression, final int threshold) {
+		if (compression == Compression.NONE || this.compression != Compression.NONE || length < threshold) {
+			return this;
+		}
+		final byte[] payload = toBytes();
+		final byte[] bytes = compression == Compression.LZF ? LZF.compress(payload) : Utils.compress(payload);
+		if (bytes.length >= length) {
+			return this;
+		}
+		final Data data = duplicate(new DataBuffer(bytes), bytes.length, compression);
+		data.hash = hash;
+		return data;
+	}
+
+	/**
+	 * @return This object if the payload is not compressed, otherwise a copy with the uncompressed payload
+	 */
+	public Data uncompressed() {
+		if (compression == Compression.NONE) {
+			return this;
+		}
+		final byte[] payload = uncompressedBytes();
+		final Data data = duplicate(new DataBuffer(payload), payload.length, Compression.NONE);
+		data.hash = hash;
+		return data;
+	}
+
+	/**
+	 * @return The uncompressed payload, which is the buffer itself if it is not compressed
+	 */
+	private DataBuffer payload() {
+		if (compression == Compression.NONE) {
+			return buffer;
+		}
+		return new DataBuffer(uncompressedBytes());
+	}
+
+	private int payloadLength() {
+		if (compression == Compression.NONE) {
+			return length;
+		}
+		return uncompressedBytes().length;
+	}
+
+	private byte[] uncompressedBytes() {
+		byte[] payload = uncompressed;
+		if (payload == null) {
+			final ByteBuf buf = buffer.toByteBuf();
+			final byte[] me = new byte[buf.readableBytes()];
+			buf.readBytes(me);
+			buf.release();
+			payload = compression == Compression.LZF ? LZF.uncompress(me) : Utils.uncompress(me);
+			uncompressed = payload;
+		}
+		return payload;
+	}
+
 	public long expirationMillis() {
 		return ttlSeconds <= 0 ? Long.MAX_VALUE : validFromMillis + (ttlSeconds * 1000L);
 	}
@@ -430,12 +634,14 @@ public class Data {
 	public Data ttlSeconds(int ttlSeconds) {
 		this.ttlSeconds = ttlSeconds;
 		this.ttl = true;
+		encodedHeader = null;
 		return this;
 	}
 
 	public Data basedOn(Number160 basedOn) {
 		this.basedOn = basedOn;
 		this.basedOnFlag = true;
+		encodedHeader = null;
 		return this;
 	}
 
@@ -453,6 +659,7 @@ public class Data {
 
 	public Data signatureFactory(SignatureFactory signatureFactory) {
 		this.signatureFactory = signatureFactory;
+		encodedHeader = null;
 		return this;
 	}
 
@@ -466,11 +673,13 @@ public class Data {
 
 	public Data protectedEntry(boolean protectedEntry) {
 		this.protectedEntry = protectedEntry;
+		encodedHeader = null;
 		return this;
 	}
 
 	public Data setProtectedEntry() {
 		protectedEntry = true;
+		encodedHeader = null;
 		return this;
 	}
 
@@ -480,11 +689,13 @@ public class Data {
 
 	public Data flag1(boolean flag1) {
 		this.flag1 = flag1;
+		encodedHeader = null;
 		return this;
 	}
 
 	public Data setFlag1() {
 		this.flag1 = true;
+		encodedHeader = null;
 		return this;
 	}
 
@@ -494,11 +705,13 @@ public class Data {
 
 	public Data flag2(boolean flag2) {
 		this.flag2 = flag2;
+		encodedHeader = null;
 		return this;
 	}
 
 	public Data setFlag2() {
 		this.flag2 = true;
+		encodedHeader = null;
 		return this;
 	}
 
@@ -526,7 +739,11 @@ public class Data {
 	 *         index is not shared
 	 */
 	public Data duplicate() {
-		Data data = new Data(buffer.shallowCopy(), length).publicKey(publicKey).signatureFactory(signatureFactory)
+		return duplicate(buffer.shallowCopy());
+	}
+
+	private Data duplicate(final DataBuffer buffer, final int length, final Compression compression) {
+		Data data = new Data(buffer, length).publicKey(publicKey).signatureFactory(signatureFactory)
 				.signature(signature).basedOn(basedOn).ttlSeconds(ttlSeconds);
 		// set all the flags. Although signature, basedOn, and ttlSeconds set a
 		// flag, they will be overwritten with the data from this class
@@ -536,9 +753,44 @@ public class Data {
 		data.signed = signed;
 		data.ttl = ttl;
 		data.protectedEntry = protectedEntry;
+		data.compression = compression;
+		return data;
+	}
+
+	/**
+	 * @param buffer
+	 *            The buffer that replaces the payload of this data object. It
+	 *            needs to contain exactly {@link #length()} bytes
+	 * @return A copy with the same header and meta data, but with the payload
+	 *         backed by the given buffer
+	 */
+	Data duplicate(final DataBuffer buffer) {
+		return duplicate(buffer, length, compression);
+	}
+
+	/**
+	 * @param buffer
+	 *            The buffer that replaces the payload of this data object. It
+	 *            needs to contain the same bytes as this data object
+	 * @param hash
+	 *            The hash of the payload, so that it does not need to be
+	 *            calculated again
+	 * @return A copy with the same header and meta data, but with the payload
+	 *         backed by the given buffer
+	 */
+	Data duplicate(final DataBuffer buffer, final Number160 hash) {
+		Data data = duplicate(buffer);
+		data.hash = hash;
 		return data;
 	}
 
+	/**
+	 * @return The backing buffer, make a shallow copy before using it
+	 */
+	DataBuffer dataBuffer() {
+		return buffer;
+	}
+
 	public static Type type(final int header) {
 		return Type.values()[header & 0x3];
 	}
@@ -572,7 +824,7 @@ public class Data {
 	 */
 	public byte[] toBytes() {
 		// we do copy the buffer here
-		ByteBuf buf = buffer.toByteBuf();
+		ByteBuf buf = payload().toByteBuf();
 		byte[] me = new byte[buf.readableBytes()];
 		buf.readBytes(me);
 		return me;
@@ -582,7 +834,7 @@ public class Data {
 	 * @return The ByteBuffers that is the payload. We do not make a copy here
 	 */
 	public ByteBuffer[] toByteBuffers() {
-		return buffer.toByteBuffer();
+		return payload().toByteBuffer();
 	}
 
 	public PublicKey publicKey() {
@@ -591,6 +843,7 @@ public class Data {
 
 	public Data publicKey(PublicKey publicKey) {
 		this.publicKey = publicKey;
+		encodedHeader = null;
 		return this;
 	}
 
@@ -610,12 +863,13 @@ public class Data {
 		bs.set(1, ttl);
 		bs.set(2, basedOnFlag);
 		bs.set(3, protectedEntry);
-		int hashCode = bs.hashCode() ^ ttlSeconds ^ type.ordinal() ^ length;
+		// the uncompressed payload, so that the compression does not matter
+		int hashCode = bs.hashCode() ^ ttlSeconds ^ payloadLength();
 		if (basedOn != null) {
 			hashCode = hashCode ^ basedOn.hashCode();
 		}
 		// This is a slow operation, use with care!
-		return hashCode ^ buffer.hashCode();
+		return hashCode ^ payload().hashCode();
 	}
 
 	@Override
@@ -630,17 +884,20 @@ public class Data {
 		if (d.signed != signed || d.ttl != ttl || d.basedOnFlag != basedOnFlag || d.protectedEntry != protectedEntry) {
 			return false;
 		}
-		if (d.ttlSeconds != ttlSeconds || d.type != type || d.length != length) {
+		if (d.ttlSeconds != ttlSeconds) {
+			return false;
+		}
+		if (d.compression == compression && (d.type != type || d.length != length)) {
 			return false;
 		}
 		return Utils.<Number160> equals(basedOn, d.basedOn) && Utils.<SHA1Signature> equals(signature, d.signature)
-				&& d.buffer.equals(buffer); // This is a slow operation, use
+				&& d.payload().equals(payload()); // This is a slow operation, use
 											// with care!
 	}
 
 	public Number160 hash() {
 		if (hash == null) {
-			hash = Utils.makeSHAHash(buffer.toByteBuf());
+			hash = Utils.makeSHAHash(payload().toByteBuf());
 		}
 		return hash;
 	}
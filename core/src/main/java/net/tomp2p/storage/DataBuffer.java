@@ -23,7 +23,9 @@ public class DataBuffer {
 
 	public DataBuffer(final byte[] buffer, final int offset, final int length) {
 		buffers = new ArrayList<ByteBuf>(1);
-		final ByteBuf buf = Unpooled.wrappedBuffer(buffer);
+		// wrapping is free and the array is owned by the caller, so it is not copied into a pooled buffer that would
+		// need to be released
+		final ByteBuf buf = Unpooled.wrappedBuffer(buffer, offset, length);
 		buffers.add(buf);
 		// no need to retain, as we initialized here and ref counter is set to 1
 	}
@@ -115,6 +117,25 @@ public class DataBuffer {
 		}
 	}
 
+	/**
+	 * Adds the data from this buffer to the CompositeByteBuf without copying
+	 * and without modifying this buffer, so that it can be encoded
+	 * concurrently. The CompositeByteBuf holds a reference until it is
+	 * released.
+	 * 
+	 * @param buf
+	 *            The CompositeByteBuf, where the data from this buffer is
+	 *            added to
+	 */
+	public void encodeTo(final AlternativeCompositeByteBuf buf) {
+		synchronized (buffers) {
+			for (final ByteBuf buffer : buffers) {
+				buf.addComponent(buffer.duplicate());
+				buffer.retain();
+			}
+		}
+	}
+
 	public int transferFrom(final ByteBuf buf, final int remaining) {
 		final int readable = buf.readableBytes();
 		final int index = buf.readerIndex();
@@ -148,6 +169,30 @@ public class DataBuffer {
 		return length;
 	}
 
+	/**
+	 * Copies the data from the buffer onto the heap. Unlike {@link #transferFrom(ByteBuf, int)}, no reference to the
+	 * buffer is kept, so a long lived Data does not pin a pooled receive buffer and the chunk of the pool behind it.
+	 * 
+	 * @param buf
+	 *            The buffer to read from
+	 * @param remaining
+	 *            The number of bytes that are still missing
+	 * @return The number of bytes that have been copied
+	 */
+	public int copyFrom(final ByteBuf buf, final int remaining) {
+		final int length = Math.min(remaining, buf.readableBytes());
+		if (length == 0) {
+			return 0;
+		}
+		final ByteBuf copy = Unpooled.buffer(length);
+		buf.readBytes(copy, length);
+		synchronized (buffers) {
+			buffers.add(copy);
+		}
+		alreadyTransferred += length;
+		return length;
+	}
+
 	public int alreadyTransferred() {
 		return alreadyTransferred;
 	}
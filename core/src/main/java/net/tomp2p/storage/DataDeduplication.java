@@ -0,0 +1,142 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.tomp2p.peers.Number160;
+
+/**
+ * Shares the payload of data objects with the same content. The payloads are identified by {@link Data#hash()}, the
+ * first data object with a payload becomes the shared copy, and every further data object with the same payload is
+ * replaced by a duplicate backed by the shared copy. Each shared payload is reference counted and dropped with the
+ * last reference. This only saves memory for backends that keep the data objects, e.g. {@link StorageMemory}.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class DataDeduplication {
+
+    private final Map<Number160, Payload> payloads = new HashMap<Number160, Payload>();
+
+    // guarded by this
+    private long savedBytes = 0;
+    private long references = 0;
+
+    /**
+     * Returns a data object whose payload is shared with all other data objects with the same content. Every data
+     * object returned needs to be released with {@link #release(Data)} once it is removed from the storage.
+     * 
+     * @param data
+     *            The data object to store
+     * @return The data object itself if its payload was not stored yet, or a duplicate backed by the shared payload
+     */
+    public Data share(final Data data) {
+        if (data.length() == 0) {
+            return data;
+        }
+        final Number160 hash = data.hash();
+        synchronized (this) {
+            final Payload payload = payloads.get(hash);
+            references++;
+            if (payload == null) {
+                payloads.put(hash, new Payload(data));
+                return data;
+            }
+            if (payload.data.length() != data.length() || payload.data.compression() != data.compression()) {
+                // cannot share, since it is not the same content. Counted, but not shared
+                payload.unshared++;
+                return data;
+            }
+            payload.references++;
+            savedBytes += data.length();
+            return data.duplicate(payload.data.dataBuffer().shallowCopy(), hash);
+        }
+    }
+
+    /**
+     * Releases a data object returned by {@link #share(Data)}.
+     * 
+     * @param data
+     *            The data object that has been removed from the storage
+     */
+    public void release(final Data data) {
+        if (data.length() == 0) {
+            return;
+        }
+        final Number160 hash = data.hash();
+        synchronized (this) {
+            final Payload payload = payloads.get(hash);
+            if (payload == null) {
+                return;
+            }
+            references--;
+            if (payload.data.length() != data.length() || payload.data.compression() != data.compression()) {
+                payload.unshared--;
+            } else if (payload.references > 1) {
+                payload.references--;
+                savedBytes -= data.length();
+                return;
+            } else {
+                payload.references = 0;
+            }
+            if (payload.references == 0 && payload.unshared == 0) {
+                payloads.remove(hash);
+            }
+        }
+    }
+
+    /**
+     * @return The number of bytes that are not stored because the payload is shared
+     */
+    public synchronized long savedBytes() {
+        return savedBytes;
+    }
+
+    /**
+     * @return The number of distinct payloads
+     */
+    public synchronized int payloads() {
+        return payloads.size();
+    }
+
+    /**
+     * @return The number of data objects that have been shared and not released yet
+     */
+    public synchronized long references() {
+        return references;
+    }
+
+    public synchronized void clear() {
+        payloads.clear();
+        savedBytes = 0;
+        references = 0;
+    }
+
+    private static final class Payload {
+        private final Data data;
+        // the data objects that share the payload
+        private int references = 1;
+        // the data objects with the same hash but a different length, which can only be a collision
+        private int unshared = 0;
+
+        private Payload(final Data data) {
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+
+/**
+ * Evicts the entries whose location key is farthest away from this peer in terms of the XOR metric first. These are
+ * the entries this peer is least likely to be responsible for, while the entries close to this peer are kept.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class DistanceEvictionPolicy implements EvictionPolicy {
+
+    private final Comparator<Number640> comparator;
+    private final NavigableSet<Number640> keys;
+
+    /**
+     * @param self
+     *            The ID of this peer, e.g. from {@link net.tomp2p.peers.PeerMap#self()}
+     */
+    public DistanceEvictionPolicy(final Number160 self) {
+        this.comparator = new Comparator<Number640>() {
+            @Override
+            public int compare(final Number640 o1, final Number640 o2) {
+                // farthest first
+                final int distance = o2.getLocationKey().xor(self).compareTo(o1.getLocationKey().xor(self));
+                return distance != 0 ? distance : o1.compareTo(o2);
+            }
+        };
+        this.keys = new ConcurrentSkipListSet<Number640>(comparator);
+    }
+
+    @Override
+    public void put(final Number640 key) {
+        keys.add(key);
+    }
+
+    @Override
+    public boolean admit(final Number640 key) {
+        // a key farther away than all stored keys would be the next victim
+        final Iterator<Number640> iterator = keys.iterator();
+        return !iterator.hasNext() || comparator.compare(key, iterator.next()) >= 0;
+    }
+
+    @Override
+    public void access(final Number640 key) {
+        // the distance does not change
+    }
+
+    @Override
+    public void remove(final Number640 key) {
+        keys.remove(key);
+    }
+
+    @Override
+    public Number640 victim() {
+        final Iterator<Number640> iterator = keys.iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    @Override
+    public void clear() {
+        keys.clear();
+    }
+}
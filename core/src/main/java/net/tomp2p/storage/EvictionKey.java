@@ -0,0 +1,58 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import net.tomp2p.peers.Number640;
+
+/**
+ * The key of an entry in the maps of the eviction policies. {@link Number640#equals(Object)} ignores the version key,
+ * so all versions of a content key would share one map entry. This key compares all 640 bits.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+final class EvictionKey {
+
+    private final Number640 key;
+
+    EvictionKey(final Number640 key) {
+        this.key = key;
+    }
+
+    /**
+     * @return The wrapped key
+     */
+    Number640 key() {
+        return key;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof EvictionKey)) {
+            return false;
+        }
+        return key.compareTo(((EvictionKey) obj).key) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return key.hashCode() ^ key.getVersionKey().hashCode();
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import net.tomp2p.peers.Number640;
+
+/**
+ * Gets notified if {@link StorageLayer} evicted an entry to stay within its capacity.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public interface EvictionListener {
+
+    /**
+     * Called after the entry has been removed from the storage.
+     * 
+     * @param key
+     *            The key of the evicted entry
+     * @param data
+     *            The evicted data
+     */
+    void evicted(Number640 key, Data data);
+}
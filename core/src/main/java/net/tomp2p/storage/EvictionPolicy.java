@@ -0,0 +1,65 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import net.tomp2p.peers.Number640;
+
+/**
+ * Decides which entry {@link StorageLayer} removes if the storage exceeds its capacity. The policy is informed about
+ * every stored, read, and removed key. Implementations need to be thread-safe.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public interface EvictionPolicy {
+
+    /**
+     * @param key
+     *            The key that has been stored or overwritten
+     */
+    void put(Number640 key);
+
+    /**
+     * Called before a new key is stored into a full storage. Rejecting the key here lets the put fail, instead of
+     * acknowledging it and evicting the entry right away.
+     * 
+     * @param key
+     *            The key that would be stored
+     * @return True if the key may be stored, which evicts an other entry
+     */
+    boolean admit(Number640 key);
+
+    /**
+     * @param key
+     *            The key that has been read
+     */
+    void access(Number640 key);
+
+    /**
+     * @param key
+     *            The key that has been removed or evicted
+     */
+    void remove(Number640 key);
+
+    /**
+     * @return The key that should be evicted next, or null if no key is known. The key is not removed from the policy,
+     *         this is done with {@link #remove(Number640)} once it has been evicted
+     */
+    Number640 victim();
+
+    void clear();
+}
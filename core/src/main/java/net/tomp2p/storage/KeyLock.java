@@ -16,17 +16,29 @@
 
 package net.tomp2p.storage;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
-//as seen in http://stackoverflow.com/questions/5639870/simple-java-name-based-locks
+/**
+ * Locks on keys. The locks are created on demand and are reference counted, once nobody holds or waits for a lock,
+ * it is removed. The lock table is a {@link ConcurrentHashMap}, thus, locking different keys does not contend on a
+ * global lock.
+ * 
+ * @author Thomas Bocek
+ * 
+ * @param <K>
+ *            The type of the key
+ */
 public class KeyLock<K> {
     public class RefCounterLock {
         final private K key;
         final public ReentrantLock sem = new ReentrantLock();
         final private KeyLock<K> keyLock;
-        
-        private int counter = 0;
+
+        // the number of threads holding or waiting for this lock, -1 if this lock has been removed from the table
+        final private AtomicInteger counter = new AtomicInteger(0);
         
         public RefCounterLock(K key, KeyLock<K> keyLock) {
             this.key = key;
@@ -36,62 +48,61 @@ public class KeyLock<K> {
         public void unlock() {
             keyLock.unlock(this);
         }
-    }
 
-    private final ReentrantLock lockInternal = new ReentrantLock();
+        private boolean acquireReference() {
+            while (true) {
+                final int current = counter.get();
+                if (current < 0) {
+                    return false;
+                }
+                if (counter.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+    }
 
-    // TODO: think about doing this with a weak hashmap, maybe counter will not be necessary.
-    private final HashMap<K, RefCounterLock> cache = new HashMap<K, RefCounterLock>();
+    private final ConcurrentMap<K, RefCounterLock> cache = new ConcurrentHashMap<K, RefCounterLock>();
 
     public RefCounterLock lock(final K key) {
-        final RefCounterLock cur;
-        lockInternal.lock();
-        try {
-            if (!cache.containsKey(key)) {
-                cur = new RefCounterLock(key, this);
-                cache.put(key, cur);
-            } else {
-                cur = cache.get(key);
+        while (true) {
+            RefCounterLock cur = cache.get(key);
+            if (cur == null) {
+                final RefCounterLock created = new RefCounterLock(key, this);
+                cur = cache.putIfAbsent(key, created);
+                if (cur == null) {
+                    cur = created;
+                }
+            }
+            if (cur.acquireReference()) {
+                cur.sem.lock();
+                return cur;
             }
-            cur.counter++;
-        } finally {
-            lockInternal.unlock();
+            // the lock has been released by the last holder, help removing it and try again
+            cache.remove(key, cur);
         }
-        cur.sem.lock();
-        return cur;
     }
 
     /**
-     * @param key
      * @param lock
      *            With this argument we make sure that lock has been called previously
      */
     public void unlock(KeyLock<?>.RefCounterLock lock) {
-        RefCounterLock cur = null;
-        lockInternal.lock();
-        try {
-            if (cache.containsKey(lock.key)) {
-                cur = cache.get(lock.key);
-                if (lock != cur) {
-                    throw new IllegalArgumentException("lock does not matches the stored lock");
-                }
-                cur.counter--;
-                cur.sem.unlock();
-                if (cur.counter == 0) { // last reference
-                    cache.remove(lock.key);
-                }
-            }
-        } finally {
-            lockInternal.unlock();
+        final RefCounterLock cur = cache.get(lock.key);
+        if (cur == null) {
+            return;
+        }
+        if (lock != cur) {
+            throw new IllegalArgumentException("lock does not matches the stored lock");
+        }
+        cur.sem.unlock();
+        // last reference, retire the lock unless someone acquired it meanwhile
+        if (cur.counter.decrementAndGet() == 0 && cur.counter.compareAndSet(0, -1)) {
+            cache.remove(cur.key, cur);
         }
     }
 
     public int cacheSize() {
-        lockInternal.lock();
-        try {
-            return cache.size();
-        } finally {
-            lockInternal.unlock();
-        }
+        return cache.size();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.tomp2p.peers.Number640;
+
+/**
+ * Evicts the least recently stored or read entry first.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class LRUEvictionPolicy implements EvictionPolicy {
+
+    // access ordered, the eldest entry is the least recently used
+    private final Map<EvictionKey, Boolean> order = new LinkedHashMap<EvictionKey, Boolean>(16, 0.75f, true);
+
+    @Override
+    public synchronized void put(final Number640 key) {
+        order.put(new EvictionKey(key), Boolean.TRUE);
+    }
+
+    @Override
+    public boolean admit(final Number640 key) {
+        // the new entry is the most recently used, it is never the victim
+        return true;
+    }
+
+    @Override
+    public synchronized void access(final Number640 key) {
+        order.get(new EvictionKey(key));
+    }
+
+    @Override
+    public synchronized void remove(final Number640 key) {
+        order.remove(new EvictionKey(key));
+    }
+
+    @Override
+    public synchronized Number640 victim() {
+        final Iterator<EvictionKey> iterator = order.keySet().iterator();
+        return iterator.hasNext() ? iterator.next().key() : null;
+    }
+
+    @Override
+    public synchronized void clear() {
+        order.clear();
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.tomp2p.peers.Number640;
+
+/**
+ * A hierarchical lock over the key levels of the storage: the whole storage, the location key, the location and
+ * domain key, the location, domain, and content key, and the full key. A range is locked on the deepest level that
+ * contains the whole range, all levels above are locked with an intention lock. Thus, a range read on one location
+ * key does not block writes to other location keys, while it still blocks writes into its own range.
+ * <p>
+ * The modes follow the classic multiple granularity locking: intention shared (IS), intention exclusive (IX), shared
+ * (S), and exclusive (X). A waiting S or X lock blocks new incompatible locks on the same level, so range reads are
+ * not starved by a steady stream of writes. Locks are not reentrant.
+ * <p>
+ * As every lock passes through the top levels, the intention modes are counted with atomic counters and only fall
+ * back to the monitor of a level if an S or X lock is held or waited for on it. The top level is never removed, so it
+ * has no reference counter either. Thus, point reads and writes on different keys share no monitor.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class RangeLock {
+
+    private enum Mode {
+        INTENTION_SHARED, INTENTION_EXCLUSIVE, SHARED, EXCLUSIVE
+    }
+
+    // the key of the top level, which covers the whole storage
+    private static final Object ROOT = new Object();
+
+    // the top level is shared by all locks, it is kept forever instead of being reference counted in the map
+    private final Node root = new Node(ROOT);
+
+    private final ConcurrentMap<Object, Node> nodes = new ConcurrentHashMap<Object, Node>();
+
+    /**
+     * A held lock, which needs to be released with {@link #unlock()}.
+     */
+    public final class Locked {
+        private final List<Node> path;
+        private final Mode mode;
+
+        private Locked(final List<Node> path, final Mode mode) {
+            this.path = path;
+            this.mode = mode;
+        }
+
+        public void unlock() {
+            for (int i = path.size() - 1; i >= 0; i--) {
+                final Node node = path.get(i);
+                node.release(i == path.size() - 1 ? mode : intention(mode));
+                release(node);
+            }
+        }
+    }
+
+    /**
+     * Locks the whole storage for reading.
+     *
+     * @return The held lock
+     */
+    public Locked read() {
+        return lock(new Object[] { ROOT }, Mode.SHARED);
+    }
+
+    public Locked read(final Number640 key) {
+        return read(key, key);
+    }
+
+    public Locked read(final Number640 from, final Number640 to) {
+        return lock(path(from, to), Mode.SHARED);
+    }
+
+    public Locked write(final Number640 key) {
+        return write(key, key);
+    }
+
+    public Locked write(final Number640 from, final Number640 to) {
+        return lock(path(from, to), Mode.EXCLUSIVE);
+    }
+
+    /**
+     * @return The number of levels that are currently locked or waited for
+     */
+    public int cacheSize() {
+        return nodes.size();
+    }
+
+    /**
+     * @return The keys of the levels from the top down to the deepest level that contains the whole range
+     */
+    private static Object[] path(final Number640 from, final Number640 to) {
+        if (!from.getLocationKey().equals(to.getLocationKey())) {
+            return new Object[] { ROOT };
+        } else if (!from.getDomainKey().equals(to.getDomainKey())) {
+            return new Object[] { ROOT, from.getLocationKey() };
+        } else if (!from.getContentKey().equals(to.getContentKey())) {
+            return new Object[] { ROOT, from.getLocationKey(), from.locationAndDomainKey() };
+        } else if (!from.getVersionKey().equals(to.getVersionKey())) {
+            return new Object[] { ROOT, from.getLocationKey(), from.locationAndDomainKey(),
+                    from.locationDomainAndContentKey() };
+        } else {
+            return new Object[] { ROOT, from.getLocationKey(), from.locationAndDomainKey(),
+                    from.locationDomainAndContentKey(), from };
+        }
+    }
+
+    private Locked lock(final Object[] keys, final Mode mode) {
+        final List<Node> path = new ArrayList<Node>(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            final Node node = acquire(keys[i]);
+            node.acquire(i == keys.length - 1 ? mode : intention(mode));
+            path.add(node);
+        }
+        return new Locked(path, mode);
+    }
+
+    private static Mode intention(final Mode mode) {
+        return mode == Mode.SHARED ? Mode.INTENTION_SHARED : Mode.INTENTION_EXCLUSIVE;
+    }
+
+    private Node acquire(final Object key) {
+        if (key == ROOT) {
+            return root;
+        }
+        while (true) {
+            Node node = nodes.get(key);
+            if (node == null) {
+                final Node created = new Node(key);
+                node = nodes.putIfAbsent(key, created);
+                if (node == null) {
+                    node = created;
+                }
+            }
+            if (node.acquireReference()) {
+                return node;
+            }
+            // the node has been retired by the last holder, help removing it and try again
+            nodes.remove(key, node);
+        }
+    }
+
+    private void release(final Node node) {
+        if (node == root) {
+            return;
+        }
+        if (node.references.decrementAndGet() == 0 && node.references.compareAndSet(0, -1)) {
+            nodes.remove(node.key, node);
+        }
+    }
+
+    /**
+     * The lock of one level. The reference counter works as in {@link KeyLock}. The intention modes are atomic
+     * counters, which are changed without the monitor as long as no S or X lock is held or waited for on this level.
+     * The S and X modes and the waiters are guarded by the monitor of the node.
+     */
+    private static final class Node {
+        private final Object key;
+        private final AtomicInteger references = new AtomicInteger(0);
+
+        private final AtomicInteger intentionShared = new AtomicInteger(0);
+        private final AtomicInteger intentionExclusive = new AtomicInteger(0);
+        private int shared = 0;
+        private int exclusive = 0;
+        private int waitingShared = 0;
+        private int waitingExclusive = 0;
+        // the held and waiting S and X locks, an intention lock needs the monitor if this is not zero
+        private volatile int blocking = 0;
+
+        private Node(final Object key) {
+            this.key = key;
+        }
+
+        private boolean acquireReference() {
+            while (true) {
+                final int current = references.get();
+                if (current < 0) {
+                    return false;
+                }
+                if (references.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        private void acquire(final Mode mode) {
+            if (mode == Mode.INTENTION_SHARED || mode == Mode.INTENTION_EXCLUSIVE) {
+                final AtomicInteger counter = counter(mode);
+                // count first, then check: an S or X lock announces itself first, then checks the counters, so at
+                // least one of the two sees the other
+                counter.incrementAndGet();
+                if (blocking == 0) {
+                    return;
+                }
+                counter.decrementAndGet();
+                synchronized (this) {
+                    // an S or X waiter may have seen our count
+                    notifyAll();
+                }
+            }
+            acquireBlocking(mode);
+        }
+
+        private synchronized void acquireBlocking(final Mode mode) {
+            boolean interrupted = false;
+            if (mode == Mode.SHARED) {
+                waitingShared++;
+                blocking++;
+            } else if (mode == Mode.EXCLUSIVE) {
+                waitingExclusive++;
+                blocking++;
+            }
+            try {
+                while (!grantable(mode)) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                if (mode == Mode.SHARED) {
+                    waitingShared--;
+                } else if (mode == Mode.EXCLUSIVE) {
+                    waitingExclusive--;
+                }
+            }
+            switch (mode) {
+            case INTENTION_SHARED:
+            case INTENTION_EXCLUSIVE:
+                counter(mode).incrementAndGet();
+                break;
+            case SHARED:
+                // the waiter has become a holder, blocking stays the same
+                shared++;
+                break;
+            default:
+                exclusive++;
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void release(final Mode mode) {
+            if (mode == Mode.INTENTION_SHARED || mode == Mode.INTENTION_EXCLUSIVE) {
+                counter(mode).decrementAndGet();
+                // only S and X locks wait for intention locks to go away
+                if (blocking != 0) {
+                    synchronized (this) {
+                        notifyAll();
+                    }
+                }
+                return;
+            }
+            synchronized (this) {
+                if (mode == Mode.SHARED) {
+                    shared--;
+                } else {
+                    exclusive--;
+                }
+                blocking--;
+                notifyAll();
+            }
+        }
+
+        private AtomicInteger counter(final Mode mode) {
+            return mode == Mode.INTENTION_SHARED ? intentionShared : intentionExclusive;
+        }
+
+        private boolean grantable(final Mode mode) {
+            switch (mode) {
+            case INTENTION_SHARED:
+                return exclusive == 0 && waitingExclusive == 0;
+            case INTENTION_EXCLUSIVE:
+                return shared == 0 && exclusive == 0 && waitingShared == 0 && waitingExclusive == 0;
+            case SHARED:
+                return intentionExclusive.get() == 0 && exclusive == 0 && waitingExclusive == 0;
+            default:
+                return intentionShared.get() == 0 && intentionExclusive.get() == 0 && shared == 0 && exclusive == 0;
+            }
+        }
+    }
+}
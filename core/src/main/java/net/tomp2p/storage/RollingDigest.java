@@ -0,0 +1,172 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number320;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.rpc.DigestInfo;
+
+/**
+ * Keeps the digests of all entries per location key and per location and domain key up to date. Since the digest of
+ * {@link DigestInfo} is the XOR of the keys and of the basedOn values, an entry is added and removed by XORing it, and
+ * the digest of a location or domain is available in constant time without reading the entries.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class RollingDigest {
+
+    private final Map<Number160, Digest> locations = new HashMap<Number160, Digest>();
+    private final Map<Number320, Digest> domains = new HashMap<Number320, Digest>();
+
+    /**
+     * Adds an entry that was not stored before.
+     * 
+     * @param key
+     *            The key of the entry
+     * @param basedOn
+     *            The basedOn value of the entry, or null
+     */
+    public synchronized void add(final Number640 key, final Number160 basedOn) {
+        final Number160 keyHash = keyHash(key);
+        final Number160 content = basedOn == null ? Number160.ZERO : basedOn;
+        final Digest location = digest(locations, key.getLocationKey());
+        location.xor(keyHash, content);
+        location.size++;
+        final Digest domain = digest(domains, key.locationAndDomainKey());
+        domain.xor(keyHash, content);
+        domain.size++;
+    }
+
+    /**
+     * Replaces the basedOn value of an entry that is stored already.
+     * 
+     * @param key
+     *            The key of the entry
+     * @param oldBasedOn
+     *            The basedOn value of the entry that is replaced, or null
+     * @param newBasedOn
+     *            The basedOn value of the new entry, or null
+     */
+    public synchronized void replace(final Number640 key, final Number160 oldBasedOn, final Number160 newBasedOn) {
+        final Number160 oldContent = oldBasedOn == null ? Number160.ZERO : oldBasedOn;
+        final Number160 newContent = newBasedOn == null ? Number160.ZERO : newBasedOn;
+        if (oldContent.equals(newContent)) {
+            return;
+        }
+        final Number160 change = oldContent.xor(newContent);
+        digest(locations, key.getLocationKey()).xor(Number160.ZERO, change);
+        digest(domains, key.locationAndDomainKey()).xor(Number160.ZERO, change);
+    }
+
+    /**
+     * Removes a stored entry.
+     * 
+     * @param key
+     *            The key of the entry
+     * @param basedOn
+     *            The basedOn value of the entry, or null
+     */
+    public synchronized void remove(final Number640 key, final Number160 basedOn) {
+        final Number160 keyHash = keyHash(key);
+        final Number160 content = basedOn == null ? Number160.ZERO : basedOn;
+        remove(locations, key.getLocationKey(), keyHash, content);
+        remove(domains, key.locationAndDomainKey(), keyHash, content);
+    }
+
+    /**
+     * @param locationKey
+     *            The location key
+     * @return The digest of all entries with this location key
+     */
+    public synchronized DigestInfo digest(final Number160 locationKey) {
+        return digestInfo(locations.get(locationKey));
+    }
+
+    /**
+     * @param locationAndDomainKey
+     *            The location and domain key
+     * @return The digest of all entries with this location and domain key
+     */
+    public synchronized DigestInfo digest(final Number320 locationAndDomainKey) {
+        return digestInfo(domains.get(locationAndDomainKey));
+    }
+
+    /**
+     * @param locationKey
+     *            The location key
+     * @return The number of entries with this location key
+     */
+    public synchronized int size(final Number160 locationKey) {
+        final Digest digest = locations.get(locationKey);
+        return digest == null ? 0 : digest.size;
+    }
+
+    public synchronized void clear() {
+        locations.clear();
+        domains.clear();
+    }
+
+    private static <K> Digest digest(final Map<K, Digest> map, final K key) {
+        Digest digest = map.get(key);
+        if (digest == null) {
+            digest = new Digest();
+            map.put(key, digest);
+        }
+        return digest;
+    }
+
+    private static <K> void remove(final Map<K, Digest> map, final K key, final Number160 keyHash,
+            final Number160 content) {
+        final Digest digest = map.get(key);
+        if (digest == null) {
+            return;
+        }
+        digest.xor(keyHash, content);
+        digest.size--;
+        if (digest.size <= 0) {
+            map.remove(key);
+        }
+    }
+
+    private static DigestInfo digestInfo(final Digest digest) {
+        if (digest == null) {
+            return new DigestInfo(Number160.ZERO, Number160.ZERO, 0);
+        }
+        return new DigestInfo(digest.keyDigest, digest.contentDigest, digest.size);
+    }
+
+    private static Number160 keyHash(final Number640 key) {
+        return key.getLocationKey().xor(key.getDomainKey()).xor(key.getContentKey()).xor(key.getVersionKey());
+    }
+
+    private static final class Digest {
+        private Number160 keyDigest = Number160.ZERO;
+        private Number160 contentDigest = Number160.ZERO;
+        private int size = 0;
+
+        // XOR is its own inverse, so adding and removing an entry is the same operation
+        private void xor(final Number160 keyHash, final Number160 content) {
+            keyDigest = keyDigest.xor(keyHash);
+            contentDigest = contentDigest.xor(content);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import net.tomp2p.peers.Number640;
+import net.tomp2p.peers.PackedNumber640;
+
+/**
+ * The timeout index that keeps the expiration times sorted in a skip list. Exact, but every distinct expiration time
+ * costs a set in the skip list. For many entries with a short TTL, use {@link TimingWheel}.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class SortedTimeoutIndex implements TimeoutIndex {
+
+    final private Map<PackedNumber640, Long> timeoutMap = new ConcurrentHashMap<PackedNumber640, Long>();
+    final private ConcurrentSkipListMap<Long, Set<PackedNumber640>> timeoutMapRev = new ConcurrentSkipListMap<Long, Set<PackedNumber640>>();
+
+    @Override
+    public void add(Number640 key, long expiration) {
+        PackedNumber640 packed = new PackedNumber640(key);
+        Long oldExpiration = timeoutMap.put(packed, expiration);
+        Set<PackedNumber640> tmp = putIfAbsent2(expiration,
+                Collections.newSetFromMap(new ConcurrentHashMap<PackedNumber640, Boolean>()));
+        tmp.add(packed);
+        if (oldExpiration == null || oldExpiration == expiration) {
+            return;
+        }
+        removeRevTimeout(packed, oldExpiration);
+    }
+
+    @Override
+    public void remove(Number640 key) {
+        PackedNumber640 packed = new PackedNumber640(key);
+        Long expiration = timeoutMap.remove(packed);
+        if (expiration == null) {
+            return;
+        }
+        removeRevTimeout(packed, expiration);
+    }
+
+    private void removeRevTimeout(PackedNumber640 key, Long expiration) {
+        Set<PackedNumber640> tmp = timeoutMapRev.get(expiration);
+        if (tmp != null) {
+            tmp.remove(key);
+            if (tmp.isEmpty()) {
+                timeoutMapRev.remove(expiration);
+            }
+        }
+    }
+
+    @Override
+    public Collection<Number640> expired(long to, int limit) {
+        Collection<Number640> toRemove = new ArrayList<Number640>();
+        for (Set<PackedNumber640> set : timeoutMapRev.subMap(0L, to).values()) {
+            for (PackedNumber640 key : set) {
+                if (limit >= 0 && toRemove.size() >= limit) {
+                    return toRemove;
+                }
+                toRemove.add(key.toNumber640());
+            }
+        }
+        return toRemove;
+    }
+
+    @Override
+    public long expiration(Number640 key) {
+        Long expiration = timeoutMap.get(new PackedNumber640(key));
+        return expiration == null ? Long.MAX_VALUE : expiration;
+    }
+
+    private Set<PackedNumber640> putIfAbsent2(long expiration, Set<PackedNumber640> hashSet) {
+        Set<PackedNumber640> timeouts = timeoutMapRev.putIfAbsent(expiration, hashSet);
+        return timeouts == null ? hashSet : timeouts;
+    }
+
+    @Override
+    public void clear() {
+        timeoutMap.clear();
+        timeoutMapRev.clear();
+    }
+}
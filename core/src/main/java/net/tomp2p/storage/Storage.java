@@ -18,6 +18,8 @@ package net.tomp2p.storage;
 
 import java.security.PublicKey;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.NavigableMap;
 
 import net.tomp2p.peers.Number320;
@@ -29,9 +31,7 @@ import net.tomp2p.peers.Number640;
  * stores the values which are present in the DHT. If you plan to do transactions (put/get), make sure you do the
  * locking in order to not interfere with other threads that use this map. Although the storage is threadsafe, there may
  * be concurrency issues with respect to transactions (e.g., do a get before a put). Please use
- * {@link StorageLayer#getLockStorage()} for full locking, and {@link StorageLayer#getLockNumber160()},
- * {@link StorageLayer#getLockNumber320()}, {@link StorageLayer#getLockNumber480()},
- * {@link StorageLayer#getLockNumber640()} for fine grained locking.
+ * {@link StorageLayer#getLock()} to lock a single key or a range of keys.
  * 
  * 
  * @author Thomas Bocek
@@ -55,15 +55,71 @@ public interface Storage extends ReplicationStorage {
 
     public abstract NavigableMap<Number640, Data> map();
 
+    /**
+     * Streams the entries of a range in key order without copying the range. If the storage is concurrent, the
+     * iterator is weakly consistent, otherwise the caller needs to hold the lock of the range while iterating.
+     * 
+     * @param from
+     *            The first key, inclusive
+     * @param to
+     *            The last key, inclusive
+     * @param ascending
+     *            True to start with the lowest key
+     * @return The entries of the range, the iterator does not support remove
+     */
+    public abstract Iterator<Map.Entry<Number640, Data>> iterator(Number640 from, Number640 to, boolean ascending);
+
+    /**
+     * Stores many entries in one call, e.g., with a single write to disk.
+     * 
+     * @param values
+     *            The entries to store
+     * @return The keys of the entries that could not be stored, empty if all entries have been stored
+     */
+    public abstract Collection<Number640> putAll(Map<Number640, Data> values);
+
+    /**
+     * Removes many entries in one call.
+     * 
+     * @param keys
+     *            The keys to remove
+     * @return The entries that have been removed
+     */
+    public abstract NavigableMap<Number640, Data> removeAll(Collection<Number640> keys);
+
     public abstract void close();
 
+    /**
+     * @return True if a single {@link #get(Number640)} or {@link #contains(Number640)} is atomic and can run
+     *         concurrently with modifications. In that case, {@link StorageLayer} reads without taking a key lock.
+     */
+    public abstract boolean isConcurrent();
+
     // Maintenance
     public abstract void addTimeout(Number640 key, long expiration);
 
     public abstract void removeTimeout(Number640 key);
 
+    /**
+     * @param expirations
+     *            The expiration times in milliseconds of the keys, added in one pass over the timeout index
+     */
+    public abstract void addTimeouts(Map<Number640, Long> expirations);
+
+    public abstract void removeTimeouts(Collection<Number640> keys);
+
     public abstract Collection<Number640> subMapTimeout(long to);
 
+    /**
+     * @param to
+     *            The time in milliseconds, exclusive
+     * @param limit
+     *            The maximum number of keys to return, or -1 for all
+     * @return The keys that expire before the given time, at most limit keys, so that the expiry can be processed in
+     *         slices
+     */
+    public abstract Collection<Number640> subMapTimeout(long to, int limit);
+
     // Domain / entry protection
     public abstract boolean protectDomain(Number320 key, PublicKey publicKey);
 
@@ -16,14 +16,25 @@
 package net.tomp2p.storage;
 
 import java.security.PublicKey;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
 import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number320;
@@ -64,22 +75,194 @@ public class StorageLayer {
     // anyone
     final private Collection<Number160> removedDomains = new HashSet<Number160>();
 
-    final private KeyLock<Storage> dataLock = new KeyLock<Storage>();
+    // The number of expired entries that are removed at once
+    public static final int EXPIRY_SLICE = 1000;
 
-    final private KeyLock<Number160> dataLock160 = new KeyLock<Number160>();
+    // The number of entries a cursor reads at once
+    public static final int SCAN_PAGE = 1000;
 
-    final private KeyLock<Number320> dataLock320 = new KeyLock<Number320>();
+    final private RangeLock rangeLock = new RangeLock();
 
-    final private KeyLock<Number480> dataLock480 = new KeyLock<Number480>();
+    final private Storage backend;
 
-    final private KeyLock<Number640> dataLock640 = new KeyLock<Number640>();
+    // Capacity, no limit if there is no eviction policy
+    private volatile EvictionPolicy evictionPolicy = null;
+    private volatile int maxEntries = -1;
+    private volatile long maxBytes = -1;
+    final private AtomicInteger entries = new AtomicInteger();
+    final private AtomicLong bytes = new AtomicLong();
+    final private List<EvictionListener> evictionListeners = new CopyOnWriteArrayList<EvictionListener>();
 
-    final private Storage backend;
+    // Deduplication of the payloads, disabled if null
+    private volatile DataDeduplication deduplication = null;
+
+    // Index of the version chains, disabled if null
+    private volatile VersionIndex versionIndex = null;
+
+    // Digests per location and domain, disabled if null
+    private volatile RollingDigest rollingDigest = null;
 
     public StorageLayer(Storage backend) {
         this.backend = backend;
     }
 
+    /**
+     * Limits the size of the storage. If a put exceeds one of the limits, entries are evicted according to the policy
+     * until the storage is within its limits again. The entries already stored are counted and handed to the policy.
+     * 
+     * @param maxEntries
+     *            The maximum number of entries, -1 for no limit
+     * @param maxBytes
+     *            The maximum sum of {@link Data#length()}, -1 for no limit
+     * @param evictionPolicy
+     *            The policy that selects the entries to evict, null to disable the limits
+     */
+    public void setCapacity(int maxEntries, long maxBytes, EvictionPolicy evictionPolicy) {
+        RangeLock.Locked lock = rangeLock.write(minKey(Number160.ZERO), maxKey(Number160.MAX_VALUE));
+        try {
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+            this.evictionPolicy = evictionPolicy;
+            int count = 0;
+            long sum = 0;
+            if (evictionPolicy != null) {
+                evictionPolicy.clear();
+                for (Map.Entry<Number640, Data> entry : all()) {
+                    evictionPolicy.put(entry.getKey());
+                    count++;
+                    sum += entry.getValue().length();
+                }
+            }
+            entries.set(count);
+            bytes.set(sum);
+        } finally {
+            lock.unlock();
+        }
+        evict();
+    }
+
+    /**
+     * Shares the payloads of entries with the same content. The entries already stored are deduplicated as well.
+     * 
+     * @param deduplication
+     *            The deduplication that keeps track of the shared payloads, null to disable the deduplication. Already
+     *            shared payloads stay shared
+     */
+    public void setDeduplication(DataDeduplication deduplication) {
+        RangeLock.Locked lock = rangeLock.write(minKey(Number160.ZERO), maxKey(Number160.MAX_VALUE));
+        try {
+            this.deduplication = deduplication;
+            if (deduplication != null) {
+                deduplication.clear();
+                for (Map.Entry<Number640, Data> entry : all()) {
+                    Data shared = deduplication.share(entry.getValue());
+                    if (shared != entry.getValue()) {
+                        backend.put(entry.getKey(), shared);
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The deduplication with the number of shared payloads and saved bytes, or null if disabled
+     */
+    public DataDeduplication getDeduplication() {
+        return deduplication;
+    }
+
+    /**
+     * Maintains an index of the version chains, so that the latest versions are found without reading all versions.
+     * The entries already stored are indexed as well.
+     * 
+     * @param versionIndex
+     *            The index, null to disable it
+     */
+    public void setVersionIndex(VersionIndex versionIndex) {
+        RangeLock.Locked lock = rangeLock.write(minKey(Number160.ZERO), maxKey(Number160.MAX_VALUE));
+        try {
+            this.versionIndex = versionIndex;
+            if (versionIndex != null) {
+                versionIndex.clear();
+                for (Map.Entry<Number640, Data> entry : all()) {
+                    versionIndex.put(entry.getKey(), entry.getValue().basedOn());
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The index of the version chains, or null if disabled
+     */
+    public VersionIndex getVersionIndex() {
+        return versionIndex;
+    }
+
+    /**
+     * Keeps the digests per location key and per location and domain key up to date, so that
+     * {@link #digest(Number160)} and {@link #digest(Number320)} do not need to read the entries. The entries already
+     * stored are added as well.
+     * 
+     * @param rollingDigest
+     *            The digests, null to disable them
+     */
+    public void setRollingDigest(RollingDigest rollingDigest) {
+        RangeLock.Locked lock = rangeLock.write(minKey(Number160.ZERO), maxKey(Number160.MAX_VALUE));
+        try {
+            this.rollingDigest = rollingDigest;
+            if (rollingDigest != null) {
+                rollingDigest.clear();
+                for (Map.Entry<Number640, Data> entry : all()) {
+                    rollingDigest.add(entry.getKey(), entry.getValue().basedOn());
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public RollingDigest getRollingDigest() {
+        return rollingDigest;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    /**
+     * @return The number of entries, only counted if a capacity is set
+     */
+    public int getEntries() {
+        return entries.get();
+    }
+
+    /**
+     * @return The sum of {@link Data#length()} of all entries, only counted if a capacity is set
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public void addEvictionListener(EvictionListener evictionListener) {
+        evictionListeners.add(evictionListener);
+    }
+
+    public void removeEvictionListener(EvictionListener evictionListener) {
+        evictionListeners.remove(evictionListener);
+    }
+
     public void setProtection(ProtectionEnable protectionDomainEnable, ProtectionMode protectionDomainMode,
             ProtectionEnable protectionEntryEnable, ProtectionMode protectionEntryMode) {
         setProtectionDomainEnable(protectionDomainEnable);
@@ -131,7 +314,7 @@ public class StorageLayer {
     public Enum<?> put(final Number640 key, Data newData, PublicKey publicKey, boolean putIfAbsent,
             boolean domainProtection) {
         boolean retVal = false;
-        KeyLock<Number640>.RefCounterLock lock = dataLock640.lock(key);
+        RangeLock.Locked lock = rangeLock.write(key);
         try {
             if (!securityDomainCheck(key.locationAndDomainKey(), publicKey, domainProtection)) {
                 return PutStatus.FAILED_SECURITY;
@@ -144,21 +327,203 @@ public class StorageLayer {
             if (putIfAbsent && contains) {
                 return PutStatus.FAILED_NOT_ABSENT;
             }
+            // a received payload may be compressed, the storage keeps only the uncompressed copy
+            newData = newData.uncompressed();
+            EvictionPolicy evictionPolicy = this.evictionPolicy;
+            if (!admit(key, newData, contains, evictionPolicy)) {
+                return PutStatus.FAILED;
+            }
+            DataDeduplication deduplication = this.deduplication;
+            RollingDigest rollingDigest = this.rollingDigest;
+            boolean readOld = contains && (evictionPolicy != null || deduplication != null || rollingDigest != null);
+            Data oldData = readOld ? backend.get(key) : null;
+            if (deduplication != null) {
+                newData = deduplication.share(newData);
+            }
             retVal = backend.put(key, newData);
+            if (deduplication != null) {
+                // release the replaced payload, or the new one if it has not been stored
+                Data released = retVal ? oldData : newData;
+                if (released != null) {
+                    deduplication.release(released);
+                }
+            }
             if (retVal) {
                 long expiration = newData.expirationMillis();
                 // handle timeout
                 backend.addTimeout(key, expiration);
+                stored(key, oldData, newData);
             }
         } finally {
-            dataLock640.unlock(lock);
+            lock.unlock();
+        }
+        if (retVal) {
+            evict();
         }
         return retVal ? PutStatus.OK : PutStatus.FAILED;
     }
 
+    /**
+     * Stores many entries at once, e.g., all entries of a put request. The entries are grouped by location key and
+     * each location key is locked once. Within a location key, the domain is checked once per domain key, and the
+     * entries and their timeouts are passed to the backend in one call each.
+     * 
+     * @param values
+     *            The entries to store
+     * @param publicKey
+     *            The public key of the requester
+     * @param putIfAbsent
+     *            Do not overwrite existing entries
+     * @param domainProtection
+     *            Protect the domains with the public key
+     * @return The {@link PutStatus} of each entry
+     */
+    public Map<Number640, Enum<?>> putAll(Map<Number640, Data> values, PublicKey publicKey, boolean putIfAbsent,
+            boolean domainProtection) {
+        Map<Number640, Enum<?>> result = new TreeMap<Number640, Enum<?>>();
+        boolean stored = false;
+        for (NavigableMap<Number640, Data> group : byLocation(values).values()) {
+            Number160 locationKey = group.firstKey().getLocationKey();
+            RangeLock.Locked lock = rangeLock.write(minKey(locationKey), maxKey(locationKey));
+            try {
+                stored |= putAll(group, publicKey, putIfAbsent, domainProtection, result);
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (stored) {
+            evict();
+        }
+        return result;
+    }
+
+    private boolean putAll(NavigableMap<Number640, Data> group, PublicKey publicKey, boolean putIfAbsent,
+            boolean domainProtection, Map<Number640, Enum<?>> result) {
+        Map<Number320, Boolean> domainChecks = new HashMap<Number320, Boolean>();
+        NavigableMap<Number640, Data> toStore = new TreeMap<Number640, Data>();
+        Map<Number640, Data> oldValues = new TreeMap<Number640, Data>();
+        DataDeduplication deduplication = this.deduplication;
+        EvictionPolicy evictionPolicy = this.evictionPolicy;
+        boolean readOld = evictionPolicy != null || deduplication != null || rollingDigest != null;
+        for (Map.Entry<Number640, Data> entry : group.entrySet()) {
+            Number640 key = entry.getKey();
+            // a received payload may be compressed, the storage keeps only the uncompressed copy
+            Data newData = entry.getValue().uncompressed();
+            Boolean domainCheck = domainChecks.get(key.locationAndDomainKey());
+            if (domainCheck == null) {
+                domainCheck = securityDomainCheck(key.locationAndDomainKey(), publicKey, domainProtection);
+                domainChecks.put(key.locationAndDomainKey(), domainCheck);
+            }
+            if (!domainCheck
+                    || !securityEntryCheck(key.locationDomainAndContentKey(), publicKey, newData.publicKey(),
+                            newData.isProtectedEntry())) {
+                result.put(key, PutStatus.FAILED_SECURITY);
+                continue;
+            }
+            boolean contains = backend.contains(key);
+            if (putIfAbsent && contains) {
+                result.put(key, PutStatus.FAILED_NOT_ABSENT);
+                continue;
+            }
+            if (!admit(key, newData, contains, evictionPolicy)) {
+                result.put(key, PutStatus.FAILED);
+                continue;
+            }
+            Data oldData = readOld && contains ? backend.get(key) : null;
+            if (oldData != null) {
+                oldValues.put(key, oldData);
+            }
+            toStore.put(key, deduplication != null ? deduplication.share(newData) : newData);
+        }
+        if (toStore.isEmpty()) {
+            return false;
+        }
+        // the backend may store only a part, sorted by the full key as Number640.equals ignores the version key
+        NavigableSet<Number640> failed = new TreeSet<Number640>(backend.putAll(toStore));
+        Map<Number640, Long> expirations = new TreeMap<Number640, Long>();
+        for (Map.Entry<Number640, Data> entry : toStore.entrySet()) {
+            Number640 key = entry.getKey();
+            Data newData = entry.getValue();
+            Data oldData = oldValues.get(key);
+            boolean stored = !failed.contains(key);
+            if (deduplication != null) {
+                Data released = stored ? oldData : newData;
+                if (released != null) {
+                    deduplication.release(released);
+                }
+            }
+            if (stored) {
+                expirations.put(key, newData.expirationMillis());
+                stored(key, oldData, newData);
+            }
+            result.put(key, stored ? PutStatus.OK : PutStatus.FAILED);
+        }
+        if (!expirations.isEmpty()) {
+            backend.addTimeouts(expirations);
+        }
+        return !expirations.isEmpty();
+    }
+
+    /**
+     * Asks the eviction policy if a new key may be stored into a full storage. Needs to be called while holding the
+     * lock of the key.
+     * 
+     * @return False if the put has to fail, as the new entry would be evicted right away
+     */
+    private boolean admit(Number640 key, Data newData, boolean contains, EvictionPolicy evictionPolicy) {
+        if (evictionPolicy == null || contains) {
+            return true;
+        }
+        boolean full = (maxEntries >= 0 && entries.get() >= maxEntries)
+                || (maxBytes >= 0 && bytes.get() + newData.length() > maxBytes);
+        return !full || evictionPolicy.admit(key);
+    }
+
+    /**
+     * Updates the indexes and the capacity after an entry has been stored. Needs to be called while holding the lock
+     * of the key.
+     */
+    private void stored(Number640 key, Data oldData, Data newData) {
+        VersionIndex versionIndex = this.versionIndex;
+        if (versionIndex != null) {
+            versionIndex.put(key, newData.basedOn());
+        }
+        RollingDigest rollingDigest = this.rollingDigest;
+        if (rollingDigest != null) {
+            if (oldData == null) {
+                rollingDigest.add(key, newData.basedOn());
+            } else {
+                rollingDigest.replace(key, oldData.basedOn(), newData.basedOn());
+            }
+        }
+        EvictionPolicy evictionPolicy = this.evictionPolicy;
+        if (evictionPolicy != null) {
+            if (oldData == null) {
+                entries.incrementAndGet();
+                bytes.addAndGet(newData.length());
+            } else {
+                bytes.addAndGet(newData.length() - oldData.length());
+            }
+            evictionPolicy.put(key);
+        }
+    }
+
+    private static NavigableMap<Number160, NavigableMap<Number640, Data>> byLocation(Map<Number640, Data> values) {
+        NavigableMap<Number160, NavigableMap<Number640, Data>> retVal =
+                new TreeMap<Number160, NavigableMap<Number640, Data>>();
+        for (Map.Entry<Number640, Data> entry : values.entrySet()) {
+            NavigableMap<Number640, Data> group = retVal.get(entry.getKey().getLocationKey());
+            if (group == null) {
+                group = new TreeMap<Number640, Data>();
+                retVal.put(entry.getKey().getLocationKey(), group);
+            }
+            group.put(entry.getKey(), entry.getValue());
+        }
+        return retVal;
+    }
+
     public Data remove(Number640 key, PublicKey publicKey) {
-        // Number480 lockKey = new Number480(locationKey, domainKey, contentKey);
-        KeyLock<Number640>.RefCounterLock lock = dataLock640.lock(key);
+        RangeLock.Locked lock = rangeLock.write(key);
         try {
             if (!canClaimDomain(key.locationAndDomainKey(), publicKey)) {
                 return null;
@@ -170,58 +535,226 @@ public class StorageLayer {
             if (data.publicKey() == null || data.publicKey().equals(publicKey)) {
                 backend.removeTimeout(key);
                 backend.removeResponsibility(key.getLocationKey());
-                return backend.remove(key);
+                Data removed = backend.remove(key);
+                removed(key, removed);
+                return removed;
             }
         } finally {
-            dataLock640.unlock(lock);
+            lock.unlock();
         }
         return null;
     }
 
+    /**
+     * Removes many entries at once. The keys are grouped by location key and each location key is locked once. The
+     * entries and their timeouts are removed from the backend in one call each.
+     * 
+     * @param keys
+     *            The keys to remove
+     * @param publicKey
+     *            The public key of the requester
+     * @return The entries that have been removed
+     */
+    public NavigableMap<Number640, Data> removeAll(Collection<Number640> keys, PublicKey publicKey) {
+        NavigableMap<Number160, Collection<Number640>> byLocation = new TreeMap<Number160, Collection<Number640>>();
+        for (Number640 key : keys) {
+            Collection<Number640> group = byLocation.get(key.getLocationKey());
+            if (group == null) {
+                group = new TreeSet<Number640>();
+                byLocation.put(key.getLocationKey(), group);
+            }
+            group.add(key);
+        }
+        NavigableMap<Number640, Data> result = new TreeMap<Number640, Data>();
+        for (Map.Entry<Number160, Collection<Number640>> entry : byLocation.entrySet()) {
+            Number160 locationKey = entry.getKey();
+            RangeLock.Locked lock = rangeLock.write(minKey(locationKey), maxKey(locationKey));
+            try {
+                Map<Number320, Boolean> domainChecks = new HashMap<Number320, Boolean>();
+                Collection<Number640> toRemove = new ArrayList<Number640>();
+                for (Number640 key : entry.getValue()) {
+                    Boolean domainCheck = domainChecks.get(key.locationAndDomainKey());
+                    if (domainCheck == null) {
+                        domainCheck = canClaimDomain(key.locationAndDomainKey(), publicKey);
+                        domainChecks.put(key.locationAndDomainKey(), domainCheck);
+                    }
+                    if (!domainCheck) {
+                        continue;
+                    }
+                    Data data = getInternal(key);
+                    if (data != null && (data.publicKey() == null || data.publicKey().equals(publicKey))) {
+                        toRemove.add(key);
+                    }
+                }
+                if (toRemove.isEmpty()) {
+                    continue;
+                }
+                backend.removeTimeouts(toRemove);
+                backend.removeResponsibility(locationKey);
+                NavigableMap<Number640, Data> removed = backend.removeAll(toRemove);
+                for (Map.Entry<Number640, Data> removedEntry : removed.entrySet()) {
+                    removed(removedEntry.getKey(), removedEntry.getValue());
+                }
+                result.putAll(removed);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return result;
+    }
+
     public Data get(Number640 key) {
-        KeyLock<Number640>.RefCounterLock lock = dataLock640.lock(key);
+        if (backend.isConcurrent()) {
+            return getInternal(key);
+        }
+        RangeLock.Locked lock = rangeLock.read(key);
         try {
             return getInternal(key);
         } finally {
-            dataLock640.unlock(lock);
+            lock.unlock();
         }
     }
     
     private Data getInternal(Number640 key) {
-        return backend.get(key);
+        Data data = backend.get(key);
+        EvictionPolicy evictionPolicy = this.evictionPolicy;
+        if (data != null && evictionPolicy != null) {
+            evictionPolicy.access(key);
+        }
+        return data;
     }
 
     public NavigableMap<Number640, Data> get(Number640 from, Number640 to, int limit, boolean ascending) {
-        KeyLock<?>.RefCounterLock lock = findAndLock(from, to);
+        return scan(from, to, null, limit, ascending);
+    }
+
+    /**
+     * Returns a page of a range. Only the entries of the page are read, the rest of the range is not copied. To
+     * continue with the next page, pass the last key of this page as the resume key, which is the last key if
+     * ascending, or the first key if descending.
+     * 
+     * @param from
+     *            The first key, inclusive
+     * @param to
+     *            The last key, inclusive
+     * @param resumeKey
+     *            The last key of the previous page, exclusive, or null to start at the beginning of the range
+     * @param limit
+     *            The maximum number of entries, -1 for no limit
+     * @param ascending
+     *            True to start with the lowest key
+     * @return The entries after the resume key, fewer than limit entries if the end of the range has been reached
+     */
+    public NavigableMap<Number640, Data> scan(Number640 from, Number640 to, Number640 resumeKey, int limit,
+            boolean ascending) {
+        Number640 low = resumeKey != null && ascending ? resumeKey : from;
+        Number640 high = resumeKey != null && !ascending ? resumeKey : to;
+        NavigableMap<Number640, Data> result = new TreeMap<Number640, Data>();
+        RangeLock.Locked lock = rangeLock.read(from, to);
         try {
-            return backend.subMap(from, to, limit, ascending);
+            Iterator<Map.Entry<Number640, Data>> iterator = backend.iterator(low, high, ascending);
+            while (iterator.hasNext() && (limit < 0 || result.size() < limit)) {
+                Map.Entry<Number640, Data> entry = iterator.next();
+                // compareTo, as equals ignores the version key
+                if (resumeKey == null || entry.getKey().compareTo(resumeKey) != 0) {
+                    result.put(entry.getKey(), entry.getValue());
+                }
+            }
+            return result;
         } finally {
             lock.unlock();
         }
     }
 
-    public NavigableMap<Number640, Data> get() {
-        KeyLock<Storage>.RefCounterLock lock = dataLock.lock(backend);
+    /**
+     * Streams a range in pages of {@link #SCAN_PAGE} entries, see
+     * {@link #scan(Number640, Number640, Number640, int, boolean)}. Each page is read while holding the lock of the
+     * range, so entries that are modified between two pages may or may not be returned.
+     * 
+     * @param from
+     *            The first key, inclusive
+     * @param to
+     *            The last key, inclusive
+     * @param ascending
+     *            True to start with the lowest key
+     * @return The entries of the range in key order
+     */
+    public Iterator<Map.Entry<Number640, Data>> cursor(Number640 from, Number640 to, boolean ascending) {
+        return new Cursor(from, to, ascending);
+    }
+
+    /**
+     * Returns the latest versions within a range, which are the entries no other stored entry is based on.
+     * 
+     * @param from
+     *            The first key, inclusive
+     * @param to
+     *            The last key, inclusive
+     * @param limit
+     *            The maximum number of entries, -1 for no limit
+     * @param ascending
+     *            True to return the lowest keys if the limit is reached
+     * @return The latest versions within the range
+     */
+    public NavigableMap<Number640, Data> getLatest(Number640 from, Number640 to, int limit, boolean ascending) {
+        RangeLock.Locked lock = rangeLock.read(firstVersion(from), lastVersion(to));
         try {
-            return backend.map();
+            NavigableMap<Number640, Data> result = new TreeMap<Number640, Data>();
+            for (Number640 key : latest(from, to, limit, ascending)) {
+                Data data = backend.get(key);
+                if (data != null) {
+                    result.put(key, data);
+                }
+            }
+            return result;
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * Copies all entries onto the heap. The entries are read page by page with {@link #cursor()}, so the storage is
+     * not locked for the whole copy and entries that are modified meanwhile may or may not be returned.
+     * 
+     * @return All entries
+     * @deprecated Use {@link #cursor()}, which does not keep the whole storage on the heap
+     */
+    @Deprecated
+    public NavigableMap<Number640, Data> get() {
+        NavigableMap<Number640, Data> result = new TreeMap<Number640, Data>();
+        Iterator<Map.Entry<Number640, Data>> iterator = cursor();
+        while (iterator.hasNext()) {
+            Map.Entry<Number640, Data> entry = iterator.next();
+            result.put(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Streams all entries in pages, see {@link #cursor(Number640, Number640, boolean)}.
+     * 
+     * @return All entries in key order
+     */
+    public Iterator<Map.Entry<Number640, Data>> cursor() {
+        return cursor(minKey(Number160.ZERO), maxKey(Number160.MAX_VALUE), true);
+    }
+
     public boolean contains(Number640 key) {
-        KeyLock<Number640>.RefCounterLock lock = dataLock640.lock(key);
+        if (backend.isConcurrent()) {
+            return backend.contains(key);
+        }
+        RangeLock.Locked lock = rangeLock.read(key);
         try {
             return backend.contains(key);
         } finally {
-            dataLock640.unlock(lock);
+            lock.unlock();
         }
     }
 
     public Map<Number640, Data> get(Number640 from, Number640 to,
             SimpleBloomFilter<Number160> keyBloomFilter, SimpleBloomFilter<Number160> contentBloomFilter,
             int limit, boolean ascending) {
-        KeyLock<?>.RefCounterLock lock = findAndLock(from, to);
+        RangeLock.Locked lock = rangeLock.read(from, to);
         try {
             NavigableMap<Number640, Data> tmp = backend.subMap(from, to, limit, ascending);
             Iterator<Map.Entry<Number640, Data>> iterator = tmp.entrySet().iterator();
@@ -241,31 +774,8 @@ public class StorageLayer {
         }
     }
 
-    private KeyLock<?>.RefCounterLock findAndLock(Number640 from, Number640 to) {
-        if (!from.getLocationKey().equals(to.getLocationKey())) {
-            // everything is different, return a 640 lock
-            KeyLock<Storage>.RefCounterLock lock = dataLock.lock(backend);
-            return lock;
-        } else if (!from.getDomainKey().equals(to.getDomainKey())) {
-            // location key is the same, rest is different
-            KeyLock<Number160>.RefCounterLock lock = dataLock160.lock(from.getLocationKey());
-            return lock;
-        } else if (!from.getContentKey().equals(to.getContentKey())) {
-            // location and domain key are same, rest is different
-            KeyLock<Number320>.RefCounterLock lock = dataLock320.lock(from.locationAndDomainKey());
-            return lock;
-        } else if (!from.getVersionKey().equals(to.getVersionKey())) {
-            // location, domain, and content key are the same, rest is different
-            KeyLock<Number480>.RefCounterLock lock = dataLock480.lock(from.locationDomainAndContentKey());
-            return lock;
-        } else {
-            KeyLock<Number640>.RefCounterLock lock = dataLock640.lock(from);
-            return lock;
-        }
-    }
-
     public SortedMap<Number640, Data> remove(Number640 from, Number640 to, PublicKey publicKey) {
-        KeyLock<?>.RefCounterLock lock = findAndLock(from, to);
+        RangeLock.Locked lock = rangeLock.write(from, to);
         try {
             Map<Number640, Data> tmp = backend.subMap(from, to, -1, true);
             Collection<Number320> locationAndDomains = new HashSet<Number320>();
@@ -281,6 +791,7 @@ public class StorageLayer {
             SortedMap<Number640, Data> result = backend.remove(from, to);
             for (Map.Entry<Number640, Data> entry : result.entrySet()) {
                 Data data = entry.getValue();
+                removed(entry.getKey(), data);
                 if (data.publicKey() == null || data.publicKey().equals(publicKey)) {
                     backend.removeTimeout(entry.getKey());
                     backend.removeResponsibility((entry.getKey().getLocationKey()));
@@ -292,45 +803,155 @@ public class StorageLayer {
         }
     }
 
+    /**
+     * Removes the expired entries. The expired keys are fetched and removed in slices of {@link #EXPIRY_SLICE} keys,
+     * so a burst of expirations does not hold the locks for long. Within a slice, the keys are grouped by location
+     * key, each location key is locked once, its entries and timeouts are removed from the backend in one call each,
+     * and its responsibility is checked once.
+     */
     public void checkTimeout() {
         long time = Timings.currentTimeMillis();
-        Collection<Number640> toRemove = backend.subMapTimeout(time);
-        if (toRemove.size() > 0) {
+        Number640 previousFirst = null;
+        while (true) {
+            Collection<Number640> toRemove = backend.subMapTimeout(time, EXPIRY_SLICE);
+            if (toRemove.isEmpty()) {
+                return;
+            }
+            Number640 first = toRemove.iterator().next();
+            // compareTo, as equals ignores the version key
+            if (previousFirst != null && first.compareTo(previousFirst) == 0) {
+                // the backend could not remove the timeouts of the last slice, try again in the next round
+                return;
+            }
+            previousFirst = first;
+            Map<Number160, Collection<Number640>> byLocation = new HashMap<Number160, Collection<Number640>>();
             for (Number640 key : toRemove) {
-            	KeyLock<Number640>.RefCounterLock lock = dataLock640.lock(key);
-                try {
-                	backend.remove(key);
-                	backend.removeTimeout(key);
-                } finally {
-                    lock.unlock();
+                Collection<Number640> keys = byLocation.get(key.getLocationKey());
+                if (keys == null) {
+                    keys = new ArrayList<Number640>();
+                    byLocation.put(key.getLocationKey(), keys);
                 }
-                //remove responsibility if we don't have any data stored under locationkey
-                Number160 locationKey = key.getLocationKey();
-                KeyLock<Number160>.RefCounterLock lock1 = dataLock160.lock(locationKey);
+                keys.add(key);
+            }
+            for (Map.Entry<Number160, Collection<Number640>> entry : byLocation.entrySet()) {
+                Number160 locationKey = entry.getKey();
+                RangeLock.Locked lock = rangeLock.write(minKey(locationKey), maxKey(locationKey));
                 try {
-                	if(isEmpty(locationKey)) {
-                		backend.removeResponsibility(locationKey);
-                	}
+                    Map<Number640, Data> removed = backend.removeAll(entry.getValue());
+                    backend.removeTimeouts(entry.getValue());
+                    for (Number640 key : entry.getValue()) {
+                        removed(key, removed.get(key));
+                    }
+                    // remove responsibility if we don't have any data stored under locationkey
+                    if (isEmpty(locationKey)) {
+                        backend.removeResponsibility(locationKey);
+                    }
                 } finally {
-                	lock1.unlock();
+                    lock.unlock();
                 }
             }
+            if (toRemove.size() < EXPIRY_SLICE) {
+                return;
+            }
         }
     }
     
+    /**
+     * Evicts entries until the storage is within its capacity. Each eviction locks the location key of the victim,
+     * the listeners are notified without holding a lock.
+     */
+    private void evict() {
+        EvictionPolicy evictionPolicy = this.evictionPolicy;
+        if (evictionPolicy == null) {
+            return;
+        }
+        while ((maxEntries >= 0 && entries.get() > maxEntries) || (maxBytes >= 0 && bytes.get() > maxBytes)) {
+            Number640 victim = evictionPolicy.victim();
+            if (victim == null) {
+                return;
+            }
+            Number160 locationKey = victim.getLocationKey();
+            Data data;
+            RangeLock.Locked lock = rangeLock.write(minKey(locationKey), maxKey(locationKey));
+            try {
+                data = backend.remove(victim);
+                backend.removeTimeout(victim);
+                // also removes the victim from the policy if an other thread was faster
+                removed(victim, data);
+                if (isEmpty(locationKey)) {
+                    backend.removeResponsibility(locationKey);
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (data != null) {
+                for (EvictionListener evictionListener : evictionListeners) {
+                    evictionListener.evicted(victim, data);
+                }
+            }
+        }
+    }
+
+    private void removed(Number640 key, Data data) {
+        DataDeduplication deduplication = this.deduplication;
+        if (deduplication != null && data != null) {
+            deduplication.release(data);
+        }
+        VersionIndex versionIndex = this.versionIndex;
+        if (versionIndex != null && data != null) {
+            versionIndex.remove(key);
+        }
+        RollingDigest rollingDigest = this.rollingDigest;
+        if (rollingDigest != null && data != null) {
+            rollingDigest.remove(key, data.basedOn());
+        }
+        EvictionPolicy evictionPolicy = this.evictionPolicy;
+        if (evictionPolicy == null) {
+            return;
+        }
+        evictionPolicy.remove(key);
+        if (data != null) {
+            entries.decrementAndGet();
+            bytes.addAndGet(-data.length());
+        }
+    }
+
 	private boolean isEmpty(Number160 locationKey) {
-		Number640 from = new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO);
-		Number640 to = new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE);
-		Map<Number640, Data> tmp = backend.subMap(from, to, 1, false);
-		return tmp.size() == 0;
+		RollingDigest rollingDigest = this.rollingDigest;
+		if (rollingDigest != null) {
+			return rollingDigest.size(locationKey) == 0;
+		}
+		return !backend.iterator(minKey(locationKey), maxKey(locationKey), true).hasNext();
+	}
+
+	/**
+	 * @return All entries, needs to be called while holding the root lock
+	 */
+	private Iterable<Map.Entry<Number640, Data>> all() {
+		return new Iterable<Map.Entry<Number640, Data>>() {
+			@Override
+			public Iterator<Map.Entry<Number640, Data>> iterator() {
+				return backend.iterator(minKey(Number160.ZERO), maxKey(Number160.MAX_VALUE), true);
+			}
+		};
+	}
+
+	private static Number640 minKey(Number160 locationKey) {
+		return new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO);
+	}
+
+	private static Number640 maxKey(Number160 locationKey) {
+		return new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE);
 	}
 
     public DigestInfo digest(Number640 from, Number640 to, int limit, boolean ascending) {
         DigestInfo digestInfo = new DigestInfo();
-        KeyLock<?>.RefCounterLock lock = findAndLock(from, to);
+        RangeLock.Locked lock = rangeLock.read(from, to);
         try {
-            Map<Number640, Data> tmp = backend.subMap(from, to, limit, ascending);
-            for (Map.Entry<Number640, Data> entry : tmp.entrySet()) {
+            // only the keys and hashes are kept, not the entries of the range
+            Iterator<Map.Entry<Number640, Data>> iterator = backend.iterator(from, to, ascending);
+            for (int i = 0; iterator.hasNext() && (limit < 0 || i < limit); i++) {
+                Map.Entry<Number640, Data> entry = iterator.next();
                 Number160 basedOn = entry.getValue().basedOn();
                 digestInfo.put(entry.getKey(), basedOn == null ? Number160.ZERO : basedOn);
             }
@@ -340,13 +961,105 @@ public class StorageLayer {
         }
     }
 
+    /**
+     * @return The digest of the latest versions within a range, see
+     *         {@link #getLatest(Number640, Number640, int, boolean)}
+     */
+    public DigestInfo digestLatest(Number640 from, Number640 to, int limit, boolean ascending) {
+        DigestInfo digestInfo = new DigestInfo();
+        RangeLock.Locked lock = rangeLock.read(firstVersion(from), lastVersion(to));
+        try {
+            for (Number640 key : latest(from, to, limit, ascending)) {
+                Data data = backend.get(key);
+                if (data != null) {
+                    Number160 basedOn = data.basedOn();
+                    digestInfo.put(key, basedOn == null ? Number160.ZERO : basedOn);
+                }
+            }
+            return digestInfo;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Finds the latest versions with the version index, or by reading all versions of the content keys in the range
+     * if there is no index. The caller needs to lock all versions of the content keys in the range.
+     */
+    private Collection<Number640> latest(Number640 from, Number640 to, int limit, boolean ascending) {
+        VersionIndex versionIndex = this.versionIndex;
+        NavigableSet<Number640> heads;
+        if (versionIndex != null) {
+            heads = versionIndex.heads(from, to);
+        } else {
+            heads = new TreeSet<Number640>();
+            Collection<Number640> parents = new TreeSet<Number640>();
+            Map<Number640, Data> tmp = backend.subMap(firstVersion(from), lastVersion(to), -1, true);
+            for (Map.Entry<Number640, Data> entry : tmp.entrySet()) {
+                Number640 key = entry.getKey();
+                Number160 basedOn = entry.getValue().basedOn();
+                if (basedOn != null) {
+                    parents.add(new Number640(key.getLocationKey(), key.getDomainKey(), key.getContentKey(), basedOn));
+                }
+                if (key.compareTo(from) >= 0 && key.compareTo(to) <= 0) {
+                    heads.add(key);
+                }
+            }
+            heads.removeAll(parents);
+        }
+        List<Number640> result = new ArrayList<Number640>();
+        Iterator<Number640> iterator = ascending ? heads.iterator() : heads.descendingIterator();
+        while (iterator.hasNext() && (limit < 0 || result.size() < limit)) {
+            result.add(iterator.next());
+        }
+        return result;
+    }
+
+    private static Number640 firstVersion(Number640 key) {
+        return new Number640(key.getLocationKey(), key.getDomainKey(), key.getContentKey(), Number160.ZERO);
+    }
+
+    private static Number640 lastVersion(Number640 key) {
+        return new Number640(key.getLocationKey(), key.getDomainKey(), key.getContentKey(), Number160.MAX_VALUE);
+    }
+
+    /**
+     * @param locationKey
+     *            The location key
+     * @return The digest and the number of all entries with this location key. With a {@link RollingDigest}, this
+     *         takes constant time, but the digests of the single entries are not included
+     */
+    public DigestInfo digest(Number160 locationKey) {
+        RollingDigest rollingDigest = this.rollingDigest;
+        if (rollingDigest != null) {
+            return rollingDigest.digest(locationKey);
+        }
+        return digest(minKey(locationKey), maxKey(locationKey), -1, true);
+    }
+
+    /**
+     * @param locationAndDomainKey
+     *            The location and domain key
+     * @return The digest and the number of all entries with this location and domain key. With a
+     *         {@link RollingDigest}, this takes constant time, but the digests of the single entries are not included
+     */
+    public DigestInfo digest(Number320 locationAndDomainKey) {
+        RollingDigest rollingDigest = this.rollingDigest;
+        if (rollingDigest != null) {
+            return rollingDigest.digest(locationAndDomainKey);
+        }
+        Number640 from = new Number640(locationAndDomainKey, Number160.ZERO, Number160.ZERO);
+        Number640 to = new Number640(locationAndDomainKey, Number160.MAX_VALUE, Number160.MAX_VALUE);
+        return digest(from, to, -1, true);
+    }
+
     public DigestInfo digest(Number320 locationAndDomainKey, SimpleBloomFilter<Number160> keyBloomFilter,
             SimpleBloomFilter<Number160> contentBloomFilter, int limit, boolean ascending) {
         DigestInfo digestInfo = new DigestInfo();
-        KeyLock<Number320>.RefCounterLock lock = dataLock320.lock(locationAndDomainKey);
+        Number640 from = new Number640(locationAndDomainKey, Number160.ZERO, Number160.ZERO);
+        Number640 to = new Number640(locationAndDomainKey, Number160.MAX_VALUE, Number160.MAX_VALUE);
+        RangeLock.Locked lock = rangeLock.read(from, to);
         try {
-            Number640 from = new Number640(locationAndDomainKey, Number160.ZERO, Number160.ZERO);
-            Number640 to = new Number640(locationAndDomainKey, Number160.MAX_VALUE, Number160.MAX_VALUE);
             Map<Number640, Data> tmp = backend.subMap(from, to, limit, ascending);
             for (Map.Entry<Number640, Data> entry : tmp.entrySet()) {
                 if (keyBloomFilter == null || keyBloomFilter.contains(entry.getKey().getContentKey())) {
@@ -365,7 +1078,7 @@ public class StorageLayer {
     public DigestInfo digest(Collection<Number640> number640s) {
         DigestInfo digestInfo = new DigestInfo();
         for (Number640 number640 : number640s) {
-            KeyLock<Number640>.RefCounterLock lock = dataLock640.lock(number640);
+            RangeLock.Locked lock = rangeLock.read(number640);
             try {
                 if (backend.contains(number640)) {
                     Data data = getInternal(number640);
@@ -481,26 +1194,64 @@ public class StorageLayer {
         return key.equals(Utils.makeSHAHash(publicKey.getEncoded()));
     }
 
-    public KeyLock<Storage> getLockStorage() {
-        return dataLock;
+    /**
+     * @return The lock that is used for all operations on the backend
+     */
+    public RangeLock getLock() {
+        return rangeLock;
     }
 
-    public KeyLock<Number160> getLockNumber160() {
-        return dataLock160;
+    public Collection<Number160> findContentForResponsiblePeerID(Number160 peerID) {
+        return backend.findContentForResponsiblePeerID(peerID);
     }
+    
+    /**
+     * Reads the next page once the current page has been consumed, only one page is on the heap.
+     */
+    private class Cursor implements Iterator<Map.Entry<Number640, Data>> {
+        private final Number640 from;
+        private final Number640 to;
+        private final boolean ascending;
+        private Iterator<Map.Entry<Number640, Data>> page = Collections.emptyIterator();
+        private Number640 resumeKey = null;
+        private boolean last = false;
 
-    public KeyLock<Number320> getLockNumber320() {
-        return dataLock320;
-    }
+        private Cursor(Number640 from, Number640 to, boolean ascending) {
+            this.from = from;
+            this.to = to;
+            this.ascending = ascending;
+        }
 
-    public KeyLock<Number480> getLockNumber480() {
-        return dataLock480;
-    }
+        @Override
+        public boolean hasNext() {
+            while (!page.hasNext()) {
+                if (last) {
+                    return false;
+                }
+                NavigableMap<Number640, Data> tmp = scan(from, to, resumeKey, SCAN_PAGE, ascending);
+                last = tmp.size() < SCAN_PAGE;
+                if (!tmp.isEmpty()) {
+                    resumeKey = ascending ? tmp.lastKey() : tmp.firstKey();
+                }
+                page = ascending ? tmp.entrySet().iterator() : tmp.descendingMap().entrySet().iterator();
+            }
+            return true;
+        }
 
-    public Collection<Number160> findContentForResponsiblePeerID(Number160 peerID) {
-        return backend.findContentForResponsiblePeerID(peerID);
+        @Override
+        public Map.Entry<Number640, Data> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
     }
-    
+
     private class StorageMaintenanceTask implements Runnable {
 		@Override
 		public void run() {
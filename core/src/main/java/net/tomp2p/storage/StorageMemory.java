@@ -19,12 +19,10 @@ package net.tomp2p.storage;
 import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
-import java.util.Set;
-import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
@@ -33,127 +31,255 @@ import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number320;
 import net.tomp2p.peers.Number480;
 import net.tomp2p.peers.Number640;
+import net.tomp2p.peers.PackedNumber640;
 
 public class StorageMemory implements Storage {
 
-    // Core
-    final private NavigableMap<Number640, Data> dataMap = new ConcurrentSkipListMap<Number640, Data>();
+    // Core, the keys are packed into one object each instead of five. A point access packs the key it looks for, only
+    // the keys that a range read hands out are unpacked again
+    final private NavigableMap<PackedNumber640, Data> dataMap = new ConcurrentSkipListMap<PackedNumber640, Data>();
 
     // Maintenance
-    final private Map<Number640, Long> timeoutMap = new ConcurrentHashMap<Number640, Long>();
-    final private ConcurrentSkipListMap<Long, Set<Number640>> timeoutMapRev = new ConcurrentSkipListMap<Long, Set<Number640>>();
+    final private TimeoutIndex timeoutIndex;
 
     // Protection
     final private Map<Number320, PublicKey> protectedMap = new ConcurrentHashMap<Number320, PublicKey>();
     final private Map<Number480, PublicKey> entryMap = new ConcurrentHashMap<Number480, PublicKey>();
     final private StorageMemoryReplication storageMemoryReplication = new StorageMemoryReplication();
 
+    // Persistence, logs the modifications if set
+    private volatile StorageSnapshot journal = null;
+
+    public StorageMemory() {
+        this(new SortedTimeoutIndex());
+    }
+
+    /**
+     * @param timeoutIndex
+     *            The index that keeps track of the expiration times, e.g., a {@link TimingWheel} for many entries with
+     *            a short TTL
+     */
+    public StorageMemory(TimeoutIndex timeoutIndex) {
+        this.timeoutIndex = timeoutIndex;
+    }
+
     // Core
     @Override
     public boolean put(Number640 key, Data value) {
-        dataMap.put(key, value);
+        dataMap.put(new PackedNumber640(key), value);
+        StorageSnapshot journal = this.journal;
+        if (journal != null) {
+            journal.logPut(key, value);
+        }
         return true;
     }
 
     @Override
     public Data get(Number640 key) {
-        return dataMap.get(key);
+        return dataMap.get(new PackedNumber640(key));
     }
 
     @Override
     public boolean contains(Number640 key) {
-        return dataMap.containsKey(key);
+        return dataMap.containsKey(new PackedNumber640(key));
     }
 
     @Override
     public int contains(Number640 fromKey, Number640 toKey) {
-        NavigableMap<Number640, Data> tmp = dataMap.subMap(fromKey, true, toKey, true);
-        return tmp.size();
+        return subMap(fromKey, toKey).size();
     }
 
     @Override
     public Data remove(Number640 key) {
-        return dataMap.remove(key);
+        Data data = dataMap.remove(new PackedNumber640(key));
+        StorageSnapshot journal = this.journal;
+        if (data != null && journal != null) {
+            journal.logRemove(key);
+        }
+        return data;
     }
 
     @Override
     public NavigableMap<Number640, Data> remove(Number640 fromKey, Number640 toKey) {
-        NavigableMap<Number640, Data> tmp = dataMap.subMap(fromKey, true, toKey, true);
-        NavigableMap<Number640, Data> copy = new TreeMap<Number640, Data>(tmp);
+        NavigableMap<PackedNumber640, Data> tmp = subMap(fromKey, toKey);
+        NavigableMap<Number640, Data> copy = copy(tmp, -1, true);
         tmp.clear();
+        StorageSnapshot journal = this.journal;
+        if (!copy.isEmpty() && journal != null) {
+            journal.logRemove(fromKey, toKey);
+        }
         return copy;
     }
 
     @Override
     public NavigableMap<Number640, Data> subMap(Number640 fromKey, Number640 toKey, int limit,
             boolean ascending) {
-        NavigableMap<Number640, Data> tmp = dataMap.subMap(fromKey, true, toKey, true);
-        if (limit < 0) {
-            return new TreeMap<Number640, Data>(ascending ? tmp : tmp.descendingMap());
-        } else {
-            NavigableMap<Number640, Data> retVal = new TreeMap<Number640, Data>();
-            limit = Math.min(limit, tmp.size());
-            Iterator<Map.Entry<Number640, Data>> iterator = ascending ? tmp.entrySet().iterator() : tmp
-                    .descendingMap().entrySet().iterator();
-            for (int i = 0; iterator.hasNext() && i < limit; i++) {
-                Map.Entry<Number640, Data> entry = iterator.next();
-                retVal.put(entry.getKey(), entry.getValue());
+        return copy(subMap(fromKey, toKey), limit, ascending);
+    }
+
+    @Override
+    public NavigableMap<Number640, Data> map() {
+        return copy(dataMap, -1, true);
+    }
+
+    @Override
+    public Iterator<Map.Entry<Number640, Data>> iterator(Number640 fromKey, Number640 toKey, boolean ascending) {
+        NavigableMap<PackedNumber640, Data> tmp = subMap(fromKey, toKey);
+        final Iterator<Map.Entry<PackedNumber640, Data>> iterator = ascending ? tmp.entrySet().iterator() : tmp
+                .descendingMap().entrySet().iterator();
+        return new Iterator<Map.Entry<Number640, Data>>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Map.Entry<Number640, Data> next() {
+                return new UnpackedEntry(iterator.next());
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public Collection<Number640> putAll(Map<Number640, Data> values) {
+        List<Number640> failed = new ArrayList<Number640>(0);
+        for (Map.Entry<Number640, Data> entry : values.entrySet()) {
+            // calls put of a subclass, e.g., to copy the payload into a segment
+            if (!put(entry.getKey(), entry.getValue())) {
+                failed.add(entry.getKey());
             }
-            return retVal;
         }
+        return failed;
     }
 
     @Override
-    public NavigableMap<Number640, Data> map() {
-        return new TreeMap<Number640, Data>(dataMap);
+    public NavigableMap<Number640, Data> removeAll(Collection<Number640> keys) {
+        NavigableMap<Number640, Data> retVal = new TreeMap<Number640, Data>();
+        for (Number640 key : keys) {
+            Data data = remove(key);
+            if (data != null) {
+                retVal.put(key, data);
+            }
+        }
+        return retVal;
+    }
+
+    private NavigableMap<PackedNumber640, Data> subMap(Number640 fromKey, Number640 toKey) {
+        return dataMap.subMap(new PackedNumber640(fromKey), true, new PackedNumber640(toKey), true);
+    }
+
+    private static NavigableMap<Number640, Data> copy(NavigableMap<PackedNumber640, Data> tmp, int limit,
+            boolean ascending) {
+        NavigableMap<Number640, Data> retVal = new TreeMap<Number640, Data>();
+        Iterator<Map.Entry<PackedNumber640, Data>> iterator = ascending ? tmp.entrySet().iterator() : tmp
+                .descendingMap().entrySet().iterator();
+        for (int i = 0; iterator.hasNext() && (limit < 0 || i < limit); i++) {
+            Map.Entry<PackedNumber640, Data> entry = iterator.next();
+            retVal.put(entry.getKey().toNumber640(), entry.getValue());
+        }
+        return retVal;
+    }
+
+    /**
+     * An entry of the skip list that unpacks its key only if it is asked for, e.g., not for a digest of the values.
+     */
+    private static final class UnpackedEntry implements Map.Entry<Number640, Data> {
+        private final Map.Entry<PackedNumber640, Data> entry;
+        private Number640 key;
+
+        private UnpackedEntry(final Map.Entry<PackedNumber640, Data> entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public Number640 getKey() {
+            if (key == null) {
+                key = entry.getKey().toNumber640();
+            }
+            return key;
+        }
+
+        @Override
+        public Data getValue() {
+            return entry.getValue();
+        }
+
+        @Override
+        public Data setValue(final Data value) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Override
+    public boolean isConcurrent() {
+        // backed by a ConcurrentSkipListMap
+        return true;
     }
 
     // Maintenance
     @Override
     public void addTimeout(Number640 key, long expiration) {
-        Long oldExpiration = timeoutMap.put(key, expiration);
-        Set<Number640> tmp = putIfAbsent2(expiration,
-                Collections.newSetFromMap(new ConcurrentHashMap<Number640, Boolean>()));
-        tmp.add(key);
-        if (oldExpiration == null) {
-            return;
+        timeoutIndex.add(key, expiration);
+        StorageSnapshot journal = this.journal;
+        if (journal != null) {
+            journal.logTimeout(key, expiration);
         }
-        removeRevTimeout(key, oldExpiration);
     }
 
     @Override
     public void removeTimeout(Number640 key) {
-        Long expiration = timeoutMap.remove(key);
-        if (expiration == null) {
-            return;
+        timeoutIndex.remove(key);
+        StorageSnapshot journal = this.journal;
+        if (journal != null) {
+            journal.logRemoveTimeout(key);
         }
-        removeRevTimeout(key, expiration);
     }
 
-    private void removeRevTimeout(Number640 key, Long expiration) {
-        Set<Number640> tmp = timeoutMapRev.get(expiration);
-        if (tmp != null) {
-            tmp.remove(key);
-            if (tmp.isEmpty()) {
-                timeoutMapRev.remove(expiration);
+    @Override
+    public void addTimeouts(Map<Number640, Long> expirations) {
+        StorageSnapshot journal = this.journal;
+        for (Map.Entry<Number640, Long> entry : expirations.entrySet()) {
+            timeoutIndex.add(entry.getKey(), entry.getValue());
+            if (journal != null) {
+                journal.logTimeout(entry.getKey(), entry.getValue());
             }
         }
     }
 
     @Override
-    public Collection<Number640> subMapTimeout(long to) {
-        SortedMap<Long, Set<Number640>> tmp = timeoutMapRev.subMap(0L, to);
-        Collection<Number640> toRemove = new ArrayList<Number640>();
-        for (Set<Number640> set : tmp.values()) {
-            toRemove.addAll(set);
+    public void removeTimeouts(Collection<Number640> keys) {
+        StorageSnapshot journal = this.journal;
+        for (Number640 key : keys) {
+            timeoutIndex.remove(key);
+            if (journal != null) {
+                journal.logRemoveTimeout(key);
+            }
         }
-        return toRemove;
+    }
+
+    @Override
+    public Collection<Number640> subMapTimeout(long to) {
+        return timeoutIndex.expired(to, -1);
+    }
+
+    @Override
+    public Collection<Number640> subMapTimeout(long to, int limit) {
+        return timeoutIndex.expired(to, limit);
     }
 
     // Protection
     @Override
     public boolean protectDomain(Number320 key, PublicKey publicKey) {
         protectedMap.put(key, publicKey);
+        StorageSnapshot journal = this.journal;
+        if (journal != null) {
+            journal.logProtectDomain(key, publicKey);
+        }
         return true;
     }
 
@@ -166,11 +292,6 @@ public class StorageMemory implements Storage {
         return !other.equals(publicKey);
     }
 
-    private Set<Number640> putIfAbsent2(long expiration, Set<Number640> hashSet) {
-        Set<Number640> timeouts = timeoutMapRev.putIfAbsent(expiration, hashSet);
-        return timeouts == null ? hashSet : timeouts;
-    }
-
     @Override
     public Number160 findPeerIDForResponsibleContent(Number160 locationKey) {
         return storageMemoryReplication.findPeerIDForResponsibleContent(locationKey);
@@ -196,13 +317,16 @@ public class StorageMemory implements Storage {
     public void close() {
         dataMap.clear();
         protectedMap.clear();
-        timeoutMap.clear();
-        timeoutMapRev.clear();
+        timeoutIndex.clear();
     }
 
 	@Override
     public boolean protectEntry(Number480 key, PublicKey publicKey) {
 		entryMap.put(key, publicKey);
+        StorageSnapshot journal = this.journal;
+        if (journal != null) {
+            journal.logProtectEntry(key, publicKey);
+        }
 	    return true;
     }
 
@@ -214,4 +338,25 @@ public class StorageMemory implements Storage {
         }
         return !other.equals(publicKey);
     }
+
+    // Persistence, used by StorageSnapshot
+    void journal(StorageSnapshot journal) {
+        this.journal = journal;
+    }
+
+    NavigableMap<PackedNumber640, Data> dataMap() {
+        return dataMap;
+    }
+
+    long expiration(Number640 key) {
+        return timeoutIndex.expiration(key);
+    }
+
+    Map<Number320, PublicKey> protectedDomains() {
+        return protectedMap;
+    }
+
+    Map<Number480, PublicKey> protectedEntries() {
+        return entryMap;
+    }
 }
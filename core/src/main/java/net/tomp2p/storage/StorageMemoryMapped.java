@@ -0,0 +1,285 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.tomp2p.peers.Number640;
+import net.tomp2p.peers.PackedNumber640;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A storage that keeps the keys and the meta data of the {@link Data} objects in memory, but copies the payload into
+ * memory-mapped segment files. The {@link Data} objects returned by this storage wrap the mapped regions, thus, a get
+ * or a sub map does not copy the payload onto the heap. Segments are append-only and the file of a segment is deleted
+ * once all entries in it have been removed.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class StorageMemoryMapped extends StorageMemory {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StorageMemoryMapped.class);
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private final File directory;
+    private final int segmentSize;
+
+    // the location of the payload for each key
+    private final Map<PackedNumber640, Slot> slots = new ConcurrentHashMap<PackedNumber640, Slot>();
+    // the value and its slot are swapped together, otherwise concurrent writes of a key could release the slot of
+    // the stored value
+    private final KeyLock<PackedNumber640> keyLock = new KeyLock<PackedNumber640>();
+
+    // guarded by segments
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private Segment current = null;
+    private int segmentCounter = 0;
+
+    /**
+     * Creates a memory-mapped storage with the default segment size of 64MB.
+     *
+     * @param directory
+     *            The directory where the segment files are created
+     */
+    public StorageMemoryMapped(final File directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param directory
+     *            The directory where the segment files are created
+     * @param segmentSize
+     *            The size of a segment file. Payloads larger than this size get their own segment
+     */
+    public StorageMemoryMapped(final File directory, final int segmentSize) {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("segment size must be positive");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("cannot create directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    @Override
+    public boolean put(final Number640 key, final Data value) {
+        final Slot slot;
+        final Data mapped;
+        if (value.length() == 0) {
+            slot = null;
+            mapped = value;
+        } else {
+            try {
+                slot = allocate(value.length());
+            } catch (IOException e) {
+                LOG.error("could not allocate a segment for " + key, e);
+                return false;
+            }
+            mapped = value.duplicate(slot.write(value));
+        }
+        final PackedNumber640 packed = new PackedNumber640(key);
+        final KeyLock<PackedNumber640>.RefCounterLock lock = keyLock.lock(packed);
+        try {
+            if (!super.put(key, mapped)) {
+                release(slot);
+                return false;
+            }
+            release(slot == null ? slots.remove(packed) : slots.put(packed, slot));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Data remove(final Number640 key) {
+        final PackedNumber640 packed = new PackedNumber640(key);
+        final KeyLock<PackedNumber640>.RefCounterLock lock = keyLock.lock(packed);
+        try {
+            final Data data = super.remove(key);
+            release(slots.remove(packed));
+            return data;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public NavigableMap<Number640, Data> remove(final Number640 fromKey, final Number640 toKey) {
+        // one key at a time, so that a concurrent put of a key in the range keeps its slot
+        final NavigableMap<Number640, Data> removed = new TreeMap<Number640, Data>();
+        for (Number640 key : subMap(fromKey, toKey, -1, true).keySet()) {
+            final Data data = remove(key);
+            if (data != null) {
+                removed.put(key, data);
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        slots.clear();
+        synchronized (segments) {
+            for (Segment segment : segments) {
+                segment.delete();
+            }
+            segments.clear();
+            current = null;
+        }
+    }
+
+    /**
+     * @return The number of segment files currently in use
+     */
+    public int segmentCount() {
+        synchronized (segments) {
+            return segments.size();
+        }
+    }
+
+    private Slot allocate(final int length) throws IOException {
+        synchronized (segments) {
+            if (current == null || current.remaining() < length) {
+                if (current != null) {
+                    current.sealed = true;
+                    if (current.live == 0) {
+                        current.delete();
+                        segments.remove(current);
+                    }
+                }
+                current = createSegment(Math.max(length, segmentSize));
+                segments.add(current);
+            }
+            final Slot slot = new Slot(current, current.position, length);
+            current.position += length;
+            current.live += length;
+            return slot;
+        }
+    }
+
+    private void release(final Slot slot) {
+        if (slot == null) {
+            return;
+        }
+        synchronized (segments) {
+            final Segment segment = slot.segment;
+            segment.live -= slot.length;
+            if (segment.live == 0 && segment.sealed) {
+                // readers still referencing the mapped region can continue, the mapping is released by the GC
+                segment.delete();
+                segments.remove(segment);
+            }
+        }
+    }
+
+    private Segment createSegment(final int size) throws IOException {
+        final File file = new File(directory, "segment-" + (segmentCounter++) + ".tomp2p");
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            final FileChannel channel = randomAccessFile.getChannel();
+            // the mapping stays valid after the channel has been closed
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            return new Segment(file, buffer);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * A memory-mapped file that is filled sequentially. All fields are guarded by {@link #segments}.
+     */
+    private static final class Segment {
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private int position = 0;
+        private int live = 0;
+        private boolean sealed = false;
+
+        private Segment(final File file, final MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        private int remaining() {
+            return buffer.capacity() - position;
+        }
+
+        private void delete() {
+            if (!file.delete()) {
+                LOG.warn("could not delete segment {}", file);
+            }
+        }
+    }
+
+    /**
+     * A reserved region in a segment.
+     */
+    private static final class Slot {
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+
+        private Slot(final Segment segment, final int offset, final int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * Copies the payload into the reserved region. Since every slot has its own region, no locking is required.
+         *
+         * @param value
+         *            The data object to copy the payload from
+         * @return The data buffer that wraps the mapped region
+         */
+        private DataBuffer write(final Data value) {
+            final ByteBuffer region = segment.buffer.duplicate();
+            region.limit(offset + length);
+            region.position(offset);
+            for (ByteBuffer src : value.toByteBuffers()) {
+                region.put(src);
+            }
+            region.position(offset);
+            final ByteBuf buf = Unpooled.wrappedBuffer(region.slice());
+            final DataBuffer dataBuffer = new DataBuffer(buf);
+            // DataBuffer retains the buffer
+            buf.release();
+            return dataBuffer;
+        }
+    }
+}
@@ -0,0 +1,862 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import net.tomp2p.connection.SignatureFactory;
+import net.tomp2p.message.TrackerData;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number320;
+import net.tomp2p.peers.Number480;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.peers.PackedNumber640;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.utils.Timings;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persists a {@link StorageMemory} and optionally the mesh peers of a {@link TrackerStorage} for fast restarts. A
+ * snapshot writes all entries with their expiration into several part files, which are loaded in parallel by
+ * {@link #restore(int)}. Between two snapshots, every modification of the storage is appended to a delta log, which is
+ * replayed after the snapshot has been loaded. The {@link Data} objects are stored in the same format as on the wire.
+ * <p>
+ * The snapshot does not block the storage. Before the entries are written, a new delta log is started, so every
+ * modification that happens while the snapshot is written is also in the new delta log and is applied again on
+ * restore. This requires that modifications of the same key are serialized, which {@link StorageLayer} does.
+ * <p>
+ * The records of the delta log are encoded by the writing thread and queued without a lock. They are written to the
+ * file at most every second, by the first writer that finds the log due or by the snapshot thread, and on
+ * {@link #flush()}. Thus, a crash may lose the last second of modifications, and a write to the storage never waits
+ * for the file system. Responsibilities are not persisted, they are rebuilt by the replication.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class StorageSnapshot {
+    private static final Logger LOG = LoggerFactory.getLogger(StorageSnapshot.class);
+
+    public static final int DEFAULT_PARTS = 4;
+
+    private static final String MANIFEST = "snapshot.tomp2p";
+    private static final String PART_PREFIX = "snapshot-";
+    private static final String DELTA_PREFIX = "delta-";
+    private static final String TRACKER_PREFIX = "tracker-";
+    private static final String SUFFIX = ".tomp2p";
+    private static final int VERSION = 1;
+
+    private static final long FLUSH_MILLIS = 1000;
+
+    // record types of the delta log
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte REMOVE_RANGE = 3;
+    private static final byte TIMEOUT = 4;
+    private static final byte REMOVE_TIMEOUT = 5;
+    private static final byte PROTECT_DOMAIN = 6;
+    private static final byte PROTECT_ENTRY = 7;
+
+    private final File directory;
+    private final StorageMemory storage;
+    private final SignatureFactory signatureFactory;
+    private final int parts;
+
+    private volatile TrackerStorage trackerStorage = null;
+
+    // the encoded records that are not yet in the delta log
+    private final Queue<byte[]> pending = new ConcurrentLinkedQueue<byte[]>();
+
+    // guards the delta log and the generation
+    private final ReentrantLock deltaLock = new ReentrantLock();
+    private FileOutputStream deltaFile = null;
+    private DataOutputStream delta = null;
+    private long generation = 0;
+    private volatile long lastFlush = 0;
+
+    // runs the snapshots and the periodic flush, so they do not delay the timer of the peer
+    private ScheduledExecutorService executor = null;
+
+    /**
+     * Creates a snapshot with the default number of parts.
+     * 
+     * @param directory
+     *            The directory where the snapshots and delta logs are stored
+     * @param storage
+     *            The storage to persist
+     * @param signatureFactory
+     *            The factory to decode the public keys
+     */
+    public StorageSnapshot(final File directory, final StorageMemory storage, final SignatureFactory signatureFactory) {
+        this(directory, storage, signatureFactory, DEFAULT_PARTS);
+    }
+
+    /**
+     * @param directory
+     *            The directory where the snapshots and delta logs are stored
+     * @param storage
+     *            The storage to persist
+     * @param signatureFactory
+     *            The factory to decode the public keys
+     * @param parts
+     *            The number of files a snapshot is split into. This is the maximum number of threads used for loading
+     */
+    public StorageSnapshot(final File directory, final StorageMemory storage,
+            final SignatureFactory signatureFactory, final int parts) {
+        if (parts <= 0) {
+            throw new IllegalArgumentException("parts must be positive");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("cannot create directory " + directory);
+        }
+        this.directory = directory;
+        this.storage = storage;
+        this.signatureFactory = signatureFactory;
+        this.parts = parts;
+    }
+
+    /**
+     * Loads the last snapshot and replays the delta logs into the storage. Afterwards, all modifications of the
+     * storage are logged. Needs to be called once before the storage is used, also if there is nothing to restore.
+     * 
+     * @param threads
+     *            The number of threads to load the parts of the snapshot
+     * @return The number of entries in the storage after the restore
+     * @throws IOException
+     *             If the snapshot could not be read
+     */
+    public int restore(final int threads) throws IOException {
+        long snapshotGeneration = 0;
+        int snapshotParts = 0;
+        final File manifest = new File(directory, MANIFEST);
+        if (manifest.exists()) {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(manifest)));
+            try {
+                final int version = in.readInt();
+                if (version != VERSION) {
+                    throw new IOException("unknown snapshot version " + version);
+                }
+                snapshotGeneration = in.readLong();
+                snapshotParts = in.readInt();
+                while (in.readBoolean()) {
+                    final Number320 key = new Number320(readNumber160(in), readNumber160(in));
+                    final PublicKey publicKey = readPublicKey(in);
+                    if (publicKey != null) {
+                        storage.protectDomain(key, publicKey);
+                    }
+                }
+                while (in.readBoolean()) {
+                    final Number480 key = new Number480(readNumber160(in), readNumber160(in), readNumber160(in));
+                    final PublicKey publicKey = readPublicKey(in);
+                    if (publicKey != null) {
+                        storage.protectEntry(key, publicKey);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            loadParts(snapshotGeneration, snapshotParts, threads);
+        }
+        // replay all delta logs since the snapshot, there is more than one if a snapshot was not completed
+        final TreeMap<Long, File> deltas = new TreeMap<Long, File>(deltas().tailMap(snapshotGeneration));
+        for (File file : deltas.values()) {
+            replay(file);
+        }
+        deltaLock.lock();
+        try {
+            // never append to an old delta log, its tail may be torn
+            final long last = deltas.isEmpty() ? snapshotGeneration : deltas.lastKey();
+            openDelta(last + 1);
+        } finally {
+            deltaLock.unlock();
+        }
+        storage.journal(this);
+        final int size = storage.dataMap().size();
+        LOG.debug("restored {} entries from {}", size, directory);
+        return size;
+    }
+
+    /**
+     * Restores the mesh peers of the tracker from the last snapshot and includes the tracker in the following
+     * snapshots. The tracker is not logged in between, since its entries expire anyway.
+     * 
+     * @param trackerStorage
+     *            The tracker to restore
+     * @throws IOException
+     *             If the tracker snapshot could not be read
+     */
+    public void restoreTracker(final TrackerStorage trackerStorage) throws IOException {
+        final File manifest = new File(directory, MANIFEST);
+        if (manifest.exists()) {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(manifest)));
+            final long snapshotGeneration;
+            try {
+                in.readInt();
+                snapshotGeneration = in.readLong();
+            } finally {
+                in.close();
+            }
+            final File file = file(TRACKER_PREFIX, snapshotGeneration, -1);
+            if (file.exists()) {
+                final DataInputStream tracker = new DataInputStream(new BufferedInputStream(new FileInputStream(
+                        file)));
+                try {
+                    while (tracker.readBoolean()) {
+                        final Number320 key = new Number320(readNumber160(tracker), readNumber160(tracker));
+                        final PeerAddress peerAddress = new PeerAddress(readBytes(tracker));
+                        trackerStorage.restoreMesh(key, peerAddress, decode(readBytes(tracker)));
+                    }
+                } finally {
+                    tracker.close();
+                }
+            }
+        }
+        this.trackerStorage = trackerStorage;
+    }
+
+    /**
+     * Writes a new snapshot and deletes the previous snapshot and the delta logs that are no longer needed.
+     * 
+     * @throws IOException
+     *             If the snapshot could not be written, in this case the previous snapshot is still valid
+     */
+    public synchronized void snapshot() throws IOException {
+        final long newGeneration;
+        deltaLock.lock();
+        try {
+            newGeneration = generation + 1;
+            openDelta(newGeneration);
+        } finally {
+            deltaLock.unlock();
+        }
+        final List<File> tmps = new ArrayList<File>(parts);
+        final List<DataOutputStream> outs = new ArrayList<DataOutputStream>(parts);
+        final List<FileOutputStream> fileOuts = new ArrayList<FileOutputStream>(parts);
+        try {
+            for (int i = 0; i < parts; i++) {
+                final File tmp = new File(directory, file(PART_PREFIX, newGeneration, i).getName() + ".tmp");
+                final FileOutputStream fos = new FileOutputStream(tmp);
+                tmps.add(tmp);
+                fileOuts.add(fos);
+                outs.add(new DataOutputStream(new BufferedOutputStream(fos)));
+            }
+            int counter = 0;
+            for (Map.Entry<PackedNumber640, Data> entry : storage.dataMap().entrySet()) {
+                final DataOutputStream out = outs.get(counter++ % parts);
+                final Number640 key = entry.getKey().toNumber640();
+                out.writeBoolean(true);
+                writeKey(out, key);
+                out.writeLong(storage.expiration(key));
+                writeBytes(out, encode(entry.getValue()));
+            }
+            for (int i = 0; i < parts; i++) {
+                outs.get(i).writeBoolean(false);
+                outs.get(i).flush();
+                fileOuts.get(i).getFD().sync();
+            }
+        } finally {
+            for (DataOutputStream out : outs) {
+                out.close();
+            }
+        }
+        for (int i = 0; i < parts; i++) {
+            move(tmps.get(i), file(PART_PREFIX, newGeneration, i));
+        }
+        final TrackerStorage tracker = trackerStorage;
+        if (tracker != null) {
+            writeTracker(tracker, newGeneration);
+        }
+        writeManifest(newGeneration);
+        // the new snapshot is complete, remove the old files
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                final long fileGeneration = Math.max(generation(PART_PREFIX, file),
+                        Math.max(generation(DELTA_PREFIX, file), generation(TRACKER_PREFIX, file)));
+                if (fileGeneration >= 0 && fileGeneration < newGeneration && !file.delete()) {
+                    LOG.warn("could not delete {}", file);
+                }
+            }
+        }
+        LOG.debug("snapshot {} written to {}", newGeneration, directory);
+    }
+
+    /**
+     * Flushes the delta log to the file system.
+     */
+    public void flush() {
+        deltaLock.lock();
+        try {
+            drain(true);
+        } finally {
+            deltaLock.unlock();
+        }
+    }
+
+    /**
+     * Writes a final snapshot and stops logging the modifications of the storage.
+     * 
+     * @throws IOException
+     *             If the snapshot could not be written
+     */
+    public void close() throws IOException {
+        final ScheduledExecutorService executor = this.executor;
+        if (executor != null) {
+            // a running snapshot completes, the final snapshot waits for it
+            executor.shutdown();
+        }
+        try {
+            snapshot();
+        } finally {
+            storage.journal(null);
+            deltaLock.lock();
+            try {
+                closeDelta();
+            } finally {
+                deltaLock.unlock();
+            }
+        }
+    }
+
+    private class SnapshotTask implements Runnable {
+        @Override
+        public void run() {
+            try {
+                snapshot();
+            } catch (IOException e) {
+                LOG.error("cannot write snapshot", e);
+            }
+        }
+    }
+
+    private class FlushTask implements Runnable {
+        @Override
+        public void run() {
+            if (Timings.currentTimeMillis() - lastFlush >= FLUSH_MILLIS) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Starts the periodic snapshots and flushes of the delta log. They run on a thread of their own, as writing a
+     * large storage takes a while.
+     * 
+     * @param snapshotIntervalMillis
+     *            The time between two snapshots
+     */
+    public synchronized void init(final int snapshotIntervalMillis) {
+        if (executor != null) {
+            throw new IllegalStateException("already initialized");
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "TomP2P snapshot " + directory.getName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleAtFixedRate(new SnapshotTask(), snapshotIntervalMillis, snapshotIntervalMillis,
+                TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(new FlushTask(), FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Journal, called by StorageMemory after the modification has been applied
+    void logPut(final Number640 key, final Data value) {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(body);
+        try {
+            out.writeByte(PUT);
+            writeKey(out, key);
+            writeBytes(out, encode(value));
+        } catch (IOException e) {
+            // does not happen on a byte array
+            throw new IllegalStateException(e);
+        }
+        append(body.toByteArray());
+    }
+
+    void logRemove(final Number640 key) {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(body);
+        try {
+            out.writeByte(REMOVE);
+            writeKey(out, key);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        append(body.toByteArray());
+    }
+
+    void logRemove(final Number640 fromKey, final Number640 toKey) {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(body);
+        try {
+            out.writeByte(REMOVE_RANGE);
+            writeKey(out, fromKey);
+            writeKey(out, toKey);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        append(body.toByteArray());
+    }
+
+    void logTimeout(final Number640 key, final long expiration) {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(body);
+        try {
+            out.writeByte(TIMEOUT);
+            writeKey(out, key);
+            out.writeLong(expiration);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        append(body.toByteArray());
+    }
+
+    void logRemoveTimeout(final Number640 key) {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(body);
+        try {
+            out.writeByte(REMOVE_TIMEOUT);
+            writeKey(out, key);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        append(body.toByteArray());
+    }
+
+    void logProtectDomain(final Number320 key, final PublicKey publicKey) {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(body);
+        try {
+            out.writeByte(PROTECT_DOMAIN);
+            out.write(key.getLocationKey().toByteArray());
+            out.write(key.getDomainKey().toByteArray());
+            writePublicKey(out, publicKey);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        append(body.toByteArray());
+    }
+
+    void logProtectEntry(final Number480 key, final PublicKey publicKey) {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(body);
+        try {
+            out.writeByte(PROTECT_ENTRY);
+            out.write(key.getLocationKey().toByteArray());
+            out.write(key.getDomainKey().toByteArray());
+            out.write(key.getContentKey().toByteArray());
+            writePublicKey(out, publicKey);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        append(body.toByteArray());
+    }
+
+    private void append(final byte[] body) {
+        pending.offer(body);
+        // the writer that finds the log due writes the records of all writers, the others do not wait
+        if (Timings.currentTimeMillis() - lastFlush >= FLUSH_MILLIS && deltaLock.tryLock()) {
+            try {
+                drain(true);
+            } finally {
+                deltaLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Writes the queued records to the delta log. Needs to be called while holding the delta lock.
+     * 
+     * @param flush
+     *            True if the delta log should be flushed to the file system
+     */
+    private void drain(final boolean flush) {
+        if (delta == null) {
+            pending.clear();
+            return;
+        }
+        try {
+            byte[] body;
+            while ((body = pending.poll()) != null) {
+                delta.writeInt(body.length);
+                delta.writeInt(crc(body));
+                delta.write(body);
+            }
+            if (flush) {
+                delta.flush();
+                lastFlush = Timings.currentTimeMillis();
+            }
+        } catch (IOException e) {
+            // the in-memory storage stays authoritative, the next snapshot contains this modification again
+            LOG.error("cannot append to delta log", e);
+        }
+    }
+
+    private void replay(final File file) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        int counter = 0;
+        try {
+            while (true) {
+                final byte[] body;
+                try {
+                    final int length = in.readInt();
+                    final int crc = in.readInt();
+                    if (length <= 0) {
+                        break;
+                    }
+                    body = new byte[length];
+                    in.readFully(body);
+                    if (crc(body) != crc) {
+                        LOG.warn("corrupt record in {}, ignoring the rest", file);
+                        break;
+                    }
+                } catch (EOFException e) {
+                    // torn tail, the record has not been written completely
+                    break;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(body)));
+                counter++;
+            }
+        } finally {
+            in.close();
+        }
+        LOG.debug("replayed {} records from {}", counter, file);
+    }
+
+    private void apply(final DataInputStream in) throws IOException {
+        final byte type = in.readByte();
+        switch (type) {
+        case PUT:
+            final Number640 key = readKey(in);
+            storage.put(key, decode(readBytes(in)));
+            break;
+        case REMOVE:
+            storage.remove(readKey(in));
+            break;
+        case REMOVE_RANGE:
+            storage.remove(readKey(in), readKey(in));
+            break;
+        case TIMEOUT:
+            storage.addTimeout(readKey(in), in.readLong());
+            break;
+        case REMOVE_TIMEOUT:
+            storage.removeTimeout(readKey(in));
+            break;
+        case PROTECT_DOMAIN:
+            final Number320 domain = new Number320(readNumber160(in), readNumber160(in));
+            final PublicKey domainKey = readPublicKey(in);
+            if (domainKey != null) {
+                storage.protectDomain(domain, domainKey);
+            }
+            break;
+        case PROTECT_ENTRY:
+            final Number480 entry = new Number480(readNumber160(in), readNumber160(in), readNumber160(in));
+            final PublicKey entryKey = readPublicKey(in);
+            if (entryKey != null) {
+                storage.protectEntry(entry, entryKey);
+            }
+            break;
+        default:
+            throw new IOException("unknown record type " + type);
+        }
+    }
+
+    private void loadParts(final long snapshotGeneration, final int snapshotParts, final int threads)
+            throws IOException {
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, snapshotParts)));
+        try {
+            final List<Future<Integer>> futures = new ArrayList<Future<Integer>>(snapshotParts);
+            for (int i = 0; i < snapshotParts; i++) {
+                final File file = file(PART_PREFIX, snapshotGeneration, i);
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return loadPart(file);
+                    }
+                }));
+            }
+            for (Future<Integer> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while loading the snapshot", e);
+                } catch (ExecutionException e) {
+                    throw new IOException("cannot load the snapshot", e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private int loadPart(final File file) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        int counter = 0;
+        try {
+            while (in.readBoolean()) {
+                final Number640 key = readKey(in);
+                final long expiration = in.readLong();
+                storage.put(key, decode(readBytes(in)));
+                if (expiration != Long.MAX_VALUE) {
+                    storage.addTimeout(key, expiration);
+                }
+                counter++;
+            }
+        } finally {
+            in.close();
+        }
+        return counter;
+    }
+
+    private void writeTracker(final TrackerStorage tracker, final long newGeneration) throws IOException {
+        final File file = file(TRACKER_PREFIX, newGeneration, -1);
+        final File tmp = new File(directory, file.getName() + ".tmp");
+        final FileOutputStream fos = new FileOutputStream(tmp);
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+        try {
+            for (Map.Entry<Number320, TrackerData> entry : tracker.meshData().entrySet()) {
+                final Map<PeerAddress, Data> peers;
+                synchronized (entry.getValue()) {
+                    peers = new HashMap<PeerAddress, Data>(entry.getValue().map());
+                }
+                for (Map.Entry<PeerAddress, Data> peer : peers.entrySet()) {
+                    out.writeBoolean(true);
+                    out.write(entry.getKey().getLocationKey().toByteArray());
+                    out.write(entry.getKey().getDomainKey().toByteArray());
+                    writeBytes(out, peer.getKey().toByteArray());
+                    writeBytes(out, encode(peer.getValue()));
+                }
+            }
+            out.writeBoolean(false);
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            out.close();
+        }
+        move(tmp, file);
+    }
+
+    private void writeManifest(final long newGeneration) throws IOException {
+        final File tmp = new File(directory, MANIFEST + ".tmp");
+        final FileOutputStream fos = new FileOutputStream(tmp);
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+        try {
+            out.writeInt(VERSION);
+            out.writeLong(newGeneration);
+            out.writeInt(parts);
+            for (Map.Entry<Number320, PublicKey> entry : storage.protectedDomains().entrySet()) {
+                out.writeBoolean(true);
+                out.write(entry.getKey().getLocationKey().toByteArray());
+                out.write(entry.getKey().getDomainKey().toByteArray());
+                writePublicKey(out, entry.getValue());
+            }
+            out.writeBoolean(false);
+            for (Map.Entry<Number480, PublicKey> entry : storage.protectedEntries().entrySet()) {
+                out.writeBoolean(true);
+                out.write(entry.getKey().getLocationKey().toByteArray());
+                out.write(entry.getKey().getDomainKey().toByteArray());
+                out.write(entry.getKey().getContentKey().toByteArray());
+                writePublicKey(out, entry.getValue());
+            }
+            out.writeBoolean(false);
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            out.close();
+        }
+        move(tmp, new File(directory, MANIFEST));
+    }
+
+    /**
+     * Needs to be called while holding the delta lock.
+     */
+    private void openDelta(final long newGeneration) throws IOException {
+        final FileOutputStream fos = new FileOutputStream(file(DELTA_PREFIX, newGeneration, -1), true);
+        closeDelta();
+        deltaFile = fos;
+        delta = new DataOutputStream(new BufferedOutputStream(fos));
+        generation = newGeneration;
+        lastFlush = Timings.currentTimeMillis();
+    }
+
+    private void closeDelta() throws IOException {
+        // the queued records belong to the delta log that is closed
+        drain(false);
+        if (delta != null) {
+            delta.flush();
+            deltaFile.getFD().sync();
+            delta.close();
+            delta = null;
+            deltaFile = null;
+        }
+    }
+
+    private File file(final String prefix, final long fileGeneration, final int part) {
+        return new File(directory, prefix + fileGeneration + (part < 0 ? "" : "-" + part) + SUFFIX);
+    }
+
+    /**
+     * @return The delta logs sorted by generation
+     */
+    private TreeMap<Long, File> deltas() {
+        final TreeMap<Long, File> result = new TreeMap<Long, File>();
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                final long fileGeneration = generation(DELTA_PREFIX, file);
+                if (fileGeneration >= 0) {
+                    result.put(fileGeneration, file);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The generation of a file with the given prefix, or -1 if the file does not have this prefix
+     */
+    private static long generation(final String prefix, final File file) {
+        final String name = file.getName();
+        if (!name.startsWith(prefix) || !name.endsWith(SUFFIX)) {
+            return -1;
+        }
+        // the parts of a snapshot have the part number appended
+        final String[] numbers = name.substring(prefix.length(), name.length() - SUFFIX.length()).split("-");
+        try {
+            return Long.parseLong(numbers[0]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void move(final File from, final File to) throws IOException {
+        Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static byte[] encode(final Data value) {
+        final AlternativeCompositeByteBuf buf = AlternativeCompositeByteBuf.compBuffer();
+        try {
+            value.encode(buf);
+            final byte[] me = new byte[buf.readableBytes()];
+            buf.getBytes(buf.readerIndex(), me);
+            return me;
+        } finally {
+            buf.release();
+        }
+    }
+
+    private Data decode(final byte[] me) throws IOException {
+        final ByteBuf buf = Unpooled.wrappedBuffer(me);
+        final Data data = Data.decodeHeader(buf, signatureFactory);
+        if (data == null || !data.decodeBuffer(buf) || !data.decodeDone(buf, null)) {
+            throw new IOException("corrupt data");
+        }
+        return data;
+    }
+
+    private static int crc(final byte[] body) {
+        final CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    private static void writeBytes(final DataOutputStream out, final byte[] me) throws IOException {
+        out.writeInt(me.length);
+        out.write(me);
+    }
+
+    private static byte[] readBytes(final DataInputStream in) throws IOException {
+        final byte[] me = new byte[in.readInt()];
+        in.readFully(me);
+        return me;
+    }
+
+    private static void writeKey(final DataOutputStream out, final Number640 key) throws IOException {
+        out.write(key.getLocationKey().toByteArray());
+        out.write(key.getDomainKey().toByteArray());
+        out.write(key.getContentKey().toByteArray());
+        out.write(key.getVersionKey().toByteArray());
+    }
+
+    private static Number640 readKey(final DataInputStream in) throws IOException {
+        return new Number640(readNumber160(in), readNumber160(in), readNumber160(in), readNumber160(in));
+    }
+
+    private static Number160 readNumber160(final DataInputStream in) throws IOException {
+        final byte[] me = new byte[Number160.BYTE_ARRAY_SIZE];
+        in.readFully(me);
+        return new Number160(me);
+    }
+
+    private static void writePublicKey(final DataOutputStream out, final PublicKey publicKey) throws IOException {
+        final byte[] encoded = publicKey == null ? null : publicKey.getEncoded();
+        if (encoded == null) {
+            out.writeInt(-1);
+        } else {
+            writeBytes(out, encoded);
+        }
+    }
+
+    private PublicKey readPublicKey(final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] me = new byte[length];
+        in.readFully(me);
+        return signatureFactory.decodePublicKey(me);
+    }
+}
@@ -0,0 +1,600 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import java.security.PublicKey;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number320;
+import net.tomp2p.peers.Number480;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.peers.PackedNumber640;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A storage that keeps the hot entries in memory on top of a persistent storage, e.g., StorageDisk. Writes are
+ * acknowledged from memory and written behind to the persistent storage in batches. Reads are served from memory if
+ * the entry is hot or not written yet, otherwise the entry is read from the persistent storage and promoted. If there
+ * are more hot entries than allowed, the eviction policy demotes entries based on their access statistics. Demoting
+ * an entry only drops it from memory, as it is in the persistent storage already or waiting to be written.
+ * <p>
+ * Only the payloads are written behind. Timeouts, protection, and responsibilities are small and are passed to the
+ * persistent storage right away. Call {@link #init(int)} to flush periodically, and {@link #close()} to flush the
+ * remaining writes.
+ * <p>
+ * Reads do not need a lock. A read that promotes an entry from the persistent storage demotes it again if any write
+ * happened meanwhile, so a stale value never stays in memory.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class StorageTiered implements Storage {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StorageTiered.class);
+
+    public static final int DEFAULT_MAX_HOT_ENTRIES = 10000;
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    public static final int DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+
+    private final Storage cold;
+    private final int maxHotEntries;
+    private final int batchSize;
+    private final int maxPending;
+    private final EvictionPolicy hotPolicy;
+
+    // the cached entries, packed since Number640.equals ignores the version key
+    private final Map<PackedNumber640, Data> hot = new ConcurrentHashMap<PackedNumber640, Data>();
+
+    // the writes that are not in the persistent storage yet, sorted to overlay ranges
+    private final ConcurrentSkipListMap<Number640, Write> pending = new ConcurrentSkipListMap<Number640, Write>();
+    private final AtomicInteger pendingCounter = new AtomicInteger();
+
+    // counts all writes, a read that promotes checks if it raced with a write
+    private final AtomicLong writes = new AtomicLong();
+
+    // only one flush at a time, otherwise an older value could overwrite a newer one
+    private final Object flushLock = new Object();
+
+    // runs the periodic flush, so that writing to disk does not delay the timer of the peer
+    private ScheduledExecutorService executor = null;
+
+    /**
+     * Creates a tiered storage with 10000 hot entries, batches of 1000 writes, and a TinyLFU policy.
+     * 
+     * @param cold
+     *            The persistent storage
+     */
+    public StorageTiered(final Storage cold) {
+        this(cold, DEFAULT_MAX_HOT_ENTRIES, DEFAULT_BATCH_SIZE, new TinyLFUEvictionPolicy());
+    }
+
+    /**
+     * @param cold
+     *            The persistent storage
+     * @param maxHotEntries
+     *            The maximum number of entries kept in memory, not counting the writes that are not flushed yet
+     * @param batchSize
+     *            The number of writes that are flushed at once. If ten times more writes are pending, the writer
+     *            flushes a batch itself
+     * @param hotPolicy
+     *            The policy that selects the entries to demote
+     */
+    public StorageTiered(final Storage cold, final int maxHotEntries, final int batchSize,
+            final EvictionPolicy hotPolicy) {
+        if (maxHotEntries < 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("hot entries and batch size must be positive");
+        }
+        this.cold = cold;
+        this.maxHotEntries = maxHotEntries;
+        this.batchSize = batchSize;
+        this.maxPending = batchSize * 10;
+        this.hotPolicy = hotPolicy;
+    }
+
+    // Core
+    @Override
+    public boolean put(final Number640 key, final Data value) {
+        write(key, value);
+        promote(key, value);
+        if (pendingCounter.get() > maxPending) {
+            // the flusher does not keep up, slow down the writers
+            flushBatch();
+        }
+        return true;
+    }
+
+    @Override
+    public Data get(final Number640 key) {
+        final long writesBefore = writes.get();
+        final Write write = pending.get(key);
+        if (write != null) {
+            return write.data;
+        }
+        final Data hotData = hot.get(new PackedNumber640(key));
+        if (hotData != null) {
+            hotPolicy.access(key);
+            return hotData;
+        }
+        final Data coldData = cold.get(key);
+        if (coldData != null) {
+            promote(key, coldData);
+            if (writes.get() != writesBefore) {
+                // a write may have stored a newer value before the promotion, drop ours
+                demote(key);
+            }
+        }
+        return coldData;
+    }
+
+    @Override
+    public boolean contains(final Number640 key) {
+        final Write write = pending.get(key);
+        if (write != null) {
+            return write.data != null;
+        }
+        return hot.containsKey(new PackedNumber640(key)) || cold.contains(key);
+    }
+
+    @Override
+    public int contains(final Number640 fromKey, final Number640 toKey) {
+        return subMap(fromKey, toKey, -1, true).size();
+    }
+
+    @Override
+    public Data remove(final Number640 key) {
+        final Write write = pending.get(key);
+        Data data;
+        if (write != null) {
+            data = write.data;
+        } else {
+            data = hot.get(new PackedNumber640(key));
+            if (data == null) {
+                data = cold.get(key);
+            }
+        }
+        if (data == null) {
+            return null;
+        }
+        write(key, null);
+        demote(key);
+        return data;
+    }
+
+    @Override
+    public NavigableMap<Number640, Data> remove(final Number640 fromKey, final Number640 toKey) {
+        final NavigableMap<Number640, Data> removed = subMap(fromKey, toKey, -1, true);
+        for (Number640 key : removed.keySet()) {
+            write(key, null);
+            demote(key);
+        }
+        return removed;
+    }
+
+    @Override
+    public Collection<Number640> putAll(final Map<Number640, Data> values) {
+        for (Map.Entry<Number640, Data> entry : values.entrySet()) {
+            write(entry.getKey(), entry.getValue());
+            promote(entry.getKey(), entry.getValue());
+        }
+        if (pendingCounter.get() > maxPending) {
+            flushBatch();
+        }
+        return Collections.<Number640> emptyList();
+    }
+
+    @Override
+    public NavigableMap<Number640, Data> removeAll(final Collection<Number640> keys) {
+        final NavigableMap<Number640, Data> removed = new TreeMap<Number640, Data>();
+        for (Number640 key : keys) {
+            final Data data = remove(key);
+            if (data != null) {
+                removed.put(key, data);
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public NavigableMap<Number640, Data> subMap(final Number640 fromKey, final Number640 toKey, final int limit,
+            final boolean ascending) {
+        final NavigableMap<Number640, Write> overlay = pending.subMap(fromKey, true, toKey, true);
+        // each pending write can hide at most one entry of the persistent storage
+        final int coldLimit = limit < 0 ? -1 : limit + overlay.size();
+        final NavigableMap<Number640, Data> result = new TreeMap<Number640, Data>(cold.subMap(fromKey, toKey,
+                coldLimit, ascending));
+        apply(result, overlay);
+        if (limit < 0 || result.size() <= limit) {
+            return result;
+        }
+        final NavigableMap<Number640, Data> retVal = new TreeMap<Number640, Data>();
+        final Iterator<Map.Entry<Number640, Data>> iterator = ascending ? result.entrySet().iterator() : result
+                .descendingMap().entrySet().iterator();
+        while (iterator.hasNext() && retVal.size() < limit) {
+            final Map.Entry<Number640, Data> entry = iterator.next();
+            retVal.put(entry.getKey(), entry.getValue());
+        }
+        return retVal;
+    }
+
+    @Override
+    public NavigableMap<Number640, Data> map() {
+        final NavigableMap<Number640, Data> result = new TreeMap<Number640, Data>(cold.map());
+        apply(result, pending);
+        return result;
+    }
+
+    @Override
+    public Iterator<Map.Entry<Number640, Data>> iterator(final Number640 fromKey, final Number640 toKey,
+            final boolean ascending) {
+        // a scan does not promote, so it does not push the hot entries out
+        final NavigableMap<Number640, Write> overlay = pending.subMap(fromKey, true, toKey, true);
+        return new OverlayIterator(cold.iterator(fromKey, toKey, ascending), ascending ? overlay.entrySet()
+                .iterator() : overlay.descendingMap().entrySet().iterator(), ascending);
+    }
+
+    @Override
+    public boolean isConcurrent() {
+        // a get that races with a write does not keep its promotion, the persistent storage is read concurrently
+        // anyway, as the flush does not hold the locks of StorageLayer
+        return cold.isConcurrent();
+    }
+
+    @Override
+    public void close() {
+        final ScheduledExecutorService executor;
+        synchronized (this) {
+            executor = this.executor;
+            this.executor = null;
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+        flush();
+        hot.clear();
+        hotPolicy.clear();
+        cold.close();
+    }
+
+    /**
+     * Writes all pending writes to the persistent storage.
+     */
+    public void flush() {
+        while (flushBatch() > 0) {
+            // until nothing is pending
+        }
+    }
+
+    /**
+     * Writes up to one batch of pending writes to the persistent storage.
+     * 
+     * @return The number of writes that have been flushed
+     */
+    public int flushBatch() {
+        synchronized (flushLock) {
+            final List<Map.Entry<Number640, Write>> batch = new ArrayList<Map.Entry<Number640, Write>>(batchSize);
+            for (Map.Entry<Number640, Write> entry : pending.entrySet()) {
+                if (batch.size() >= batchSize) {
+                    break;
+                }
+                batch.add(entry);
+            }
+            // one call each for the removes and the puts, so that a disk storage writes them at once
+            final List<Number640> removes = new ArrayList<Number640>();
+            final NavigableMap<Number640, Data> puts = new TreeMap<Number640, Data>();
+            for (Map.Entry<Number640, Write> entry : batch) {
+                if (entry.getValue().data == null) {
+                    removes.add(entry.getKey());
+                } else {
+                    puts.put(entry.getKey(), entry.getValue().data);
+                }
+            }
+            if (!removes.isEmpty()) {
+                cold.removeAll(removes);
+            }
+            // sorted by the full key, as Number640.equals ignores the version key
+            final NavigableSet<Number640> failed = new TreeSet<Number640>();
+            if (!puts.isEmpty()) {
+                failed.addAll(cold.putAll(puts));
+            }
+            if (!failed.isEmpty()) {
+                LOG.warn("could not write {} entries, keep them in memory and try again", failed.size());
+            }
+            int flushed = 0;
+            for (Map.Entry<Number640, Write> entry : batch) {
+                final Write write = entry.getValue();
+                if (write.data != null && failed.contains(entry.getKey())) {
+                    continue;
+                }
+                flushed++;
+                // only remove if there was no new write meanwhile, a write is compared by identity
+                if (pending.remove(entry.getKey(), write)) {
+                    pendingCounter.decrementAndGet();
+                }
+            }
+            return flushed;
+        }
+    }
+
+    /**
+     * @return The number of writes that are not in the persistent storage yet
+     */
+    public int pending() {
+        return pendingCounter.get();
+    }
+
+    /**
+     * @return The number of entries kept in memory, not counting the pending writes
+     */
+    public int hotEntries() {
+        return hot.size();
+    }
+
+    private class FlushTask implements Runnable {
+        @Override
+        public void run() {
+            try {
+                flush();
+            } catch (Throwable t) {
+                LOG.error("flush failed", t);
+            }
+        }
+    }
+
+    /**
+     * Starts the periodic flush on a thread of its own.
+     * 
+     * @param flushIntervalMillis
+     *            The time between two flushes
+     */
+    public synchronized void init(final int flushIntervalMillis) {
+        if (executor != null) {
+            throw new IllegalStateException("already initialized");
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "TomP2P tiered flush");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new FlushTask(), flushIntervalMillis, flushIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void write(final Number640 key, final Data data) {
+        // counted before the entry is promoted or demoted, see get
+        writes.incrementAndGet();
+        if (pending.put(key, new Write(data)) == null) {
+            pendingCounter.incrementAndGet();
+        }
+    }
+
+    private void promote(final Number640 key, final Data data) {
+        final PackedNumber640 packed = new PackedNumber640(key);
+        if (!hot.containsKey(packed) && hot.size() >= maxHotEntries && !hotPolicy.admit(key)) {
+            // not popular enough to replace a hot entry, served from the pending writes or the persistent storage
+            return;
+        }
+        hot.put(packed, data);
+        hotPolicy.put(key);
+        while (hot.size() > maxHotEntries) {
+            final Number640 victim = hotPolicy.victim();
+            if (victim == null) {
+                return;
+            }
+            demote(victim);
+        }
+    }
+
+    private void demote(final Number640 key) {
+        hotPolicy.remove(key);
+        hot.remove(new PackedNumber640(key));
+    }
+
+    private static void apply(final NavigableMap<Number640, Data> result, final Map<Number640, Write> overlay) {
+        for (Map.Entry<Number640, Write> entry : overlay.entrySet()) {
+            if (entry.getValue().data == null) {
+                result.remove(entry.getKey());
+            } else {
+                result.put(entry.getKey(), entry.getValue().data);
+            }
+        }
+    }
+
+    /**
+     * Merges the entries of the persistent storage with the pending writes, a pending write hides the entry with the
+     * same key.
+     */
+    private static final class OverlayIterator implements Iterator<Map.Entry<Number640, Data>> {
+        private final Iterator<Map.Entry<Number640, Data>> coldIterator;
+        private final Iterator<Map.Entry<Number640, Write>> pendingIterator;
+        private final boolean ascending;
+        private Map.Entry<Number640, Data> coldNext;
+        private Map.Entry<Number640, Write> pendingNext;
+        private Map.Entry<Number640, Data> next;
+
+        private OverlayIterator(final Iterator<Map.Entry<Number640, Data>> coldIterator,
+                final Iterator<Map.Entry<Number640, Write>> pendingIterator, final boolean ascending) {
+            this.coldIterator = coldIterator;
+            this.pendingIterator = pendingIterator;
+            this.ascending = ascending;
+            this.coldNext = next(coldIterator);
+            this.pendingNext = next(pendingIterator);
+            this.next = advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<Number640, Data> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            final Map.Entry<Number640, Data> retVal = next;
+            next = advance();
+            return retVal;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private Map.Entry<Number640, Data> advance() {
+            while (coldNext != null || pendingNext != null) {
+                int compare;
+                if (pendingNext == null) {
+                    compare = -1;
+                } else if (coldNext == null) {
+                    compare = 1;
+                } else {
+                    compare = coldNext.getKey().compareTo(pendingNext.getKey());
+                    compare = ascending ? compare : -compare;
+                }
+                if (compare < 0) {
+                    final Map.Entry<Number640, Data> retVal = coldNext;
+                    coldNext = next(coldIterator);
+                    return retVal;
+                }
+                final Map.Entry<Number640, Write> write = pendingNext;
+                pendingNext = next(pendingIterator);
+                if (compare == 0) {
+                    coldNext = next(coldIterator);
+                }
+                if (write.getValue().data != null) {
+                    return new AbstractMap.SimpleImmutableEntry<Number640, Data>(write.getKey(),
+                            write.getValue().data);
+                }
+            }
+            return null;
+        }
+
+        private static <K, V> Map.Entry<K, V> next(final Iterator<Map.Entry<K, V>> iterator) {
+            return iterator.hasNext() ? iterator.next() : null;
+        }
+    }
+
+    /**
+     * A pending write, null data for a remove.
+     */
+    private static final class Write {
+        private final Data data;
+
+        private Write(final Data data) {
+            this.data = data;
+        }
+    }
+
+    // Maintenance, passed to the persistent storage
+    @Override
+    public void addTimeout(final Number640 key, final long expiration) {
+        cold.addTimeout(key, expiration);
+    }
+
+    @Override
+    public void removeTimeout(final Number640 key) {
+        cold.removeTimeout(key);
+    }
+
+    @Override
+    public void addTimeouts(final Map<Number640, Long> expirations) {
+        cold.addTimeouts(expirations);
+    }
+
+    @Override
+    public void removeTimeouts(final Collection<Number640> keys) {
+        cold.removeTimeouts(keys);
+    }
+
+    @Override
+    public Collection<Number640> subMapTimeout(final long to) {
+        return cold.subMapTimeout(to);
+    }
+
+    @Override
+    public Collection<Number640> subMapTimeout(final long to, final int limit) {
+        return cold.subMapTimeout(to, limit);
+    }
+
+    // Protection, passed to the persistent storage
+    @Override
+    public boolean protectDomain(final Number320 key, final PublicKey publicKey) {
+        return cold.protectDomain(key, publicKey);
+    }
+
+    @Override
+    public boolean isDomainProtectedByOthers(final Number320 key, final PublicKey publicKey) {
+        return cold.isDomainProtectedByOthers(key, publicKey);
+    }
+
+    @Override
+    public boolean protectEntry(final Number480 key, final PublicKey publicKey) {
+        return cold.protectEntry(key, publicKey);
+    }
+
+    @Override
+    public boolean isEntryProtectedByOthers(final Number480 key, final PublicKey publicKey) {
+        return cold.isEntryProtectedByOthers(key, publicKey);
+    }
+
+    // Replication, passed to the persistent storage
+    @Override
+    public Number160 findPeerIDForResponsibleContent(final Number160 locationKey) {
+        return cold.findPeerIDForResponsibleContent(locationKey);
+    }
+
+    @Override
+    public Collection<Number160> findContentForResponsiblePeerID(final Number160 peerID) {
+        return cold.findContentForResponsiblePeerID(peerID);
+    }
+
+    @Override
+    public boolean updateResponsibilities(final Number160 locationKey, final Number160 peerId) {
+        return cold.updateResponsibilities(locationKey, peerId);
+    }
+
+    @Override
+    public void removeResponsibility(final Number160 locationKey) {
+        cold.removeResponsibility(locationKey);
+    }
+}
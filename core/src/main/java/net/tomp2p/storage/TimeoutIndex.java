@@ -0,0 +1,69 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import java.util.Collection;
+
+import net.tomp2p.peers.Number640;
+
+/**
+ * Keeps track of the expiration times of the stored entries. Used by {@link StorageMemory} to implement
+ * {@link Storage#addTimeout(Number640, long)}, {@link Storage#removeTimeout(Number640)}, and
+ * {@link Storage#subMapTimeout(long, int)}.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public interface TimeoutIndex {
+
+    /**
+     * Adds or reschedules the expiration of a key.
+     * 
+     * @param key
+     *            The key
+     * @param expiration
+     *            The expiration time in milliseconds, {@link Long#MAX_VALUE} if the key never expires
+     */
+    void add(Number640 key, long expiration);
+
+    /**
+     * @param key
+     *            The key that should not expire anymore
+     */
+    void remove(Number640 key);
+
+    /**
+     * Returns the keys that expire before the given time. The keys are not removed from the index, this needs to be
+     * done with {@link #remove(Number640)} once the entry has been removed.
+     * 
+     * @param to
+     *            The time in milliseconds, exclusive
+     * @param limit
+     *            The maximum number of keys to return, or -1 for all
+     * @return The expired keys
+     */
+    Collection<Number640> expired(long to, int limit);
+
+    /**
+     * @param key
+     *            The key
+     * @return The expiration time of the key, or {@link Long#MAX_VALUE} if the key does not expire
+     */
+    long expiration(Number640 key);
+
+    void clear();
+}
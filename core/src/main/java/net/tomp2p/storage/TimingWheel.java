@@ -0,0 +1,243 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import net.tomp2p.peers.Number640;
+import net.tomp2p.peers.PackedNumber640;
+import net.tomp2p.utils.Timings;
+
+/**
+ * A hashed timing wheel as timeout index. The expiration times are rounded to ticks, and each tick maps to one of
+ * wheelSize buckets. Adding or rescheduling a key is O(1) and does not create a sorted structure per expiration time.
+ * When the wheel is advanced, the buckets that have passed are scanned and the due keys are moved to an overdue set,
+ * where they stay until they are removed. Entries that expire in a later round of the wheel stay in their bucket.
+ * <p>
+ * Calls to {@link #add(Number640, long)} and {@link #remove(Number640)} for the same key must not run concurrently,
+ * which {@link StorageLayer} guarantees with its key lock.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class TimingWheel implements TimeoutIndex {
+
+    public static final int DEFAULT_TICK_MILLIS = 1000;
+
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private final long tickMillis;
+    private final int mask;
+    private final Set<PackedNumber640>[] buckets;
+    private final Set<PackedNumber640> overdue = newSet();
+    private final Map<PackedNumber640, Long> expirations = new ConcurrentHashMap<PackedNumber640, Long>();
+
+    // add and remove use the read lock, only advancing the cursor needs the write lock
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // all keys that expire before cursor * tickMillis are in the overdue set, all others in their bucket
+    private long cursor;
+
+    /**
+     * Creates a timing wheel with 512 buckets of 1 second.
+     */
+    public TimingWheel() {
+        this(DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param tickMillis
+     *            The time span of one bucket in milliseconds
+     * @param wheelSize
+     *            The number of buckets, needs to be a power of two
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public TimingWheel(final int tickMillis, final int wheelSize) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tick must be positive");
+        }
+        if (wheelSize <= 0 || (wheelSize & (wheelSize - 1)) != 0) {
+            throw new IllegalArgumentException("wheel size must be a power of two");
+        }
+        this.tickMillis = tickMillis;
+        this.mask = wheelSize - 1;
+        this.buckets = new Set[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            buckets[i] = newSet();
+        }
+        this.cursor = Timings.currentTimeMillis() / tickMillis;
+    }
+
+    @Override
+    public void add(final Number640 key, final long expiration) {
+        if (expiration == Long.MAX_VALUE) {
+            // never expires, nothing to track
+            remove(key);
+            return;
+        }
+        final PackedNumber640 packed = new PackedNumber640(key);
+        lock.readLock().lock();
+        try {
+            final Long oldExpiration = expirations.put(packed, expiration);
+            if (oldExpiration != null) {
+                slot(oldExpiration).remove(packed);
+            }
+            slot(expiration).add(packed);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void remove(final Number640 key) {
+        final PackedNumber640 packed = new PackedNumber640(key);
+        lock.readLock().lock();
+        try {
+            final Long expiration = expirations.remove(packed);
+            if (expiration != null) {
+                slot(expiration).remove(packed);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Collection<Number640> expired(final long to, final int limit) {
+        lock.writeLock().lock();
+        try {
+            // never move the cursor past the current time, otherwise new entries would be overdue right away
+            final long newCursor = Math.min(to / tickMillis, Timings.currentTimeMillis() / tickMillis);
+            if (newCursor > cursor) {
+                advance(newCursor);
+            }
+            final Collection<Number640> result = new ArrayList<Number640>();
+            if (!collect(overdue, to, limit, result)) {
+                return result;
+            }
+            final long lastTick = (to - 1) / tickMillis;
+            if (lastTick < cursor) {
+                return result;
+            }
+            if (lastTick - cursor >= mask) {
+                for (Set<PackedNumber640> bucket : buckets) {
+                    if (!collect(bucket, to, limit, result)) {
+                        return result;
+                    }
+                }
+            } else {
+                for (long tick = cursor; tick <= lastTick; tick++) {
+                    if (!collect(buckets[index(tick)], to, limit, result)) {
+                        return result;
+                    }
+                }
+            }
+            return result;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public long expiration(final Number640 key) {
+        final Long expiration = expirations.get(new PackedNumber640(key));
+        return expiration == null ? Long.MAX_VALUE : expiration;
+    }
+
+    @Override
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            expirations.clear();
+            overdue.clear();
+            for (Set<PackedNumber640> bucket : buckets) {
+                bucket.clear();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Moves the keys of the buckets between the cursor and the new cursor to the overdue set. If the wheel turned
+     * more than once, every bucket is scanned exactly once.
+     */
+    private void advance(final long newCursor) {
+        final long due = newCursor * tickMillis;
+        if (newCursor - cursor > mask) {
+            for (Set<PackedNumber640> bucket : buckets) {
+                moveDue(bucket, due);
+            }
+        } else {
+            for (long tick = cursor; tick < newCursor; tick++) {
+                moveDue(buckets[index(tick)], due);
+            }
+        }
+        cursor = newCursor;
+    }
+
+    private void moveDue(final Set<PackedNumber640> bucket, final long due) {
+        for (Iterator<PackedNumber640> iterator = bucket.iterator(); iterator.hasNext();) {
+            final PackedNumber640 key = iterator.next();
+            final Long expiration = expirations.get(key);
+            if (expiration == null) {
+                iterator.remove();
+            } else if (expiration < due) {
+                iterator.remove();
+                overdue.add(key);
+            }
+        }
+    }
+
+    /**
+     * @return False if the limit has been reached
+     */
+    private boolean collect(final Set<PackedNumber640> set, final long to, final int limit,
+            final Collection<Number640> result) {
+        for (PackedNumber640 key : set) {
+            if (limit >= 0 && result.size() >= limit) {
+                return false;
+            }
+            final Long expiration = expirations.get(key);
+            if (expiration != null && expiration < to) {
+                result.add(key.toNumber640());
+            }
+        }
+        return true;
+    }
+
+    private Set<PackedNumber640> slot(final long expiration) {
+        final long tick = expiration / tickMillis;
+        return tick < cursor ? overdue : buckets[index(tick)];
+    }
+
+    private int index(final long tick) {
+        return (int) (tick & mask);
+    }
+
+    private static Set<PackedNumber640> newSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<PackedNumber640, Boolean>());
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.tomp2p.peers.Number640;
+
+/**
+ * An LRU policy with a TinyLFU admission filter. The access frequencies are estimated with a small count-min sketch
+ * that is halved periodically, so old popularity fades. If the storage is full, a new key is only admitted if it is
+ * accessed at least as frequently as the least recently used entry, which is then evicted. Thus, a scan over many
+ * keys that are accessed only once does not flush the popular entries.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class TinyLFUEvictionPolicy implements EvictionPolicy {
+
+    public static final int DEFAULT_SKETCH_SIZE = 1 << 16;
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+    // access ordered, the eldest entry is the least recently used
+    private final Map<EvictionKey, Boolean> order = new LinkedHashMap<EvictionKey, Boolean>(16, 0.75f, true);
+
+    private final int[][] counters;
+    private final int mask;
+    private final int sampleSize;
+    private int additions = 0;
+
+    /**
+     * Creates a policy with a sketch of 65536 counters per row.
+     */
+    public TinyLFUEvictionPolicy() {
+        this(DEFAULT_SKETCH_SIZE);
+    }
+
+    /**
+     * @param sketchSize
+     *            The number of counters per row of the sketch, needs to be a power of two. Should be in the order of
+     *            the number of entries in the storage
+     */
+    public TinyLFUEvictionPolicy(final int sketchSize) {
+        if (sketchSize <= 0 || (sketchSize & (sketchSize - 1)) != 0) {
+            throw new IllegalArgumentException("sketch size must be a power of two");
+        }
+        this.counters = new int[DEPTH][sketchSize];
+        this.mask = sketchSize - 1;
+        this.sampleSize = sketchSize * 10;
+    }
+
+    @Override
+    public synchronized void put(final Number640 key) {
+        increment(key);
+        order.put(new EvictionKey(key), Boolean.TRUE);
+    }
+
+    @Override
+    public synchronized boolean admit(final Number640 key) {
+        final Iterator<EvictionKey> iterator = order.keySet().iterator();
+        // an admitted key is counted by the put that follows
+        if (!iterator.hasNext() || frequency(key) + 1 >= frequency(iterator.next().key())) {
+            return true;
+        }
+        // rejected keys are counted as well, so a key that is stored often gets in eventually
+        increment(key);
+        return false;
+    }
+
+    @Override
+    public synchronized void access(final Number640 key) {
+        increment(key);
+        order.get(new EvictionKey(key));
+    }
+
+    @Override
+    public synchronized void remove(final Number640 key) {
+        order.remove(new EvictionKey(key));
+    }
+
+    @Override
+    public synchronized Number640 victim() {
+        final Iterator<EvictionKey> iterator = order.keySet().iterator();
+        return iterator.hasNext() ? iterator.next().key() : null;
+    }
+
+    @Override
+    public synchronized void clear() {
+        order.clear();
+        for (int[] row : counters) {
+            Arrays.fill(row, 0);
+        }
+        additions = 0;
+    }
+
+    /**
+     * @return The estimated frequency of the key
+     */
+    synchronized int frequency(final Number640 key) {
+        int min = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            min = Math.min(min, counters[i][index(key, i)]);
+        }
+        return min;
+    }
+
+    private void increment(final Number640 key) {
+        for (int i = 0; i < DEPTH; i++) {
+            final int index = index(key, i);
+            if (counters[i][index] < MAX_COUNT) {
+                counters[i][index]++;
+            }
+        }
+        if (++additions >= sampleSize) {
+            // aging, halve all counters
+            for (int[] row : counters) {
+                for (int j = 0; j < row.length; j++) {
+                    row[j] >>>= 1;
+                }
+            }
+            additions /= 2;
+        }
+    }
+
+    private int index(final Number640 key, final int row) {
+        int hash = key.hashCode() * SEEDS[row];
+        hash ^= hash >>> 16;
+        return hash & mask;
+    }
+}
@@ -221,6 +221,22 @@ public class TrackerStorage implements PeerStatusListener, Digest, ReplicationSt
         return false;
     }
 
+    /**
+     * @return The mesh peers, used by {@link StorageSnapshot}
+     */
+    ConcurrentMap<Number320, TrackerData> meshData() {
+        return trackerDataMesh;
+    }
+
+    /**
+     * Stores a mesh peer from a snapshot. No identity check is done, since this has been done when the peer was
+     * stored originally.
+     */
+    boolean restoreMesh(Number320 key, PeerAddress peerAddress, Data attachement) {
+        return storeData(peerAddress, attachement, peerAddress.getPeerId(), key, trackerDataMesh,
+                reverseTrackerDataMesh, getPrimanyFactor());
+    }
+
     private boolean isOffline(PeerAddress peerAddress) {
         // TODO: always trust myself, do a majority voting for others
         if (peerOffline.containsKey(peerAddress.getPeerId()))
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+
+/**
+ * A secondary index over {@link Data#basedOn()}. A version is based on an other version with the same location,
+ * domain, and content key, whose version key is the basedOn value. The index keeps track of the versions based on each
+ * version, and of the heads, which are the stored versions that no stored version is based on. Thus, the latest
+ * versions of a range and the successors of a version can be found without reading the data. Sorted collections are
+ * used, since {@link Number640#equals(Object)} ignores the version key.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class VersionIndex {
+
+    // the version each stored entry is based on, null if it is not based on any version
+    private final Map<Number640, Number160> basedOn = new TreeMap<Number640, Number160>();
+
+    // the stored entries that are based on the version in the key
+    private final Map<Number640, Set<Number640>> successors = new TreeMap<Number640, Set<Number640>>();
+
+    // the stored entries no stored entry is based on
+    private final NavigableSet<Number640> heads = new TreeSet<Number640>();
+
+    /**
+     * Adds a stored entry, or replaces it if it was already stored.
+     * 
+     * @param key
+     *            The key of the entry
+     * @param basedOnVersion
+     *            The version key this entry is based on, or null
+     */
+    public synchronized void put(final Number640 key, final Number160 basedOnVersion) {
+        remove(key);
+        basedOn.put(key, basedOnVersion);
+        if (basedOnVersion != null) {
+            final Number640 parent = parent(key, basedOnVersion);
+            Set<Number640> set = successors.get(parent);
+            if (set == null) {
+                set = new TreeSet<Number640>();
+                successors.put(parent, set);
+            }
+            set.add(key);
+            heads.remove(parent);
+        }
+        if (!successors.containsKey(key)) {
+            heads.add(key);
+        }
+    }
+
+    /**
+     * Removes a stored entry. If it was the only version based on its parent, the parent becomes a head again.
+     * 
+     * @param key
+     *            The key of the entry
+     */
+    public synchronized void remove(final Number640 key) {
+        if (!basedOn.containsKey(key)) {
+            return;
+        }
+        final Number160 basedOnVersion = basedOn.remove(key);
+        heads.remove(key);
+        if (basedOnVersion != null) {
+            final Number640 parent = parent(key, basedOnVersion);
+            final Set<Number640> set = successors.get(parent);
+            if (set != null) {
+                set.remove(key);
+                if (set.isEmpty()) {
+                    successors.remove(parent);
+                    if (basedOn.containsKey(parent)) {
+                        heads.add(parent);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param from
+     *            The first key, inclusive
+     * @param to
+     *            The last key, inclusive
+     * @return A copy of the heads within this range, sorted
+     */
+    public synchronized NavigableSet<Number640> heads(final Number640 from, final Number640 to) {
+        return new TreeSet<Number640>(heads.subSet(from, true, to, true));
+    }
+
+    /**
+     * @param key
+     *            The key of a version
+     * @return A copy of the stored versions that are based on this version
+     */
+    public synchronized Collection<Number640> successors(final Number640 key) {
+        final Set<Number640> set = successors.get(key);
+        return set == null ? Collections.<Number640> emptySet() : new TreeSet<Number640>(set);
+    }
+
+    /**
+     * @param key
+     *            The key of a version
+     * @return True if the version is stored and no stored version is based on it
+     */
+    public synchronized boolean isHead(final Number640 key) {
+        return heads.contains(key);
+    }
+
+    public synchronized int size() {
+        return basedOn.size();
+    }
+
+    public synchronized void clear() {
+        basedOn.clear();
+        successors.clear();
+        heads.clear();
+    }
+
+    private static Number640 parent(final Number640 key, final Number160 basedOnVersion) {
+        return new Number640(key.getLocationKey(), key.getDomainKey(), key.getContentKey(), basedOnVersion);
+    }
+}
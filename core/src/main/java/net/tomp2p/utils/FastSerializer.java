@@ -0,0 +1,385 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.utils;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+
+/**
+ * A schema-less binary serializer, to be enabled with {@link net.tomp2p.p2p.PeerMaker#serializer(Serializer)}. Every value starts with a tag byte, followed by its fixed size
+ * value or by a length and the elements. Strings, primitive wrappers, byte arrays, keys, and the collections
+ * {@link ArrayList}, {@link HashSet}, {@link HashMap}, and {@link TreeMap} with natural ordering are written
+ * directly. Other classes can be registered with an id and a {@link ClassCodec}, so that only the id is sent instead of
+ * the class name. All other objects fall back to Java serialization.
+ * 
+ * Objects encoded with Java serialization, e.g., data stored by an older version, are still decoded. Peers that do
+ * not use this serializer cannot decode its objects, so it should only be enabled once all peers of the network
+ * have been upgraded. Sizes are checked against the remaining bytes, so a corrupt buffer fails with an
+ * {@link IOException} instead of allocating a huge array.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class FastSerializer implements Serializer {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // the first two bytes of a Java serialization stream, no tag uses 0xac
+    private static final int JAVA_MAGIC = 0xaced;
+
+    private static final int NULL = 0;
+    private static final int TRUE = 1;
+    private static final int FALSE = 2;
+    private static final int BYTE = 3;
+    private static final int SHORT = 4;
+    private static final int INTEGER = 5;
+    private static final int LONG = 6;
+    private static final int FLOAT = 7;
+    private static final int DOUBLE = 8;
+    private static final int CHARACTER = 9;
+    private static final int STRING = 10;
+    private static final int BYTE_ARRAY = 11;
+    private static final int NUMBER160 = 12;
+    private static final int NUMBER640 = 13;
+    private static final int ARRAY_LIST = 14;
+    private static final int HASH_SET = 15;
+    private static final int HASH_MAP = 16;
+    private static final int TREE_MAP = 17;
+    private static final int REGISTERED = 18;
+    private static final int JAVA = 19;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final Map<Class<?>, Registration<?>> byClass = new ConcurrentHashMap<Class<?>, Registration<?>>();
+    private final Map<Integer, Registration<?>> byId = new ConcurrentHashMap<Integer, Registration<?>>();
+
+    /**
+     * Encodes and decodes the instances of a registered class.
+     * 
+     * @param <T>
+     *            The registered class
+     */
+    public interface ClassCodec<T> {
+        /**
+         * @param object
+         *            The object to encode
+         * @param buf
+         *            The buffer to write to
+         * @param serializer
+         *            The serializer to encode nested objects with {@link FastSerializer#write(Object, ByteBuf)}
+         * @throws IOException
+         *             If the object cannot be encoded
+         */
+        void encode(T object, ByteBuf buf, FastSerializer serializer) throws IOException;
+
+        /**
+         * @param buf
+         *            The buffer to read from
+         * @param serializer
+         *            The serializer to decode nested objects with {@link FastSerializer#read(ByteBuf)}
+         * @return The decoded object
+         * @throws ClassNotFoundException
+         *             If the class of a nested object is not known
+         * @throws IOException
+         *             If the object cannot be decoded
+         */
+        T decode(ByteBuf buf, FastSerializer serializer) throws ClassNotFoundException, IOException;
+    }
+
+    private static final class Registration<T> {
+        private final int id;
+        private final Class<T> type;
+        private final ClassCodec<T> codec;
+
+        private Registration(final int id, final Class<T> type, final ClassCodec<T> codec) {
+            this.id = id;
+            this.type = type;
+            this.codec = codec;
+        }
+
+        private void encode(final Object object, final ByteBuf buf, final FastSerializer serializer)
+                throws IOException {
+            codec.encode(type.cast(object), buf, serializer);
+        }
+    }
+
+    /**
+     * Registers a class, whose instances are sent with the id instead of the class name. All peers need to register
+     * the same classes with the same ids.
+     * 
+     * @param id
+     *            The id of the class
+     * @param type
+     *            The class, subclasses are not covered
+     * @param codec
+     *            The codec for the instances of the class
+     * @return This class
+     */
+    public <T> FastSerializer register(final int id, final Class<T> type, final ClassCodec<T> codec) {
+        final Registration<T> registration = new Registration<T>(id, type, codec);
+        if (byId.containsKey(id)) {
+            throw new IllegalArgumentException("id " + id + " is already registered");
+        }
+        byId.put(id, registration);
+        byClass.put(type, registration);
+        return this;
+    }
+
+    @Override
+    public byte[] encode(final Object object) throws IOException {
+        final ByteBuf buf = Unpooled.buffer(INITIAL_CAPACITY);
+        write(object, buf);
+        final byte[] me = new byte[buf.readableBytes()];
+        buf.readBytes(me);
+        return me;
+    }
+
+    @Override
+    public Object decode(final ByteBuf buf) throws ClassNotFoundException, IOException {
+        if (buf.readableBytes() >= 2 && buf.getUnsignedShort(buf.readerIndex()) == JAVA_MAGIC) {
+            return Utils.decodeJavaObject(buf);
+        }
+        return read(buf);
+    }
+
+    /**
+     * Writes an object with its tag.
+     * 
+     * @param object
+     *            The object to write, may be null
+     * @param buf
+     *            The buffer to write to
+     * @throws IOException
+     *             If the object falls back to Java serialization and cannot be serialized
+     */
+    public void write(final Object object, final ByteBuf buf) throws IOException {
+        if (object == null) {
+            buf.writeByte(NULL);
+            return;
+        }
+        final Class<?> type = object.getClass();
+        if (type == String.class) {
+            final byte[] me = ((String) object).getBytes(UTF_8);
+            buf.writeByte(STRING);
+            buf.writeInt(me.length);
+            buf.writeBytes(me);
+        } else if (type == Integer.class) {
+            buf.writeByte(INTEGER);
+            buf.writeInt((Integer) object);
+        } else if (type == Long.class) {
+            buf.writeByte(LONG);
+            buf.writeLong((Long) object);
+        } else if (type == Boolean.class) {
+            buf.writeByte(((Boolean) object) ? TRUE : FALSE);
+        } else if (type == byte[].class) {
+            final byte[] me = (byte[]) object;
+            buf.writeByte(BYTE_ARRAY);
+            buf.writeInt(me.length);
+            buf.writeBytes(me);
+        } else if (type == Byte.class) {
+            buf.writeByte(BYTE);
+            buf.writeByte((Byte) object);
+        } else if (type == Short.class) {
+            buf.writeByte(SHORT);
+            buf.writeShort((Short) object);
+        } else if (type == Float.class) {
+            buf.writeByte(FLOAT);
+            buf.writeFloat((Float) object);
+        } else if (type == Double.class) {
+            buf.writeByte(DOUBLE);
+            buf.writeDouble((Double) object);
+        } else if (type == Character.class) {
+            buf.writeByte(CHARACTER);
+            buf.writeChar((Character) object);
+        } else if (type == Number160.class) {
+            buf.writeByte(NUMBER160);
+            ((Number160) object).toByteBuf(buf);
+        } else if (type == Number640.class) {
+            buf.writeByte(NUMBER640);
+            ((Number640) object).toByteBuf(buf);
+        } else if (type == ArrayList.class) {
+            buf.writeByte(ARRAY_LIST);
+            writeCollection((Collection<?>) object, buf);
+        } else if (type == HashSet.class) {
+            buf.writeByte(HASH_SET);
+            writeCollection((Collection<?>) object, buf);
+        } else if (type == HashMap.class) {
+            buf.writeByte(HASH_MAP);
+            writeMap((Map<?, ?>) object, buf);
+        } else if (type == TreeMap.class && ((TreeMap<?, ?>) object).comparator() == null) {
+            buf.writeByte(TREE_MAP);
+            writeMap((Map<?, ?>) object, buf);
+        } else {
+            final Registration<?> registration = byClass.get(type);
+            if (registration != null) {
+                buf.writeByte(REGISTERED);
+                buf.writeInt(registration.id);
+                registration.encode(object, buf, this);
+            } else {
+                final byte[] me = Utils.encodeJavaObject(object);
+                buf.writeByte(JAVA);
+                buf.writeInt(me.length);
+                buf.writeBytes(me);
+            }
+        }
+    }
+
+    /**
+     * Reads an object that was written with {@link #write(Object, ByteBuf)}.
+     * 
+     * @param buf
+     *            The buffer to read from
+     * @return The object, may be null
+     * @throws ClassNotFoundException
+     *             If the class of an object that fell back to Java serialization is not known
+     * @throws IOException
+     *             If the tag or a registered id is unknown
+     */
+    public Object read(final ByteBuf buf) throws ClassNotFoundException, IOException {
+        final int tag = buf.readUnsignedByte();
+        switch (tag) {
+        case NULL:
+            return null;
+        case TRUE:
+            return Boolean.TRUE;
+        case FALSE:
+            return Boolean.FALSE;
+        case BYTE:
+            return buf.readByte();
+        case SHORT:
+            return buf.readShort();
+        case INTEGER:
+            return buf.readInt();
+        case LONG:
+            return buf.readLong();
+        case FLOAT:
+            return buf.readFloat();
+        case DOUBLE:
+            return buf.readDouble();
+        case CHARACTER:
+            return buf.readChar();
+        case STRING:
+            final int stringLength = readSize(buf);
+            final String string = buf.toString(buf.readerIndex(), stringLength, UTF_8);
+            buf.skipBytes(stringLength);
+            return string;
+        case BYTE_ARRAY:
+            return readBytes(buf);
+        case NUMBER160:
+            return readNumber160(buf);
+        case NUMBER640:
+            return new Number640(readNumber160(buf), readNumber160(buf), readNumber160(buf), readNumber160(buf));
+        case ARRAY_LIST:
+            final int listSize = readSize(buf);
+            return readCollection(buf, listSize, new ArrayList<Object>(listSize));
+        case HASH_SET:
+            final int setSize = readSize(buf);
+            return readCollection(buf, setSize, new HashSet<Object>(2 * setSize));
+        case HASH_MAP:
+            final int mapSize = readSize(buf);
+            return readMap(buf, mapSize, new HashMap<Object, Object>(2 * mapSize));
+        case TREE_MAP:
+            return readMap(buf, readSize(buf), new TreeMap<Object, Object>());
+        case REGISTERED:
+            final int id = buf.readInt();
+            final Registration<?> registration = byId.get(id);
+            if (registration == null) {
+                throw new IOException("class with id " + id + " is not registered");
+            }
+            return registration.codec.decode(buf, this);
+        case JAVA:
+            final int length = readSize(buf);
+            final Object object = Utils.decodeJavaObject(buf.slice(buf.readerIndex(), length));
+            buf.skipBytes(length);
+            return object;
+        default:
+            throw new IOException("unknown tag " + tag);
+        }
+    }
+
+    private void writeCollection(final Collection<?> collection, final ByteBuf buf) throws IOException {
+        buf.writeInt(collection.size());
+        for (Object element : collection) {
+            write(element, buf);
+        }
+    }
+
+    private void writeMap(final Map<?, ?> map, final ByteBuf buf) throws IOException {
+        buf.writeInt(map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            write(entry.getKey(), buf);
+            write(entry.getValue(), buf);
+        }
+    }
+
+    private <C extends Collection<Object>> C readCollection(final ByteBuf buf, final int size, final C collection)
+            throws ClassNotFoundException, IOException {
+        for (int i = 0; i < size; i++) {
+            collection.add(read(buf));
+        }
+        return collection;
+    }
+
+    private <M extends Map<Object, Object>> M readMap(final ByteBuf buf, final int size, final M map)
+            throws ClassNotFoundException, IOException {
+        for (int i = 0; i < size; i++) {
+            map.put(read(buf), read(buf));
+        }
+        return map;
+    }
+
+    private static byte[] readBytes(final ByteBuf buf) throws IOException {
+        final byte[] me = new byte[readSize(buf)];
+        buf.readBytes(me);
+        return me;
+    }
+
+    /**
+     * Reads a length or a number of elements. Every element takes at least one byte, so a size beyond the remaining
+     * bytes comes from a corrupt or malicious buffer and is rejected before anything is allocated for it.
+     * 
+     * @param buf
+     *            The buffer to read from
+     * @return The size, not larger than the remaining bytes
+     * @throws IOException
+     *             If the size is negative or larger than the remaining bytes
+     */
+    private static int readSize(final ByteBuf buf) throws IOException {
+        final int size = buf.readInt();
+        if (size < 0 || size > buf.readableBytes()) {
+            throw new IOException("invalid size " + size + ", only " + buf.readableBytes() + " bytes left");
+        }
+        return size;
+    }
+
+    private static Number160 readNumber160(final ByteBuf buf) {
+        return new Number160(buf.readInt(), buf.readInt(), buf.readInt(), buf.readInt(), buf.readInt());
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.utils;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+
+/**
+ * The serializer that uses Java serialization. This is the format of {@link Utils#encodeJavaObject(Object)}.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class JavaSerializer implements Serializer {
+
+    @Override
+    public byte[] encode(final Object object) throws IOException {
+        return Utils.encodeJavaObject(object);
+    }
+
+    @Override
+    public Object decode(final ByteBuf buf) throws ClassNotFoundException, IOException {
+        return Utils.decodeJavaObject(buf);
+    }
+}
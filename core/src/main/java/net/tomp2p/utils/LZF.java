@@ -0,0 +1,200 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package net.tomp2p.utils;
+
+import java.util.Arrays;
+
+/**
+ * A small LZF compressor, which trades compression ratio for speed and is a lot faster than deflate. The compressed
+ * block starts with the uncompressed length (4 bytes), followed by runs of literals and back references. A control
+ * byte below 32 announces 1 to 32 literals, otherwise the upper 3 bits are the length of a back reference (7 means that
+ * a length byte follows) and the lower 5 bits together with the next byte are the offset.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public final class LZF {
+
+    private static final int HASH_LOG = 14;
+    private static final int HASH_SIZE = 1 << HASH_LOG;
+    private static final int HASH_MULTIPLIER = 0x9e3779b1;
+    private static final int MAX_LITERAL = 1 << 5;
+    private static final int MAX_OFFSET = 1 << 13;
+    private static final int MAX_REFERENCE = (1 << 8) + (1 << 3);
+    private static final int MIN_MATCH = 3;
+
+    private LZF() {
+    }
+
+    /**
+     * @param input
+     *            The bytes to compress
+     * @return The compressed bytes, which may be larger than the input if the input cannot be compressed
+     */
+    public static byte[] compress(final byte[] input) {
+        return compress(input, 0, input.length);
+    }
+
+    /**
+     * @param input
+     *            The array with the bytes to compress
+     * @param offset
+     *            The offset of the bytes to compress
+     * @param length
+     *            The number of bytes to compress
+     * @return The compressed bytes, which may be larger than the input if the input cannot be compressed
+     */
+    public static byte[] compress(final byte[] input, final int offset, final int length) {
+        // the worst case is one control byte for every 32 literals
+        final byte[] out = new byte[Utils.INTEGER_BYTE_SIZE + length + (length / MAX_LITERAL) + 1];
+        out[0] = (byte) (length >>> 24);
+        out[1] = (byte) (length >>> 16);
+        out[2] = (byte) (length >>> 8);
+        out[3] = (byte) length;
+        int op = Utils.INTEGER_BYTE_SIZE;
+        // positions + 1, so that 0 means no entry
+        final int[] table = new int[HASH_SIZE];
+        final int end = offset + length;
+        int ip = offset;
+        int literals = 0;
+        // reserve the control byte of the first literal run
+        int control = op++;
+        while (ip < end - (MIN_MATCH - 1)) {
+            final int h = hash(input, ip);
+            final int ref = table[h] - 1;
+            table[h] = ip + 1;
+            final int distance = ip - ref - 1;
+            if (ref >= offset && distance < MAX_OFFSET && input[ref] == input[ip]
+                    && input[ref + 1] == input[ip + 1] && input[ref + 2] == input[ip + 2]) {
+                final int max = Math.min(MAX_REFERENCE, end - ip);
+                int len = MIN_MATCH;
+                while (len < max && input[ref + len] == input[ip + len]) {
+                    len++;
+                }
+                // close the literal run, or drop its control byte if there are no literals
+                if (literals == 0) {
+                    op--;
+                } else {
+                    out[control] = (byte) (literals - 1);
+                    literals = 0;
+                }
+                final int encodedLen = len - 2;
+                if (encodedLen < 7) {
+                    out[op++] = (byte) ((encodedLen << 5) + (distance >>> 8));
+                } else {
+                    out[op++] = (byte) ((7 << 5) + (distance >>> 8));
+                    out[op++] = (byte) (encodedLen - 7);
+                }
+                out[op++] = (byte) distance;
+                control = op++;
+                ip += len;
+            } else {
+                out[op++] = input[ip++];
+                if (++literals == MAX_LITERAL) {
+                    out[control] = (byte) (MAX_LITERAL - 1);
+                    literals = 0;
+                    control = op++;
+                }
+            }
+        }
+        while (ip < end) {
+            out[op++] = input[ip++];
+            if (++literals == MAX_LITERAL) {
+                out[control] = (byte) (MAX_LITERAL - 1);
+                literals = 0;
+                control = op++;
+            }
+        }
+        if (literals == 0) {
+            op--;
+        } else {
+            out[control] = (byte) (literals - 1);
+        }
+        return Arrays.copyOf(out, op);
+    }
+
+    /**
+     * @param input
+     *            The array with the compressed bytes
+     * @param offset
+     *            The offset of the compressed bytes
+     * @param length
+     *            The number of compressed bytes
+     * @return The uncompressed bytes
+     */
+    public static byte[] uncompress(final byte[] input, final int offset, final int length) {
+        if (length < Utils.INTEGER_BYTE_SIZE) {
+            throw new IllegalArgumentException("not an LZF block");
+        }
+        final int outLength = ((input[offset] & 0xff) << 24) | ((input[offset + 1] & 0xff) << 16)
+                | ((input[offset + 2] & 0xff) << 8) | (input[offset + 3] & 0xff);
+        if (outLength < 0) {
+            throw new IllegalArgumentException("invalid LZF length");
+        }
+        final byte[] out = new byte[outLength];
+        final int end = offset + length;
+        int ip = offset + Utils.INTEGER_BYTE_SIZE;
+        int op = 0;
+        while (ip < end) {
+            final int control = input[ip++] & 0xff;
+            if (control < MAX_LITERAL) {
+                final int len = control + 1;
+                if (ip + len > end || op + len > outLength) {
+                    throw new IllegalArgumentException("corrupt LZF block");
+                }
+                System.arraycopy(input, ip, out, op, len);
+                ip += len;
+                op += len;
+            } else {
+                int len = control >>> 5;
+                if (len == 7) {
+                    if (ip >= end) {
+                        throw new IllegalArgumentException("corrupt LZF block");
+                    }
+                    len += input[ip++] & 0xff;
+                }
+                len += 2;
+                if (ip >= end) {
+                    throw new IllegalArgumentException("corrupt LZF block");
+                }
+                int ref = op - ((control & 0x1f) << 8) - (input[ip++] & 0xff) - 1;
+                if (ref < 0 || op + len > outLength) {
+                    throw new IllegalArgumentException("corrupt LZF block");
+                }
+                // the reference may overlap with the output, so copy byte by byte
+                for (int i = 0; i < len; i++) {
+                    out[op++] = out[ref++];
+                }
+            }
+        }
+        if (op != outLength) {
+            throw new IllegalArgumentException("corrupt LZF block");
+        }
+        return out;
+    }
+
+    public static byte[] uncompress(final byte[] input) {
+        return uncompress(input, 0, input.length);
+    }
+
+    private static int hash(final byte[] input, final int index) {
+        final int value = ((input[index] & 0xff) << 16) | ((input[index + 1] & 0xff) << 8)
+                | (input[index + 2] & 0xff);
+        return (value * HASH_MULTIPLIER) >>> (Integer.SIZE - HASH_LOG);
+    }
+}
@@ -297,7 +297,7 @@ public class Utils {
         return obj;
     }
 
-    public static synchronized Object decodeJavaObject(DataBuffer dataBuffer) throws ClassNotFoundException, IOException {
+    public static Object decodeJavaObject(DataBuffer dataBuffer) throws ClassNotFoundException, IOException {
         
         List<ByteBuffer> buffers = dataBuffer.shallowCopy().bufferList();
         int count = buffers.size();
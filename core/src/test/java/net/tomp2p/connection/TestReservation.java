@@ -30,6 +30,8 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -44,6 +46,7 @@ import net.tomp2p.p2p.PeerMaker;
 import net.tomp2p.utils.Pair;
 
 import org.junit.After;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -317,6 +320,54 @@ public class TestReservation {
 		ev.shutdownGracefully().awaitUninterruptibly();
 	}
 
+	/**
+	 * Test that a reservation never blocks, and that maintenance gets its turn
+	 * among the user reservations.
+	 * 
+	 * @throws InterruptedException .
+	 */
+	@Test
+	public void testReservationPriority() throws InterruptedException {
+		ChannelClientConfiguration c = PeerMaker.createDefaultChannelClientConfiguration();
+		c.pipelineFilter(new MyPipeLine());
+		c.maxPermitsTCP(1);
+		Reservation r = new Reservation(workerGroup, c);
+		final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch latch = new CountDownLatch(7);
+		// holds the only permit, so that the others have to wait
+		FutureChannelCreator first = r.create(0, 1);
+		first.awaitUninterruptibly();
+		order.add("U0");
+		latch.countDown();
+		r.create(0, 1, Reservation.Priority.MAINTENANCE).addListener(release("M1", order, latch));
+		for (int i = 1; i <= 5; i++) {
+			r.create(0, 1).addListener(release("U" + i, order, latch));
+		}
+		Assert.assertEquals(5, r.pendingRequests(Reservation.Priority.USER));
+		Assert.assertEquals(1, r.pendingRequests(Reservation.Priority.MAINTENANCE));
+		first.getChannelCreator().shutdown();
+		Assert.assertEquals(true, latch.await(10, TimeUnit.SECONDS));
+		Assert.assertEquals(Arrays.asList("U0", "U1", "U2", "U3", "M1", "U4", "U5"), order);
+		Assert.assertEquals(0, r.pendingRequests());
+		Assert.assertEquals(6, r.reservations(Reservation.Priority.USER));
+		Assert.assertEquals(1, r.reservations(Reservation.Priority.MAINTENANCE));
+		r.shutdown().awaitListenersUninterruptibly();
+	}
+
+	private static BaseFutureAdapter<FutureChannelCreator> release(final String name, final List<String> order,
+	        final CountDownLatch latch) {
+		return new BaseFutureAdapter<FutureChannelCreator>() {
+			@Override
+			public void operationComplete(final FutureChannelCreator future) throws Exception {
+				if (future.isSuccess()) {
+					order.add(name);
+					latch.countDown();
+					future.getChannelCreator().shutdown();
+				}
+			}
+		};
+	}
+
 	private static class MyPipeLine implements PipelineFilter {
 
 		@Override
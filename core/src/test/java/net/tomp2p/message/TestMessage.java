@@ -21,6 +21,7 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
@@ -38,6 +39,7 @@ import java.security.SignatureException;
 import java.security.spec.InvalidKeySpecException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -53,6 +55,8 @@ import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number640;
 import net.tomp2p.storage.AlternativeCompositeByteBuf;
 import net.tomp2p.storage.Data;
+import net.tomp2p.storage.StorageLayer;
+import net.tomp2p.storage.StorageMemory;
 import net.tomp2p.utils.Utils;
 
 import org.junit.Assert;
@@ -355,6 +359,128 @@ public class TestMessage {
 		compareMessage(m1, m2);
 	}
 
+	@Test
+	public void testEncodeDecodeCompact() throws Exception {
+		Message m1 = Utils2.createDummyMessage();
+		m1.compact(true);
+		Random rnd = new Random(42l);
+		Number160 locationKey = new Number160(rnd);
+		Number160 domainKey = new Number160(rnd);
+		NavigableMap<Number640, Data> dataMap = new TreeMap<Number640, Data>();
+		Collection<Number640> list = new ArrayList<Number640>();
+		Map<Number640, Byte> keysMap = new HashMap<Number640, Byte>();
+		for (int i = 0; i < 1000; i++) {
+			// some versions of the same content key, some with a zero version key
+			Number160 contentKey = new Number160(i / 3);
+			Number160 versionKey = i % 3 == 0 ? Number160.ZERO : new Number160(rnd);
+			Number640 key = new Number640(locationKey, domainKey, contentKey, versionKey);
+			dataMap.put(key, new Data(new byte[] { (byte) rnd.nextInt() }));
+			list.add(key);
+			keysMap.put(key, (byte) i);
+		}
+		// a key with a different location key in between
+		list.add(new Number640(new Number160(rnd), domainKey, Number160.ONE, Number160.ZERO));
+		m1.setDataMap(new DataMap(dataMap));
+		m1.setKeyCollection(new KeyCollection(list));
+		m1.setKeyMapByte(new KeyMapByte(keysMap));
+		Message m2 = encodeDecode(m1);
+		Assert.assertEquals(true, m2.isCompact());
+		compareMessage(m1, m2);
+		Assert.assertEquals(list, m2.getKeyCollection(0).keys());
+		Assert.assertEquals(keysMap, m2.getKeyMapByte(0).keysMap());
+	}
+
+	@Test
+	public void testDecodedDataDoesNotPinReceiveBuffer() throws Exception {
+		Message m1 = Utils2.createDummyMessage();
+		Number640 key = new Number640(Number160.ONE, Number160.ONE, Number160.ONE, Number160.ZERO);
+		Map<Number640, Data> dataMap = new HashMap<Number640, Data>();
+		dataMap.put(key, new Data(new byte[] { 1, 2, 3, 4 }));
+		m1.setDataMap(new DataMap(dataMap));
+		AtomicReference<Message> m2 = new AtomicReference<Message>();
+		AlternativeCompositeByteBuf encoded = encode(m1, m2, Data.Compression.NONE);
+		// the message as it arrives in a pooled buffer
+		ByteBuf receive = PooledByteBufAllocator.DEFAULT.directBuffer();
+		receive.writeBytes(encoded);
+		Decoder decoder = new Decoder(new DefaultSignatureFactory());
+		decoder.decode(mockChannelHandlerContext(encoded, m2), receive, m1.getRecipient().createSocketTCP(), m1
+				.getSender().createSocketTCP());
+		StorageLayer storage = new StorageLayer(new StorageMemory());
+		storage.put(key, decoder.message().getDataMap(0).dataMap().get(key), null, false, false);
+		// the stored data holds no reference to the receive buffer, so it goes back to the pool
+		Assert.assertEquals(1, receive.refCnt());
+		Assert.assertEquals(true, receive.release());
+		Assert.assertArrayEquals(new byte[] { 1, 2, 3, 4 }, storage.get(key).toBytes());
+	}
+
+	@Test
+	public void testCompactFlagWithoutKeyContent() throws Exception {
+		// a peer that does not know the compact encoding decodes this message the same with or without the flag
+		Message m1 = Utils2.createDummyMessage();
+		m1.setKey(Number160.ONE);
+		Assert.assertEquals(false, m1.hasKeyContent());
+		m1.compact(true);
+		Message m2 = encodeDecode(m1);
+		compareMessage(m1, m2);
+		m1.setKeyCollection(new KeyCollection(Collections.singletonList(new Number640(
+				Number160.ONE, Number160.ONE, Number160.ONE, Number160.ZERO))));
+		Assert.assertEquals(true, m1.hasKeyContent());
+	}
+
+	@Test
+	public void testEncodeDecodeCompressed() throws Exception {
+		for (Data.Compression compression : new Data.Compression[] { Data.Compression.DEFLATE, Data.Compression.LZF }) {
+			Message m1 = Utils2.createDummyMessage();
+			m1.compact(true);
+			NavigableMap<Number640, Data> dataMap = new TreeMap<Number640, Data>();
+			byte[] large = new byte[10000];
+			for (int i = 0; i < large.length; i++) {
+				large[i] = (byte) (i % 10);
+			}
+			Number640 key1 = new Number640(Number160.ONE, Number160.ONE, Number160.ONE, Number160.ZERO);
+			Number640 key2 = new Number640(Number160.ONE, Number160.ONE, new Number160(2), Number160.ZERO);
+			dataMap.put(key1, new Data(large));
+			dataMap.put(key2, new Data(new byte[] { 1, 2, 3 }));
+			m1.setDataMap(new DataMap(dataMap));
+			Message m2 = encodeDecode(m1, compression);
+			Data data1 = m2.getDataMap(0).dataMap().get(key1);
+			Data data2 = m2.getDataMap(0).dataMap().get(key2);
+			// only the large payload is compressed, and it stays compressed until it is accessed
+			Assert.assertEquals(compression, data1.compression());
+			Assert.assertTrue(data1.length() < large.length);
+			Assert.assertEquals(Data.Compression.NONE, data2.compression());
+			compareMessage(m1, m2);
+			Assert.assertArrayEquals(large, data1.toBytes());
+			Assert.assertEquals(large.length, data1.uncompressed().length());
+			Assert.assertEquals(dataMap.get(key1).hash(), data1.hash());
+		}
+	}
+
+	@Test
+	public void testCompactCodecPartial() {
+		Number640 key1 = new Number640(Number160.ONE, Number160.ONE, Number160.ONE, Number160.ZERO);
+		Number640 key2 = new Number640(Number160.ONE, Number160.ONE, new Number160(2), new Number160(3));
+		ByteBuf buf = Unpooled.buffer();
+		CompactCodec.writeVarInt(buf, 300);
+		CompactCodec.writeKey(buf, key1, null);
+		CompactCodec.writeKey(buf, key2, key1);
+		// size, flag byte and three keys, flag byte and two keys
+		Assert.assertEquals(2 + 1 + 3 * Number160.BYTE_ARRAY_SIZE + 1 + 2 * Number160.BYTE_ARRAY_SIZE,
+				buf.readableBytes());
+		ByteBuf part = buf.slice(0, 1);
+		Assert.assertEquals(-1, CompactCodec.readVarInt(part));
+		Assert.assertEquals(0, part.readerIndex());
+		Assert.assertEquals(300, CompactCodec.readVarInt(buf));
+		part = buf.slice(buf.readerIndex(), Number160.BYTE_ARRAY_SIZE);
+		Assert.assertNull(CompactCodec.readKey(part, null));
+		Assert.assertEquals(0, part.readerIndex());
+		Number640 read1 = CompactCodec.readKey(buf, null);
+		Assert.assertEquals(0, key1.compareTo(read1));
+		Number640 read2 = CompactCodec.readKey(buf, read1);
+		Assert.assertEquals(0, key2.compareTo(read2));
+		Assert.assertEquals(0, buf.readableBytes());
+	}
+
 	@Test
 	public void serializationTest() throws IOException, ClassNotFoundException,
 			InvalidKeyException, SignatureException, NoSuchAlgorithmException,
@@ -373,6 +499,28 @@ public class TestMessage {
 		compareMessage(m1, d.message());
 	}
 
+	@Test
+	public void testDecoderReuse() throws Exception {
+		Message m1 = Utils2.createDummyMessage();
+		Encoder e = new Encoder(null);
+		AlternativeCompositeByteBuf buf = AlternativeCompositeByteBuf.compBuffer();
+		e.write(buf, m1);
+		e.reset();
+		e.write(buf, m1);
+		Decoder d = new Decoder(null);
+		InetSocketAddress recipient = m1.getRecipient().createSocketTCP();
+		Assert.assertEquals(true, d.decodeHeader(buf, recipient, new InetSocketAddress(0)));
+		Assert.assertEquals(true, d.decodePayload(buf));
+		Message m2 = d.prepareFinish();
+		Assert.assertEquals(true, d.decodeHeader(buf, recipient, new InetSocketAddress(0)));
+		Assert.assertEquals(true, d.decodePayload(buf));
+		Message m3 = d.prepareFinish();
+		compareMessage(m1, m2);
+		compareMessage(m1, m3);
+		// the same recipient is decoded only once
+		Assert.assertSame(m2.getRecipient(), m3.getRecipient());
+	}
+
 	@Test
 	public void serializationTestFail() throws IOException,
 			ClassNotFoundException, InvalidKeyException, SignatureException {
@@ -395,7 +543,21 @@ public class TestMessage {
 	 * @throws Exception .
 	 */
 	private Message encodeDecode(final Message m1) throws Exception {
+		return encodeDecode(m1, Data.Compression.NONE);
+	}
+
+	private Message encodeDecode(final Message m1, final Data.Compression compression) throws Exception {
 		AtomicReference<Message> m2 = new AtomicReference<Message>();
+		final AlternativeCompositeByteBuf buf = encode(m1, m2, compression);
+		ChannelHandlerContext ctx = mockChannelHandlerContext(buf, m2);
+		Decoder decoder = new Decoder(new DefaultSignatureFactory());
+		decoder.decode(ctx, buf, m1.getRecipient().createSocketTCP(), m1
+				.getSender().createSocketTCP());
+		return decoder.message();
+	}
+
+	private AlternativeCompositeByteBuf encode(final Message m1, final AtomicReference<Message> m2,
+			final Data.Compression compression) throws Exception {
 		final AlternativeCompositeByteBuf buf = AlternativeCompositeByteBuf.compBuffer();
 		TomP2POutbound encoder = new TomP2POutbound(true,
 				new DefaultSignatureFactory(), new CompByteBufAllocator() {
@@ -407,15 +569,12 @@ public class TestMessage {
 					public AlternativeCompositeByteBuf compDirectBuffer() {
 						return buf;
 					}
-				});
+				}, compression, 1024);
 		
 		buf.retain();
 		ChannelHandlerContext ctx = mockChannelHandlerContext(buf, m2);
 		encoder.write(ctx, m1, null);
-		Decoder decoder = new Decoder(new DefaultSignatureFactory());
-		decoder.decode(ctx, buf, m1.getRecipient().createSocketTCP(), m1
-				.getSender().createSocketTCP());
-		return decoder.message();
+		return buf;
 	}
 
 	/**
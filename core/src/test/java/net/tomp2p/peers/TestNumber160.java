@@ -16,6 +16,9 @@
 
 package net.tomp2p.peers;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
 import java.math.BigInteger;
 import java.util.Random;
 import java.util.concurrent.ConcurrentSkipListSet;
@@ -282,4 +285,46 @@ public class TestNumber160 {
         n2 = new Number160(Long.MAX_VALUE);
         Assert.assertEquals("0x7FFFFFFFFFFFFFFF".toLowerCase(), n2.toString());
     }
+
+    @Test
+    public void testToByteBuf() {
+        Number160 number = new Number160(new Random(42));
+        ByteBuf buf = Unpooled.buffer();
+        number.toByteBuf(buf);
+        byte[] me = new byte[Number160.BYTE_ARRAY_SIZE];
+        buf.readBytes(me);
+        Assert.assertArrayEquals(number.toByteArray(), me);
+        Number640 key = new Number640(number, Number160.ONE, Number160.MAX_VALUE, Number160.ZERO);
+        buf = Unpooled.buffer();
+        key.toByteBuf(buf);
+        Assert.assertEquals(Number160.BYTE_ARRAY_SIZE * 4, buf.readableBytes());
+        buf.getBytes(Number160.BYTE_ARRAY_SIZE * 2, me);
+        Assert.assertEquals(Number160.MAX_VALUE, new Number160(me));
+    }
+
+    @Test
+    public void testPackedNumber640() {
+        for (int i = 0; i < 1000; i++) {
+            Number640 n1 = new Number640(new Number160(rnd), new Number160(rnd), new Number160(rnd),
+                    new Number160(rnd));
+            // same location key, high bit set in the domain key to check the unsigned order
+            Number640 n2 = new Number640(n1.getLocationKey(), new Number160(0x80000000 | rnd.nextInt(), rnd.nextInt()),
+                    new Number160(rnd), rnd.nextBoolean() ? n1.getVersionKey() : new Number160(rnd));
+            PackedNumber640 p1 = new PackedNumber640(n1);
+            PackedNumber640 p2 = new PackedNumber640(n2);
+            Assert.assertEquals(n1, p1.toNumber640());
+            Assert.assertEquals(n1.getVersionKey(), p1.toNumber640().getVersionKey());
+            Assert.assertEquals(n1.getLocationKey(), p1.locationKey());
+            Assert.assertEquals(Integer.signum(n1.compareTo(n2)), Integer.signum(p1.compareTo(p2)));
+            Assert.assertEquals(Integer.signum(n2.compareTo(n1)), Integer.signum(p2.compareTo(p1)));
+            Assert.assertEquals(p1, new PackedNumber640(n1));
+            Assert.assertEquals(p1.hashCode(), new PackedNumber640(n1).hashCode());
+            Assert.assertEquals(0, p1.compareTo(new PackedNumber640(n1)));
+        }
+        // the version key is part of the order
+        Number640 v1 = new Number640(Number160.ONE, Number160.ZERO, Number160.ZERO, new Number160(1));
+        Number640 v2 = new Number640(Number160.ONE, Number160.ZERO, Number160.ZERO, new Number160(0x80000000));
+        Assert.assertTrue(new PackedNumber640(v1).compareTo(new PackedNumber640(v2)) < 0);
+        Assert.assertFalse(new PackedNumber640(v1).equals(new PackedNumber640(v2)));
+    }
 }
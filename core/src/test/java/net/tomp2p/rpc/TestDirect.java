@@ -2,6 +2,7 @@ package net.tomp2p.rpc;
 
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import io.netty.buffer.ByteBuf;
@@ -11,6 +12,7 @@ import io.netty.util.concurrent.EventExecutorGroup;
 import net.tomp2p.connection.ChannelClientConfiguration;
 import net.tomp2p.connection.ChannelCreator;
 import net.tomp2p.connection.ChannelServerConficuration;
+import net.tomp2p.connection.DispatchExecutor;
 import net.tomp2p.connection.PeerConnection;
 import net.tomp2p.connection.PipelineFilter;
 import net.tomp2p.futures.BaseFutureAdapter;
@@ -372,4 +374,111 @@ public class TestDirect {
             }
         }
     }
+
+    @Test
+    public void testDirectMultiplexed() throws Exception {
+        Peer sender = null;
+        Peer recv1 = null;
+        try {
+            final CountConnectionOutboundHandler ccohTCP = new CountConnectionOutboundHandler();
+            final CountConnectionOutboundHandler ccohUDP = new CountConnectionOutboundHandler();
+            PipelineFilter pf = new PipelineFilter() {
+                @Override
+                public Map<String, Pair<EventExecutorGroup, ChannelHandler>> filter(Map<String, Pair<EventExecutorGroup, ChannelHandler>> channelHandlers, boolean tcp,
+                        boolean client) {
+                    Map<String, Pair<EventExecutorGroup, ChannelHandler>> retVal = new LinkedHashMap<String, Pair<EventExecutorGroup, ChannelHandler>>();
+                    retVal.put("counter", new Pair<EventExecutorGroup, ChannelHandler>(null, tcp? ccohTCP:ccohUDP));
+                    retVal.putAll(channelHandlers);
+                    return retVal;
+                }
+            };
+            ChannelServerConficuration csc = PeerMaker.createDefaultChannelServerConfiguration();
+            ChannelClientConfiguration ccc = PeerMaker.createDefaultChannelClientConfiguration();
+            csc.pipelineFilter(pf);
+            ccc.pipelineFilter(pf);
+            sender = new PeerMaker(new Number160("0x50")).p2pId(55).ports(2424).setEnableMaintenance(false)
+                    .channelClientConfiguration(ccc).channelServerConfiguration(csc).makeAndListen();
+            recv1 = new PeerMaker(new Number160("0x20")).p2pId(55).ports(8088).setEnableMaintenance(false)
+                    .channelClientConfiguration(ccc).channelServerConfiguration(csc).makeAndListen();
+            recv1.setObjectDataReply(new ObjectDataReply() {
+                @Override
+                public Object reply(PeerAddress sender, Object request) throws Exception {
+                    // not the request itself, which would be answered without a reply object
+                    return "reply-" + request;
+                }
+            });
+            FuturePeerConnection peerConnection = sender.createPeerConnection(recv1.getPeerAddress(), 8000, 4);
+            ccohTCP.reset();
+            ccohUDP.reset();
+
+            // more requests than in flight, the rest wait for a free slot on the same connection
+            final int round = 20;
+            FutureDirect[] futures = new FutureDirect[round];
+            for (int i = 0; i < round; i++) {
+                futures[i] = sender.sendDirect(peerConnection).setObject("test" + i).start();
+            }
+            for (int i = 0; i < round; i++) {
+                futures[i].awaitUninterruptibly();
+                Assert.assertEquals(true, futures[i].isSuccess());
+                // the replies are matched to their requests
+                Assert.assertEquals("reply-test" + i, futures[i].object());
+            }
+            Assert.assertEquals(1, ccohTCP.total());
+            peerConnection.close().await();
+        } finally {
+            if (sender != null) {
+                sender.shutdown().await();
+            }
+            if (recv1 != null) {
+                recv1.shutdown().await();
+            }
+        }
+    }
+
+    @Test
+    public void testDirectWorkerPool() throws Exception {
+        Peer sender = null;
+        Peer recv1 = null;
+        try {
+            ChannelServerConficuration csc = PeerMaker.createDefaultChannelServerConfiguration();
+            csc.dispatchMode(DispatchExecutor.Mode.WORKER_POOL, DirectDataRPC.DIRECT_DATA_COMMAND)
+                    .dispatchMaxPending(1);
+            sender = new PeerMaker(new Number160("0x50")).p2pId(55).ports(2424).setEnableMaintenance(false)
+                    .makeAndListen();
+            recv1 = new PeerMaker(new Number160("0x20")).p2pId(55).ports(8088).setEnableMaintenance(false)
+                    .channelServerConfiguration(csc).makeAndListen();
+            final CountDownLatch latch = new CountDownLatch(1);
+            recv1.setObjectDataReply(new ObjectDataReply() {
+                @Override
+                public Object reply(PeerAddress sender, Object request) throws Exception {
+                    latch.await();
+                    // not the request itself, which would be answered without a reply object
+                    return "reply-" + request;
+                }
+            });
+            DispatchExecutor.Stats stats = recv1.getConnectionBean().dispatcher().dispatchExecutor()
+                    .stats(DirectDataRPC.DIRECT_DATA_COMMAND);
+            FutureDirect fd1 = sender.sendDirect(recv1.getPeerAddress()).setObject("test1").start();
+            while (stats.pending() == 0) {
+                Timings.sleep(10);
+            }
+            // the slow reply runs in the worker pool, the I/O thread still answers and denies the next request
+            FutureDirect fd2 = sender.sendDirect(recv1.getPeerAddress()).setObject("test2").start();
+            fd2.awaitUninterruptibly();
+            Assert.assertEquals(Message.Type.DENIED, fd2.getWrappedFuture().getResponse().getType());
+            latch.countDown();
+            fd1.awaitUninterruptibly();
+            Assert.assertEquals(true, fd1.isSuccess());
+            Assert.assertEquals("reply-test1", fd1.object());
+            Assert.assertEquals(1, stats.rejected());
+            Assert.assertEquals(1, stats.maxPending());
+        } finally {
+            if (sender != null) {
+                sender.shutdown().await();
+            }
+            if (recv1 != null) {
+                recv1.shutdown().await();
+            }
+        }
+    }
 }
@@ -4,8 +4,10 @@ import java.util.ArrayList;
 import java.util.List;
 
 import net.tomp2p.connection.Bindings;
+import net.tomp2p.connection.ChannelClientConfiguration;
 import net.tomp2p.connection.ChannelCreator;
 import net.tomp2p.connection.DefaultConnectionConfiguration;
+import net.tomp2p.connection.TCPChannelPool;
 import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureChannelCreator;
 import net.tomp2p.futures.FutureResponse;
@@ -167,6 +169,96 @@ public class TestPing {
         }
     }
 
+    @Test
+    public void testPingUDPPooled() throws Exception {
+        Peer sender = null;
+        Peer recv1 = null;
+        ChannelCreator cc = null;
+        try {
+            ChannelClientConfiguration ccc = PeerMaker.createDefaultChannelClientConfiguration();
+            ccc.udpChannelPoolSize(2);
+            sender = new PeerMaker(new Number160("0x9876")).p2pId(55).ports(2424).channelClientConfiguration(ccc)
+                    .makeAndListen();
+            PingRPC handshake = new PingRPC(sender.getPeerBean(), sender.getConnectionBean());
+            recv1 = new PeerMaker(new Number160("0x1234")).p2pId(55).ports(8088).makeAndListen();
+            new PingRPC(recv1.getPeerBean(), recv1.getConnectionBean());
+            final int round = 20;
+            FutureChannelCreator fcc = sender.getConnectionBean().reservation().create(round, 0);
+            fcc.awaitUninterruptibly();
+            cc = fcc.getChannelCreator();
+            Assert.assertEquals(true, cc.isUDPPooled());
+            // more requests in flight than channels, the replies are matched by the message ID
+            List<FutureResponse> futures = new ArrayList<FutureResponse>();
+            for (int i = 0; i < round; i++) {
+                futures.add(handshake.pingUDP(recv1.getPeerAddress(), cc, new DefaultConnectionConfiguration()));
+            }
+            for (FutureResponse fr : futures) {
+                fr.awaitUninterruptibly();
+                Assert.assertEquals(true, fr.isSuccess());
+            }
+            // all permits are back, although the channels stay open
+            Assert.assertEquals(round, cc.availableUDPPermits());
+        } finally {
+            if (cc != null) {
+                cc.shutdown().await();
+            }
+            if (sender != null) {
+                sender.shutdown().await();
+            }
+            if (recv1 != null) {
+                recv1.shutdown().await();
+            }
+        }
+    }
+
+    @Test
+    public void testPingTCPPooled() throws Exception {
+        Peer sender = null;
+        Peer recv1 = null;
+        ChannelCreator cc = null;
+        try {
+            ChannelClientConfiguration ccc = PeerMaker.createDefaultChannelClientConfiguration();
+            ccc.tcpChannelPoolMaxPerPeer(2);
+            sender = new PeerMaker(new Number160("0x9876")).p2pId(55).ports(2424).channelClientConfiguration(ccc)
+                    .makeAndListen();
+            PingRPC handshake = new PingRPC(sender.getPeerBean(), sender.getConnectionBean());
+            recv1 = new PeerMaker(new Number160("0x1234")).p2pId(55).ports(8088).makeAndListen();
+            new PingRPC(recv1.getPeerBean(), recv1.getConnectionBean());
+            final int round = 20;
+            FutureChannelCreator fcc = sender.getConnectionBean().reservation().create(0, round);
+            fcc.awaitUninterruptibly();
+            cc = fcc.getChannelCreator();
+            Assert.assertEquals(true, cc.isTCPPooled());
+            TCPChannelPool pool = sender.getConnectionBean().reservation().tcpChannelPool();
+            // more requests in flight than connections, they are pipelined
+            for (int j = 0; j < 2; j++) {
+                List<FutureResponse> futures = new ArrayList<FutureResponse>();
+                for (int i = 0; i < round; i++) {
+                    futures.add(handshake.pingTCP(recv1.getPeerAddress(), cc, new DefaultConnectionConfiguration()));
+                }
+                for (FutureResponse fr : futures) {
+                    fr.awaitUninterruptibly();
+                    Assert.assertEquals(true, fr.isSuccess());
+                }
+                // the second round reuses the open connections
+                Assert.assertEquals(true, pool.openChannels() <= 2);
+            }
+            // all permits are back, although the connections stay open
+            Assert.assertEquals(round, cc.availableTCPPermits());
+            Assert.assertEquals(0, pool.pendingRequests());
+        } finally {
+            if (cc != null) {
+                cc.shutdown().await();
+            }
+            if (sender != null) {
+                sender.shutdown().await();
+            }
+            if (recv1 != null) {
+                recv1.shutdown().await();
+            }
+        }
+    }
+
     @Test
     public void testPingHandlerError() throws Exception {
         Peer sender = null;
@@ -6,6 +6,7 @@ import io.netty.buffer.Unpooled;
 import java.io.IOException;
 
 import net.tomp2p.connection.DefaultSignatureFactory;
+import net.tomp2p.peers.Number160;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -33,6 +34,30 @@ public class TestData {
         Assert.assertEquals("test", test);
     }
     
+    @Test
+    public void testDataEncode() throws IOException, ClassNotFoundException {
+        Data data = new Data("test").ttlSeconds(10).basedOn(new Number160(5));
+        // encoding twice must give the same result, as encode does not modify the data
+        for (int i = 0; i < 2; i++) {
+            AlternativeCompositeByteBuf transfer = AlternativeCompositeByteBuf.compBuffer();
+            data.encode(transfer);
+            ByteBuf transfer2 = Unpooled.buffer();
+            transfer2.writeBytes(transfer);
+
+            Data newData = Data.decodeHeader(transfer2, new DefaultSignatureFactory());
+            newData.decodeBuffer(transfer2);
+            newData.decodeDone(transfer2, null);
+            Assert.assertEquals(data, newData);
+            Assert.assertEquals("test", newData.object());
+        }
+        // the cached header is encoded again
+        data.ttlSeconds(20);
+        AlternativeCompositeByteBuf transfer = AlternativeCompositeByteBuf.compBuffer();
+        data.encode(transfer);
+        Data newData = Data.decodeHeader(transfer, new DefaultSignatureFactory());
+        Assert.assertEquals(20, newData.ttlSeconds());
+    }
+
     @Test
     public void testData2Copy() throws IOException, ClassNotFoundException {
         Data data = new Data(2, 100000);
@@ -6,11 +6,23 @@ import java.io.IOException;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
 import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import net.tomp2p.connection.DefaultSignatureFactory;
 import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number320;
 import net.tomp2p.peers.Number640;
+import net.tomp2p.rpc.DigestInfo;
 import net.tomp2p.storage.StorageLayer.PutStatus;
 import net.tomp2p.utils.Utils;
 
@@ -158,6 +170,69 @@ public class TestStorage {
         Assert.assertEquals(0, result4.size());
     }
 
+    @Test
+    public void testPackedKeys() throws Exception {
+        StorageMemory storageM = new StorageMemory();
+        Number640 version1 = new Number640(locationKey, domainKey, content1, new Number160(1));
+        Number640 version2 = new Number640(locationKey, domainKey, content1, new Number160(2));
+        storageM.put(version1, new Data("test1"));
+        storageM.put(version2, new Data("test2"));
+        Assert.assertTrue(storageM.contains(version1));
+        Assert.assertEquals("test2", storageM.get(version2).object());
+        NavigableMap<Number640, Data> result = storageM.subMap(key1, key4, 1, false);
+        Assert.assertEquals(version2, result.firstKey());
+        Assert.assertEquals(new Number160(2), result.firstKey().getVersionKey());
+        Iterator<Map.Entry<Number640, Data>> iterator = storageM.iterator(key1, key4, true);
+        Assert.assertEquals(new Number160(1), iterator.next().getKey().getVersionKey());
+        Assert.assertEquals(new Number160(2), iterator.next().getKey().getVersionKey());
+        Assert.assertFalse(iterator.hasNext());
+        Assert.assertEquals(2, storageM.remove(key1, key4).size());
+        Assert.assertEquals(0, storageM.map().size());
+        storageM.close();
+    }
+
+    @Test
+    public void testGetMemoryMapped() throws Exception {
+        StorageMemoryMapped storageM = new StorageMemoryMapped(new File(DIR));
+        testGet(new StorageLayer(storageM));
+        storageM.close();
+    }
+
+    @Test
+    public void testRemoveMemoryMapped() throws Exception {
+        StorageMemoryMapped storageM = new StorageMemoryMapped(new File(DIR), 16);
+        testRemove(new StorageLayer(storageM));
+        // all entries are removed, only the segment we currently append to is left
+        Assert.assertEquals(1, storageM.segmentCount());
+        storageM.close();
+        Assert.assertEquals(0, storageM.segmentCount());
+    }
+
+    @Test
+    public void testConcurrentPutMemoryMapped() throws Exception {
+        final StorageMemoryMapped storageM = new StorageMemoryMapped(new File(DIR), 16);
+        final int rounds = 1000;
+        Thread[] threads = new Thread[2];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < rounds; j++) {
+                        storageM.put(key1, new Data(new byte[10]));
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        storageM.remove(key1);
+        // no slot of an overwritten value is left behind
+        Assert.assertEquals(1, storageM.segmentCount());
+        storageM.close();
+    }
+
     @Test
     public void testTTL1() throws Exception {
         StorageMemory storageM = new StorageMemory();
@@ -209,6 +284,348 @@ public class TestStorage {
         Assert.assertEquals(true, tmp == null);
     }
 
+    @Test
+    public void testTTLTimingWheel() throws Exception {
+        StorageMemory storageM = new StorageMemory(new TimingWheel(100, 16));
+        testTTLLeak(new StorageLayer(storageM));
+        Assert.assertEquals(0, storageM.subMapTimeout(Long.MAX_VALUE).size());
+        storageM.close();
+    }
+
+    @Test
+    public void testTimingWheel() throws Exception {
+        TimingWheel timingWheel = new TimingWheel(100, 16);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 10; i++) {
+            timingWheel.add(new Number640(new Number160(i), domainKey, content1, Number160.ZERO), now + 1000);
+        }
+        // far in the future, lands in the same bucket after some rounds
+        timingWheel.add(key2, now + 1000 + 100 * 16 * 10);
+        timingWheel.add(key3, now - 1);
+        Assert.assertEquals(1, timingWheel.expired(now, -1).size());
+        Assert.assertEquals(5, timingWheel.expired(now + 1001, 5).size());
+        Assert.assertEquals(11, timingWheel.expired(now + 1001, -1).size());
+        // reschedule
+        timingWheel.add(key3, now + 5000);
+        Assert.assertEquals(10, timingWheel.expired(now + 1001, -1).size());
+        Assert.assertEquals(12, timingWheel.expired(Long.MAX_VALUE, -1).size());
+        timingWheel.remove(key2);
+        Assert.assertEquals(11, timingWheel.expired(Long.MAX_VALUE, -1).size());
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        KeyPair pair = KeyPairGenerator.getInstance("DSA").generateKeyPair();
+        StorageMemory storageM = new StorageMemory();
+        StorageSnapshot snapshot = new StorageSnapshot(new File(DIR), storageM, new DefaultSignatureFactory(), 2);
+        Assert.assertEquals(0, snapshot.restore(2));
+        StorageLayer storage = new StorageLayer(storageM);
+        storage.put(key1, new Data("test1").ttlSeconds(100), null, false, false);
+        storage.put(key2, new Data("test2"), null, false, false);
+        storageM.protectDomain(new Number320(locationKey, new Number160(4711)), pair.getPublic());
+        snapshot.snapshot();
+        // these modifications are only in the delta log
+        storage.put(key3, new Data("test3"), null, false, false);
+        storage.remove(key2, null);
+        snapshot.flush();
+
+        // restore without closing, as after a crash
+        StorageMemory restored = new StorageMemory();
+        StorageSnapshot snapshot2 = new StorageSnapshot(new File(DIR), restored, new DefaultSignatureFactory(), 2);
+        Assert.assertEquals(2, snapshot2.restore(2));
+        Assert.assertEquals("test1", restored.get(key1).object());
+        Assert.assertEquals("test3", restored.get(key3).object());
+        Assert.assertNull(restored.get(key2));
+        Assert.assertEquals(1, restored.subMapTimeout(Long.MAX_VALUE).size());
+        Assert.assertTrue(restored.isDomainProtectedByOthers(new Number320(locationKey, new Number160(4711)), null));
+        snapshot2.close();
+        restored.close();
+        storageM.close();
+    }
+
+    @Test
+    public void testEvictionLRU() throws Exception {
+        StorageMemory storageM = new StorageMemory();
+        StorageLayer storage = new StorageLayer(storageM);
+        storage.setCapacity(2, -1, new LRUEvictionPolicy());
+        final List<Number640> evicted = new ArrayList<Number640>();
+        storage.addEvictionListener(new EvictionListener() {
+            @Override
+            public void evicted(Number640 key, Data data) {
+                evicted.add(key);
+            }
+        });
+        storage.put(key1, new Data("test1"), null, false, false);
+        storage.put(key2, new Data("test2"), null, false, false);
+        storage.get(key1);
+        storage.put(key3, new Data("test3"), null, false, false);
+        Assert.assertEquals(2, storage.getEntries());
+        Assert.assertEquals(1, evicted.size());
+        Assert.assertEquals(key2, evicted.get(0));
+        Assert.assertNull(storage.get(key2));
+        Assert.assertNotNull(storage.get(key1));
+        storageM.close();
+    }
+
+    @Test
+    public void testEvictionTinyLFU() throws Exception {
+        StorageMemory storageM = new StorageMemory();
+        StorageLayer storage = new StorageLayer(storageM);
+        storage.setCapacity(1, -1, new TinyLFUEvictionPolicy());
+        storage.put(key1, new Data("test1"), null, false, false);
+        storage.get(key1);
+        storage.get(key1);
+        // the new key is less popular, it is rejected instead of acknowledged and evicted
+        Assert.assertEquals(PutStatus.FAILED, storage.put(key2, new Data("test2"), null, false, false));
+        Assert.assertNull(storage.get(key2));
+        Assert.assertNotNull(storage.get(key1));
+        Assert.assertEquals(1, storage.getEntries());
+        storageM.close();
+    }
+
+    @Test
+    public void testDeduplication() throws Exception {
+        StorageMemory storageM = new StorageMemory();
+        StorageLayer storage = new StorageLayer(storageM);
+        Data data = new Data("test1");
+        storage.put(key1, data, null, false, false);
+        storage.setDeduplication(new DataDeduplication());
+        storage.put(key2, new Data("test1"), null, false, false);
+        storage.put(key3, new Data("test1"), null, false, false);
+        storage.put(key4, new Data("test2"), null, false, false);
+        DataDeduplication deduplication = storage.getDeduplication();
+        Assert.assertEquals(2, deduplication.payloads());
+        Assert.assertEquals(4, deduplication.references());
+        Assert.assertEquals(2 * data.length(), deduplication.savedBytes());
+        Assert.assertEquals(data, storage.get(key3));
+        // overwrite with the other payload
+        storage.put(key2, new Data("test2"), null, false, false);
+        Assert.assertEquals(data.length() + new Data("test2").length(), deduplication.savedBytes());
+        storage.remove(key1, null);
+        storage.remove(key3, null);
+        Assert.assertEquals(1, deduplication.payloads());
+        Assert.assertEquals(2, deduplication.references());
+        Assert.assertEquals(new Data("test2").length(), deduplication.savedBytes());
+        storageM.close();
+    }
+
+    @Test
+    public void testPutAll() throws Exception {
+        StorageMemory storageM = new StorageMemory();
+        StorageLayer storage = new StorageLayer(storageM);
+        storage.setRollingDigest(new RollingDigest());
+        storage.put(key1, new Data("test1"), null, false, false);
+        Number640 other = new Number640(new Number160(11), domainKey, content1, Number160.ZERO);
+        Map<Number640, Data> values = new TreeMap<Number640, Data>();
+        values.put(key1, new Data("test2").ttlSeconds(100));
+        values.put(key2, new Data("test3").ttlSeconds(100));
+        values.put(other, new Data("test4").ttlSeconds(100));
+        Map<Number640, Enum<?>> result = storage.putAll(values, null, true, false);
+        Assert.assertEquals(PutStatus.FAILED_NOT_ABSENT, result.get(key1));
+        Assert.assertEquals(PutStatus.OK, result.get(key2));
+        Assert.assertEquals(PutStatus.OK, result.get(other));
+        Assert.assertEquals("test1", storage.get(key1).object());
+        Assert.assertEquals(2, storage.digest(new Number320(locationKey, domainKey)).getSize());
+        Assert.assertEquals(2, storageM.subMapTimeout(Long.MAX_VALUE).size());
+        // key3 does not exist
+        NavigableMap<Number640, Data> removed = storage.removeAll(Arrays.asList(key1, key3, other), null);
+        Assert.assertEquals(2, removed.size());
+        Assert.assertEquals("test4", removed.get(other).object());
+        Assert.assertEquals(1, storage.digest(new Number320(locationKey, domainKey)).getSize());
+        Assert.assertEquals(1, storageM.subMapTimeout(Long.MAX_VALUE).size());
+        storageM.close();
+    }
+
+    @Test
+    public void testPutCompressed() throws Exception {
+        StorageMemory storageM = new StorageMemory();
+        StorageLayer storage = new StorageLayer(storageM);
+        byte[] large = new byte[10000];
+        // as received, the payload stays compressed until it is accessed
+        Data compressed = new Data(large).compress(Data.Compression.LZF, 0);
+        Assert.assertEquals(Data.Compression.LZF, compressed.compression());
+        Assert.assertEquals(PutStatus.OK, storage.put(key1, compressed, null, false, false));
+        // only the uncompressed copy is stored
+        Assert.assertEquals(Data.Compression.NONE, storage.get(key1).compression());
+        Assert.assertArrayEquals(large, storage.get(key1).toBytes());
+        storageM.close();
+    }
+
+    @Test
+    public void testPutAllPartial() throws Exception {
+        // the backend cannot store key2, but the other entries of the batch
+        StorageMemory storageM = new StorageMemory() {
+            @Override
+            public boolean put(Number640 key, Data value) {
+                return key.compareTo(key2) != 0 && super.put(key, value);
+            }
+        };
+        StorageLayer storage = new StorageLayer(storageM);
+        storage.setRollingDigest(new RollingDigest());
+        Map<Number640, Data> values = new TreeMap<Number640, Data>();
+        values.put(key1, new Data("test1").ttlSeconds(100));
+        values.put(key2, new Data("test2").ttlSeconds(100));
+        Map<Number640, Enum<?>> result = storage.putAll(values, null, false, false);
+        Assert.assertEquals(PutStatus.OK, result.get(key1));
+        Assert.assertEquals(PutStatus.FAILED, result.get(key2));
+        Assert.assertEquals("test1", storage.get(key1).object());
+        Assert.assertNull(storage.get(key2));
+        Assert.assertEquals(1, storage.digest(new Number320(locationKey, domainKey)).getSize());
+        Assert.assertEquals(1, storageM.subMapTimeout(Long.MAX_VALUE).size());
+        storageM.close();
+    }
+
+    @Test
+    public void testScan() throws Exception {
+        testScan(new StorageMemory());
+        StorageTiered storageTiered = new StorageTiered(new StorageMemory(), 10, 10, new LRUEvictionPolicy());
+        testScan(storageTiered);
+    }
+
+    private void testScan(Storage storageM) throws Exception {
+        StorageLayer storage = new StorageLayer(storageM);
+        int size = StorageLayer.SCAN_PAGE * 2 + 10;
+        for (int i = 0; i < size; i++) {
+            Number640 key = new Number640(locationKey, domainKey, new Number160(i), Number160.ZERO);
+            storage.put(key, new Data("test" + i), null, false, false);
+        }
+        Number640 from = new Number640(locationKey, domainKey, Number160.ZERO, Number160.ZERO);
+        Number640 to = new Number640(locationKey, domainKey, Number160.MAX_VALUE, Number160.MAX_VALUE);
+        NavigableMap<Number640, Data> page = storage.scan(from, to, null, 100, false);
+        Assert.assertEquals(100, page.size());
+        Assert.assertEquals(new Number160(size - 1), page.lastKey().getContentKey());
+        page = storage.scan(from, to, page.firstKey(), 100, false);
+        Assert.assertEquals(new Number160(size - 101), page.lastKey().getContentKey());
+        int i = 0;
+        Iterator<Map.Entry<Number640, Data>> cursor = storage.cursor(from, to, true);
+        while (cursor.hasNext()) {
+            Assert.assertEquals(new Number160(i++), cursor.next().getKey().getContentKey());
+        }
+        Assert.assertEquals(size, i);
+        Assert.assertEquals(size, storage.digest(from, to, -1, true).getSize());
+        Assert.assertEquals(size, storage.get().size());
+        storageM.close();
+    }
+
+    @Test
+    public void testVersionIndex() throws Exception {
+        testLatest(true);
+        testLatest(false);
+    }
+
+    private void testLatest(boolean index) throws Exception {
+        StorageMemory storageM = new StorageMemory();
+        StorageLayer storage = new StorageLayer(storageM);
+        if (index) {
+            storage.setVersionIndex(new VersionIndex());
+        }
+        Number640 v1 = new Number640(locationKey, domainKey, content1, new Number160(1));
+        Number640 v2 = new Number640(locationKey, domainKey, content1, new Number160(2));
+        Number640 v3 = new Number640(locationKey, domainKey, content1, new Number160(3));
+        Number640 v4 = new Number640(locationKey, domainKey, content1, new Number160(4));
+        storage.put(v1, new Data("v1"), null, false, false);
+        storage.put(v2, new Data("v2").basedOn(v1.getVersionKey()), null, false, false);
+        // a fork
+        storage.put(v3, new Data("v3").basedOn(v1.getVersionKey()), null, false, false);
+        storage.put(v4, new Data("v4").basedOn(v2.getVersionKey()), null, false, false);
+        storage.put(key2, new Data("test2"), null, false, false);
+        Number640 from = new Number640(locationKey, domainKey, Number160.ZERO, Number160.ZERO);
+        Number640 to = new Number640(locationKey, domainKey, Number160.MAX_VALUE, Number160.MAX_VALUE);
+        SortedMap<Number640, Data> latest = storage.getLatest(from, to, -1, true);
+        Assert.assertEquals(3, latest.size());
+        Assert.assertTrue(latest.containsKey(v3));
+        Assert.assertTrue(latest.containsKey(v4));
+        Assert.assertEquals("v4", latest.get(v4).object());
+        Assert.assertEquals(1, storage.getLatest(from, to, 1, true).size());
+        Assert.assertEquals(key2, storage.getLatest(from, to, 1, false).firstKey());
+        // within the range of the versions only, the successors outside the range count as well
+        Assert.assertEquals(0, storage.getLatest(v1, v2, -1, true).size());
+        Assert.assertEquals(v2.getVersionKey(), storage.digestLatest(v4, v4, -1, true).getDigests().get(v4));
+        storage.remove(v4, null);
+        latest = storage.getLatest(from, to, -1, true);
+        Assert.assertEquals(3, latest.size());
+        Assert.assertEquals(v2, latest.firstKey());
+        storageM.close();
+    }
+
+    @Test
+    public void testRollingDigest() throws Exception {
+        StorageMemory storageM = new StorageMemory();
+        StorageLayer storage = new StorageLayer(storageM);
+        storage.put(key1, new Data("test1"), null, false, false);
+        storage.setRollingDigest(new RollingDigest());
+        storage.put(key2, new Data("test2").basedOn(new Number160(1)), null, false, false);
+        storage.put(key3, new Data("test3"), null, false, false);
+        // replace with an other basedOn
+        storage.put(key2, new Data("test2").basedOn(new Number160(2)), null, false, false);
+        storage.remove(key3, null);
+        Number640 other = new Number640(locationKey, new Number160(21), content1, Number160.ZERO);
+        storage.put(other, new Data("test4"), null, false, false);
+        Number320 locationAndDomainKey = new Number320(locationKey, domainKey);
+        Number640 from = new Number640(locationAndDomainKey, Number160.ZERO, Number160.ZERO);
+        Number640 to = new Number640(locationAndDomainKey, Number160.MAX_VALUE, Number160.MAX_VALUE);
+        DigestInfo expected = storage.digest(from, to, -1, true);
+        DigestInfo digestInfo = storage.digest(locationAndDomainKey);
+        Assert.assertEquals(2, digestInfo.getSize());
+        Assert.assertEquals(expected.getKeyDigest(), digestInfo.getKeyDigest());
+        Assert.assertEquals(expected.getContentDigest(), digestInfo.getContentDigest());
+        Assert.assertEquals(3, storage.digest(locationKey).getSize());
+        storage.remove(key1, null);
+        storage.remove(key2, null);
+        digestInfo = storage.digest(locationAndDomainKey);
+        Assert.assertEquals(0, digestInfo.getSize());
+        Assert.assertEquals(Number160.ZERO, digestInfo.getKeyDigest());
+        Assert.assertEquals(Number160.ZERO, digestInfo.getContentDigest());
+        storageM.close();
+    }
+
+    @Test
+    public void testTiered() throws Exception {
+        StorageMemory cold = new StorageMemory();
+        StorageTiered tiered = new StorageTiered(cold, 2, 2, new LRUEvictionPolicy());
+        StorageLayer storage = new StorageLayer(tiered);
+        storage.put(key1, new Data("test1"), null, false, false);
+        storage.put(key2, new Data("test2"), null, false, false);
+        storage.put(key3, new Data("test3"), null, false, false);
+        // acknowledged from memory, not written yet
+        Assert.assertEquals(3, tiered.pending());
+        Assert.assertEquals(2, tiered.hotEntries());
+        Assert.assertEquals(0, cold.map().size());
+        Assert.assertEquals(new Data("test1"), storage.get(key1));
+        tiered.flush();
+        Assert.assertEquals(0, tiered.pending());
+        Assert.assertEquals(3, cold.map().size());
+        // key1 has been demoted, read from disk and promoted
+        Assert.assertEquals(new Data("test1"), storage.get(key1));
+        Assert.assertEquals(2, tiered.hotEntries());
+        storage.remove(key2, null);
+        Assert.assertNull(storage.get(key2));
+        Assert.assertTrue(cold.contains(key2));
+        SortedMap<Number640, Data> result = storage.get(key1, key4, -1, true);
+        Assert.assertEquals(2, result.size());
+        Assert.assertEquals(key3, storage.get(key1, key4, 1, false).firstKey());
+        tiered.flush();
+        Assert.assertFalse(cold.contains(key2));
+        tiered.close();
+    }
+
+    @Test
+    public void testEvictionDistance() throws Exception {
+        StorageMemory storageM = new StorageMemory();
+        StorageLayer storage = new StorageLayer(storageM);
+        Number640 near = new Number640(new Number160(1), domainKey, content1, Number160.ZERO);
+        Number640 far = new Number640(new Number160(255), domainKey, content1, Number160.ZERO);
+        Data data = new Data("test1");
+        storage.put(near, data, null, false, false);
+        storage.put(far, new Data("test1"), null, false, false);
+        // only room for one entry, the one far from peer 0 goes
+        storage.setCapacity(-1, data.length(), new DistanceEvictionPolicy(Number160.ZERO));
+        Assert.assertEquals(1, storage.getEntries());
+        Assert.assertNotNull(storage.get(near));
+        Assert.assertNull(storage.get(far));
+        storageM.close();
+    }
+
     @Test
     public void testResponsibility() throws Exception {
         StorageMemory storageM = new StorageMemory();
@@ -311,6 +728,61 @@ public class TestStorage {
         Assert.assertEquals(0, lock.cacheSize());
     }
     
+    @Test
+    public void testLockMutualExclusion() throws InterruptedException {
+        final KeyLock<Number160> lock = new KeyLock<Number160>();
+        final int[] counter = new int[1];
+        Thread[] threads = new Thread[10];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        KeyLock<Number160>.RefCounterLock tmp = lock.lock(Number160.createHash("test"));
+                        counter[0]++;
+                        lock.unlock(tmp);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(10000, counter[0]);
+        Assert.assertEquals(0, lock.cacheSize());
+    }
+    
+    @Test
+    public void testRangeLock() throws InterruptedException {
+        final RangeLock lock = new RangeLock();
+        final Number640 other = new Number640(new Number160(11), domainKey, content1, Number160.ZERO);
+        RangeLock.Locked read = lock.read(key1, key4);
+        // a write on another location key can proceed
+        final CountDownLatch otherDone = new CountDownLatch(1);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                lock.write(other).unlock();
+                otherDone.countDown();
+            }
+        }).start();
+        Assert.assertTrue(otherDone.await(1, TimeUnit.SECONDS));
+        // a write into the locked range needs to wait
+        final CountDownLatch sameDone = new CountDownLatch(1);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                lock.write(key2).unlock();
+                sameDone.countDown();
+            }
+        }).start();
+        Assert.assertFalse(sameDone.await(200, TimeUnit.MILLISECONDS));
+        read.unlock();
+        Assert.assertTrue(sameDone.await(1, TimeUnit.SECONDS));
+        Assert.assertEquals(0, lock.cacheSize());
+    }
+    
     @Test
     public void testConcurrency() throws InterruptedException, IOException {
         final StorageMemory sM = new StorageMemory();
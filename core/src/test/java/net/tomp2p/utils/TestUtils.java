@@ -1,7 +1,20 @@
 package net.tomp2p.utils;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
 
 import junit.framework.Assert;
 
@@ -24,4 +37,98 @@ public class TestUtils {
         Utils.difference(collection1, result, collection2, collection3);
         Assert.assertEquals(0, result.size());
     }
+
+    @Test
+    public void testFastSerializer() throws Exception {
+        FastSerializer serializer = new FastSerializer();
+        List<Object> list = new ArrayList<Object>();
+        list.add("hallo");
+        list.add(1);
+        list.add(2L);
+        list.add(null);
+        list.add(true);
+        list.add(new byte[] { 1, 2 });
+        list.add(new Number640(Number160.ONE, Number160.ZERO, Number160.MAX_VALUE, Number160.ONE));
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("list", list);
+        // not a built in type, falls back to Java serialization
+        map.put("date", new Date(42));
+        @SuppressWarnings("unchecked")
+        Map<String, Object> map2 = (Map<String, Object>) serializer.decode(Unpooled.wrappedBuffer(serializer
+                .encode(map)));
+        Assert.assertEquals(new Date(42), map2.get("date"));
+        List<?> list2 = (List<?>) map2.get("list");
+        Assert.assertEquals(list.size(), list2.size());
+        Assert.assertEquals("hallo", list2.get(0));
+        Assert.assertEquals(1, list2.get(1));
+        Assert.assertEquals(2L, list2.get(2));
+        Assert.assertNull(list2.get(3));
+        Assert.assertEquals(true, list2.get(4));
+        Assert.assertEquals(2, ((byte[]) list2.get(5)).length);
+        Assert.assertEquals(0, ((Number640) list.get(6)).compareTo((Number640) list2.get(6)));
+        // objects encoded with Java serialization are still decoded
+        Assert.assertEquals("hallo", serializer.decode(Unpooled.wrappedBuffer(Utils.encodeJavaObject("hallo"))));
+    }
+
+    @Test
+    public void testFastSerializerCorruptSize() throws Exception {
+        FastSerializer serializer = new FastSerializer();
+        byte[] me = serializer.encode(new ArrayList<Object>(Arrays.asList("hallo", new byte[] { 1, 2 })));
+        // the list claims a huge number of elements, which must not be allocated
+        ByteBuf buf = Unpooled.wrappedBuffer(me);
+        buf.setInt(1, Integer.MAX_VALUE);
+        try {
+            serializer.decode(buf);
+            Assert.fail("the size is larger than the buffer");
+        } catch (IOException e) {
+            // expected
+        }
+        buf = Unpooled.wrappedBuffer(me);
+        buf.setInt(1, -1);
+        try {
+            serializer.decode(buf);
+            Assert.fail("the size is negative");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFastSerializerRegistered() throws Exception {
+        FastSerializer serializer = new FastSerializer();
+        serializer.register(1, Date.class, new FastSerializer.ClassCodec<Date>() {
+            @Override
+            public void encode(Date object, ByteBuf buf, FastSerializer serializer) throws IOException {
+                buf.writeLong(object.getTime());
+            }
+
+            @Override
+            public Date decode(ByteBuf buf, FastSerializer serializer) {
+                return new Date(buf.readLong());
+            }
+        });
+        byte[] me = serializer.encode(new Date(42));
+        // tag, id, and the long
+        Assert.assertEquals(1 + 4 + 8, me.length);
+        Assert.assertEquals(new Date(42), serializer.decode(Unpooled.wrappedBuffer(me)));
+    }
+
+    @Test
+    public void testLZF() {
+        Random rnd = new Random(42);
+        byte[] random = new byte[5000];
+        rnd.nextBytes(random);
+        byte[] repeated = new byte[70000];
+        for (int i = 0; i < repeated.length; i++) {
+            repeated[i] = (byte) (i % 13);
+        }
+        for (byte[] input : new byte[][] { Utils.EMPTY_BYTE_ARRAY, { 1 }, random, repeated }) {
+            byte[] compressed = LZF.compress(input);
+            Assert.assertTrue(Arrays.equals(input, LZF.uncompress(compressed)));
+        }
+        Assert.assertTrue(LZF.compress(repeated).length < repeated.length / 10);
+        // the offset and length of the input are honoured
+        byte[] compressed = LZF.compress(repeated, 13, 1000);
+        Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(repeated, 13, 1013), LZF.uncompress(compressed)));
+    }
 }
@@ -0,0 +1,1202 @@
+/*
+ * Copyright 2012 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.PublicKey;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import net.tomp2p.connection.DefaultSignatureFactory;
+import net.tomp2p.connection.SignatureFactory;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number320;
+import net.tomp2p.peers.Number480;
+import net.tomp2p.peers.Number640;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A log-structured storage. Every modification is appended as a record to the active segment file, thus writes are
+ * purely sequential. The keys, the timeouts, and the protection keys are kept in memory, the {@link Data} objects are
+ * read from the segment files on demand. Once a segment is full, a new one is started and sealed segments with mostly
+ * overwritten or removed entries are compacted in the background.
+ * <p>
+ * On {@link #close()} and after each compaction, a checkpoint of the in-memory state is written. On startup, the
+ * checkpoint is loaded and only the records appended after the checkpoint are replayed. Without a checkpoint, all
+ * segments are replayed.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class StorageDisk implements Storage {
+    private static final Logger LOG = LoggerFactory.getLogger(StorageDisk.class);
+
+    public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    // compact a sealed segment if less than half of it is in use
+    public static final double DEFAULT_COMPACTION_RATIO = 0.5;
+
+    private static final String SEGMENT_PREFIX = "log-";
+    private static final String SEGMENT_SUFFIX = ".tomp2p";
+    private static final String CHECKPOINT = "checkpoint.tomp2p";
+    private static final int CHECKPOINT_VERSION = 1;
+
+    // record types
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte TIMEOUT = 3;
+    private static final byte REMOVE_TIMEOUT = 4;
+    private static final byte PROTECT_DOMAIN = 5;
+    private static final byte PROTECT_ENTRY = 6;
+
+    // length of the body and its CRC32
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private final File directory;
+    private final long segmentSize;
+    private final double compactionRatio;
+    private final SignatureFactory signatureFactory;
+
+    // Core, maps the keys to the records in the segments
+    final private ConcurrentSkipListMap<Number640, Location> index = new ConcurrentSkipListMap<Number640, Location>();
+
+    // Maintenance
+    final private Map<Number640, Long> timeoutMap = new ConcurrentHashMap<Number640, Long>();
+    final private ConcurrentSkipListMap<Long, Set<Number640>> timeoutMapRev = new ConcurrentSkipListMap<Long, Set<Number640>>();
+
+    // Protection
+    final private Map<Number320, PublicKey> protectedMap = new ConcurrentHashMap<Number320, PublicKey>();
+    final private Map<Number480, PublicKey> entryMap = new ConcurrentHashMap<Number480, PublicKey>();
+    final private StorageMemoryReplication storageMemoryReplication = new StorageMemoryReplication();
+
+    // Segments, readers hold the read lock, removal of segments holds the write lock
+    private final NavigableMap<Integer, Segment> segments = new ConcurrentSkipListMap<Integer, Segment>();
+    private final ReentrantReadWriteLock segmentLock = new ReentrantReadWriteLock();
+
+    // guards the active segment. All modifications of the in-memory state are done while holding this lock, in the
+    // same order as the records are appended
+    private final Object writeLock = new Object();
+    private Segment active;
+
+    private final ExecutorService compactionExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "StorageDisk-compaction");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final AtomicBoolean compacting = new AtomicBoolean(false);
+
+    /**
+     * Opens or creates a storage with the default segment size of 64MB.
+     *
+     * @param directory
+     *            The directory of the segment files
+     * @throws IOException
+     *             If the segments or the checkpoint cannot be read
+     */
+    public StorageDisk(final File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_COMPACTION_RATIO, new DefaultSignatureFactory());
+    }
+
+    /**
+     * Opens or creates a storage.
+     *
+     * @param directory
+     *            The directory of the segment files
+     * @param segmentSize
+     *            The size after which a new segment is started
+     * @param compactionRatio
+     *            A sealed segment is compacted if the ratio of its live records is below this value
+     * @param signatureFactory
+     *            The factory to decode the public keys
+     * @throws IOException
+     *             If the segments or the checkpoint cannot be read
+     */
+    public StorageDisk(final File directory, final long segmentSize, final double compactionRatio,
+            final SignatureFactory signatureFactory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.compactionRatio = compactionRatio;
+        this.signatureFactory = signatureFactory;
+        open();
+    }
+
+    // Core
+    @Override
+    public boolean put(final Number640 key, final Data value) {
+        try {
+            final ByteBuffer body = encodePut(key, value);
+            synchronized (writeLock) {
+                indexPut(key, append(body));
+            }
+            return true;
+        } catch (IOException e) {
+            LOG.error("cannot store " + key, e);
+            return false;
+        }
+    }
+
+    @Override
+    public Collection<Number640> putAll(final Map<Number640, Data> values) {
+        final List<Number640> keys = new ArrayList<Number640>(values.size());
+        final List<ByteBuffer> bodies = new ArrayList<ByteBuffer>(values.size());
+        for (Map.Entry<Number640, Data> entry : values.entrySet()) {
+            keys.add(entry.getKey());
+            bodies.add(encodePut(entry.getKey(), entry.getValue()));
+        }
+        try {
+            synchronized (writeLock) {
+                final List<Location> locations = append(bodies);
+                for (int i = 0; i < locations.size(); i++) {
+                    indexPut(keys.get(i), locations.get(i));
+                }
+            }
+            return Collections.<Number640> emptyList();
+        } catch (IOException e) {
+            // none of the entries is in the index, even if a part of the batch has been appended
+            LOG.error("cannot store " + values.size() + " entries", e);
+            return keys;
+        }
+    }
+
+    private static ByteBuffer encodePut(final Number640 key, final Data value) {
+        final AlternativeCompositeByteBuf buf = AlternativeCompositeByteBuf.compBuffer();
+        try {
+            buf.writeByte(PUT);
+            writeKey(buf, key);
+            value.encode(buf);
+            return toByteBuffer(buf);
+        } finally {
+            buf.release();
+        }
+    }
+
+    private void indexPut(final Number640 key, final Location location) {
+        live(location, location.length);
+        final Location old = index.put(key, location);
+        if (old != null) {
+            live(old, -old.length);
+        }
+    }
+
+    @Override
+    public Data get(final Number640 key) {
+        while (true) {
+            final Location location = index.get(key);
+            if (location == null) {
+                return null;
+            }
+            try {
+                final ByteBuffer body = read(location);
+                if (body != null) {
+                    return decodeData(body);
+                }
+            } catch (IOException e) {
+                LOG.error("cannot read " + key, e);
+                return null;
+            }
+            // the segment has been compacted meanwhile, the index points to the new location
+            if (index.get(key) == location) {
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public boolean contains(final Number640 key) {
+        return index.containsKey(key);
+    }
+
+    @Override
+    public int contains(final Number640 fromKey, final Number640 toKey) {
+        return index.subMap(fromKey, true, toKey, true).size();
+    }
+
+    @Override
+    public Data remove(final Number640 key) {
+        final Data data = get(key);
+        try {
+            synchronized (writeLock) {
+                if (!index.containsKey(key)) {
+                    return null;
+                }
+                append(encodeKey(REMOVE, key));
+                final Location old = index.remove(key);
+                live(old, -old.length);
+            }
+        } catch (IOException e) {
+            LOG.error("cannot remove " + key, e);
+            return null;
+        }
+        return data;
+    }
+
+    @Override
+    public NavigableMap<Number640, Data> remove(final Number640 fromKey, final Number640 toKey) {
+        return removeAll(new ArrayList<Number640>(index.subMap(fromKey, true, toKey, true).keySet()));
+    }
+
+    @Override
+    public NavigableMap<Number640, Data> removeAll(final Collection<Number640> keys) {
+        final NavigableMap<Number640, Data> result = new TreeMap<Number640, Data>();
+        for (Number640 key : keys) {
+            final Data data = get(key);
+            if (data != null) {
+                result.put(key, data);
+            }
+        }
+        try {
+            synchronized (writeLock) {
+                final List<ByteBuffer> bodies = new ArrayList<ByteBuffer>(result.size());
+                for (Iterator<Number640> iterator = result.keySet().iterator(); iterator.hasNext();) {
+                    final Number640 key = iterator.next();
+                    if (index.containsKey(key)) {
+                        bodies.add(encodeKey(REMOVE, key));
+                    } else {
+                        iterator.remove();
+                    }
+                }
+                append(bodies);
+                for (Number640 key : result.keySet()) {
+                    final Location old = index.remove(key);
+                    live(old, -old.length);
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("cannot remove " + keys.size() + " entries", e);
+            return new TreeMap<Number640, Data>();
+        }
+        return result;
+    }
+
+    @Override
+    public NavigableMap<Number640, Data> subMap(final Number640 fromKey, final Number640 toKey, int limit,
+            final boolean ascending) {
+        final NavigableMap<Number640, Data> retVal = new TreeMap<Number640, Data>();
+        if (limit < 0) {
+            limit = Integer.MAX_VALUE;
+        }
+        final Iterator<Map.Entry<Number640, Data>> iterator = iterator(fromKey, toKey, ascending);
+        while (iterator.hasNext() && retVal.size() < limit) {
+            final Map.Entry<Number640, Data> entry = iterator.next();
+            retVal.put(entry.getKey(), entry.getValue());
+        }
+        return retVal;
+    }
+
+    @Override
+    public NavigableMap<Number640, Data> map() {
+        final NavigableMap<Number640, Data> retVal = new TreeMap<Number640, Data>();
+        for (Number640 key : index.keySet()) {
+            final Data data = get(key);
+            if (data != null) {
+                retVal.put(key, data);
+            }
+        }
+        return retVal;
+    }
+
+    @Override
+    public Iterator<Map.Entry<Number640, Data>> iterator(final Number640 fromKey, final Number640 toKey,
+            final boolean ascending) {
+        final NavigableMap<Number640, Location> tmp = index.subMap(fromKey, true, toKey, true);
+        final Iterator<Number640> keys = ascending ? tmp.keySet().iterator() : tmp.descendingMap().keySet()
+                .iterator();
+        return new Iterator<Map.Entry<Number640, Data>>() {
+            // the records are read one at a time, so only one is on the heap
+            private Map.Entry<Number640, Data> next = advance();
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<Number640, Data> next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                final Map.Entry<Number640, Data> retVal = next;
+                next = advance();
+                return retVal;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            private Map.Entry<Number640, Data> advance() {
+                while (keys.hasNext()) {
+                    final Number640 key = keys.next();
+                    final Data data = get(key);
+                    // null if removed meanwhile
+                    if (data != null) {
+                        return new AbstractMap.SimpleImmutableEntry<Number640, Data>(key, data);
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    @Override
+    public boolean isConcurrent() {
+        // reads retry if a segment is compacted meanwhile
+        return true;
+    }
+
+    // Maintenance
+    @Override
+    public void addTimeout(final Number640 key, final long expiration) {
+        final ByteBuf buf = Unpooled.buffer(1 + Number160.BYTE_ARRAY_SIZE * 4 + 8);
+        buf.writeByte(TIMEOUT);
+        writeKey(buf, key);
+        buf.writeLong(expiration);
+        try {
+            synchronized (writeLock) {
+                append(toByteBuffer(buf));
+                addTimeoutInternal(key, expiration);
+            }
+        } catch (IOException e) {
+            LOG.error("cannot store timeout for " + key, e);
+        }
+    }
+
+    @Override
+    public void removeTimeout(final Number640 key) {
+        try {
+            synchronized (writeLock) {
+                if (!timeoutMap.containsKey(key)) {
+                    return;
+                }
+                append(encodeKey(REMOVE_TIMEOUT, key));
+                removeTimeoutInternal(key);
+            }
+        } catch (IOException e) {
+            LOG.error("cannot remove timeout for " + key, e);
+        }
+    }
+
+    @Override
+    public void addTimeouts(final Map<Number640, Long> expirations) {
+        final List<ByteBuffer> bodies = new ArrayList<ByteBuffer>(expirations.size());
+        for (Map.Entry<Number640, Long> entry : expirations.entrySet()) {
+            final ByteBuf buf = Unpooled.buffer(1 + Number160.BYTE_ARRAY_SIZE * 4 + 8);
+            buf.writeByte(TIMEOUT);
+            writeKey(buf, entry.getKey());
+            buf.writeLong(entry.getValue());
+            bodies.add(toByteBuffer(buf));
+        }
+        try {
+            synchronized (writeLock) {
+                append(bodies);
+                for (Map.Entry<Number640, Long> entry : expirations.entrySet()) {
+                    addTimeoutInternal(entry.getKey(), entry.getValue());
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("cannot store " + expirations.size() + " timeouts", e);
+        }
+    }
+
+    @Override
+    public void removeTimeouts(final Collection<Number640> keys) {
+        try {
+            synchronized (writeLock) {
+                final List<Number640> present = new ArrayList<Number640>(keys.size());
+                final List<ByteBuffer> bodies = new ArrayList<ByteBuffer>(keys.size());
+                for (Number640 key : keys) {
+                    if (timeoutMap.containsKey(key)) {
+                        present.add(key);
+                        bodies.add(encodeKey(REMOVE_TIMEOUT, key));
+                    }
+                }
+                append(bodies);
+                for (Number640 key : present) {
+                    removeTimeoutInternal(key);
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("cannot remove " + keys.size() + " timeouts", e);
+        }
+    }
+
+    @Override
+    public Collection<Number640> subMapTimeout(final long to) {
+        return subMapTimeout(to, -1);
+    }
+
+    @Override
+    public Collection<Number640> subMapTimeout(final long to, final int limit) {
+        final SortedMap<Long, Set<Number640>> tmp = timeoutMapRev.subMap(0L, to);
+        final Collection<Number640> toRemove = new ArrayList<Number640>();
+        for (Set<Number640> set : tmp.values()) {
+            for (Number640 key : set) {
+                if (limit >= 0 && toRemove.size() >= limit) {
+                    return toRemove;
+                }
+                toRemove.add(key);
+            }
+        }
+        return toRemove;
+    }
+
+    private void addTimeoutInternal(final Number640 key, final long expiration) {
+        final Long oldExpiration = timeoutMap.put(key, expiration);
+        Set<Number640> tmp = timeoutMapRev.get(expiration);
+        if (tmp == null) {
+            tmp = Collections.newSetFromMap(new ConcurrentHashMap<Number640, Boolean>());
+            final Set<Number640> old = timeoutMapRev.putIfAbsent(expiration, tmp);
+            tmp = old == null ? tmp : old;
+        }
+        tmp.add(key);
+        if (oldExpiration != null && oldExpiration != expiration) {
+            removeRevTimeout(key, oldExpiration);
+        }
+    }
+
+    private void removeTimeoutInternal(final Number640 key) {
+        final Long expiration = timeoutMap.remove(key);
+        if (expiration != null) {
+            removeRevTimeout(key, expiration);
+        }
+    }
+
+    private void removeRevTimeout(final Number640 key, final Long expiration) {
+        final Set<Number640> tmp = timeoutMapRev.get(expiration);
+        if (tmp != null) {
+            tmp.remove(key);
+            if (tmp.isEmpty()) {
+                timeoutMapRev.remove(expiration);
+            }
+        }
+    }
+
+    // Protection
+    @Override
+    public boolean protectDomain(final Number320 key, final PublicKey publicKey) {
+        final ByteBuf buf = Unpooled.buffer();
+        buf.writeByte(PROTECT_DOMAIN);
+        writeNumber160(buf, key.getLocationKey());
+        writeNumber160(buf, key.getDomainKey());
+        writePublicKey(buf, publicKey);
+        try {
+            synchronized (writeLock) {
+                append(toByteBuffer(buf));
+                protectedMap.put(key, publicKey);
+            }
+            return true;
+        } catch (IOException e) {
+            LOG.error("cannot protect domain " + key, e);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean isDomainProtectedByOthers(final Number320 key, final PublicKey publicKey) {
+        final PublicKey other = protectedMap.get(key);
+        if (other == null) {
+            return false;
+        }
+        return !other.equals(publicKey);
+    }
+
+    @Override
+    public boolean protectEntry(final Number480 key, final PublicKey publicKey) {
+        final ByteBuf buf = Unpooled.buffer();
+        buf.writeByte(PROTECT_ENTRY);
+        writeNumber160(buf, key.getLocationKey());
+        writeNumber160(buf, key.getDomainKey());
+        writeNumber160(buf, key.getContentKey());
+        writePublicKey(buf, publicKey);
+        try {
+            synchronized (writeLock) {
+                append(toByteBuffer(buf));
+                entryMap.put(key, publicKey);
+            }
+            return true;
+        } catch (IOException e) {
+            LOG.error("cannot protect entry " + key, e);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean isEntryProtectedByOthers(final Number480 key, final PublicKey publicKey) {
+        final PublicKey other = entryMap.get(key);
+        if (other == null) {
+            return false;
+        }
+        return !other.equals(publicKey);
+    }
+
+    // Replication, not persisted as the responsibilities are recalculated after a restart
+    @Override
+    public Number160 findPeerIDForResponsibleContent(final Number160 locationKey) {
+        return storageMemoryReplication.findPeerIDForResponsibleContent(locationKey);
+    }
+
+    @Override
+    public Collection<Number160> findContentForResponsiblePeerID(final Number160 peerID) {
+        return storageMemoryReplication.findContentForResponsiblePeerID(peerID);
+    }
+
+    @Override
+    public boolean updateResponsibilities(final Number160 locationKey, final Number160 peerId) {
+        return storageMemoryReplication.updateResponsibilities(locationKey, peerId);
+    }
+
+    @Override
+    public void removeResponsibility(final Number160 locationKey) {
+        storageMemoryReplication.removeResponsibility(locationKey);
+    }
+
+    // Misc
+    @Override
+    public void close() {
+        compactionExecutor.shutdown();
+        try {
+            compactionExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            writeCheckpoint();
+        } catch (IOException e) {
+            LOG.error("cannot write checkpoint, the segments will be replayed on the next start", e);
+        }
+        segmentLock.writeLock().lock();
+        try {
+            for (Segment segment : segments.values()) {
+                segment.close();
+            }
+            segments.clear();
+        } finally {
+            segmentLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Copies the live records of sealed segments that are mostly garbage to the active segment and deletes those
+     * segments afterwards. This is triggered automatically when a segment is sealed.
+     *
+     * @throws IOException
+     *             If a record cannot be copied or the checkpoint cannot be written
+     */
+    public synchronized void compact() throws IOException {
+        final int activeId;
+        synchronized (writeLock) {
+            activeId = active.id;
+        }
+        final Set<Integer> candidates = new HashSet<Integer>();
+        for (Segment segment : segments.values()) {
+            final long live = segment.live.get();
+            if (segment.id != activeId && (live == 0 || live < segment.size * compactionRatio)) {
+                candidates.add(segment.id);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<Number640, Location> entry : index.entrySet()) {
+            final Location location = entry.getValue();
+            if (!candidates.contains(location.segmentId)) {
+                continue;
+            }
+            final ByteBuffer body = read(location);
+            if (body == null) {
+                continue;
+            }
+            synchronized (writeLock) {
+                // skip if the entry was overwritten or removed meanwhile
+                if (index.get(entry.getKey()) != location) {
+                    continue;
+                }
+                final Location newLocation = append(body);
+                live(newLocation, newLocation.length);
+                index.put(entry.getKey(), newLocation);
+                live(location, -location.length);
+            }
+        }
+        // the records of the compacted segments are not needed anymore after the checkpoint
+        writeCheckpoint();
+        segmentLock.writeLock().lock();
+        try {
+            for (Integer id : candidates) {
+                final Segment segment = segments.remove(id);
+                if (segment == null) {
+                    continue;
+                }
+                segment.close();
+                if (!segment.file.delete()) {
+                    LOG.warn("cannot delete segment {}", segment.file);
+                }
+            }
+        } finally {
+            segmentLock.writeLock().unlock();
+        }
+        LOG.debug("compacted {} segments", candidates.size());
+    }
+
+    /**
+     * @return The number of segment files
+     */
+    public int segmentCount() {
+        return segments.size();
+    }
+
+    private void open() throws IOException {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                final String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    final int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length()
+                            - SEGMENT_SUFFIX.length()));
+                    segments.put(id, new Segment(id, file));
+                }
+            }
+        }
+        int fromSegment = segments.isEmpty() ? 0 : segments.firstKey();
+        long fromPosition = 0;
+        final File checkpoint = new File(directory, CHECKPOINT);
+        if (checkpoint.exists()) {
+            try {
+                final Location replayFrom = readCheckpoint(checkpoint);
+                fromSegment = replayFrom.segmentId;
+                fromPosition = replayFrom.offset;
+            } catch (IOException e) {
+                LOG.warn("cannot read checkpoint, replaying all segments", e);
+                clearState();
+            }
+        }
+        for (Segment segment : segments.tailMap(fromSegment).values()) {
+            replay(segment, segment.id == fromSegment ? fromPosition : 0);
+        }
+        // the live records are derived from the index, the rest is garbage
+        for (Iterator<Location> iterator = index.values().iterator(); iterator.hasNext();) {
+            final Location location = iterator.next();
+            final Segment segment = segments.get(location.segmentId);
+            if (segment == null) {
+                LOG.warn("segment {} is missing, dropping entry", location.segmentId);
+                iterator.remove();
+            } else {
+                segment.live.addAndGet(location.length);
+            }
+        }
+        final int id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        active = new Segment(id, segmentFile(id));
+        segments.put(id, active);
+    }
+
+    private void clearState() {
+        index.clear();
+        timeoutMap.clear();
+        timeoutMapRev.clear();
+        protectedMap.clear();
+        entryMap.clear();
+    }
+
+    private void replay(final Segment segment, final long from) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        long position = from;
+        while (position + RECORD_HEADER_SIZE <= segment.size) {
+            header.clear();
+            readFully(segment.channel, header, position);
+            header.flip();
+            final int length = header.getInt();
+            final int crc = header.getInt();
+            if (length <= 0 || position + RECORD_HEADER_SIZE + length > segment.size) {
+                break;
+            }
+            final ByteBuffer body = ByteBuffer.allocate(length);
+            readFully(segment.channel, body, position + RECORD_HEADER_SIZE);
+            body.flip();
+            if (crc(body) != crc) {
+                break;
+            }
+            apply(body, new Location(segment.id, position, RECORD_HEADER_SIZE + length));
+            position += RECORD_HEADER_SIZE + length;
+        }
+        if (position < segment.size) {
+            // a partially written record from a crash
+            LOG.warn("truncating segment {} from {} to {}", segment.id, segment.size, position);
+            segment.channel.truncate(position);
+            segment.size = position;
+        }
+    }
+
+    private void apply(final ByteBuffer body, final Location location) throws IOException {
+        final byte type = body.get();
+        switch (type) {
+        case PUT:
+            index.put(readKey(body), location);
+            break;
+        case REMOVE:
+            index.remove(readKey(body));
+            break;
+        case TIMEOUT:
+            final Number640 key = readKey(body);
+            addTimeoutInternal(key, body.getLong());
+            break;
+        case REMOVE_TIMEOUT:
+            removeTimeoutInternal(readKey(body));
+            break;
+        case PROTECT_DOMAIN:
+            final Number320 domain = new Number320(readNumber160(body), readNumber160(body));
+            final PublicKey domainPublicKey = readPublicKey(body);
+            if (domainPublicKey != null) {
+                protectedMap.put(domain, domainPublicKey);
+            }
+            break;
+        case PROTECT_ENTRY:
+            final Number480 entry = new Number480(readNumber160(body), readNumber160(body), readNumber160(body));
+            final PublicKey entryPublicKey = readPublicKey(body);
+            if (entryPublicKey != null) {
+                entryMap.put(entry, entryPublicKey);
+            }
+            break;
+        default:
+            throw new IOException("unknown record type " + type);
+        }
+    }
+
+    /**
+     * Appends a record to the active segment. Needs to be called while holding {@link #writeLock}.
+     *
+     * @param body
+     *            The body of the record
+     * @return The location of the record
+     * @throws IOException
+     *             If the record cannot be written
+     */
+    private Location append(final ByteBuffer body) throws IOException {
+        return append(Collections.singletonList(body)).get(0);
+    }
+
+    /**
+     * Appends records to the active segment with one gathering write, or one per segment if the records do not fit
+     * into the active segment. Needs to be called while holding {@link #writeLock}.
+     *
+     * @param bodies
+     *            The bodies of the records
+     * @return The locations of the records, in the same order
+     * @throws IOException
+     *             If the records cannot be written
+     */
+    private List<Location> append(final List<ByteBuffer> bodies) throws IOException {
+        final List<Location> locations = new ArrayList<Location>(bodies.size());
+        final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>(bodies.size() * 2);
+        long batchLength = 0;
+        for (ByteBuffer body : bodies) {
+            final int length = body.remaining();
+            final long offset = active.size + batchLength;
+            if (offset > 0 && offset + RECORD_HEADER_SIZE + length > segmentSize) {
+                write(buffers, batchLength);
+                buffers.clear();
+                batchLength = 0;
+                roll();
+            }
+            final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            header.putInt(length).putInt(crc(body)).flip();
+            locations.add(new Location(active.id, active.size + batchLength, RECORD_HEADER_SIZE + length));
+            buffers.add(header);
+            buffers.add(body.duplicate());
+            batchLength += RECORD_HEADER_SIZE + length;
+        }
+        write(buffers, batchLength);
+        return locations;
+    }
+
+    private void write(final List<ByteBuffer> buffers, final long length) throws IOException {
+        final ByteBuffer[] array = buffers.toArray(new ByteBuffer[buffers.size()]);
+        long written = 0;
+        while (written < length) {
+            written += active.channel.write(array);
+        }
+        active.size += length;
+    }
+
+    private void roll() throws IOException {
+        active.channel.force(false);
+        final int id = active.id + 1;
+        active = new Segment(id, segmentFile(id));
+        segments.put(id, active);
+        if (compacting.compareAndSet(false, true)) {
+            compactionExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compact();
+                    } catch (IOException e) {
+                        LOG.error("compaction failed", e);
+                    } finally {
+                        compacting.set(false);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @param location
+     *            The location of the record
+     * @return The body of the record or null if the segment does not exist anymore
+     * @throws IOException
+     *             If the record cannot be read or is corrupt
+     */
+    private ByteBuffer read(final Location location) throws IOException {
+        segmentLock.readLock().lock();
+        try {
+            final Segment segment = segments.get(location.segmentId);
+            if (segment == null) {
+                return null;
+            }
+            final ByteBuffer record = ByteBuffer.allocate(location.length);
+            readFully(segment.channel, record, location.offset);
+            record.flip();
+            final int length = record.getInt();
+            final int crc = record.getInt();
+            final ByteBuffer body = record.slice();
+            if (length != body.remaining() || crc(body) != crc) {
+                throw new IOException("corrupt record in segment " + location.segmentId + " at "
+                        + location.offset);
+            }
+            return body;
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    private Data decodeData(final ByteBuffer body) throws IOException {
+        // skip the type and the key
+        body.position(1 + Number160.BYTE_ARRAY_SIZE * 4);
+        final ByteBuf buf = Unpooled.wrappedBuffer(body);
+        final Data data = Data.decodeHeader(buf, signatureFactory);
+        if (data == null || !data.decodeBuffer(buf) || !data.decodeDone(buf, null)) {
+            throw new IOException("corrupt data record");
+        }
+        return data;
+    }
+
+    private void live(final Location location, final long delta) {
+        final Segment segment = segments.get(location.segmentId);
+        if (segment != null) {
+            segment.live.addAndGet(delta);
+        }
+    }
+
+    private File segmentFile(final int id) {
+        return new File(directory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Writes the in-memory state to the checkpoint file together with the position in the log up to which the state
+     * is complete. The state may also contain modifications that were appended later, these are simply applied again
+     * on replay.
+     */
+    private void writeCheckpoint() throws IOException {
+        final Location replayFrom;
+        synchronized (writeLock) {
+            active.channel.force(false);
+            replayFrom = new Location(active.id, active.size, 0);
+        }
+        final File tmp = new File(directory, CHECKPOINT + ".tmp");
+        final FileOutputStream fos = new FileOutputStream(tmp);
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+        try {
+            out.writeInt(CHECKPOINT_VERSION);
+            out.writeInt(replayFrom.segmentId);
+            out.writeLong(replayFrom.offset);
+            for (Map.Entry<Number640, Location> entry : index.entrySet()) {
+                out.writeBoolean(true);
+                writeKey(out, entry.getKey());
+                out.writeInt(entry.getValue().segmentId);
+                out.writeLong(entry.getValue().offset);
+                out.writeInt(entry.getValue().length);
+            }
+            out.writeBoolean(false);
+            for (Map.Entry<Number640, Long> entry : timeoutMap.entrySet()) {
+                out.writeBoolean(true);
+                writeKey(out, entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            out.writeBoolean(false);
+            for (Map.Entry<Number320, PublicKey> entry : protectedMap.entrySet()) {
+                out.writeBoolean(true);
+                out.write(entry.getKey().getLocationKey().toByteArray());
+                out.write(entry.getKey().getDomainKey().toByteArray());
+                writePublicKey(out, entry.getValue());
+            }
+            out.writeBoolean(false);
+            for (Map.Entry<Number480, PublicKey> entry : entryMap.entrySet()) {
+                out.writeBoolean(true);
+                out.write(entry.getKey().getLocationKey().toByteArray());
+                out.write(entry.getKey().getDomainKey().toByteArray());
+                out.write(entry.getKey().getContentKey().toByteArray());
+                writePublicKey(out, entry.getValue());
+            }
+            out.writeBoolean(false);
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), new File(directory, CHECKPOINT).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Location readCheckpoint(final File checkpoint) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpoint)));
+        try {
+            final int version = in.readInt();
+            if (version != CHECKPOINT_VERSION) {
+                throw new IOException("unknown checkpoint version " + version);
+            }
+            final Location replayFrom = new Location(in.readInt(), in.readLong(), 0);
+            while (in.readBoolean()) {
+                final Number640 key = readKey(in);
+                index.put(key, new Location(in.readInt(), in.readLong(), in.readInt()));
+            }
+            while (in.readBoolean()) {
+                final Number640 key = readKey(in);
+                addTimeoutInternal(key, in.readLong());
+            }
+            while (in.readBoolean()) {
+                final Number320 key = new Number320(readNumber160(in), readNumber160(in));
+                final PublicKey publicKey = readPublicKey(in);
+                if (publicKey != null) {
+                    protectedMap.put(key, publicKey);
+                }
+            }
+            while (in.readBoolean()) {
+                final Number480 key = new Number480(readNumber160(in), readNumber160(in), readNumber160(in));
+                final PublicKey publicKey = readPublicKey(in);
+                if (publicKey != null) {
+                    entryMap.put(key, publicKey);
+                }
+            }
+            return replayFrom;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static int crc(final ByteBuffer body) {
+        final CRC32 crc = new CRC32();
+        if (body.hasArray()) {
+            crc.update(body.array(), body.arrayOffset() + body.position(), body.remaining());
+        } else {
+            final byte[] me = new byte[body.remaining()];
+            body.duplicate().get(me);
+            crc.update(me);
+        }
+        return (int) crc.getValue();
+    }
+
+    private static ByteBuffer encodeKey(final byte type, final Number640 key) {
+        final ByteBuf buf = Unpooled.buffer(1 + Number160.BYTE_ARRAY_SIZE * 4);
+        buf.writeByte(type);
+        writeKey(buf, key);
+        return toByteBuffer(buf);
+    }
+
+    private static ByteBuffer toByteBuffer(final ByteBuf buf) {
+        final byte[] me = new byte[buf.readableBytes()];
+        buf.getBytes(buf.readerIndex(), me);
+        return ByteBuffer.wrap(me);
+    }
+
+    private static void writeKey(final ByteBuf buf, final Number640 key) {
+        writeNumber160(buf, key.getLocationKey());
+        writeNumber160(buf, key.getDomainKey());
+        writeNumber160(buf, key.getContentKey());
+        writeNumber160(buf, key.getVersionKey());
+    }
+
+    private static void writeNumber160(final ByteBuf buf, final Number160 number) {
+        buf.writeBytes(number.toByteArray());
+    }
+
+    private static void writeKey(final DataOutputStream out, final Number640 key) throws IOException {
+        out.write(key.getLocationKey().toByteArray());
+        out.write(key.getDomainKey().toByteArray());
+        out.write(key.getContentKey().toByteArray());
+        out.write(key.getVersionKey().toByteArray());
+    }
+
+    private static Number640 readKey(final ByteBuffer buf) {
+        return new Number640(readNumber160(buf), readNumber160(buf), readNumber160(buf), readNumber160(buf));
+    }
+
+    private static Number160 readNumber160(final ByteBuffer buf) {
+        final byte[] me = new byte[Number160.BYTE_ARRAY_SIZE];
+        buf.get(me);
+        return new Number160(me);
+    }
+
+    private static Number640 readKey(final DataInputStream in) throws IOException {
+        return new Number640(readNumber160(in), readNumber160(in), readNumber160(in), readNumber160(in));
+    }
+
+    private static Number160 readNumber160(final DataInputStream in) throws IOException {
+        final byte[] me = new byte[Number160.BYTE_ARRAY_SIZE];
+        in.readFully(me);
+        return new Number160(me);
+    }
+
+    private static void writePublicKey(final ByteBuf buf, final PublicKey publicKey) {
+        final byte[] encoded = publicKey == null ? null : publicKey.getEncoded();
+        if (encoded == null) {
+            buf.writeInt(-1);
+        } else {
+            buf.writeInt(encoded.length);
+            buf.writeBytes(encoded);
+        }
+    }
+
+    private static void writePublicKey(final DataOutputStream out, final PublicKey publicKey) throws IOException {
+        final byte[] encoded = publicKey == null ? null : publicKey.getEncoded();
+        if (encoded == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(encoded.length);
+            out.write(encoded);
+        }
+    }
+
+    private PublicKey readPublicKey(final ByteBuffer buf) {
+        final int length = buf.getInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] me = new byte[length];
+        buf.get(me);
+        return signatureFactory.decodePublicKey(me);
+    }
+
+    private PublicKey readPublicKey(final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] me = new byte[length];
+        in.readFully(me);
+        return signatureFactory.decodePublicKey(me);
+    }
+
+    /**
+     * The position of a record in a segment.
+     */
+    private static final class Location {
+        private final int segmentId;
+        private final long offset;
+        private final int length;
+
+        private Location(final int segmentId, final long offset, final int length) {
+            this.segmentId = segmentId;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * An append-only log file.
+     */
+    private static final class Segment {
+        private final int id;
+        private final File file;
+        private final RandomAccessFile randomAccessFile;
+        private final FileChannel channel;
+        // only modified while holding the write lock or during startup
+        private volatile long size;
+        // bytes of records that are still referenced by the index
+        private final AtomicLong live = new AtomicLong();
+
+        private Segment(final int id, final File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.randomAccessFile = new RandomAccessFile(file, "rw");
+            this.channel = randomAccessFile.getChannel();
+            this.size = channel.size();
+            channel.position(size);
+        }
+
+        private void close() {
+            try {
+                channel.force(false);
+                randomAccessFile.close();
+            } catch (IOException e) {
+                LOG.warn("cannot close segment " + file, e);
+            }
+        }
+    }
+}
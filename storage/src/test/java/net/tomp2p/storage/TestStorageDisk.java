@@ -0,0 +1,146 @@
+package net.tomp2p.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import net.tomp2p.connection.DefaultSignatureFactory;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number320;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.StorageLayer.PutStatus;
+import net.tomp2p.utils.Utils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestStorageDisk {
+    final private static Number160 locationKey = new Number160(10);
+
+    final private static Number160 domainKey = new Number160(20);
+
+    final private Number640 key1 = new Number640(locationKey, domainKey, new Number160(50), Number160.ZERO);
+    final private Number640 key2 = new Number640(locationKey, domainKey, new Number160(60), Number160.ZERO);
+    final private Number640 key3 = new Number640(locationKey, domainKey, new Number160(70), Number160.ZERO);
+
+    private File dir;
+
+    @Before
+    public void before() throws IOException {
+        dir = Utils.createTempDir();
+    }
+
+    @After
+    public void after() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testPutGetRemove() throws Exception {
+        StorageDisk storageDisk = new StorageDisk(dir);
+        StorageLayer storage = new StorageLayer(storageDisk);
+        Assert.assertEquals(PutStatus.OK, storage.put(key1, new Data("test1"), null, false, false));
+        Assert.assertEquals(PutStatus.OK, storage.put(key2, new Data("test2"), null, false, false));
+        Assert.assertEquals("test1", storage.get(key1).object());
+        Assert.assertEquals(2, storage.get(key1, key3, -1, true).size());
+        Assert.assertEquals("test1", storage.remove(key1, null).object());
+        Assert.assertNull(storage.get(key1));
+        Assert.assertEquals(1, storage.get(key1, key3, -1, true).size());
+        storageDisk.close();
+    }
+
+    @Test
+    public void testRestartWithCheckpoint() throws Exception {
+        KeyPair pair = KeyPairGenerator.getInstance("DSA").generateKeyPair();
+        StorageDisk storageDisk = new StorageDisk(dir);
+        storageDisk.put(key1, new Data("test1").ttlSeconds(100));
+        storageDisk.addTimeout(key1, 4711L);
+        storageDisk.put(key2, new Data("test2"));
+        storageDisk.remove(key2);
+        storageDisk.protectDomain(new Number320(locationKey, domainKey), pair.getPublic());
+        storageDisk.close();
+
+        storageDisk = new StorageDisk(dir);
+        Data data = storageDisk.get(key1);
+        Assert.assertEquals("test1", data.object());
+        Assert.assertEquals(100, data.ttlSeconds());
+        Assert.assertFalse(storageDisk.contains(key2));
+        Assert.assertEquals(1, storageDisk.subMapTimeout(4712L).size());
+        Assert.assertTrue(storageDisk.isDomainProtectedByOthers(new Number320(locationKey, domainKey), null));
+        Assert.assertFalse(storageDisk.isDomainProtectedByOthers(new Number320(locationKey, domainKey),
+                pair.getPublic()));
+        storageDisk.close();
+    }
+
+    @Test
+    public void testRestartWithoutCheckpoint() throws Exception {
+        StorageDisk storageDisk = new StorageDisk(dir);
+        storageDisk.put(key1, new Data("test1"));
+        storageDisk.put(key2, new Data("test2"));
+        storageDisk.put(key1, new Data("test3"));
+        storageDisk.close();
+        Assert.assertTrue(new File(dir, "checkpoint.tomp2p").delete());
+
+        storageDisk = new StorageDisk(dir);
+        NavigableMap<Number640, Data> map = storageDisk.map();
+        Assert.assertEquals(2, map.size());
+        Assert.assertEquals("test3", map.get(key1).object());
+        storageDisk.close();
+    }
+
+    @Test
+    public void testPutAll() throws Exception {
+        // the batch does not fit into one segment
+        StorageDisk storageDisk = new StorageDisk(dir, 256, StorageDisk.DEFAULT_COMPACTION_RATIO,
+                new DefaultSignatureFactory());
+        Map<Number640, Data> values = new TreeMap<Number640, Data>();
+        values.put(key1, new Data("test1"));
+        values.put(key2, new Data("test2"));
+        values.put(key3, new Data("test3"));
+        Assert.assertTrue(storageDisk.putAll(values).isEmpty());
+        Map<Number640, Long> expirations = new TreeMap<Number640, Long>();
+        expirations.put(key1, 4711L);
+        expirations.put(key2, 4712L);
+        storageDisk.addTimeouts(expirations);
+        Assert.assertEquals(2, storageDisk.removeAll(Arrays.asList(key2, key3)).size());
+        storageDisk.removeTimeouts(Arrays.asList(key2));
+        storageDisk.close();
+
+        storageDisk = new StorageDisk(dir, 256, StorageDisk.DEFAULT_COMPACTION_RATIO, new DefaultSignatureFactory());
+        Assert.assertEquals(1, storageDisk.map().size());
+        Assert.assertEquals("test1", storageDisk.get(key1).object());
+        Assert.assertEquals(1, storageDisk.subMapTimeout(4713L).size());
+        storageDisk.close();
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        StorageDisk storageDisk = new StorageDisk(dir, 256, StorageDisk.DEFAULT_COMPACTION_RATIO,
+                new DefaultSignatureFactory());
+        for (int i = 0; i < 100; i++) {
+            storageDisk.put(key1, new Data("test" + i));
+            storageDisk.put(key2, new Data("other" + i));
+        }
+        storageDisk.compact();
+        // around 100 segments were written, only the few with live data and the active segment are left
+        Assert.assertTrue(storageDisk.segmentCount() < 10);
+        Assert.assertEquals("test99", storageDisk.get(key1).object());
+        Assert.assertEquals("other99", storageDisk.get(key2).object());
+        storageDisk.close();
+
+        storageDisk = new StorageDisk(dir, 256, StorageDisk.DEFAULT_COMPACTION_RATIO, new DefaultSignatureFactory());
+        Assert.assertEquals("test99", storageDisk.get(key1).object());
+        Assert.assertEquals("other99", storageDisk.get(key2).object());
+        storageDisk.close();
+    }
+}